@@ -24,6 +24,10 @@ package org.jboss.picketlink.idm;
 import java.util.Collection;
 import java.util.Date;
 
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.event.IdentityEventListener;
 import org.jboss.picketlink.idm.model.Group;
 import org.jboss.picketlink.idm.model.IdentityType;
 import org.jboss.picketlink.idm.model.Role;
@@ -41,7 +45,7 @@ public interface IdentityManager {
 
     // TODO: Exceptions
 
-    // TODO: control hooks & events
+    // TODO: control hooks
 
     // TODO: linking identities
 
@@ -101,6 +105,10 @@ public interface IdentityManager {
 
     void revokeRole(Role role, IdentityType identityType, Group group);
 
+    // Batch
+
+    BatchResult executeBatch(IdentityBatch batch, BatchListener listener);
+
     // Queries
 
     UserQuery createUserQuery();
@@ -113,13 +121,49 @@ public interface IdentityManager {
 
     // Password Management
 
+    /**
+     * @deprecated the user is not known, use {@link #validatePassword(User, String)}
+     */
+    @Deprecated
     boolean validatePassword(String password);
 
+    /**
+     * @deprecated the user is not known, use {@link #updatePassword(User, String)}
+     */
+    @Deprecated
     void updatePassword(String password);
 
+    /**
+     * Check the password of an user. Users that are disabled or expired are rejected whatever the password.
+     *
+     * @param user the user, or null if not found, which is rejected in the same time as a wrong password
+     * @param password
+     * @return true if the password is the one of the user
+     */
+    boolean validatePassword(User user, String password);
+
+    /**
+     * Replace the password of an user. Only a salted hash of the password is stored.
+     *
+     * @param user
+     * @param password the new password, or null to remove the password of the user
+     */
+    void updatePassword(User user, String password);
+
     // User / Role / Group enablement / expiry
 
     void setEnabled(IdentityType identityType, boolean enabled);
 
     void setExpirationDate(IdentityType identityType, Date expirationDate);
+
+    // Events
+
+    /**
+     * Add a listener told synchronously about the changes made through this identity manager
+     *
+     * @param listener
+     */
+    void addEventListener(IdentityEventListener listener);
+
+    void removeEventListener(IdentityEventListener listener);
 }
@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.batch;
+
+/**
+ * A single write of an {@link IdentityBatch}. Identity types are referenced by name since they may be created by an earlier
+ * item of the same batch.
+ */
+public class BatchItem {
+
+    public enum Type {
+        USER, GROUP, ROLE, MEMBERSHIP
+    }
+
+    private final Type type;
+
+    private final String name;
+
+    private final String role;
+
+    private final String user;
+
+    private final String group;
+
+    private BatchItem(Type type, String name, String role, String user, String group) {
+        this.type = type;
+        this.name = name;
+        this.role = role;
+        this.user = user;
+        this.group = group;
+    }
+
+    static BatchItem user(String name) {
+        return new BatchItem(Type.USER, name, null, null, null);
+    }
+
+    static BatchItem group(String name, String parent) {
+        return new BatchItem(Type.GROUP, name, null, null, parent);
+    }
+
+    static BatchItem role(String name) {
+        return new BatchItem(Type.ROLE, name, null, null, null);
+    }
+
+    static BatchItem membership(String role, String user, String group) {
+        return new BatchItem(Type.MEMBERSHIP, null, role, user, group);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the name of the created user, group or role, null for memberships
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the role of a membership
+     */
+    public String getRole() {
+        return role;
+    }
+
+    /**
+     * @return the user of a membership, may be null
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the parent of a group or the group of a membership, may be null
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    @Override
+    public String toString() {
+        if (type == Type.MEMBERSHIP) {
+            return type + "[role=" + role + ", user=" + user + ", group=" + group + "]";
+        }
+        return type + "[" + name + "]";
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of an {@link IdentityBatch}: how many items were written and which ones failed
+ */
+public class BatchResult {
+
+    private final int total;
+
+    private int processed;
+
+    private final List<BatchFailure> failures = new ArrayList<BatchFailure>();
+
+    public BatchResult(int total) {
+        this.total = total;
+    }
+
+    /**
+     * Record that the given number of items, failed or not, have been processed
+     *
+     * @param count
+     */
+    public void addProcessed(int count) {
+        processed += count;
+    }
+
+    public void addFailure(BatchFailure failure) {
+        failures.add(failure);
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getProcessed() {
+        return processed;
+    }
+
+    public int getSucceeded() {
+        return processed - failures.size();
+    }
+
+    public List<BatchFailure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @return true if every item of the batch was written
+     */
+    public boolean isSuccessful() {
+        return processed == total && failures.isEmpty();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the users, groups, roles and memberships to create in bulk, for instance when provisioning from an HR feed.
+ * <p/>
+ * Items are applied in the order they were added, so an item may reference identity types created by earlier items. Stores
+ * write the items in chunks and report the items that could not be written in the {@link BatchResult} instead of failing
+ * the whole batch.
+ */
+public class IdentityBatch {
+
+    private final List<BatchItem> items = new ArrayList<BatchItem>();
+
+    public IdentityBatch createUser(String name) {
+        items.add(BatchItem.user(name));
+        return this;
+    }
+
+    public IdentityBatch createGroup(String name, String parent) {
+        items.add(BatchItem.group(name, parent));
+        return this;
+    }
+
+    public IdentityBatch createRole(String name) {
+        items.add(BatchItem.role(name));
+        return this;
+    }
+
+    /**
+     * Grant a role to an user, to an user within a group or to a group
+     *
+     * @param role
+     * @param user may be null
+     * @param group may be null
+     * @return
+     */
+    public IdentityBatch createMembership(String role, String user, String group) {
+        items.add(BatchItem.membership(role, user, group));
+        return this;
+    }
+
+    public List<BatchItem> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    public int size() {
+        return items.size();
+    }
+}
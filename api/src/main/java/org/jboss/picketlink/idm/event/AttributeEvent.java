@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.event;
+
+import org.jboss.picketlink.idm.model.IdentityType;
+
+/**
+ * An attribute of an user, group or role was set or removed
+ */
+public class AttributeEvent extends IdentityEvent {
+
+    private final Action action;
+    private final IdentityType owner;
+    private final String ownerName;
+    private final String name;
+    private final String[] values;
+
+    /**
+     * @param action {@link Action#UPDATED} when the attribute was set, {@link Action#REMOVED} when it was removed
+     * @param owner
+     * @param ownerName the name the owner is loaded by
+     * @param name
+     * @param values the new values, null when the attribute was removed
+     */
+    public AttributeEvent(Action action, IdentityType owner, String ownerName, String name, String[] values) {
+        this.action = action;
+        this.owner = owner;
+        this.ownerName = ownerName;
+        this.name = name;
+        this.values = values;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public IdentityType getOwner() {
+        return owner;
+    }
+
+    public String getOwnerName() {
+        return ownerName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getValues() {
+        return values != null ? values.clone() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "AttributeEvent[" + action + " " + ownerName + "." + name + "]";
+    }
+}
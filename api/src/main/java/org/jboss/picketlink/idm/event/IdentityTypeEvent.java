@@ -0,0 +1,65 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.event;
+
+import org.jboss.picketlink.idm.model.IdentityType;
+
+/**
+ * An user, group or role was created, updated or removed
+ *
+ * @param <T> type of the identity type
+ */
+public abstract class IdentityTypeEvent<T extends IdentityType> extends IdentityEvent {
+
+    private final Action action;
+    private final String name;
+    private final T identityType;
+
+    protected IdentityTypeEvent(Action action, String name, T identityType) {
+        this.action = action;
+        this.name = name;
+        this.identityType = identityType;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * @return the name the identity type is loaded by
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the identity type, or null when it was created by a batch
+     */
+    public T getIdentityType() {
+        return identityType;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + action + " " + name + "]";
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.event;
+
+/**
+ * A role was granted or revoked: a membership relating it with an user, a group, or both was created or removed
+ */
+public class MembershipEvent extends IdentityEvent {
+
+    private final Action action;
+    private final String role;
+    private final String user;
+    private final String group;
+
+    /**
+     * @param action
+     * @param role name of the role
+     * @param user name of the user, null for a role granted to a group
+     * @param group name of the group, null for a role granted to an user outside of any group
+     */
+    public MembershipEvent(Action action, String role, String user, String group) {
+        this.action = action;
+        this.role = role;
+        this.user = user;
+        this.group = group;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    @Override
+    public String toString() {
+        return "MembershipEvent[" + action + " " + role + "," + user + "," + group + "]";
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.event;
+
+/**
+ * Sent to an asynchronous listener in place of the events it could not keep up with, or when the changes made to the store
+ * in a period of time are not known, for instance while the connection to a directory was lost. The listener no longer knows
+ * what changed and should drop anything it derived from the store, such as cached entries.
+ */
+public class OverflowEvent extends IdentityEvent {
+
+    private final int discarded;
+
+    public OverflowEvent(int discarded) {
+        this.discarded = discarded;
+    }
+
+    /**
+     * @return the number of events discarded, or -1 when unknown
+     */
+    public int getDiscarded() {
+        return discarded;
+    }
+
+    @Override
+    public String toString() {
+        return "OverflowEvent[" + discarded + "]";
+    }
+}
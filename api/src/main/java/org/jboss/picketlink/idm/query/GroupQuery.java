@@ -39,10 +39,19 @@ public interface GroupQuery {
 
     GroupQuery reset();
 
+    /**
+     * Return a copy of this query which can not be changed anymore, so it can be shared and executed again and again. Identity
+     * stores compile the conditions of a query into a plan whose values are bound as parameters, and reuse it for every
+     * query with the same conditions, only binding the new values.
+     *
+     * @return
+     */
     GroupQuery immutable();
 
     List<Group> executeQuery(GroupQuery query);
 
+    QueryResultIterator<Group> iterateQuery(GroupQuery query);
+
     // Conditions
 
     GroupQuery setName(String name);
@@ -59,6 +68,18 @@ public interface GroupQuery {
 
     Group getParentGroup();
 
+    /**
+     * Match the groups below the given group at any depth, not only its direct children
+     *
+     * @param group
+     * @return
+     */
+    GroupQuery setAncestorGroup(Group group);
+
+    GroupQuery setAncestorGroup(String groupId);
+
+    Group getAncestorGroup();
+
     GroupQuery setRole(Role role);
 
     GroupQuery setRole(String role);
@@ -77,6 +98,8 @@ public interface GroupQuery {
 
     GroupQuery sort(boolean ascending);
 
+    boolean isSortAscending();
+
     void setRange(Range range);
 
     Range getRange();
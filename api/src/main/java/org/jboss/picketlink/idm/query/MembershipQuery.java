@@ -39,10 +39,19 @@ public interface MembershipQuery {
 
     MembershipQuery reset();
 
+    /**
+     * Return a copy of this query which can not be changed anymore, so it can be shared and executed again and again. Identity
+     * stores compile the conditions of a query into a plan whose values are bound as parameters, and reuse it for every
+     * query with the same conditions, only binding the new values.
+     *
+     * @return
+     */
     MembershipQuery immutable();
 
     List<Membership> executeQuery(MembershipQuery query);
 
+    QueryResultIterator<Membership> iterateQuery(MembershipQuery query);
+
     // Conditions
 
     MembershipQuery setUser(User user);
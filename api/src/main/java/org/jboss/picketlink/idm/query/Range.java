@@ -22,7 +22,11 @@
 package org.jboss.picketlink.idm.query;
 
 /**
- * Represent range in paginated query
+ * Represent range in paginated query.
+ * <p/>
+ * A range works either by offset or by key. Offset ranges skip the first <code>offset</code> results, which costs more the
+ * deeper the page is. Keyset ranges (see {@link #after(String, int)}) carry the last sort key seen in the previous page and
+ * resume right after it, so every page costs about the same as the first one.
  */
 public class Range {
     // TODO: Just a quick impl
@@ -31,6 +35,10 @@ public class Range {
 
     private int limit = -1;
 
+    private boolean keyset;
+
+    private String lastKey;
+
     private Range() {
     }
 
@@ -53,13 +61,57 @@ public class Range {
         return limit;
     }
 
-    public Range of(int offset, int limit) {
+    /**
+     * @return true if this range resumes after {@link #getLastKey()} instead of skipping {@link #getOffset()} results
+     */
+    public boolean isKeyset() {
+        return keyset;
+    }
+
+    /**
+     * @return the last sort key seen or null if the first page is requested
+     */
+    public String getLastKey() {
+        return lastKey;
+    }
+
+    public static Range of(int offset, int limit) {
         return new Range(offset, limit);
     }
 
+    /**
+     * Create a keyset range returning up to <code>limit</code> results whose sort key comes after <code>lastKey</code>.
+     *
+     * @param lastKey last sort key seen, or null to start from the first result
+     * @param limit
+     * @return
+     */
+    public static Range after(String lastKey, int limit) {
+        Range range = new Range(0, limit);
+        range.keyset = true;
+        range.lastKey = lastKey;
+        return range;
+    }
+
     public Range next() {
+        if (keyset) {
+            throw new IllegalStateException("Keyset ranges need the last sort key seen, use next(String)");
+        }
         offset += limit;
         return this;
     }
 
+    /**
+     * Move to the page after the given sort key. Offset ranges are switched to keyset mode.
+     *
+     * @param lastKey last sort key of the current page
+     * @return
+     */
+    public Range next(String lastKey) {
+        this.keyset = true;
+        this.lastKey = lastKey;
+        this.offset = 0;
+        return this;
+    }
+
 }
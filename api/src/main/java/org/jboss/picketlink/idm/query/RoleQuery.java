@@ -39,26 +39,54 @@ public interface RoleQuery {
 
     RoleQuery reset();
 
+    /**
+     * Return a copy of this query which can not be changed anymore, so it can be shared and executed again and again. Identity
+     * stores compile the conditions of a query into a plan whose values are bound as parameters, and reuse it for every
+     * query with the same conditions, only binding the new values.
+     *
+     * @return
+     */
     RoleQuery getImmutable();
 
     List<Role> executeQuery(RoleQuery query);
 
+    QueryResultIterator<Role> iterateQuery(RoleQuery query);
+
     // Conditions
 
     RoleQuery setName(String name);
 
+    String getName();
+
     RoleQuery setOwner(IdentityType owner);
 
+    IdentityType getOwner();
+
     RoleQuery setGroup(Group group);
 
     RoleQuery setGroup(String groupId);
 
+    Group getGroup();
+
+    /**
+     * Make the group conditions, given by the group or by a group owner, also match the roles granted within any group
+     * above that group
+     *
+     * @param inherited
+     * @return
+     */
+    RoleQuery setInherited(boolean inherited);
+
+    boolean isInherited();
+
     RoleQuery setAttributeFilter(String name, String[] values);
 
     Map<String, String[]> getAttributeFilters();
 
     RoleQuery sort(boolean ascending);
 
+    boolean isSortAscending();
+
     void setRange(Range range);
 
     Range getRange();
@@ -44,10 +44,19 @@ public interface UserQuery {
 
     UserQuery reset();
 
+    /**
+     * Return a copy of this query which can not be changed anymore, so it can be shared and executed again and again. Identity
+     * stores compile the conditions of a query into a plan whose values are bound as parameters, and reuse it for every
+     * query with the same conditions, only binding the new values.
+     *
+     * @return
+     */
     UserQuery getImmutable();
 
     List<User> executeQuery(UserQuery query);
 
+    QueryResultIterator<User> iterateQuery(UserQuery query);
+
     // Conditions
 
     UserQuery setName(String name);
@@ -60,6 +69,16 @@ public interface UserQuery {
 
     Group getRelatedGroup();
 
+    /**
+     * Make the related group condition also match the users related to any group below the related group
+     *
+     * @param includeSubgroups
+     * @return
+     */
+    UserQuery setIncludeSubgroups(boolean includeSubgroups);
+
+    boolean isIncludeSubgroups();
+
     UserQuery setRole(Role role);
 
     UserQuery setRole(String name);
@@ -86,12 +105,17 @@ public interface UserQuery {
 
     UserQuery setEnabled(boolean enabled);
 
-    boolean getEnabled();
+    /**
+     * @return the enabled condition or null if it was not set
+     */
+    Boolean getEnabled();
 
     // Pagination
 
     UserQuery sort(boolean ascending);
 
+    boolean isSortAscending();
+
     void setRange(Range range);
 
     Range getRange();
@@ -21,15 +21,21 @@
  */
 package org.jboss.picketlink.idm.spi;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
 import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
 import org.jboss.picketlink.idm.model.Membership;
 import org.jboss.picketlink.idm.model.Role;
 import org.jboss.picketlink.idm.model.User;
 import org.jboss.picketlink.idm.query.GroupQuery;
 import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
 import org.jboss.picketlink.idm.query.Range;
 import org.jboss.picketlink.idm.query.RoleQuery;
 import org.jboss.picketlink.idm.query.UserQuery;
@@ -43,7 +49,7 @@ public interface IdentityStore {
     // TODO: Exceptions
 
     // TODO: control hooks, events
-    // TODO: authentication, password strenght, salted password hashes
+    // TODO: password strength
 
     // User
 
@@ -77,6 +83,18 @@ public interface IdentityStore {
 
     Membership getMembership(Role role, User user, Group group);
 
+    // Batch
+
+    /**
+     * Create the users, groups, roles and memberships of the batch in chunks. Items that can not be written are reported in
+     * the result instead of failing the whole batch.
+     *
+     * @param batch
+     * @param listener notified of the progress and of the failed items, may be null
+     * @return
+     */
+    BatchResult executeBatch(IdentityBatch batch, BatchListener listener);
+
     // Queries
 
     List<User> executeQuery(UserQuery query, Range range);
@@ -87,6 +105,22 @@ public interface IdentityStore {
 
     List<Membership> executeQuery(MembershipQuery query, Range range);
 
+    /**
+     * Execute the query and return an iterator that reads the results from the store as it advances, so the memory used
+     * does not depend on the size of the result. The iterator must be closed by the caller.
+     *
+     * @param query
+     * @param range range to iterate, or null to iterate every result
+     * @return
+     */
+    QueryResultIterator<User> iterateQuery(UserQuery query, Range range);
+
+    QueryResultIterator<Group> iterateQuery(GroupQuery query, Range range);
+
+    QueryResultIterator<Role> iterateQuery(RoleQuery query, Range range);
+
+    QueryResultIterator<Membership> iterateQuery(MembershipQuery query, Range range);
+
     // Attributes
 
     // User
@@ -187,4 +221,30 @@ public interface IdentityStore {
      */
     Map<String, String[]> getAttributes(Role role);
 
+    // Credentials
+
+    /**
+     * Store the encoded password of the user. The store only keeps the value, hashing is done by the caller.
+     *
+     * @param user
+     * @param passwordHash the salted hash of the password and its parameters, or null to remove the password
+     */
+    void setPasswordHash(User user, String passwordHash);
+
+    /**
+     * @param user
+     * @return the encoded password of the user, or null if the user has no password
+     */
+    String getPasswordHash(User user);
+
+    // Enablement and expiration
+
+    void setEnabled(IdentityType identityType, boolean enabled);
+
+    /**
+     * @param identityType
+     * @param expirationDate the date the identity type expires, or null if it does not
+     */
+    void setExpirationDate(IdentityType identityType, Date expirationDate);
+
 }
@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.benchmarks;
+
+import org.jboss.picketlink.idm.IdentityManager;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.model.User;
+
+/**
+ * The data set provisioned before each benchmark trial.
+ * <p/>
+ * For a data set of <code>size</code> users there is one group per hundred users under a common root group. Every user is
+ * granted the benchmark role in its group and carries a <code>department</code> attribute naming it. User names have a first
+ * and a last name, and the last names are unique within the first six characters, as the LDAP store derives user ids from
+ * them.
+ */
+public final class BenchmarkData {
+
+    public static final String ROOT_GROUP = "bench-root";
+
+    public static final String ROLE = "bench-role";
+
+    public static final String DEPARTMENT = "department";
+
+    public static final int USERS_PER_GROUP = 100;
+
+    private BenchmarkData() {
+    }
+
+    public static String userName(int index) {
+        return String.format("Bench u%05d", index);
+    }
+
+    /**
+     * Name of the user created and removed again by the thread with the given index
+     */
+    public static String createdUserName(int threadIndex) {
+        return String.format("Bench c%05d", threadIndex);
+    }
+
+    public static String groupName(int index) {
+        return "bench-group-" + index;
+    }
+
+    public static String department(int groupIndex) {
+        return "dept-" + groupIndex;
+    }
+
+    public static int groupCount(int size) {
+        return Math.max(1, size / USERS_PER_GROUP);
+    }
+
+    public static int groupOf(int userIndex, int size) {
+        return userIndex % groupCount(size);
+    }
+
+    /**
+     * Provision the data set through the given {@link IdentityManager}. Identity types and memberships are written as an
+     * {@link IdentityBatch}, the attributes are set afterwards user by user.
+     */
+    public static void provision(IdentityManager identityManager, int size) {
+        IdentityBatch batch = new IdentityBatch();
+
+        batch.createRole(ROLE);
+        batch.createGroup(ROOT_GROUP, null);
+
+        for (int i = 0; i < groupCount(size); i++) {
+            batch.createGroup(groupName(i), ROOT_GROUP);
+        }
+
+        for (int i = 0; i < size; i++) {
+            batch.createUser(userName(i));
+            batch.createMembership(ROLE, userName(i), groupName(groupOf(i, size)));
+        }
+
+        BatchResult result = identityManager.executeBatch(batch, null);
+
+        if (!result.isSuccessful()) {
+            throw new RuntimeException("Failed to provision the benchmark data: " + result.getFailures().get(0).getCause());
+        }
+
+        for (int i = 0; i < size; i++) {
+            User user = identityManager.getUser(userName(i));
+            user.setAttribute(DEPARTMENT, department(groupOf(i, size)));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.picketlink.idm.IdentityManager;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operations measured against every {@link IdentityManager} configuration. Subclasses are per thread JMH states which set
+ * up the {@link #identityManager} over a store provisioned with {@link BenchmarkData}, and demarcate each operation with
+ * {@link #begin()} and {@link #end()}.
+ * <p/>
+ * Users and groups are picked at random among the provisioned ones. The user and membership write benchmarks undo their
+ * change within the same operation so that the data set keeps its size for the whole trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public abstract class IdentityManagerBenchmark {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    protected IdentityManager identityManager;
+
+    private int dataSize;
+
+    private Random random;
+
+    private Role role;
+
+    private String createdUserName;
+
+    private int counter;
+
+    /**
+     * Set up the per thread state once the {@link #identityManager} is available
+     */
+    protected void initialize(IdentityManager identityManager, int dataSize) {
+        int threadIndex = THREADS.getAndIncrement();
+
+        this.identityManager = identityManager;
+        this.dataSize = dataSize;
+        this.random = new Random(threadIndex);
+        this.createdUserName = BenchmarkData.createdUserName(threadIndex);
+
+        begin();
+        try {
+            this.role = identityManager.getRole(BenchmarkData.ROLE);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Start a unit of work, like a transaction
+     */
+    protected abstract void begin();
+
+    /**
+     * Complete the unit of work started by {@link #begin()}
+     */
+    protected abstract void end();
+
+    @Benchmark
+    public User getUser() {
+        begin();
+        try {
+            return identityManager.getUser(BenchmarkData.userName(random.nextInt(dataSize)));
+        } finally {
+            end();
+        }
+    }
+
+    @Benchmark
+    public Group getGroup() {
+        begin();
+        try {
+            return identityManager.getGroup(BenchmarkData.groupName(random.nextInt(BenchmarkData.groupCount(dataSize))));
+        } finally {
+            end();
+        }
+    }
+
+    @Benchmark
+    public void createAndRemoveUser() {
+        begin();
+        try {
+            identityManager.createUser(createdUserName);
+        } finally {
+            end();
+        }
+
+        begin();
+        try {
+            identityManager.removeUser(createdUserName);
+        } finally {
+            end();
+        }
+    }
+
+    @Benchmark
+    public boolean hasRole() {
+        int index = random.nextInt(dataSize);
+
+        begin();
+        try {
+            User user = identityManager.getUser(BenchmarkData.userName(index));
+            Group group = identityManager.getGroup(BenchmarkData.groupName(BenchmarkData.groupOf(index, dataSize)));
+            return identityManager.hasRole(role, user, group);
+        } finally {
+            end();
+        }
+    }
+
+    @Benchmark
+    public void grantAndRevokeRole() {
+        int index = random.nextInt(dataSize);
+
+        begin();
+        try {
+            User user = identityManager.getUser(BenchmarkData.userName(index));
+            Group group = identityManager.getGroup(BenchmarkData.ROOT_GROUP);
+            identityManager.grantRole(role, user, group);
+            identityManager.revokeRole(role, user, group);
+        } finally {
+            end();
+        }
+    }
+
+    @Benchmark
+    public String readAttribute() {
+        begin();
+        try {
+            return identityManager.getUser(BenchmarkData.userName(random.nextInt(dataSize))).getAttribute(
+                    BenchmarkData.DEPARTMENT);
+        } finally {
+            end();
+        }
+    }
+
+    @Benchmark
+    public void writeAttribute() {
+        int index = random.nextInt(dataSize);
+
+        begin();
+        try {
+            User user = identityManager.getUser(BenchmarkData.userName(index));
+            user.setAttribute("lastVisit", String.valueOf(counter++));
+        } finally {
+            end();
+        }
+    }
+
+    @Benchmark
+    public List<User> queryUsersByAttribute() {
+        String department = BenchmarkData.department(random.nextInt(BenchmarkData.groupCount(dataSize)));
+
+        begin();
+        try {
+            UserQuery query = identityManager.createUserQuery().setAttributeFilter(BenchmarkData.DEPARTMENT,
+                    new String[] { department });
+            query.setRange(Range.of(0, 20));
+            return query.executeQuery(query);
+        } finally {
+            end();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
+import org.jboss.picketlink.idm.internal.JPAIdentityStore;
+import org.jboss.picketlink.idm.internal.jpa.JPATemplate;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The {@link IdentityManagerBenchmark} operations against a {@link JPAIdentityStore} backed by an in-memory H2 database.
+ * <p/>
+ * Each benchmark thread works with its own {@link EntityManager}, every operation runs in its own transaction and the
+ * persistence context is cleared afterwards, so that lookups are answered by the database rather than the first level cache.
+ */
+@State(Scope.Thread)
+public class JPAIdentityManagerBenchmark extends IdentityManagerBenchmark {
+
+    private EntityManager entityManager;
+
+    /**
+     * The database shared by all benchmark threads, created and provisioned once per trial
+     */
+    @State(Scope.Benchmark)
+    public static class Database {
+
+        @Param({ "100", "1000", "10000" })
+        public int dataSize;
+
+        private EntityManagerFactory emf;
+
+        @Setup
+        public void setup() {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("hibernate.connection.url", "jdbc:h2:mem:benchmarks-" + dataSize + ";DB_CLOSE_DELAY=-1");
+
+            emf = Persistence.createEntityManagerFactory("jpa-identity-store-benchmarks-pu", properties);
+
+            EntityManager entityManager = emf.createEntityManager();
+            entityManager.getTransaction().begin();
+            BenchmarkData.provision(createIdentityManager(entityManager), dataSize);
+            entityManager.getTransaction().commit();
+            entityManager.close();
+        }
+
+        @TearDown
+        public void tearDown() {
+            emf.close();
+        }
+    }
+
+    @Setup
+    public void setup(Database database) {
+        entityManager = database.emf.createEntityManager();
+        initialize(createIdentityManager(entityManager), database.dataSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        entityManager.close();
+    }
+
+    @Override
+    protected void begin() {
+        entityManager.getTransaction().begin();
+    }
+
+    @Override
+    protected void end() {
+        if (entityManager.getTransaction().getRollbackOnly()) {
+            entityManager.getTransaction().rollback();
+        } else {
+            entityManager.getTransaction().commit();
+        }
+        entityManager.clear();
+    }
+
+    private static DefaultIdentityManager createIdentityManager(EntityManager entityManager) {
+        JPATemplate jpaTemplate = new JPATemplate();
+        jpaTemplate.setEntityManager(entityManager);
+
+        JPAIdentityStore identityStore = new JPAIdentityStore();
+        identityStore.setJpaTemplate(jpaTemplate);
+
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+        identityManager.setIdentityStore(identityStore);
+        return identityManager;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.benchmarks;
+
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
+import org.jboss.picketlink.idm.internal.LDAPIdentityStore;
+import org.jboss.picketlink.idm.internal.config.LDAPConfiguration;
+import org.jboss.picketlink.idm.internal.config.LDAPConfigurationBuilder;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.picketbox.test.ldap.AbstractLDAPTest;
+
+/**
+ * The {@link IdentityManagerBenchmark} operations against a {@link LDAPIdentityStore} connected to an embedded ApacheDS
+ * server.
+ * <p/>
+ * All benchmark threads share the store and its connection pool, which is sized for the largest thread count run by the
+ * {@link BenchmarkRunner}.
+ */
+@State(Scope.Thread)
+public class LDAPIdentityManagerBenchmark extends IdentityManagerBenchmark {
+
+    /**
+     * The embedded server and the store shared by all benchmark threads, started and provisioned once per trial
+     */
+    @State(Scope.Benchmark)
+    public static class Server extends AbstractLDAPTest {
+
+        @Param({ "100", "1000", "10000" })
+        public int dataSize;
+
+        private LDAPIdentityStore identityStore;
+
+        @Setup
+        public void start() throws Exception {
+            super.setup();
+            importLDIF("ldap/benchmarks.ldif");
+
+            LDAPConfiguration config = (LDAPConfiguration) new LDAPConfigurationBuilder().build();
+
+            config.setBindDN(adminDN).setBindCredential(adminPW).setLdapURL("ldap://localhost:10389");
+            config.setUserDNSuffix("ou=People,dc=jboss,dc=org").setRoleDNSuffix("ou=Roles,dc=jboss,dc=org");
+            config.setGroupDNSuffix("ou=Groups,dc=jboss,dc=org");
+            config.setPoolMaxSize(32);
+
+            identityStore = new LDAPIdentityStore();
+            identityStore.setConfiguration(config);
+
+            BenchmarkData.provision(createIdentityManager(identityStore), dataSize);
+        }
+
+        @TearDown
+        public void stop() throws Exception {
+            super.tearDown();
+        }
+    }
+
+    @Setup
+    public void setup(Server server) {
+        initialize(createIdentityManager(server.identityStore), server.dataSize);
+    }
+
+    @Override
+    protected void begin() {
+    }
+
+    @Override
+    protected void end() {
+    }
+
+    private static DefaultIdentityManager createIdentityManager(LDAPIdentityStore identityStore) {
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+        identityManager.setIdentityStore(identityStore);
+        return identityManager;
+    }
+}
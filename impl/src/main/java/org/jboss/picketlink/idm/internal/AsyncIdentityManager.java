@@ -0,0 +1,443 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.jboss.picketlink.idm.internal.util.reflection.Reflections;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * Asynchronous facade of a {@link DefaultIdentityManager}. Each operation runs on an {@link Executor} and returns a
+ * {@link CompletableFuture}, so that callers do not block on the store while it talks to the database or the directory.
+ *
+ * Operations submitted together run concurrently, as far as the executor allows. The store must then support concurrent
+ * use: the LDAP store does through its connection pool, while a JPA store sharing a single entity manager must be given a
+ * single threaded executor.
+ */
+public class AsyncIdentityManager {
+
+    private final DefaultIdentityManager identityManager;
+    private final Executor executor;
+
+    // The executor created by this facade, shut down by close()
+    private ExecutorService ownExecutor = null;
+
+    /**
+     * Create a facade running on the {@link #createDefaultExecutor() default executor}
+     *
+     * @param identityManager
+     */
+    public AsyncIdentityManager(DefaultIdentityManager identityManager) {
+        this(identityManager, createDefaultExecutor());
+        this.ownExecutor = (ExecutorService) executor;
+    }
+
+    public AsyncIdentityManager(DefaultIdentityManager identityManager, Executor executor) {
+        if (identityManager == null) {
+            throw new RuntimeException("Identity Manager is null");
+        }
+        if (executor == null) {
+            throw new RuntimeException("Executor is null");
+        }
+        this.identityManager = identityManager;
+        this.executor = executor;
+    }
+
+    /**
+     * Create an executor starting a virtual thread per task when the runtime has them, or else caching daemon threads
+     *
+     * @return
+     */
+    public static ExecutorService createDefaultExecutor() {
+        Method virtualThreads = Reflections.findDeclaredMethod(Executors.class, "newVirtualThreadPerTaskExecutor");
+        if (virtualThreads != null) {
+            return Reflections.invokeMethod(virtualThreads, ExecutorService.class, null, Reflections.EMPTY_OBJECT_ARRAY);
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "picketlink-idm-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Shut down the executor, if it was created by this facade. Executors given to the facade are left to their owner.
+     */
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    // Users
+
+    public CompletableFuture<User> createUser(final String name) {
+        return submit(new Callable<User>() {
+            @Override
+            public User call() {
+                return identityManager.createUser(name);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeUser(final User user) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                identityManager.removeUser(user);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<User> getUser(final String name) {
+        return submit(new Callable<User>() {
+            @Override
+            public User call() {
+                return identityManager.getUser(name);
+            }
+        });
+    }
+
+    /**
+     * Look up several users concurrently
+     *
+     * @param names
+     * @return the users in the order of the names, null for the users not found
+     */
+    public CompletableFuture<List<User>> getUsers(Collection<String> names) {
+        List<CompletableFuture<User>> users = new ArrayList<CompletableFuture<User>>(names.size());
+        for (String name : names) {
+            users.add(getUser(name));
+        }
+        return allOf(users);
+    }
+
+    // Groups
+
+    public CompletableFuture<Group> createGroup(final String name, final Group parent) {
+        return submit(new Callable<Group>() {
+            @Override
+            public Group call() {
+                return identityManager.createGroup(name, parent);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeGroup(final Group group) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                identityManager.removeGroup(group);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Group> getGroup(final String name) {
+        return submit(new Callable<Group>() {
+            @Override
+            public Group call() {
+                return identityManager.getGroup(name);
+            }
+        });
+    }
+
+    /**
+     * Look up several groups concurrently
+     *
+     * @param names
+     * @return the groups in the order of the names, null for the groups not found
+     */
+    public CompletableFuture<List<Group>> getGroups(Collection<String> names) {
+        List<CompletableFuture<Group>> groups = new ArrayList<CompletableFuture<Group>>(names.size());
+        for (String name : names) {
+            groups.add(getGroup(name));
+        }
+        return allOf(groups);
+    }
+
+    // Roles
+
+    public CompletableFuture<Role> createRole(final String name) {
+        return submit(new Callable<Role>() {
+            @Override
+            public Role call() {
+                return identityManager.createRole(name);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeRole(final Role role) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                identityManager.removeRole(role);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Role> getRole(final String name) {
+        return submit(new Callable<Role>() {
+            @Override
+            public Role call() {
+                return identityManager.getRole(name);
+            }
+        });
+    }
+
+    public CompletableFuture<Collection<Role>> getRoles(final IdentityType identityType, final Group group) {
+        return submit(new Callable<Collection<Role>>() {
+            @Override
+            public Collection<Role> call() {
+                return identityManager.getRoles(identityType, group);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> hasRole(final Role role, final IdentityType identityType, final Group group) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return identityManager.hasRole(role, identityType, group);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> grantRole(final Role role, final IdentityType identityType, final Group group) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                identityManager.grantRole(role, identityType, group);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> revokeRole(final Role role, final IdentityType identityType, final Group group) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                identityManager.revokeRole(role, identityType, group);
+                return null;
+            }
+        });
+    }
+
+    // Queries, built with the query factories of the identity manager
+
+    public CompletableFuture<List<User>> executeQuery(final UserQuery query) {
+        return submit(new Callable<List<User>>() {
+            @Override
+            public List<User> call() {
+                return query.executeQuery(query);
+            }
+        });
+    }
+
+    public CompletableFuture<List<Group>> executeQuery(final GroupQuery query) {
+        return submit(new Callable<List<Group>>() {
+            @Override
+            public List<Group> call() {
+                return query.executeQuery(query);
+            }
+        });
+    }
+
+    public CompletableFuture<List<Role>> executeQuery(final RoleQuery query) {
+        return submit(new Callable<List<Role>>() {
+            @Override
+            public List<Role> call() {
+                return query.executeQuery(query);
+            }
+        });
+    }
+
+    public CompletableFuture<List<Membership>> executeQuery(final MembershipQuery query) {
+        return submit(new Callable<List<Membership>>() {
+            @Override
+            public List<Membership> call() {
+                return query.executeQuery(query);
+            }
+        });
+    }
+
+    // Attributes, written and read through the store of the identity manager
+
+    public CompletableFuture<Void> setAttribute(final IdentityType identityType, final String name, final String[] values) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                IdentityStore store = getIdentityStore();
+                if (identityType instanceof User) {
+                    store.setAttribute((User) identityType, name, values);
+                } else if (identityType instanceof Group) {
+                    store.setAttribute((Group) identityType, name, values);
+                } else if (identityType instanceof Role) {
+                    store.setAttribute((Role) identityType, name, values);
+                } else {
+                    throw unsupportedType(identityType);
+                }
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeAttribute(final IdentityType identityType, final String name) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                IdentityStore store = getIdentityStore();
+                if (identityType instanceof User) {
+                    store.removeAttribute((User) identityType, name);
+                } else if (identityType instanceof Group) {
+                    store.removeAttribute((Group) identityType, name);
+                } else if (identityType instanceof Role) {
+                    store.removeAttribute((Role) identityType, name);
+                } else {
+                    throw unsupportedType(identityType);
+                }
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<String[]> getAttributeValues(final IdentityType identityType, final String name) {
+        return submit(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                IdentityStore store = getIdentityStore();
+                if (identityType instanceof User) {
+                    return store.getAttributeValues((User) identityType, name);
+                } else if (identityType instanceof Group) {
+                    return store.getAttributeValues((Group) identityType, name);
+                } else if (identityType instanceof Role) {
+                    return store.getAttributeValues((Role) identityType, name);
+                }
+                throw unsupportedType(identityType);
+            }
+        });
+    }
+
+    public CompletableFuture<Map<String, String[]>> getAttributes(final IdentityType identityType) {
+        return submit(new Callable<Map<String, String[]>>() {
+            @Override
+            public Map<String, String[]> call() {
+                IdentityStore store = getIdentityStore();
+                if (identityType instanceof User) {
+                    return store.getAttributes((User) identityType);
+                } else if (identityType instanceof Group) {
+                    return store.getAttributes((Group) identityType);
+                } else if (identityType instanceof Role) {
+                    return store.getAttributes((Role) identityType);
+                }
+                throw unsupportedType(identityType);
+            }
+        });
+    }
+
+    /**
+     * Run any other operation of the identity manager on the executor
+     *
+     * @param task
+     * @return
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected by the executor
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Combine operations running concurrently into a single result, which fails as soon as one of them fails
+     *
+     * @param futures
+     * @return the results in the order of the futures
+     */
+    public static <T> CompletableFuture<List<T>> allOf(final List<CompletableFuture<T>> futures) {
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+        return all.thenApply(new Function<Void, List<T>>() {
+            @Override
+            public List<T> apply(Void ignored) {
+                List<T> results = new ArrayList<T>(futures.size());
+                for (CompletableFuture<T> future : futures) {
+                    results.add(future.join());
+                }
+                return results;
+            }
+        });
+    }
+
+    private IdentityStore getIdentityStore() {
+        IdentityStore store = identityManager.getIdentityStore();
+        if (store == null) {
+            throw new RuntimeException("Identity Store has not been set");
+        }
+        return store;
+    }
+
+    private RuntimeException unsupportedType(IdentityType identityType) {
+        return new RuntimeException("Unsupported identity type:" + identityType);
+    }
+}
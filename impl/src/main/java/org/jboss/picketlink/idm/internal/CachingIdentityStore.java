@@ -0,0 +1,422 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.picketlink.idm.batch.BatchItem;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.event.AttributeEvent;
+import org.jboss.picketlink.idm.event.GroupEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent;
+import org.jboss.picketlink.idm.event.IdentityEventListener;
+import org.jboss.picketlink.idm.event.OverflowEvent;
+import org.jboss.picketlink.idm.event.RoleEvent;
+import org.jboss.picketlink.idm.event.UserEvent;
+import org.jboss.picketlink.idm.internal.cache.CacheStatistics;
+import org.jboss.picketlink.idm.internal.cache.IdentityCache;
+import org.jboss.picketlink.idm.internal.config.CacheConfiguration;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * An {@link IdentityStore} caching the users, groups and roles loaded by name from another store. Writes going through this
+ * store invalidate the entries they change, writes made directly to the underlying store are only seen once the entries
+ * expire, unless this store is registered as a listener of the events describing them, such as the changes read from the
+ * directory by an {@link org.jboss.picketlink.idm.internal.ldap.LDAPChangeConsumer}.
+ * <p/>
+ * Memberships, attributes and queries are always read from the underlying store.
+ * <p/>
+ * The users, groups and roles returned are the cached instances, shared by every caller. They must be changed through
+ * this store only, which invalidates them, never by calling their setters directly.
+ */
+public class CachingIdentityStore implements IdentityStore, IdentityEventListener {
+    private final IdentityStore delegate;
+    private final IdentityCache<String, User> users;
+    private final IdentityCache<String, Group> groups;
+    private final IdentityCache<String, Role> roles;
+
+    public CachingIdentityStore(IdentityStore delegate, CacheConfiguration configuration) {
+        this.delegate = delegate;
+        this.users = new IdentityCache<String, User>(configuration);
+        this.groups = new IdentityCache<String, Group>(configuration);
+        this.roles = new IdentityCache<String, Role>(configuration);
+    }
+
+    public IdentityStore getDelegate() {
+        return delegate;
+    }
+
+    public CacheStatistics getUserStatistics() {
+        return users.getStatistics();
+    }
+
+    public CacheStatistics getGroupStatistics() {
+        return groups.getStatistics();
+    }
+
+    public CacheStatistics getRoleStatistics() {
+        return roles.getStatistics();
+    }
+
+    /**
+     * Drop every cached entry, for instance after the underlying store was changed by other means
+     */
+    public void invalidateAll() {
+        users.invalidateAll();
+        groups.invalidateAll();
+        roles.invalidateAll();
+    }
+
+    /**
+     * Invalidate the entries changed by other means than this store. A changed group drops every cached group, since the
+     * cached groups hold their parent.
+     */
+    @Override
+    public void onEvents(List<IdentityEvent> events) {
+        for (IdentityEvent event : events) {
+            if (event instanceof UserEvent) {
+                users.invalidate(((UserEvent) event).getName());
+            } else if (event instanceof RoleEvent) {
+                roles.invalidate(((RoleEvent) event).getName());
+            } else if (event instanceof GroupEvent) {
+                groups.invalidateAll();
+            } else if (event instanceof AttributeEvent) {
+                AttributeEvent attributeEvent = (AttributeEvent) event;
+                if (attributeEvent.getOwner() instanceof User) {
+                    users.invalidate(attributeEvent.getOwnerName());
+                } else if (attributeEvent.getOwner() instanceof Group) {
+                    groups.invalidate(attributeEvent.getOwnerName());
+                } else if (attributeEvent.getOwner() instanceof Role) {
+                    roles.invalidate(attributeEvent.getOwnerName());
+                }
+            } else if (event instanceof OverflowEvent) {
+                invalidateAll();
+            }
+        }
+    }
+
+    // User
+
+    @Override
+    public User createUser(String name) {
+        User user = delegate.createUser(name);
+        users.invalidate(name);
+        return user;
+    }
+
+    @Override
+    public void removeUser(User user) {
+        delegate.removeUser(user);
+        invalidate(user);
+    }
+
+    @Override
+    public User getUser(String name) {
+        User user = users.get(name);
+        if (user == null) {
+            long version = users.getVersion(name);
+            user = delegate.getUser(name);
+            users.put(name, user, user != null ? user.getId() : null, version);
+        }
+        return user;
+    }
+
+    // Group
+
+    @Override
+    public Group createGroup(String name, Group parent) {
+        Group group = delegate.createGroup(name, parent);
+        groups.invalidate(name);
+        if (parent != null) {
+            // The parent may keep track of its children
+            invalidate(parent);
+        }
+        return group;
+    }
+
+    @Override
+    public void removeGroup(Group group) {
+        delegate.removeGroup(group);
+        // Child groups keep a reference to the removed parent
+        groups.invalidateAll();
+    }
+
+    @Override
+    public Group getGroup(String name) {
+        Group group = groups.get(name);
+        if (group == null) {
+            long version = groups.getVersion(name);
+            group = delegate.getGroup(name);
+            groups.put(name, group, group != null ? group.getKey() : null, version);
+        }
+        return group;
+    }
+
+    // Role
+
+    @Override
+    public Role createRole(String name) {
+        Role role = delegate.createRole(name);
+        roles.invalidate(name);
+        return role;
+    }
+
+    @Override
+    public void removeRole(Role role) {
+        delegate.removeRole(role);
+        invalidate(role);
+    }
+
+    @Override
+    public Role getRole(String name) {
+        Role role = roles.get(name);
+        if (role == null) {
+            long version = roles.getVersion(name);
+            role = delegate.getRole(name);
+            roles.put(name, role, role != null ? role.getKey() : null, version);
+        }
+        return role;
+    }
+
+    // Memberships
+
+    @Override
+    public Membership createMembership(Role role, User user, Group group) {
+        return delegate.createMembership(role, user, group);
+    }
+
+    @Override
+    public void removeMembership(Role role, User user, Group group) {
+        delegate.removeMembership(role, user, group);
+    }
+
+    @Override
+    public Membership getMembership(Role role, User user, Group group) {
+        return delegate.getMembership(role, user, group);
+    }
+
+    // Batch
+
+    @Override
+    public BatchResult executeBatch(IdentityBatch batch, BatchListener listener) {
+        BatchResult result = delegate.executeBatch(batch, listener);
+        for (BatchItem item : batch.getItems()) {
+            switch (item.getType()) {
+                case USER:
+                    users.invalidate(item.getName());
+                    break;
+                case GROUP:
+                    groups.invalidate(item.getName());
+                    if (item.getGroup() != null) {
+                        groups.invalidate(item.getGroup());
+                    }
+                    break;
+                case ROLE:
+                    roles.invalidate(item.getName());
+                    break;
+                default:
+                    // memberships are not cached
+            }
+        }
+        return result;
+    }
+
+    // Queries
+
+    @Override
+    public List<User> executeQuery(UserQuery query, Range range) {
+        return delegate.executeQuery(query, range);
+    }
+
+    @Override
+    public List<Group> executeQuery(GroupQuery query, Range range) {
+        return delegate.executeQuery(query, range);
+    }
+
+    @Override
+    public List<Role> executeQuery(RoleQuery query, Range range) {
+        return delegate.executeQuery(query, range);
+    }
+
+    @Override
+    public List<Membership> executeQuery(MembershipQuery query, Range range) {
+        return delegate.executeQuery(query, range);
+    }
+
+    @Override
+    public QueryResultIterator<User> iterateQuery(UserQuery query, Range range) {
+        return delegate.iterateQuery(query, range);
+    }
+
+    @Override
+    public QueryResultIterator<Group> iterateQuery(GroupQuery query, Range range) {
+        return delegate.iterateQuery(query, range);
+    }
+
+    @Override
+    public QueryResultIterator<Role> iterateQuery(RoleQuery query, Range range) {
+        return delegate.iterateQuery(query, range);
+    }
+
+    @Override
+    public QueryResultIterator<Membership> iterateQuery(MembershipQuery query, Range range) {
+        return delegate.iterateQuery(query, range);
+    }
+
+    // Attributes
+
+    @Override
+    public void setAttribute(User user, String name, String[] values) {
+        delegate.setAttribute(user, name, values);
+        invalidate(user);
+    }
+
+    @Override
+    public void removeAttribute(User user, String name) {
+        delegate.removeAttribute(user, name);
+        invalidate(user);
+    }
+
+    @Override
+    public String[] getAttributeValues(User user, String name) {
+        return delegate.getAttributeValues(user, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(User user) {
+        return delegate.getAttributes(user);
+    }
+
+    @Override
+    public void setAttribute(Group group, String name, String[] values) {
+        delegate.setAttribute(group, name, values);
+        invalidate(group);
+    }
+
+    @Override
+    public void removeAttribute(Group group, String name) {
+        delegate.removeAttribute(group, name);
+        invalidate(group);
+    }
+
+    @Override
+    public String[] getAttributeValues(Group group, String name) {
+        return delegate.getAttributeValues(group, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Group group) {
+        return delegate.getAttributes(group);
+    }
+
+    @Override
+    public void setAttribute(Role role, String name, String[] values) {
+        delegate.setAttribute(role, name, values);
+        invalidate(role);
+    }
+
+    @Override
+    public void removeAttribute(Role role, String name) {
+        delegate.removeAttribute(role, name);
+        invalidate(role);
+    }
+
+    @Override
+    public String[] getAttributeValues(Role role, String name) {
+        return delegate.getAttributeValues(role, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Role role) {
+        return delegate.getAttributes(role);
+    }
+
+    // Credentials
+
+    @Override
+    public void setPasswordHash(User user, String passwordHash) {
+        delegate.setPasswordHash(user, passwordHash);
+        invalidate(user);
+    }
+
+    @Override
+    public String getPasswordHash(User user) {
+        return delegate.getPasswordHash(user);
+    }
+
+    // Enablement and expiration
+
+    @Override
+    public void setEnabled(IdentityType identityType, boolean enabled) {
+        delegate.setEnabled(identityType, enabled);
+        invalidate(identityType);
+    }
+
+    @Override
+    public void setExpirationDate(IdentityType identityType, Date expirationDate) {
+        delegate.setExpirationDate(identityType, expirationDate);
+        invalidate(identityType);
+    }
+
+    // The stores look identity types up by key (JPA) or by a name that is not always the key (LDAP). Users are cached with
+    // their id as alias: LDAP users are looked up by common name, which is neither their key nor their id.
+
+    private void invalidate(IdentityType identityType) {
+        if (identityType instanceof User) {
+            invalidate((User) identityType);
+        } else if (identityType instanceof Group) {
+            invalidate((Group) identityType);
+        } else if (identityType instanceof Role) {
+            invalidate((Role) identityType);
+        }
+    }
+
+    private void invalidate(User user) {
+        users.invalidate(user.getKey());
+        users.invalidate(user.getId());
+    }
+
+    private void invalidate(Group group) {
+        groups.invalidate(group.getKey());
+        groups.invalidate(group.getName());
+    }
+
+    private void invalidate(Role role) {
+        roles.invalidate(role.getKey());
+        roles.invalidate(role.getName());
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * Default implementation of the {@link GroupQuery} interface. Conditions are only collected here, the query is resolved by
+ * the {@link IdentityStore}.
+ */
+public class DefaultGroupQuery implements GroupQuery {
+
+    private final IdentityStore store;
+    private final boolean immutable;
+
+    private String name;
+    private String id;
+    private Group parentGroup;
+    private Group ancestorGroup;
+    private Role role;
+    private User relatedUser;
+    private Map<String, String[]> attributeFilters = new HashMap<String, String[]>();
+    private boolean ascending = true;
+    private Range range;
+
+    public DefaultGroupQuery(IdentityStore store) {
+        this.store = store;
+        this.immutable = false;
+    }
+
+    /**
+     * Immutable copy of the given query, see {@link #immutable()}
+     */
+    private DefaultGroupQuery(DefaultGroupQuery query) {
+        this.store = query.store;
+        this.immutable = true;
+        this.name = query.name;
+        this.id = query.id;
+        this.parentGroup = query.parentGroup;
+        this.ancestorGroup = query.ancestorGroup;
+        this.role = query.role;
+        this.relatedUser = query.relatedUser;
+        this.attributeFilters = copyAttributeFilters(query.attributeFilters);
+        this.ascending = query.ascending;
+        this.range = query.range;
+    }
+
+    @Override
+    public GroupQuery reset() {
+        checkMutable();
+        this.name = null;
+        this.id = null;
+        this.parentGroup = null;
+        this.ancestorGroup = null;
+        this.role = null;
+        this.relatedUser = null;
+        this.attributeFilters.clear();
+        this.ascending = true;
+        this.range = null;
+        return this;
+    }
+
+    @Override
+    public GroupQuery immutable() {
+        return this.immutable ? this : new DefaultGroupQuery(this);
+    }
+
+    @Override
+    public List<Group> executeQuery(GroupQuery query) {
+        return this.store.executeQuery(query, query.getRange());
+    }
+
+    @Override
+    public QueryResultIterator<Group> iterateQuery(GroupQuery query) {
+        return this.store.iterateQuery(query, query.getRange());
+    }
+
+    @Override
+    public GroupQuery setName(String name) {
+        checkMutable();
+        this.name = name;
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public GroupQuery setId(String id) {
+        checkMutable();
+        this.id = id;
+        return this;
+    }
+
+    @Override
+    public String getId() {
+        return this.id;
+    }
+
+    @Override
+    public GroupQuery setParentGroup(Group group) {
+        checkMutable();
+        this.parentGroup = group;
+        return this;
+    }
+
+    @Override
+    public GroupQuery setParentGroup(String groupId) {
+        checkMutable();
+        return setParentGroup(this.store.getGroup(groupId));
+    }
+
+    @Override
+    public Group getParentGroup() {
+        return this.parentGroup;
+    }
+
+    @Override
+    public GroupQuery setAncestorGroup(Group group) {
+        checkMutable();
+        this.ancestorGroup = group;
+        return this;
+    }
+
+    @Override
+    public GroupQuery setAncestorGroup(String groupId) {
+        checkMutable();
+        return setAncestorGroup(this.store.getGroup(groupId));
+    }
+
+    @Override
+    public Group getAncestorGroup() {
+        return this.ancestorGroup;
+    }
+
+    @Override
+    public GroupQuery setRole(Role role) {
+        checkMutable();
+        this.role = role;
+        return this;
+    }
+
+    @Override
+    public GroupQuery setRole(String role) {
+        checkMutable();
+        return setRole(this.store.getRole(role));
+    }
+
+    @Override
+    public Role getRole() {
+        return this.role;
+    }
+
+    @Override
+    public GroupQuery setRelatedUser(User user) {
+        checkMutable();
+        this.relatedUser = user;
+        return this;
+    }
+
+    @Override
+    public GroupQuery setRelatedUser(String user) {
+        checkMutable();
+        return setRelatedUser(this.store.getUser(user));
+    }
+
+    @Override
+    public User getRelatedUser() {
+        return this.relatedUser;
+    }
+
+    @Override
+    public GroupQuery addAttributeFilter(String name, String[] values) {
+        checkMutable();
+        this.attributeFilters.put(name, values);
+        return this;
+    }
+
+    @Override
+    public Map<String, String[]> getAttributeFilters() {
+        return this.attributeFilters;
+    }
+
+    @Override
+    public GroupQuery sort(boolean ascending) {
+        checkMutable();
+        this.ascending = ascending;
+        return this;
+    }
+
+    @Override
+    public boolean isSortAscending() {
+        return this.ascending;
+    }
+
+    @Override
+    public void setRange(Range range) {
+        checkMutable();
+        this.range = range;
+    }
+
+    @Override
+    public Range getRange() {
+        return this.range;
+    }
+
+    private void checkMutable() {
+        if (this.immutable) {
+            throw new RuntimeException("Immutable query can not be changed");
+        }
+    }
+
+    private static Map<String, String[]> copyAttributeFilters(Map<String, String[]> attributeFilters) {
+        Map<String, String[]> copy = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, String[]> filter : attributeFilters.entrySet()) {
+            String[] values = filter.getValue();
+            copy.put(filter.getKey(), values != null ? values.clone() : null);
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+}
@@ -23,11 +23,25 @@ package org.jboss.picketlink.idm.internal;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.jboss.picketlink.idm.IdentityManager;
+import org.jboss.picketlink.idm.batch.BatchItem;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.event.IdentityEventListener;
+import org.jboss.picketlink.idm.internal.cache.MembershipIndex;
+import org.jboss.picketlink.idm.internal.config.CacheConfiguration;
+import org.jboss.picketlink.idm.internal.credential.AuthenticationCache;
+import org.jboss.picketlink.idm.internal.credential.PBKDF2PasswordHasher;
+import org.jboss.picketlink.idm.internal.credential.PasswordService;
+import org.jboss.picketlink.idm.internal.event.IdentityEventBus;
 import org.jboss.picketlink.idm.spi.IdentityStore;
 import org.jboss.picketlink.idm.model.Group;
 import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Membership;
 import org.jboss.picketlink.idm.model.Role;
 import org.jboss.picketlink.idm.model.User;
 import org.jboss.picketlink.idm.query.GroupQuery;
@@ -43,12 +57,62 @@ import org.jboss.picketlink.idm.query.UserQuery;
  */
 public class DefaultIdentityManager implements IdentityManager {
     private IdentityStore store = null;
+    private MembershipIndex membershipIndex = null;
+    private IdentityEventBus eventBus = null;
+    private PasswordService passwordService = null;
+    private AuthenticationCache authenticationCache = null;
 
     public DefaultIdentityManager() {
     }
 
     public void setIdentityStore(IdentityStore theStore) {
-        this.store = theStore;
+        this.store = eventBus != null ? new EventIdentityStore(theStore, eventBus) : theStore;
+    }
+
+    public IdentityStore getIdentityStore() {
+        return store;
+    }
+
+    /**
+     * Set the store wrapped in a {@link CachingIdentityStore} with the given configuration
+     *
+     * @param theStore
+     * @param cacheConfiguration
+     */
+    public void setIdentityStore(IdentityStore theStore, CacheConfiguration cacheConfiguration) {
+        setIdentityStore(new CachingIdentityStore(theStore, cacheConfiguration));
+    }
+
+    /**
+     * Publish the changes made through this manager to the given bus. The store is wrapped in an {@link EventIdentityStore},
+     * so that changes made through {@link #getIdentityStore()}, such as attribute changes, are published as well.
+     *
+     * @param eventBus
+     */
+    public void setEventBus(IdentityEventBus eventBus) {
+        ensureStoreExists();
+        IdentityStore theStore = store instanceof EventIdentityStore ? ((EventIdentityStore) store).getDelegate() : store;
+        this.eventBus = eventBus;
+        setIdentityStore(theStore);
+    }
+
+    /**
+     * @return the bus the changes are published to, created by the first listener added if not set
+     */
+    public IdentityEventBus getEventBus() {
+        return eventBus;
+    }
+
+    /**
+     * Load the memberships of the store into a {@link MembershipIndex}, which then answers {@link #hasRole} and
+     * {@link #getRoles} without going to the store. Roles granted or revoked through this manager keep the index up to date,
+     * changes made to the store by other means require calling this method again.
+     */
+    public void enableMembershipIndex() {
+        ensureStoreExists();
+        MembershipIndex index = new MembershipIndex();
+        index.load(store);
+        this.membershipIndex = index;
     }
 
     @Override
@@ -61,12 +125,16 @@ public class DefaultIdentityManager implements IdentityManager {
     public void removeUser(User user) {
         ensureStoreExists();
         store.removeUser(user);
+        if (membershipIndex != null) {
+            membershipIndex.remove(user);
+        }
+        invalidateAuthentication(user);
     }
 
     @Override
     public void removeUser(String name) {
         ensureStoreExists();
-        store.removeUser(getUser(name));
+        removeUser(getUser(name));
     }
 
     @Override
@@ -102,12 +170,15 @@ public class DefaultIdentityManager implements IdentityManager {
     public void removeGroup(Group group) {
         ensureStoreExists();
         store.removeGroup(group);
+        if (membershipIndex != null) {
+            membershipIndex.remove(group);
+        }
     }
 
     @Override
     public void removeGroup(String groupId) {
         ensureStoreExists();
-        store.removeGroup(getGroup(groupId));
+        removeGroup(getGroup(groupId));
     }
 
     @Override
@@ -152,12 +223,15 @@ public class DefaultIdentityManager implements IdentityManager {
     public void removeRole(Role role) {
         ensureStoreExists();
         store.removeRole(role);
+        if (membershipIndex != null) {
+            membershipIndex.remove(role);
+        }
     }
 
     @Override
     public void removeRole(String name) {
         ensureStoreExists();
-        store.removeRole(getRole(name));
+        removeRole(getRole(name));
     }
 
     @Override
@@ -173,60 +247,252 @@ public class DefaultIdentityManager implements IdentityManager {
 
     @Override
     public Collection<Role> getRoles(IdentityType identityType, Group group) {
-        throw new RuntimeException();
+        ensureStoreExists();
+        if (membershipIndex != null) {
+            return membershipIndex.getRoles(identityType, group);
+        }
+        return store.executeQuery(createRoleQuery().setOwner(identityType).setGroup(group), null);
     }
 
     @Override
     public boolean hasRole(Role role, IdentityType identityType, Group group) {
-        throw new RuntimeException();
+        ensureStoreExists();
+        if (membershipIndex != null) {
+            return membershipIndex.hasRole(role, identityType, group);
+        }
+        return store.getMembership(role, toUser(identityType), toGroup(identityType, group)) != null;
     }
 
     @Override
     public void grantRole(Role role, IdentityType identityType, Group group) {
-        throw new RuntimeException();
+        ensureStoreExists();
+        Membership membership = store.createMembership(role, toUser(identityType), toGroup(identityType, group));
+        if (membershipIndex != null) {
+            membershipIndex.add(membership);
+        }
     }
 
     @Override
     public void revokeRole(Role role, IdentityType identityType, Group group) {
-        throw new RuntimeException();
+        ensureStoreExists();
+        store.removeMembership(role, toUser(identityType), toGroup(identityType, group));
+        if (membershipIndex != null) {
+            membershipIndex.remove(role, identityType, group);
+        }
+    }
+
+    /**
+     * Create the items of the batch in the store. The {@link MembershipIndex}, if enabled, is given the memberships of the
+     * batch, or reloaded if some items were not written.
+     */
+    @Override
+    public BatchResult executeBatch(IdentityBatch batch, BatchListener listener) {
+        ensureStoreExists();
+        MembershipIndex index = membershipIndex;
+        BatchResult result;
+        try {
+            result = store.executeBatch(batch, listener);
+        } catch (RuntimeException e) {
+            if (index != null) {
+                index.load(store);
+            }
+            throw e;
+        }
+        if (index != null) {
+            if (result.isSuccessful()) {
+                addMemberships(index, batch);
+            } else {
+                index.load(store);
+            }
+        }
+        return result;
     }
 
     @Override
     public UserQuery createUserQuery() {
-        throw new RuntimeException();
+        ensureStoreExists();
+        return new DefaultUserQuery(store);
     }
 
     @Override
     public GroupQuery createGroupQuery() {
-        throw new RuntimeException();
+        ensureStoreExists();
+        return new DefaultGroupQuery(store);
     }
 
     @Override
     public RoleQuery createRoleQuery() {
-        throw new RuntimeException();
+        ensureStoreExists();
+        return new DefaultRoleQuery(store);
     }
 
     @Override
     public MembershipQuery createMembershipQuery() {
-        throw new RuntimeException();
+        ensureStoreExists();
+        return new DefaultMembershipQuery(store);
     }
 
     @Override
     public boolean validatePassword(String password) {
-        throw new RuntimeException();
+        throw new RuntimeException("The user is not known, use validatePassword(User, String)");
     }
 
     @Override
     public void updatePassword(String password) {
-        throw new RuntimeException();
+        throw new RuntimeException("The user is not known, use updatePassword(User, String)");
     }
 
+    /**
+     * Check the password on the threads of the {@link PasswordService}, unless the {@link AuthenticationCache}, if set,
+     * found it right recently. A right password checked against a hash made with other parameters than the current ones is
+     * hashed again, unless disabled with {@link PasswordService#setRehashOnLogin(boolean)}.
+     */
+    @Override
+    public boolean validatePassword(User user, String password) {
+        ensureStoreExists();
+        AuthenticationCache cache = authenticationCache;
+        if (cache != null && user != null && cache.contains(nameOf(user), password)) {
+            return isActive(user);
+        }
+        long version = cache != null && user != null ? cache.getVersion(nameOf(user)) : 0;
+
+        PasswordService service = getPasswordService();
+        String passwordHash = user != null ? store.getPasswordHash(user) : null;
+        if (!service.verify(password, passwordHash) || !isActive(user)) {
+            return false;
+        }
+        if (service.isRehashOnLogin() && service.needsRehash(passwordHash)) {
+            store.setPasswordHash(user, service.hash(password));
+        }
+        if (cache != null) {
+            cache.put(nameOf(user), password, version);
+        }
+        return true;
+    }
+
+    @Override
+    public void updatePassword(User user, String password) {
+        ensureStoreExists();
+        store.setPasswordHash(user, password != null ? getPasswordService().hash(password) : null);
+        invalidateAuthentication(user);
+    }
+
+    /**
+     * Set the service hashing the passwords, {@link PBKDF2PasswordHasher} with its default iterations if not set
+     *
+     * @param passwordService
+     */
+    public synchronized void setPasswordService(PasswordService passwordService) {
+        this.passwordService = passwordService;
+    }
+
+    public synchronized PasswordService getPasswordService() {
+        if (passwordService == null) {
+            passwordService = new PasswordService(new PBKDF2PasswordHasher());
+        }
+        return passwordService;
+    }
+
+    /**
+     * Remember the passwords found to be right for a short time. Changes made through this manager invalidate the entries
+     * of the users they change, changes made by other means require the cache to be registered as an event listener, for
+     * instance of an {@link org.jboss.picketlink.idm.internal.ldap.LDAPChangeConsumer}.
+     *
+     * @param authenticationCache the cache, or null to check every password against the store
+     */
+    public void setAuthenticationCache(AuthenticationCache authenticationCache) {
+        this.authenticationCache = authenticationCache;
+    }
+
+    public AuthenticationCache getAuthenticationCache() {
+        return authenticationCache;
+    }
+
+    @Override
     public void setEnabled(IdentityType identityType, boolean enabled) {
-        throw new RuntimeException();
+        ensureStoreExists();
+        store.setEnabled(identityType, enabled);
+        invalidateAuthentication(identityType);
     }
 
+    @Override
     public void setExpirationDate(IdentityType identityType, Date expirationDate) {
-        throw new RuntimeException();
+        ensureStoreExists();
+        store.setExpirationDate(identityType, expirationDate);
+        invalidateAuthentication(identityType);
+    }
+
+    @Override
+    public void addEventListener(IdentityEventListener listener) {
+        if (eventBus == null) {
+            setEventBus(new IdentityEventBus());
+        }
+        eventBus.addListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(IdentityEventListener listener) {
+        if (eventBus != null) {
+            eventBus.removeListener(listener);
+        }
+    }
+
+    private void invalidateAuthentication(IdentityType identityType) {
+        AuthenticationCache cache = authenticationCache;
+        if (cache != null && identityType instanceof User) {
+            cache.invalidate(nameOf((User) identityType));
+        }
+    }
+
+    private static String nameOf(User user) {
+        return user.getKey() != null ? user.getKey() : user.getId();
+    }
+
+    private boolean isActive(IdentityType identityType) {
+        Date expirationDate = identityType.getExpirationDate();
+        return identityType.isEnabled() && (expirationDate == null || expirationDate.after(new Date()));
+    }
+
+    // Batches grant a few roles to many users, each name is looked up in the store once per batch
+    private void addMemberships(MembershipIndex index, IdentityBatch batch) {
+        Map<String, Role> roles = new HashMap<String, Role>();
+        Map<String, User> users = new HashMap<String, User>();
+        Map<String, Group> groups = new HashMap<String, Group>();
+        for (BatchItem item : batch.getItems()) {
+            if (item.getType() == BatchItem.Type.MEMBERSHIP) {
+                Role role = roles.get(item.getRole());
+                if (role == null) {
+                    role = store.getRole(item.getRole());
+                    roles.put(item.getRole(), role);
+                }
+                User user = null;
+                if (item.getUser() != null) {
+                    user = users.get(item.getUser());
+                    if (user == null) {
+                        user = store.getUser(item.getUser());
+                        users.put(item.getUser(), user);
+                    }
+                }
+                Group group = null;
+                if (item.getGroup() != null) {
+                    group = groups.get(item.getGroup());
+                    if (group == null) {
+                        group = store.getGroup(item.getGroup());
+                        groups.put(item.getGroup(), group);
+                    }
+                }
+                index.add(new DefaultMembership(user, role, group));
+            }
+        }
+    }
+
+    private User toUser(IdentityType identityType) {
+        return identityType instanceof User ? (User) identityType : null;
+    }
+
+    // Roles granted to a group are stored as memberships of the group without an user
+    private Group toGroup(IdentityType identityType, Group group) {
+        return identityType instanceof Group ? (Group) identityType : group;
     }
 
     private void ensureStoreExists() {
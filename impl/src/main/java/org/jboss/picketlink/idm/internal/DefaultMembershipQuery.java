@@ -0,0 +1,161 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.List;
+
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * Default implementation of the {@link MembershipQuery} interface. Conditions are only collected here, the query is
+ * resolved by the {@link IdentityStore}.
+ */
+public class DefaultMembershipQuery implements MembershipQuery {
+
+    private final IdentityStore store;
+    private final boolean immutable;
+
+    private User user;
+    private Group group;
+    private Role role;
+    private Range range;
+
+    public DefaultMembershipQuery(IdentityStore store) {
+        this.store = store;
+        this.immutable = false;
+    }
+
+    /**
+     * Immutable copy of the given query, see {@link #immutable()}
+     */
+    private DefaultMembershipQuery(DefaultMembershipQuery query) {
+        this.store = query.store;
+        this.immutable = true;
+        this.user = query.user;
+        this.group = query.group;
+        this.role = query.role;
+        this.range = query.range;
+    }
+
+    @Override
+    public MembershipQuery reset() {
+        checkMutable();
+        this.user = null;
+        this.group = null;
+        this.role = null;
+        this.range = null;
+        return this;
+    }
+
+    @Override
+    public MembershipQuery immutable() {
+        return this.immutable ? this : new DefaultMembershipQuery(this);
+    }
+
+    @Override
+    public List<Membership> executeQuery(MembershipQuery query) {
+        return this.store.executeQuery(query, query.getRange());
+    }
+
+    @Override
+    public QueryResultIterator<Membership> iterateQuery(MembershipQuery query) {
+        return this.store.iterateQuery(query, query.getRange());
+    }
+
+    @Override
+    public MembershipQuery setUser(User user) {
+        checkMutable();
+        this.user = user;
+        return this;
+    }
+
+    @Override
+    public MembershipQuery setUser(String user) {
+        checkMutable();
+        return setUser(this.store.getUser(user));
+    }
+
+    @Override
+    public User getUser() {
+        return this.user;
+    }
+
+    @Override
+    public MembershipQuery setGroup(Group group) {
+        checkMutable();
+        this.group = group;
+        return this;
+    }
+
+    @Override
+    public MembershipQuery setGroup(String groupId) {
+        checkMutable();
+        return setGroup(this.store.getGroup(groupId));
+    }
+
+    @Override
+    public Group getGroup() {
+        return this.group;
+    }
+
+    @Override
+    public MembershipQuery setRole(Role role) {
+        checkMutable();
+        this.role = role;
+        return this;
+    }
+
+    @Override
+    public MembershipQuery setRole(String role) {
+        checkMutable();
+        return setRole(this.store.getRole(role));
+    }
+
+    @Override
+    public Role getRole() {
+        return this.role;
+    }
+
+    @Override
+    public void setRange(Range range) {
+        checkMutable();
+        this.range = range;
+    }
+
+    @Override
+    public Range getRange() {
+        return this.range;
+    }
+
+    private void checkMutable() {
+        if (this.immutable) {
+            throw new RuntimeException("Immutable query can not be changed");
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * Default implementation of the {@link RoleQuery} interface. Conditions are only collected here, the query is resolved by
+ * the {@link IdentityStore}.
+ */
+public class DefaultRoleQuery implements RoleQuery {
+
+    private final IdentityStore store;
+    private final boolean immutable;
+
+    private String name;
+    private IdentityType owner;
+    private Group group;
+    private boolean inherited;
+    private Map<String, String[]> attributeFilters = new HashMap<String, String[]>();
+    private boolean ascending = true;
+    private Range range;
+
+    public DefaultRoleQuery(IdentityStore store) {
+        this.store = store;
+        this.immutable = false;
+    }
+
+    /**
+     * Immutable copy of the given query, see {@link #getImmutable()}
+     */
+    private DefaultRoleQuery(DefaultRoleQuery query) {
+        this.store = query.store;
+        this.immutable = true;
+        this.name = query.name;
+        this.owner = query.owner;
+        this.group = query.group;
+        this.inherited = query.inherited;
+        this.attributeFilters = copyAttributeFilters(query.attributeFilters);
+        this.ascending = query.ascending;
+        this.range = query.range;
+    }
+
+    @Override
+    public RoleQuery reset() {
+        checkMutable();
+        this.name = null;
+        this.owner = null;
+        this.group = null;
+        this.inherited = false;
+        this.attributeFilters.clear();
+        this.ascending = true;
+        this.range = null;
+        return this;
+    }
+
+    @Override
+    public RoleQuery getImmutable() {
+        return this.immutable ? this : new DefaultRoleQuery(this);
+    }
+
+    @Override
+    public List<Role> executeQuery(RoleQuery query) {
+        return this.store.executeQuery(query, query.getRange());
+    }
+
+    @Override
+    public QueryResultIterator<Role> iterateQuery(RoleQuery query) {
+        return this.store.iterateQuery(query, query.getRange());
+    }
+
+    @Override
+    public RoleQuery setName(String name) {
+        checkMutable();
+        this.name = name;
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public RoleQuery setOwner(IdentityType owner) {
+        checkMutable();
+        this.owner = owner;
+        return this;
+    }
+
+    @Override
+    public IdentityType getOwner() {
+        return this.owner;
+    }
+
+    @Override
+    public RoleQuery setGroup(Group group) {
+        checkMutable();
+        this.group = group;
+        return this;
+    }
+
+    @Override
+    public RoleQuery setGroup(String groupId) {
+        checkMutable();
+        return setGroup(this.store.getGroup(groupId));
+    }
+
+    @Override
+    public Group getGroup() {
+        return this.group;
+    }
+
+    @Override
+    public RoleQuery setInherited(boolean inherited) {
+        checkMutable();
+        this.inherited = inherited;
+        return this;
+    }
+
+    @Override
+    public boolean isInherited() {
+        return this.inherited;
+    }
+
+    @Override
+    public RoleQuery setAttributeFilter(String name, String[] values) {
+        checkMutable();
+        this.attributeFilters.put(name, values);
+        return this;
+    }
+
+    @Override
+    public Map<String, String[]> getAttributeFilters() {
+        return this.attributeFilters;
+    }
+
+    @Override
+    public RoleQuery sort(boolean ascending) {
+        checkMutable();
+        this.ascending = ascending;
+        return this;
+    }
+
+    @Override
+    public boolean isSortAscending() {
+        return this.ascending;
+    }
+
+    @Override
+    public void setRange(Range range) {
+        checkMutable();
+        this.range = range;
+    }
+
+    @Override
+    public Range getRange() {
+        return this.range;
+    }
+
+    private void checkMutable() {
+        if (this.immutable) {
+            throw new RuntimeException("Immutable query can not be changed");
+        }
+    }
+
+    private static Map<String, String[]> copyAttributeFilters(Map<String, String[]> attributeFilters) {
+        Map<String, String[]> copy = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, String[]> filter : attributeFilters.entrySet()) {
+            String[] values = filter.getValue();
+            copy.put(filter.getKey(), values != null ? values.clone() : null);
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+}
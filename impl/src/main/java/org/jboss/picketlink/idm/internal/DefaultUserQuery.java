@@ -0,0 +1,272 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * Default implementation of the {@link UserQuery} interface. Conditions are only collected here, the query is resolved by
+ * the {@link IdentityStore}.
+ */
+public class DefaultUserQuery implements UserQuery {
+
+    private final IdentityStore store;
+    private final boolean immutable;
+
+    private String name;
+    private Group relatedGroup;
+    private boolean includeSubgroups;
+    private Role role;
+    private Map<String, String[]> attributeFilters = new HashMap<String, String[]>();
+    private String firstName;
+    private String lastName;
+    private String email;
+    private Boolean enabled;
+    private boolean ascending = true;
+    private Range range;
+
+    public DefaultUserQuery(IdentityStore store) {
+        this.store = store;
+        this.immutable = false;
+    }
+
+    /**
+     * Immutable copy of the given query, see {@link #getImmutable()}
+     */
+    private DefaultUserQuery(DefaultUserQuery query) {
+        this.store = query.store;
+        this.immutable = true;
+        this.name = query.name;
+        this.relatedGroup = query.relatedGroup;
+        this.includeSubgroups = query.includeSubgroups;
+        this.role = query.role;
+        this.attributeFilters = copyAttributeFilters(query.attributeFilters);
+        this.firstName = query.firstName;
+        this.lastName = query.lastName;
+        this.email = query.email;
+        this.enabled = query.enabled;
+        this.ascending = query.ascending;
+        this.range = query.range;
+    }
+
+    @Override
+    public UserQuery reset() {
+        checkMutable();
+        this.name = null;
+        this.relatedGroup = null;
+        this.includeSubgroups = false;
+        this.role = null;
+        this.attributeFilters.clear();
+        this.firstName = null;
+        this.lastName = null;
+        this.email = null;
+        this.enabled = null;
+        this.ascending = true;
+        this.range = null;
+        return this;
+    }
+
+    @Override
+    public UserQuery getImmutable() {
+        return this.immutable ? this : new DefaultUserQuery(this);
+    }
+
+    @Override
+    public List<User> executeQuery(UserQuery query) {
+        return this.store.executeQuery(query, query.getRange());
+    }
+
+    @Override
+    public QueryResultIterator<User> iterateQuery(UserQuery query) {
+        return this.store.iterateQuery(query, query.getRange());
+    }
+
+    @Override
+    public UserQuery setName(String name) {
+        checkMutable();
+        this.name = name;
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public UserQuery setRelatedGroup(Group group) {
+        checkMutable();
+        this.relatedGroup = group;
+        return this;
+    }
+
+    @Override
+    public UserQuery setRelatedGroup(String groupId) {
+        checkMutable();
+        return setRelatedGroup(this.store.getGroup(groupId));
+    }
+
+    @Override
+    public Group getRelatedGroup() {
+        return this.relatedGroup;
+    }
+
+    @Override
+    public UserQuery setIncludeSubgroups(boolean includeSubgroups) {
+        checkMutable();
+        this.includeSubgroups = includeSubgroups;
+        return this;
+    }
+
+    @Override
+    public boolean isIncludeSubgroups() {
+        return this.includeSubgroups;
+    }
+
+    @Override
+    public UserQuery setRole(Role role) {
+        checkMutable();
+        this.role = role;
+        return this;
+    }
+
+    @Override
+    public UserQuery setRole(String name) {
+        checkMutable();
+        return setRole(this.store.getRole(name));
+    }
+
+    @Override
+    public Role getRole() {
+        return this.role;
+    }
+
+    @Override
+    public UserQuery setAttributeFilter(String name, String[] values) {
+        checkMutable();
+        this.attributeFilters.put(name, values);
+        return this;
+    }
+
+    @Override
+    public Map<String, String[]> getAttributeFilters() {
+        return this.attributeFilters;
+    }
+
+    @Override
+    public UserQuery setFirstName(String firstName) {
+        checkMutable();
+        this.firstName = firstName;
+        return this;
+    }
+
+    @Override
+    public String getFirstName() {
+        return this.firstName;
+    }
+
+    @Override
+    public UserQuery setLastName(String lastName) {
+        checkMutable();
+        this.lastName = lastName;
+        return this;
+    }
+
+    @Override
+    public String getLastName() {
+        return this.lastName;
+    }
+
+    @Override
+    public UserQuery setEmail(String email) {
+        checkMutable();
+        this.email = email;
+        return this;
+    }
+
+    @Override
+    public String getEmail() {
+        return this.email;
+    }
+
+    @Override
+    public UserQuery setEnabled(boolean enabled) {
+        checkMutable();
+        this.enabled = enabled;
+        return this;
+    }
+
+    @Override
+    public Boolean getEnabled() {
+        return this.enabled;
+    }
+
+    @Override
+    public UserQuery sort(boolean ascending) {
+        checkMutable();
+        this.ascending = ascending;
+        return this;
+    }
+
+    @Override
+    public boolean isSortAscending() {
+        return this.ascending;
+    }
+
+    @Override
+    public void setRange(Range range) {
+        checkMutable();
+        this.range = range;
+    }
+
+    @Override
+    public Range getRange() {
+        return this.range;
+    }
+
+    private void checkMutable() {
+        if (this.immutable) {
+            throw new RuntimeException("Immutable query can not be changed");
+        }
+    }
+
+    private static Map<String, String[]> copyAttributeFilters(Map<String, String[]> attributeFilters) {
+        Map<String, String[]> copy = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, String[]> filter : attributeFilters.entrySet()) {
+            String[] values = filter.getValue();
+            copy.put(filter.getKey(), values != null ? values.clone() : null);
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+}
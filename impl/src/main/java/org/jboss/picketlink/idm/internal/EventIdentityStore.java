@@ -0,0 +1,392 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.picketlink.idm.batch.BatchFailure;
+import org.jboss.picketlink.idm.batch.BatchItem;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.event.AttributeEvent;
+import org.jboss.picketlink.idm.event.GroupEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent.Action;
+import org.jboss.picketlink.idm.event.MembershipEvent;
+import org.jboss.picketlink.idm.event.RoleEvent;
+import org.jboss.picketlink.idm.event.UserEvent;
+import org.jboss.picketlink.idm.internal.event.IdentityEventBus;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * An {@link IdentityStore} publishing an {@link IdentityEvent} to an {@link IdentityEventBus} for each write that went
+ * through to another store. The items written by a batch are published together, as one list of events.
+ * <p/>
+ * Only writes going through this store are seen: changes made to the underlying store by other means, or to an identity
+ * type object without going through a store, are not published.
+ */
+public class EventIdentityStore implements IdentityStore {
+    private final IdentityStore delegate;
+    private final IdentityEventBus eventBus;
+
+    public EventIdentityStore(IdentityStore delegate, IdentityEventBus eventBus) {
+        this.delegate = delegate;
+        this.eventBus = eventBus;
+    }
+
+    public IdentityStore getDelegate() {
+        return delegate;
+    }
+
+    public IdentityEventBus getEventBus() {
+        return eventBus;
+    }
+
+    // User
+
+    @Override
+    public User createUser(String name) {
+        User user = delegate.createUser(name);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new UserEvent(Action.CREATED, name, user));
+        }
+        return user;
+    }
+
+    @Override
+    public void removeUser(User user) {
+        delegate.removeUser(user);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new UserEvent(Action.REMOVED, nameOf(user), user));
+        }
+    }
+
+    @Override
+    public User getUser(String name) {
+        return delegate.getUser(name);
+    }
+
+    // Group
+
+    @Override
+    public Group createGroup(String name, Group parent) {
+        Group group = delegate.createGroup(name, parent);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new GroupEvent(Action.CREATED, name, group));
+        }
+        return group;
+    }
+
+    @Override
+    public void removeGroup(Group group) {
+        delegate.removeGroup(group);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new GroupEvent(Action.REMOVED, nameOf(group), group));
+        }
+    }
+
+    @Override
+    public Group getGroup(String name) {
+        return delegate.getGroup(name);
+    }
+
+    // Role
+
+    @Override
+    public Role createRole(String name) {
+        Role role = delegate.createRole(name);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new RoleEvent(Action.CREATED, name, role));
+        }
+        return role;
+    }
+
+    @Override
+    public void removeRole(Role role) {
+        delegate.removeRole(role);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new RoleEvent(Action.REMOVED, nameOf(role), role));
+        }
+    }
+
+    @Override
+    public Role getRole(String name) {
+        return delegate.getRole(name);
+    }
+
+    // Memberships
+
+    @Override
+    public Membership createMembership(Role role, User user, Group group) {
+        Membership membership = delegate.createMembership(role, user, group);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new MembershipEvent(Action.CREATED, nameOf(role), nameOf(user), nameOf(group)));
+        }
+        return membership;
+    }
+
+    @Override
+    public void removeMembership(Role role, User user, Group group) {
+        delegate.removeMembership(role, user, group);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new MembershipEvent(Action.REMOVED, nameOf(role), nameOf(user), nameOf(group)));
+        }
+    }
+
+    @Override
+    public Membership getMembership(Role role, User user, Group group) {
+        return delegate.getMembership(role, user, group);
+    }
+
+    // Batch
+
+    @Override
+    public BatchResult executeBatch(IdentityBatch batch, BatchListener listener) {
+        BatchResult result = delegate.executeBatch(batch, listener);
+        if (!eventBus.hasListeners()) {
+            return result;
+        }
+
+        List<BatchItem> items = batch.getItems();
+        boolean[] failed = new boolean[items.size()];
+        for (BatchFailure failure : result.getFailures()) {
+            failed[failure.getIndex()] = true;
+        }
+        List<IdentityEvent> events = new ArrayList<IdentityEvent>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            if (failed[i]) {
+                continue;
+            }
+            BatchItem item = items.get(i);
+            switch (item.getType()) {
+                case USER:
+                    events.add(new UserEvent(Action.CREATED, item.getName(), null));
+                    break;
+                case GROUP:
+                    events.add(new GroupEvent(Action.CREATED, item.getName(), null));
+                    break;
+                case ROLE:
+                    events.add(new RoleEvent(Action.CREATED, item.getName(), null));
+                    break;
+                default:
+                    events.add(new MembershipEvent(Action.CREATED, item.getRole(), item.getUser(), item.getGroup()));
+            }
+        }
+        eventBus.publish(events);
+        return result;
+    }
+
+    // Queries
+
+    @Override
+    public List<User> executeQuery(UserQuery query, Range range) {
+        return delegate.executeQuery(query, range);
+    }
+
+    @Override
+    public List<Group> executeQuery(GroupQuery query, Range range) {
+        return delegate.executeQuery(query, range);
+    }
+
+    @Override
+    public List<Role> executeQuery(RoleQuery query, Range range) {
+        return delegate.executeQuery(query, range);
+    }
+
+    @Override
+    public List<Membership> executeQuery(MembershipQuery query, Range range) {
+        return delegate.executeQuery(query, range);
+    }
+
+    @Override
+    public QueryResultIterator<User> iterateQuery(UserQuery query, Range range) {
+        return delegate.iterateQuery(query, range);
+    }
+
+    @Override
+    public QueryResultIterator<Group> iterateQuery(GroupQuery query, Range range) {
+        return delegate.iterateQuery(query, range);
+    }
+
+    @Override
+    public QueryResultIterator<Role> iterateQuery(RoleQuery query, Range range) {
+        return delegate.iterateQuery(query, range);
+    }
+
+    @Override
+    public QueryResultIterator<Membership> iterateQuery(MembershipQuery query, Range range) {
+        return delegate.iterateQuery(query, range);
+    }
+
+    // Attributes
+
+    @Override
+    public void setAttribute(User user, String name, String[] values) {
+        delegate.setAttribute(user, name, values);
+        publishAttribute(user, nameOf(user), name, values);
+    }
+
+    @Override
+    public void removeAttribute(User user, String name) {
+        delegate.removeAttribute(user, name);
+        publishAttribute(user, nameOf(user), name, null);
+    }
+
+    @Override
+    public String[] getAttributeValues(User user, String name) {
+        return delegate.getAttributeValues(user, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(User user) {
+        return delegate.getAttributes(user);
+    }
+
+    @Override
+    public void setAttribute(Group group, String name, String[] values) {
+        delegate.setAttribute(group, name, values);
+        publishAttribute(group, nameOf(group), name, values);
+    }
+
+    @Override
+    public void removeAttribute(Group group, String name) {
+        delegate.removeAttribute(group, name);
+        publishAttribute(group, nameOf(group), name, null);
+    }
+
+    @Override
+    public String[] getAttributeValues(Group group, String name) {
+        return delegate.getAttributeValues(group, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Group group) {
+        return delegate.getAttributes(group);
+    }
+
+    @Override
+    public void setAttribute(Role role, String name, String[] values) {
+        delegate.setAttribute(role, name, values);
+        publishAttribute(role, nameOf(role), name, values);
+    }
+
+    @Override
+    public void removeAttribute(Role role, String name) {
+        delegate.removeAttribute(role, name);
+        publishAttribute(role, nameOf(role), name, null);
+    }
+
+    @Override
+    public String[] getAttributeValues(Role role, String name) {
+        return delegate.getAttributeValues(role, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Role role) {
+        return delegate.getAttributes(role);
+    }
+
+    // Credentials
+
+    /**
+     * Published as an update of the user, without the password
+     */
+    @Override
+    public void setPasswordHash(User user, String passwordHash) {
+        delegate.setPasswordHash(user, passwordHash);
+        if (eventBus.hasListeners()) {
+            eventBus.publish(new UserEvent(Action.UPDATED, nameOf(user), user));
+        }
+    }
+
+    @Override
+    public String getPasswordHash(User user) {
+        return delegate.getPasswordHash(user);
+    }
+
+    // Enablement and expiration
+
+    @Override
+    public void setEnabled(IdentityType identityType, boolean enabled) {
+        delegate.setEnabled(identityType, enabled);
+        publishUpdated(identityType);
+    }
+
+    @Override
+    public void setExpirationDate(IdentityType identityType, Date expirationDate) {
+        delegate.setExpirationDate(identityType, expirationDate);
+        publishUpdated(identityType);
+    }
+
+    private void publishUpdated(IdentityType identityType) {
+        if (!eventBus.hasListeners()) {
+            return;
+        }
+        if (identityType instanceof User) {
+            eventBus.publish(new UserEvent(Action.UPDATED, nameOf((User) identityType), (User) identityType));
+        } else if (identityType instanceof Group) {
+            eventBus.publish(new GroupEvent(Action.UPDATED, nameOf((Group) identityType), (Group) identityType));
+        } else if (identityType instanceof Role) {
+            eventBus.publish(new RoleEvent(Action.UPDATED, nameOf((Role) identityType), (Role) identityType));
+        }
+    }
+
+    /**
+     * Setting an attribute without values removes it
+     */
+    private void publishAttribute(IdentityType owner, String ownerName, String name, String[] values) {
+        if (eventBus.hasListeners()) {
+            boolean removed = values == null || values.length == 0;
+            eventBus.publish(new AttributeEvent(removed ? Action.REMOVED : Action.UPDATED, owner, ownerName, name,
+                    removed ? null : values.clone()));
+        }
+    }
+
+    // The stores look identity types up by key (JPA) or by a name that is not always the key (LDAP)
+
+    private static String nameOf(User user) {
+        return user == null ? null : user.getKey() != null ? user.getKey() : user.getId();
+    }
+
+    private static String nameOf(Group group) {
+        return group == null ? null : group.getKey() != null ? group.getKey() : group.getName();
+    }
+
+    private static String nameOf(Role role) {
+        return role == null ? null : role.getKey() != null ? role.getKey() : role.getName();
+    }
+}
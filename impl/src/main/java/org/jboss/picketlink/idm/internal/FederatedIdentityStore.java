@@ -0,0 +1,740 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+
+import org.jboss.picketlink.idm.batch.BatchFailure;
+import org.jboss.picketlink.idm.batch.BatchItem;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.internal.federation.MergingQueryResultIterator;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * An {@link IdentityStore} partitioning users, groups and roles between several stores, for instance users in a directory and
+ * application roles in a database.
+ * <p/>
+ * Each identity type is routed by its name: the first route added for the type whose pattern matches the name, or that has no
+ * pattern, gives the store. Names not matched by any route go to the default store. Memberships are kept in the store of
+ * their role, and their user and group must be kept in the same store: a store can only reference the identity types it
+ * holds, so memberships between identity types of different stores are rejected.
+ * <p/>
+ * Queries that do not name a single identity type are run against every store of the type at once, so they take as long as
+ * the slowest store rather than the sum of them, and the sorted results of each store are merged by name. Stores are
+ * expected to sort names the same way as {@link String#compareTo(String)}.
+ */
+public class FederatedIdentityStore implements IdentityStore {
+
+    private final IdentityStore defaultStore;
+    private final List<Route> userRoutes = new ArrayList<Route>();
+    private final List<Route> groupRoutes = new ArrayList<Route>();
+    private final List<Route> roleRoutes = new ArrayList<Route>();
+
+    private Executor executor;
+
+    // The executor created by this store, shut down by close()
+    private ExecutorService ownExecutor = null;
+
+    public FederatedIdentityStore(IdentityStore defaultStore) {
+        if (defaultStore == null) {
+            throw new RuntimeException("Default Identity Store is null");
+        }
+        this.defaultStore = defaultStore;
+    }
+
+    /**
+     * Set the executor running the queries sent to several stores. If none is set, the
+     * {@link AsyncIdentityManager#createDefaultExecutor() default executor} is created when first needed.
+     *
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Shut down the executor, if it was created by this store
+     */
+    public synchronized void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+            ownExecutor = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * Route every user to the given store
+     */
+    public FederatedIdentityStore addUserStore(IdentityStore store) {
+        return addUserStore(null, store);
+    }
+
+    /**
+     * Route the users whose name matches the regular expression to the given store
+     */
+    public FederatedIdentityStore addUserStore(String namePattern, IdentityStore store) {
+        userRoutes.add(new Route(namePattern, store));
+        return this;
+    }
+
+    /**
+     * Route every group to the given store
+     */
+    public FederatedIdentityStore addGroupStore(IdentityStore store) {
+        return addGroupStore(null, store);
+    }
+
+    /**
+     * Route the groups whose name matches the regular expression to the given store
+     */
+    public FederatedIdentityStore addGroupStore(String namePattern, IdentityStore store) {
+        groupRoutes.add(new Route(namePattern, store));
+        return this;
+    }
+
+    /**
+     * Route every role, and the memberships of the roles, to the given store
+     */
+    public FederatedIdentityStore addRoleStore(IdentityStore store) {
+        return addRoleStore(null, store);
+    }
+
+    /**
+     * Route the roles whose name matches the regular expression, and their memberships, to the given store
+     */
+    public FederatedIdentityStore addRoleStore(String namePattern, IdentityStore store) {
+        roleRoutes.add(new Route(namePattern, store));
+        return this;
+    }
+
+    @Override
+    public User createUser(String name) {
+        return route(userRoutes, name).createUser(name);
+    }
+
+    @Override
+    public void removeUser(User user) {
+        storeOf(user).removeUser(user);
+    }
+
+    @Override
+    public User getUser(String name) {
+        return route(userRoutes, name).getUser(name);
+    }
+
+    @Override
+    public Group createGroup(String name, Group parent) {
+        return route(groupRoutes, name).createGroup(name, parent);
+    }
+
+    @Override
+    public void removeGroup(Group group) {
+        storeOf(group).removeGroup(group);
+    }
+
+    @Override
+    public Group getGroup(String name) {
+        return route(groupRoutes, name).getGroup(name);
+    }
+
+    @Override
+    public Role createRole(String name) {
+        return route(roleRoutes, name).createRole(name);
+    }
+
+    @Override
+    public void removeRole(Role role) {
+        storeOf(role).removeRole(role);
+    }
+
+    @Override
+    public Role getRole(String role) {
+        return route(roleRoutes, role).getRole(role);
+    }
+
+    @Override
+    public Membership createMembership(Role role, User user, Group group) {
+        return membershipStoreOf(role, user, group).createMembership(role, user, group);
+    }
+
+    @Override
+    public void removeMembership(Role role, User user, Group group) {
+        membershipStoreOf(role, user, group).removeMembership(role, user, group);
+    }
+
+    @Override
+    public Membership getMembership(Role role, User user, Group group) {
+        return membershipStoreOf(role, user, group).getMembership(role, user, group);
+    }
+
+    /**
+     * Split the batch between the stores of its items and execute the parts one after the other. The listener is told about
+     * the progress of the whole batch.
+     */
+    @Override
+    public BatchResult executeBatch(IdentityBatch batch, final BatchListener listener) {
+        Map<IdentityStore, IdentityBatch> batches = new IdentityHashMap<IdentityStore, IdentityBatch>();
+        List<IdentityStore> order = new ArrayList<IdentityStore>();
+        for (BatchItem item : batch.getItems()) {
+            IdentityStore store = storeOf(item);
+            IdentityBatch part = batches.get(store);
+            if (part == null) {
+                part = new IdentityBatch();
+                batches.put(store, part);
+                order.add(store);
+            }
+            add(part, item);
+        }
+
+        final BatchResult result = new BatchResult(batch.size());
+        for (IdentityStore store : order) {
+            final int processedBefore = result.getProcessed();
+            BatchListener partListener = listener == null ? null : new BatchListener() {
+                @Override
+                public void onProgress(int processed, int total) {
+                    listener.onProgress(processedBefore + processed, result.getTotal());
+                }
+
+                @Override
+                public void onFailure(BatchFailure failure) {
+                    listener.onFailure(failure);
+                }
+            };
+            BatchResult partResult = store.executeBatch(batches.get(store), partListener);
+            result.addProcessed(partResult.getProcessed());
+            for (BatchFailure failure : partResult.getFailures()) {
+                result.addFailure(failure);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<User> executeQuery(final UserQuery query, Range range) {
+        if (query.getName() != null) {
+            return route(userRoutes, query.getName()).executeQuery(query, range);
+        }
+        final Range storeRange = storeRange(range);
+        List<Callable<List<User>>> tasks = new ArrayList<Callable<List<User>>>();
+        for (final IdentityStore store : stores(userRoutes)) {
+            tasks.add(new Callable<List<User>>() {
+                @Override
+                public List<User> call() {
+                    return store.executeQuery(query, storeRange);
+                }
+            });
+        }
+        return merge(invokeAll(tasks), this.<User> byName(query.isSortAscending()), range);
+    }
+
+    @Override
+    public List<Group> executeQuery(final GroupQuery query, Range range) {
+        if (query.getName() != null) {
+            return route(groupRoutes, query.getName()).executeQuery(query, range);
+        }
+        final Range storeRange = storeRange(range);
+        List<Callable<List<Group>>> tasks = new ArrayList<Callable<List<Group>>>();
+        for (final IdentityStore store : stores(groupRoutes)) {
+            tasks.add(new Callable<List<Group>>() {
+                @Override
+                public List<Group> call() {
+                    return store.executeQuery(query, storeRange);
+                }
+            });
+        }
+        return merge(invokeAll(tasks), this.<Group> byName(query.isSortAscending()), range);
+    }
+
+    @Override
+    public List<Role> executeQuery(final RoleQuery query, Range range) {
+        if (query.getName() != null) {
+            return route(roleRoutes, query.getName()).executeQuery(query, range);
+        }
+        final Range storeRange = storeRange(range);
+        List<Callable<List<Role>>> tasks = new ArrayList<Callable<List<Role>>>();
+        for (final IdentityStore store : stores(roleRoutes)) {
+            tasks.add(new Callable<List<Role>>() {
+                @Override
+                public List<Role> call() {
+                    return store.executeQuery(query, storeRange);
+                }
+            });
+        }
+        return merge(invokeAll(tasks), this.<Role> byName(query.isSortAscending()), range);
+    }
+
+    /**
+     * Memberships have no common sort key, the memberships of each store are returned one store after the other
+     */
+    @Override
+    public List<Membership> executeQuery(final MembershipQuery query, Range range) {
+        IdentityStore membershipStore = membershipStoreOf(query);
+        if (membershipStore != null) {
+            return membershipStore.executeQuery(query, range);
+        }
+        final Range storeRange = storeRange(range);
+        List<Callable<List<Membership>>> tasks = new ArrayList<Callable<List<Membership>>>();
+        for (final IdentityStore store : stores(roleRoutes)) {
+            tasks.add(new Callable<List<Membership>>() {
+                @Override
+                public List<Membership> call() {
+                    return store.executeQuery(query, storeRange);
+                }
+            });
+        }
+        return merge(invokeAll(tasks), null, range);
+    }
+
+    @Override
+    public QueryResultIterator<User> iterateQuery(UserQuery query, Range range) {
+        if (query.getName() != null) {
+            return route(userRoutes, query.getName()).iterateQuery(query, range);
+        }
+        List<QueryResultIterator<User>> sources = new ArrayList<QueryResultIterator<User>>();
+        try {
+            for (IdentityStore store : stores(userRoutes)) {
+                sources.add(store.iterateQuery(query, storeRange(range)));
+            }
+        } catch (RuntimeException e) {
+            closeAll(sources);
+            throw e;
+        }
+        return merging(sources, this.<User> byName(query.isSortAscending()), range);
+    }
+
+    @Override
+    public QueryResultIterator<Group> iterateQuery(GroupQuery query, Range range) {
+        if (query.getName() != null) {
+            return route(groupRoutes, query.getName()).iterateQuery(query, range);
+        }
+        List<QueryResultIterator<Group>> sources = new ArrayList<QueryResultIterator<Group>>();
+        try {
+            for (IdentityStore store : stores(groupRoutes)) {
+                sources.add(store.iterateQuery(query, storeRange(range)));
+            }
+        } catch (RuntimeException e) {
+            closeAll(sources);
+            throw e;
+        }
+        return merging(sources, this.<Group> byName(query.isSortAscending()), range);
+    }
+
+    @Override
+    public QueryResultIterator<Role> iterateQuery(RoleQuery query, Range range) {
+        if (query.getName() != null) {
+            return route(roleRoutes, query.getName()).iterateQuery(query, range);
+        }
+        List<QueryResultIterator<Role>> sources = new ArrayList<QueryResultIterator<Role>>();
+        try {
+            for (IdentityStore store : stores(roleRoutes)) {
+                sources.add(store.iterateQuery(query, storeRange(range)));
+            }
+        } catch (RuntimeException e) {
+            closeAll(sources);
+            throw e;
+        }
+        return merging(sources, this.<Role> byName(query.isSortAscending()), range);
+    }
+
+    @Override
+    public QueryResultIterator<Membership> iterateQuery(MembershipQuery query, Range range) {
+        IdentityStore membershipStore = membershipStoreOf(query);
+        if (membershipStore != null) {
+            return membershipStore.iterateQuery(query, range);
+        }
+        List<QueryResultIterator<Membership>> sources = new ArrayList<QueryResultIterator<Membership>>();
+        try {
+            for (IdentityStore store : stores(roleRoutes)) {
+                sources.add(store.iterateQuery(query, storeRange(range)));
+            }
+        } catch (RuntimeException e) {
+            closeAll(sources);
+            throw e;
+        }
+        return merging(sources, null, range);
+    }
+
+    @Override
+    public void setAttribute(User user, String name, String[] values) {
+        storeOf(user).setAttribute(user, name, values);
+    }
+
+    @Override
+    public void removeAttribute(User user, String name) {
+        storeOf(user).removeAttribute(user, name);
+    }
+
+    @Override
+    public String[] getAttributeValues(User user, String name) {
+        return storeOf(user).getAttributeValues(user, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(User user) {
+        return storeOf(user).getAttributes(user);
+    }
+
+    @Override
+    public void setAttribute(Group group, String name, String[] values) {
+        storeOf(group).setAttribute(group, name, values);
+    }
+
+    @Override
+    public void removeAttribute(Group group, String name) {
+        storeOf(group).removeAttribute(group, name);
+    }
+
+    @Override
+    public String[] getAttributeValues(Group group, String name) {
+        return storeOf(group).getAttributeValues(group, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Group group) {
+        return storeOf(group).getAttributes(group);
+    }
+
+    @Override
+    public void setAttribute(Role role, String name, String[] values) {
+        storeOf(role).setAttribute(role, name, values);
+    }
+
+    @Override
+    public void removeAttribute(Role role, String name) {
+        storeOf(role).removeAttribute(role, name);
+    }
+
+    @Override
+    public String[] getAttributeValues(Role role, String name) {
+        return storeOf(role).getAttributeValues(role, name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Role role) {
+        return storeOf(role).getAttributes(role);
+    }
+
+    // Credentials
+
+    @Override
+    public void setPasswordHash(User user, String passwordHash) {
+        storeOf(user).setPasswordHash(user, passwordHash);
+    }
+
+    @Override
+    public String getPasswordHash(User user) {
+        return storeOf(user).getPasswordHash(user);
+    }
+
+    // Enablement and expiration
+
+    @Override
+    public void setEnabled(IdentityType identityType, boolean enabled) {
+        storeOf(identityType).setEnabled(identityType, enabled);
+    }
+
+    @Override
+    public void setExpirationDate(IdentityType identityType, Date expirationDate) {
+        storeOf(identityType).setExpirationDate(identityType, expirationDate);
+    }
+
+    private IdentityStore storeOf(IdentityType identityType) {
+        if (identityType instanceof User) {
+            return storeOf((User) identityType);
+        } else if (identityType instanceof Group) {
+            return storeOf((Group) identityType);
+        } else if (identityType instanceof Role) {
+            return storeOf((Role) identityType);
+        }
+        throw new RuntimeException("Unsupported identity type:" + identityType);
+    }
+
+    private IdentityStore storeOf(User user) {
+        return route(userRoutes, nameOf(user));
+    }
+
+    private IdentityStore storeOf(Group group) {
+        return route(groupRoutes, nameOf(group));
+    }
+
+    private IdentityStore storeOf(Role role) {
+        return route(roleRoutes, nameOf(role));
+    }
+
+    private IdentityStore storeOf(BatchItem item) {
+        switch (item.getType()) {
+            case USER:
+                return route(userRoutes, item.getName());
+            case GROUP:
+                return route(groupRoutes, item.getName());
+            case ROLE:
+                return route(roleRoutes, item.getName());
+            default:
+                IdentityStore store = route(roleRoutes, item.getRole());
+                checkMembership(store, "role " + item.getRole(), userRoutes, item.getUser(), "user");
+                checkMembership(store, "role " + item.getRole(), groupRoutes, item.getGroup(), "group");
+                return store;
+        }
+    }
+
+    private IdentityStore membershipStoreOf(Role role, User user, Group group) {
+        IdentityStore store = storeOf(role);
+        checkMembership(store, "role " + nameOf(role), userRoutes, user != null ? nameOf(user) : null, "user");
+        checkMembership(store, "role " + nameOf(role), groupRoutes, group != null ? nameOf(group) : null, "group");
+        return store;
+    }
+
+    // The only store holding the memberships matched by the query, or null if every store may hold some
+    private IdentityStore membershipStoreOf(MembershipQuery query) {
+        if (query.getRole() != null) {
+            return membershipStoreOf(query.getRole(), query.getUser(), query.getGroup());
+        }
+        if (query.getUser() != null) {
+            IdentityStore store = storeOf(query.getUser());
+            checkMembership(store, "user " + nameOf(query.getUser()), groupRoutes,
+                    query.getGroup() != null ? nameOf(query.getGroup()) : null, "group");
+            return store;
+        }
+        return query.getGroup() != null ? storeOf(query.getGroup()) : null;
+    }
+
+    // Memberships can not reference an identity type kept in another store than the one they are kept in
+    private void checkMembership(IdentityStore store, String member, List<Route> routes, String name, String type) {
+        if (name != null && route(routes, name) != store) {
+            throw new RuntimeException("Memberships between identity types of different stores are not supported: " + member
+                    + " and " + type + " " + name);
+        }
+    }
+
+    private void add(IdentityBatch batch, BatchItem item) {
+        switch (item.getType()) {
+            case USER:
+                batch.createUser(item.getName());
+                break;
+            case GROUP:
+                batch.createGroup(item.getName(), item.getGroup());
+                break;
+            case ROLE:
+                batch.createRole(item.getName());
+                break;
+            default:
+                batch.createMembership(item.getRole(), item.getUser(), item.getGroup());
+        }
+    }
+
+    private IdentityStore route(List<Route> routes, String name) {
+        for (Route route : routes) {
+            if (route.matches(name)) {
+                return route.store;
+            }
+        }
+        return defaultStore;
+    }
+
+    /**
+     * @return the distinct stores an identity type can be routed to
+     */
+    private List<IdentityStore> stores(List<Route> routes) {
+        Map<IdentityStore, Boolean> stores = new LinkedHashMap<IdentityStore, Boolean>();
+        boolean catchAll = false;
+        for (Route route : routes) {
+            stores.put(route.store, Boolean.TRUE);
+            catchAll |= route.pattern == null;
+        }
+        if (!catchAll) {
+            stores.put(defaultStore, Boolean.TRUE);
+        }
+        return new ArrayList<IdentityStore>(stores.keySet());
+    }
+
+    /**
+     * The name a store sorts an identity type by: its key for the database store, its common name for the directory
+     */
+    private static String nameOf(IdentityType identityType) {
+        if (identityType.getKey() != null) {
+            return identityType.getKey();
+        }
+        if (identityType instanceof User) {
+            return ((User) identityType).getFullName();
+        }
+        if (identityType instanceof Group) {
+            return ((Group) identityType).getName();
+        }
+        if (identityType instanceof Role) {
+            return ((Role) identityType).getName();
+        }
+        return null;
+    }
+
+    private <T extends IdentityType> Comparator<T> byName(final boolean ascending) {
+        return new Comparator<T>() {
+            @Override
+            public int compare(T first, T second) {
+                String firstName = nameOf(first);
+                String secondName = nameOf(second);
+                int result;
+                if (firstName == null || secondName == null) {
+                    result = firstName == null ? (secondName == null ? 0 : -1) : 1;
+                } else {
+                    result = firstName.compareTo(secondName);
+                }
+                return ascending ? result : -result;
+            }
+        };
+    }
+
+    /**
+     * The range to ask each store for. The first results of the merge may come from any store, so an offset range needs
+     * every store to return its results from the start up to the end of the range. A keyset range applies to each store as
+     * it is.
+     */
+    private static Range storeRange(Range range) {
+        if (range == null || range.isKeyset()) {
+            return range;
+        }
+        if (range.getLimit() < 0) {
+            return null;
+        }
+        return Range.of(0, range.getOffset() + range.getLimit());
+    }
+
+    private static int offsetOf(Range range) {
+        return range == null || range.isKeyset() ? 0 : range.getOffset();
+    }
+
+    private static int limitOf(Range range) {
+        return range == null ? -1 : range.getLimit();
+    }
+
+    private static <T> List<T> merge(List<List<T>> results, Comparator<? super T> comparator, Range range) {
+        List<Iterator<T>> sources = new ArrayList<Iterator<T>>(results.size());
+        for (List<T> result : results) {
+            sources.add(result.iterator());
+        }
+        MergingQueryResultIterator<T> merged = new MergingQueryResultIterator<T>(sources, comparator, offsetOf(range),
+                limitOf(range));
+        List<T> list = new ArrayList<T>();
+        while (merged.hasNext()) {
+            list.add(merged.next());
+        }
+        return list;
+    }
+
+    private static <T> QueryResultIterator<T> merging(List<QueryResultIterator<T>> sources, Comparator<? super T> comparator,
+            Range range) {
+        return new MergingQueryResultIterator<T>(sources, comparator, offsetOf(range), limitOf(range));
+    }
+
+    private static <T> void closeAll(List<QueryResultIterator<T>> sources) {
+        for (QueryResultIterator<T> source : sources) {
+            try {
+                source.close();
+            } catch (RuntimeException e) {
+                // The failure that caused the close is reported instead
+            }
+        }
+    }
+
+    /**
+     * Run the tasks at once, the first one on the calling thread and the others on the executor, and wait for all of them
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new FutureTask<T>(task));
+        }
+        for (int i = 1; i < futures.size(); i++) {
+            getExecutor().execute(futures.get(i));
+        }
+        if (!futures.isEmpty()) {
+            futures.get(0).run();
+        }
+
+        List<T> results = new ArrayList<T>(futures.size());
+        for (FutureTask<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private synchronized Executor getExecutor() {
+        if (executor == null) {
+            ownExecutor = AsyncIdentityManager.createDefaultExecutor();
+            executor = ownExecutor;
+        }
+        return executor;
+    }
+
+    private static class Route {
+        private final Pattern pattern;
+        private final IdentityStore store;
+
+        Route(String namePattern, IdentityStore store) {
+            if (store == null) {
+                throw new RuntimeException("Identity Store is null");
+            }
+            this.pattern = namePattern == null ? null : Pattern.compile(namePattern);
+            this.store = store;
+        }
+
+        boolean matches(String name) {
+            return pattern == null || (name != null && pattern.matcher(name).matches());
+        }
+    }
+}
@@ -21,18 +21,37 @@
  */
 package org.jboss.picketlink.idm.internal;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.Query;
-
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+
+import org.hibernate.Cache;
+import org.hibernate.Session;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.internal.jpa.AbstractDatabaseIdentityType;
 import org.jboss.picketlink.idm.internal.jpa.DatabaseGroup;
+import org.jboss.picketlink.idm.internal.jpa.DatabaseGroupAttribute;
+import org.jboss.picketlink.idm.internal.jpa.DatabaseGroupHierarchy;
 import org.jboss.picketlink.idm.internal.jpa.DatabaseMembership;
 import org.jboss.picketlink.idm.internal.jpa.DatabaseRole;
+import org.jboss.picketlink.idm.internal.jpa.DatabaseRoleAttribute;
 import org.jboss.picketlink.idm.internal.jpa.DatabaseUser;
+import org.jboss.picketlink.idm.internal.jpa.DatabaseUserAttribute;
+import org.jboss.picketlink.idm.internal.jpa.JPAAttributeLoader;
+import org.jboss.picketlink.idm.internal.jpa.JPABatchWriter;
 import org.jboss.picketlink.idm.internal.jpa.JPACallback;
+import org.jboss.picketlink.idm.internal.jpa.JPACriteriaQueryBuilder;
+import org.jboss.picketlink.idm.internal.jpa.JPAQueryParameters;
+import org.jboss.picketlink.idm.internal.jpa.JPAQueryResultIterator;
 import org.jboss.picketlink.idm.internal.jpa.JPATemplate;
 import org.jboss.picketlink.idm.internal.jpa.NamedQueries;
 import org.jboss.picketlink.idm.model.Group;
@@ -42,6 +61,7 @@ import org.jboss.picketlink.idm.model.Role;
 import org.jboss.picketlink.idm.model.User;
 import org.jboss.picketlink.idm.query.GroupQuery;
 import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
 import org.jboss.picketlink.idm.query.Range;
 import org.jboss.picketlink.idm.query.RoleQuery;
 import org.jboss.picketlink.idm.query.UserQuery;
@@ -49,14 +69,30 @@ import org.jboss.picketlink.idm.spi.IdentityStore;
 
 /**
  * An implementation of IdentityStore backed by a JPA datasource
+ * <p/>
+ * Users, groups, roles, memberships and their attributes are cacheable in a shared second-level cache, and the results of
+ * the by key lookups in the query cache. Both have to be enabled in the persistence unit, for instance with the
+ * <code>hibernate.cache.use_second_level_cache</code> and <code>hibernate.cache.use_query_cache</code> properties and a
+ * region factory. Loading the same principals again, from any {@link EntityManager}, then does not hit the database.
  *
  * @author Shane Bryzak
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
  */
 public class JPAIdentityStore implements IdentityStore {
 
+    /**
+     * Hint used to tune the JDBC fetch size of a query. Providers ignore hints they do not know.
+     */
+    private static final String FETCH_SIZE_HINT = "org.hibernate.fetchSize";
+
     private JPATemplate jpaTemplate;
 
+    private int fetchSize = 100;
+
+    private int batchSize = 100;
+
+    private boolean prefetchAttributes;
+
     @Override
     public User createUser(String name) {
         final DatabaseUser newUser = new DatabaseUser(name);
@@ -86,11 +122,25 @@ public class JPAIdentityStore implements IdentityStore {
 
         persist(newGroup);
 
+        addToGroupHierarchy(newGroup);
+
         return newGroup;
     }
 
     @Override
-    public void removeGroup(Group group) {
+    public void removeGroup(final Group group) {
+        executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                Query query = entityManager.createNamedQuery(NamedQueries.GROUP_HIERARCHY_REMOVE);
+
+                query.setParameter("group", group);
+
+                return query.executeUpdate();
+            }
+        });
+
         remove(group);
     }
 
@@ -142,16 +192,28 @@ public class JPAIdentityStore implements IdentityStore {
 
             @Override
             public Object execute(EntityManager entityManager) {
-                Query query = entityManager.createNamedQuery(NamedQueries.MEMBERSHIP_LOAD_BY_KEY);
+                CriteriaQuery<DatabaseMembership> criteria = new JPACriteriaQueryBuilder(entityManager)
+                        .createMembershipLookup(role != null, user != null, group != null);
+                TypedQuery<DatabaseMembership> query = entityManager.createQuery(criteria);
 
-                query.setParameter("role", role);
-                query.setParameter("user", user);
-                query.setParameter("group", group);
+                query.setHint(NamedQueries.CACHEABLE_HINT, true);
+
+                if (role != null) {
+                    query.setParameter("role", role);
+                }
+
+                if (user != null) {
+                    query.setParameter("user", user);
+                }
+
+                if (group != null) {
+                    query.setParameter("group", group);
+                }
 
                 Membership loadedMembership = null;
 
                 try {
-                    loadedMembership = (Membership) query.getSingleResult();
+                    loadedMembership = query.getSingleResult();
                 } catch (NoResultException nre) {
                     // TODO: what to do when this happens
                 }
@@ -162,105 +224,413 @@ public class JPAIdentityStore implements IdentityStore {
     }
 
     @Override
-    public List<User> executeQuery(UserQuery query, Range range) {
-        // TODO Auto-generated method stub
-        return null;
+    public BatchResult executeBatch(final IdentityBatch batch, final BatchListener listener) {
+        return (BatchResult) executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                return new JPABatchWriter(entityManager, batchSize).write(batch, listener);
+            }
+        });
     }
 
+    @SuppressWarnings("unchecked")
     @Override
-    public List<Group> executeQuery(GroupQuery query, Range range) {
-        // TODO Auto-generated method stub
-        return null;
+    public List<User> executeQuery(final UserQuery query, final Range range) {
+        return (List<User>) executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                JPAQueryParameters parameters = JPACriteriaQueryBuilder.getParameters(query, range);
+                TypedQuery<DatabaseUser> typedQuery = createQuery(entityManager, parameters, range);
+                List<DatabaseUser> results = typedQuery.getResultList();
+
+                return prefetchAttributes(entityManager, results);
+            }
+        });
     }
 
+    @SuppressWarnings("unchecked")
     @Override
-    public List<Role> executeQuery(RoleQuery query, Range range) {
-        // TODO Auto-generated method stub
-        return null;
+    public List<Group> executeQuery(final GroupQuery query, final Range range) {
+        return (List<Group>) executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                JPAQueryParameters parameters = JPACriteriaQueryBuilder.getParameters(query, range);
+                TypedQuery<DatabaseGroup> typedQuery = createQuery(entityManager, parameters, range);
+                List<DatabaseGroup> results = typedQuery.getResultList();
+
+                return prefetchAttributes(entityManager, results);
+            }
+        });
     }
 
+    @SuppressWarnings("unchecked")
     @Override
-    public List<Membership> executeQuery(MembershipQuery query, Range range) {
-        // TODO Auto-generated method stub
-        return null;
+    public List<Role> executeQuery(final RoleQuery query, final Range range) {
+        return (List<Role>) executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                JPAQueryParameters parameters = JPACriteriaQueryBuilder.getParameters(query, range);
+                TypedQuery<DatabaseRole> typedQuery = createQuery(entityManager, parameters, range);
+                List<DatabaseRole> results = typedQuery.getResultList();
+
+                return prefetchAttributes(entityManager, results);
+            }
+        });
     }
 
+    @SuppressWarnings("unchecked")
     @Override
-    public void setAttribute(User user, String name, String[] values) {
-        // TODO Auto-generated method stub
+    public List<Membership> executeQuery(final MembershipQuery query, final Range range) {
+        return (List<Membership>) executeOperation(new JPACallback() {
 
+            @Override
+            public Object execute(EntityManager entityManager) {
+                JPAQueryParameters parameters = JPACriteriaQueryBuilder.getParameters(query, range);
+
+                return createQuery(entityManager, parameters, range).getResultList();
+            }
+        });
     }
 
     @Override
-    public void removeAttribute(User user, String name) {
-        // TODO Auto-generated method stub
+    public QueryResultIterator<User> iterateQuery(final UserQuery query, Range range) {
+        return new JPAQueryResultIterator<User>(this.jpaTemplate, range, this.fetchSize) {
+
+            @Override
+            protected List<User> fetch(Range chunk) {
+                return executeQuery(query, chunk);
+            }
 
+            @Override
+            protected String getSortKey(User user) {
+                return user.getKey();
+            }
+        };
+    }
+
+    @Override
+    public QueryResultIterator<Group> iterateQuery(final GroupQuery query, Range range) {
+        return new JPAQueryResultIterator<Group>(this.jpaTemplate, range, this.fetchSize) {
+
+            @Override
+            protected List<Group> fetch(Range chunk) {
+                return executeQuery(query, chunk);
+            }
+
+            @Override
+            protected String getSortKey(Group group) {
+                return group.getKey();
+            }
+        };
+    }
+
+    @Override
+    public QueryResultIterator<Role> iterateQuery(final RoleQuery query, Range range) {
+        return new JPAQueryResultIterator<Role>(this.jpaTemplate, range, this.fetchSize) {
+
+            @Override
+            protected List<Role> fetch(Range chunk) {
+                return executeQuery(query, chunk);
+            }
+
+            @Override
+            protected String getSortKey(Role role) {
+                return role.getKey();
+            }
+        };
+    }
+
+    @Override
+    public QueryResultIterator<Membership> iterateQuery(final MembershipQuery query, Range range) {
+        return new JPAQueryResultIterator<Membership>(this.jpaTemplate, range, this.fetchSize) {
+
+            @Override
+            protected List<Membership> fetch(Range chunk) {
+                return executeQuery(query, chunk);
+            }
+
+            @Override
+            protected String getSortKey(Membership membership) {
+                return ((DatabaseMembership) membership).getId();
+            }
+        };
+    }
+
+    @Override
+    public void setAttribute(User user, String name, String[] values) {
+        user.setAttribute(name, values);
+    }
+
+    @Override
+    public void removeAttribute(User user, String name) {
+        user.removeAttribute(name);
     }
 
     @Override
     public String[] getAttributeValues(User user, String name) {
-        // TODO Auto-generated method stub
-        return null;
+        return user.getAttributeValues(name);
     }
 
     @Override
     public Map<String, String[]> getAttributes(User user) {
-        // TODO Auto-generated method stub
-        return null;
+        return user.getAttributes();
     }
 
     @Override
     public void setAttribute(Group group, String name, String[] values) {
-        // TODO Auto-generated method stub
-
+        group.setAttribute(name, values);
     }
 
     @Override
     public void removeAttribute(Group group, String name) {
-        // TODO Auto-generated method stub
-
+        group.removeAttribute(name);
     }
 
     @Override
     public String[] getAttributeValues(Group group, String name) {
-        // TODO Auto-generated method stub
-        return null;
+        return group.getAttributeValues(name);
     }
 
     @Override
     public Map<String, String[]> getAttributes(Group group) {
-        // TODO Auto-generated method stub
-        return null;
+        return group.getAttributes();
     }
 
     @Override
     public void setAttribute(Role role, String name, String[] values) {
-        // TODO Auto-generated method stub
-
+        role.setAttribute(name, values);
     }
 
     @Override
     public void removeAttribute(Role role, String name) {
-        // TODO Auto-generated method stub
-
+        role.removeAttribute(name);
     }
 
     @Override
     public String[] getAttributeValues(Role role, String name) {
-        // TODO Auto-generated method stub
-        return null;
+        return role.getAttributeValues(name);
     }
 
     @Override
     public Map<String, String[]> getAttributes(Role role) {
-        // TODO Auto-generated method stub
-        return null;
+        return role.getAttributes();
+    }
+
+    @Override
+    public void setPasswordHash(User user, final String passwordHash) {
+        final DatabaseUser storedUser = (DatabaseUser) findIdentityTypeByKey(user.getKey(), NamedQueries.USER_LOAD_BY_KEY);
+
+        if (storedUser == null) {
+            throw new RuntimeException("User not found:" + user.getKey());
+        }
+
+        executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                storedUser.setPasswordHash(passwordHash);
+                entityManager.merge(storedUser);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String getPasswordHash(User user) {
+        DatabaseUser storedUser = (DatabaseUser) findIdentityTypeByKey(user.getKey(), NamedQueries.USER_LOAD_BY_KEY);
+
+        return storedUser != null ? storedUser.getPasswordHash() : null;
+    }
+
+    @Override
+    public void setEnabled(IdentityType identityType, final boolean enabled) {
+        final AbstractDatabaseIdentityType<?> storedType = toDatabaseIdentityType(identityType);
+
+        executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                storedType.setEnabled(enabled);
+                entityManager.merge(storedType);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setExpirationDate(IdentityType identityType, final Date expirationDate) {
+        final AbstractDatabaseIdentityType<?> storedType = toDatabaseIdentityType(identityType);
+
+        executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                storedType.setExpirationDate(expirationDate);
+                entityManager.merge(storedType);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Loads the attributes of the given identity types with one query per type, instead of one query per identity type when
+     * their attributes are first read.
+     * </p>
+     *
+     * @param identityTypes
+     */
+    public void loadAttributes(final Collection<? extends IdentityType> identityTypes) {
+        executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                new JPAAttributeLoader(entityManager).load(identityTypes);
+                return null;
+            }
+        });
     }
 
     public void setJpaTemplate(JPATemplate jpaTemplate) {
         this.jpaTemplate = jpaTemplate;
     }
 
+    /**
+     * <p>
+     * Sets how many entities are read per round trip by the iterators returned from the <code>iterateQuery</code> methods.
+     * Defaults to 100.
+     * </p>
+     *
+     * @param fetchSize
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * <p>
+     * Sets how many items of an {@link IdentityBatch} are written before the persistence context is flushed and cleared.
+     * Defaults to 100, and should match the JDBC batch size configured in the persistence provider.
+     * </p>
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * <p>
+     * Sets whether the attributes of the users, groups and roles returned by the <code>executeQuery</code> methods are loaded
+     * along with them, see {@link #loadAttributes(Collection)}. Defaults to false.
+     * </p>
+     *
+     * @param prefetchAttributes
+     */
+    public void setPrefetchAttributes(boolean prefetchAttributes) {
+        this.prefetchAttributes = prefetchAttributes;
+    }
+
+    /**
+     * <p>
+     * Evicts an identity type and its attributes from the second-level cache of the persistence provider, along with the
+     * cached results of the by key queries. Changes made through this store keep the cache up to date, this is only needed
+     * when the database is changed by other means.
+     * </p>
+     * <p>
+     * The attribute rows of the owner are evicted one by one, those of the other identity types stay cached. Their ids are
+     * read from the database rather than from the cached state of the owner, which may list rows removed by other means.
+     * </p>
+     *
+     * @param identityType
+     */
+    public void evict(IdentityType identityType) {
+        final AbstractDatabaseIdentityType<?> databaseIdentityType = toDatabaseIdentityType(identityType);
+
+        executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                Cache cache = getSecondLevelCache(entityManager);
+                Class<?> type = databaseIdentityType.getClass();
+
+                if (type == DatabaseUser.class) {
+                    evictAttributes(entityManager, cache, "userAttributes", DatabaseUserAttribute.class, "user",
+                            databaseIdentityType);
+                } else if (type == DatabaseGroup.class) {
+                    evictAttributes(entityManager, cache, "groupAttributes", DatabaseGroupAttribute.class, "group",
+                            databaseIdentityType);
+                } else if (type == DatabaseRole.class) {
+                    evictAttributes(entityManager, cache, "roleAttributes", DatabaseRoleAttribute.class, "role",
+                            databaseIdentityType);
+                }
+
+                cache.evictEntity(type, databaseIdentityType.getId());
+                cache.evictDefaultQueryRegion();
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Evicts everything from the second-level cache of the persistence provider, see {@link #evict(IdentityType)}.
+     * </p>
+     */
+    public void evictAll() {
+        executeOperation(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                Cache cache = getSecondLevelCache(entityManager);
+
+                cache.evictEntityRegions();
+                cache.evictCollectionRegions();
+                cache.evictQueryRegions();
+                cache.evictDefaultQueryRegion();
+
+                return null;
+            }
+        });
+    }
+
+    // The entities are cached with org.hibernate.annotations.Cache, the collection and query regions are only reachable
+    // through the Hibernate cache
+    private Cache getSecondLevelCache(EntityManager entityManager) {
+        return entityManager.unwrap(Session.class).getSessionFactory().getCache();
+    }
+
+    /**
+     * The attribute rows of the owner are cached as entities, and their ids as a collection of the owner
+     */
+    private void evictAttributes(EntityManager entityManager, Cache cache, String property, Class<?> attributeType,
+            String ownerProperty, AbstractDatabaseIdentityType<?> owner) {
+        Class<?> ownerType = owner.getClass();
+
+        cache.evictCollection(ownerType.getName() + "." + property, owner.getId());
+
+        TypedQuery<String> query = entityManager.createQuery("select a.id from " + attributeType.getSimpleName()
+                + " a where a." + ownerProperty + ".id = :ownerId", String.class);
+
+        query.setParameter("ownerId", owner.getId());
+
+        for (String id : query.getResultList()) {
+            cache.evictEntity(attributeType, id);
+        }
+    }
+
+    private AbstractDatabaseIdentityType<?> toDatabaseIdentityType(IdentityType identityType) {
+        if (identityType instanceof AbstractDatabaseIdentityType == false) {
+            throw new RuntimeException("Wrong type:" + identityType);
+        }
+        return (AbstractDatabaseIdentityType<?>) identityType;
+    }
+
     /**
      * <p>
      * Executes the {@link JPACallback} instance.
@@ -311,6 +681,102 @@ public class JPAIdentityStore implements IdentityStore {
         });
     }
 
+    /**
+     * <p>
+     * Adds the rows of a new group to the {@link DatabaseGroupHierarchy} closure table: the group with itself and the group
+     * with each ancestor of its parent, which are read with a single query.
+     * </p>
+     *
+     * @param group
+     */
+    private void addToGroupHierarchy(final DatabaseGroup group) {
+        executeOperation(new JPACallback() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object execute(EntityManager entityManager) {
+                entityManager.persist(new DatabaseGroupHierarchy(group, group, 0));
+
+                if (group.getParentGroup() != null) {
+                    Query query = entityManager.createNamedQuery(NamedQueries.GROUP_HIERARCHY_LOAD_ANCESTORS);
+
+                    query.setParameter("group", group.getParentGroup());
+
+                    for (DatabaseGroupHierarchy parentRow : (List<DatabaseGroupHierarchy>) query.getResultList()) {
+                        entityManager.persist(new DatabaseGroupHierarchy(parentRow.getAncestor(), group,
+                                parentRow.getDepth() + 1));
+                    }
+                }
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Creates a query for the given {@link JPAQueryParameters} and binds the parameters and the given {@link Range} to it.
+     * </p>
+     *
+     * @param entityManager
+     * @param parameters
+     * @param range
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private <T> TypedQuery<T> createQuery(EntityManager entityManager, JPAQueryParameters parameters, Range range) {
+        CriteriaQuery<T> criteria = (CriteriaQuery<T>) new JPACriteriaQueryBuilder(entityManager).createQuery(parameters);
+
+        TypedQuery<T> query = entityManager.createQuery(criteria);
+
+        parameters.bind(query);
+
+        return applyRange(query, range);
+    }
+
+    /**
+     * <p>
+     * Pushes the offset and limit of the given {@link Range} down to the database. A null {@link Range} or a negative limit
+     * means no pagination. Keyset ranges are already restricted by the query itself, so only the limit is applied. The JDBC
+     * fetch size is tuned to the limit so a page is read in a single round trip.
+     * </p>
+     *
+     * @param query
+     * @param range
+     * @return
+     */
+    private <T> TypedQuery<T> applyRange(TypedQuery<T> query, Range range) {
+        if (range != null) {
+            if (!range.isKeyset()) {
+                query.setFirstResult(range.getOffset());
+            }
+
+            if (range.getLimit() > 0) {
+                query.setMaxResults(range.getLimit());
+                query.setHint(FETCH_SIZE_HINT, range.getLimit());
+            }
+        }
+
+        return query;
+    }
+
+    /**
+     * <p>
+     * Loads the attributes of the query results if {@link #setPrefetchAttributes(boolean)} is enabled.
+     * </p>
+     *
+     * @param entityManager
+     * @param results
+     * @return the results
+     */
+    private <T extends IdentityType> List<T> prefetchAttributes(EntityManager entityManager, List<T> results) {
+        if (this.prefetchAttributes) {
+            new JPAAttributeLoader(entityManager).load(results);
+        }
+
+        return results;
+    }
+
     /**
      * <p>
      * Find a instance with the given name and using the specified named query.
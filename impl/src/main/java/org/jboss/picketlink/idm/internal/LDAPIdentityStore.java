@@ -21,15 +21,31 @@
  */
 package org.jboss.picketlink.idm.internal;
 
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.CASE_IGNORE_ORDERING_MATCH;
 import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.CN;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.EMAIL;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.GIVENNAME;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.GROUP_OF_NAMES;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.INET_ORG_PERSON;
 import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.MEMBER;
 import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.OBJECT_CLASS;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.SN;
 import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.UID;
-
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.USER_PASSWORD;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
@@ -39,21 +55,40 @@ import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import javax.naming.ldap.InitialLdapContext;
-
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.SortKey;
+
+import org.jboss.picketlink.idm.batch.BatchFailure;
+import org.jboss.picketlink.idm.batch.BatchItem;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
 import org.jboss.picketlink.idm.internal.config.LDAPConfiguration;
+import org.jboss.picketlink.idm.internal.event.IdentityEventBus;
+import org.jboss.picketlink.idm.internal.ldap.DirContextAdaptor;
+import org.jboss.picketlink.idm.internal.ldap.LDAPAttributeLoader;
+import org.jboss.picketlink.idm.internal.ldap.LDAPCallback;
+import org.jboss.picketlink.idm.internal.ldap.LDAPChangeConsumer;
 import org.jboss.picketlink.idm.internal.ldap.LDAPChangeNotificationHandler;
+import org.jboss.picketlink.idm.internal.ldap.LDAPConnectionPool;
 import org.jboss.picketlink.idm.internal.ldap.LDAPGroup;
+import org.jboss.picketlink.idm.internal.ldap.LDAPGroupHierarchy;
 import org.jboss.picketlink.idm.internal.ldap.LDAPObjectChangedNotification;
+import org.jboss.picketlink.idm.internal.ldap.LDAPQueryResultIterator;
 import org.jboss.picketlink.idm.internal.ldap.LDAPRole;
+import org.jboss.picketlink.idm.internal.ldap.LDAPSearchFilter;
 import org.jboss.picketlink.idm.internal.ldap.LDAPUser;
 import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
 import org.jboss.picketlink.idm.model.Membership;
 import org.jboss.picketlink.idm.model.Role;
 import org.jboss.picketlink.idm.model.User;
 import org.jboss.picketlink.idm.query.GroupQuery;
 import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
 import org.jboss.picketlink.idm.query.Range;
 import org.jboss.picketlink.idm.query.RoleQuery;
 import org.jboss.picketlink.idm.query.UserQuery;
@@ -65,12 +100,22 @@ import org.jboss.picketlink.idm.spi.IdentityStore;
  * @author Shane Bryzak
  * @author Anil Saldhana
  */
-public class LDAPIdentityStore implements IdentityStore, LDAPChangeNotificationHandler {
+public class LDAPIdentityStore implements IdentityStore, LDAPChangeNotificationHandler, LDAPAttributeLoader {
     public final String COMMA = ",";
     public final String EQUAL = "=";
 
-    protected DirContext ctx = null;
+    // Attributes read by searches, the other ones are loaded when accessed
+    protected static final String[] USER_ATTRIBUTES = { UID, CN, GIVENNAME, SN, EMAIL };
+    protected static final String[] GROUP_ATTRIBUTES = { CN };
+    protected static final String[] ROLE_ATTRIBUTES = { CN };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected LDAPConnectionPool pool = null;
     protected String userDNSuffix, roleDNSuffix, groupDNSuffix;
+    protected LDAPGroupHierarchy groupHierarchy = null;
+    protected int batchSize = 100;
+    protected int pageSize = 500;
 
     public LDAPIdentityStore() {
     }
@@ -79,6 +124,7 @@ public class LDAPIdentityStore implements IdentityStore, LDAPChangeNotificationH
         userDNSuffix = configuration.getUserDNSuffix();
         roleDNSuffix = configuration.getRoleDNSuffix();
         groupDNSuffix = configuration.getGroupDNSuffix();
+        groupHierarchy = new LDAPGroupHierarchy(groupDNSuffix);
 
         // Construct the dir ctx
         Properties env = new Properties();
@@ -108,62 +154,82 @@ public class LDAPIdentityStore implements IdentityStore, LDAPChangeNotificationH
 
         env.setProperty(Context.PROVIDER_URL, url);
 
-        try {
-            ctx = new InitialLdapContext(env, null);
-        } catch (NamingException e1) {
-            throw new RuntimeException(e1);
+        if (pool != null) {
+            pool.close();
         }
-
+        pool = new LDAPConnectionPool(env, configuration);
     }
 
-    @Override
-    public User createUser(String name) {
-        LDAPUser user = new LDAPUser();
-        user.setLDAPChangeNotificationHandler(this);
+    /**
+     * Set how many items of an {@link IdentityBatch} are written with one connection. Defaults to 100.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
 
-        user.setFullName(name);
-        String firstName = getFirstName(name);
-        String lastName = getLastName(name);
+    /**
+     * Set how many entries are requested per page by queries, using the Simple Paged Results control. Should stay below the
+     * size limit of the server. Defaults to 500, 0 disables paging.
+     *
+     * @param pageSize
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
 
-        user.setFirstName(firstName);
-        user.setLastName(lastName);
+    /**
+     * Forget the cached group tree, for instance after groups were changed in the directory by other means than this store.
+     * It is read again on the next use.
+     */
+    public void invalidateGroupHierarchy() {
+        groupHierarchy.invalidate();
+    }
 
-        // TODO: How do we get the userid?
-        String userid = generateUserID(firstName, lastName);
+    /**
+     * Create a consumer of the changes made to the directory, which keeps the group tree of this store up to date and
+     * publishes the changes to the given bus. The consumer must be started, and stopped before the store is closed.
+     *
+     * @param eventBus the bus the changes are published to, or null to only keep the group tree up to date
+     * @return
+     */
+    public LDAPChangeConsumer createChangeConsumer(IdentityEventBus eventBus) {
+        if (pool == null) {
+            throw new RuntimeException("LDAP store is not configured");
+        }
+        return new LDAPChangeConsumer(pool, groupHierarchy, userDNSuffix, roleDNSuffix, groupDNSuffix, eventBus);
+    }
 
-        try {
-            ctx.bind(UID + "=" + userid + COMMA + userDNSuffix, user);
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
+    /**
+     * Close the LDAP connections held by this store
+     */
+    public void close() {
+        if (pool != null) {
+            pool.close();
         }
+    }
+
+    @Override
+    public User createUser(String name) {
+        LDAPUser user = newUser(name);
+        bind(user.getDN(), user);
         return user;
     }
 
     @Override
     public void removeUser(User user) {
-        try {
-            ctx.destroySubcontext(UID + "=" + user.getId() + COMMA + userDNSuffix);
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
-        }
+        destroySubcontext(UID + "=" + user.getId() + COMMA + userDNSuffix);
     }
 
     @Override
     public User getUser(String name) {
         LDAPUser user = null;
-        try {
-            Attributes matchAttrs = new BasicAttributes(true); // ignore attribute name case
-            matchAttrs.put(new BasicAttribute(CN, name));
-
-            NamingEnumeration<SearchResult> answer = ctx.search(userDNSuffix, matchAttrs);
-            while (answer.hasMore()) {
-                SearchResult sr = answer.next();
-                Attributes attributes = sr.getAttributes();
-                user = LDAPUser.create(attributes, userDNSuffix);
-                user.setLDAPChangeNotificationHandler(this);
-            }
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
+        Attributes attributes = findByCN(userDNSuffix, name, USER_ATTRIBUTES);
+        if (attributes != null) {
+            user = LDAPUser.create(attributes, userDNSuffix);
+            user.setLDAPChangeNotificationHandler(this);
+            user.setLDAPAttributeLoader(this, USER_ATTRIBUTES);
         }
         return user;
     }
@@ -171,108 +237,59 @@ public class LDAPIdentityStore implements IdentityStore, LDAPChangeNotificationH
     @Override
     public Group createGroup(String name, Group parent) {
         ensureGroupDNExists();
-        LDAPGroup ldapGroup = new LDAPGroup();
-        ldapGroup.setLDAPChangeNotificationHandler(this);
+        LDAPGroup ldapGroup = newGroup(name);
 
-        ldapGroup.setName(name);
-        ldapGroup.setGroupDNSuffix(groupDNSuffix);
-
-        try {
-            ctx.bind(CN + "=" + name + COMMA + groupDNSuffix, ldapGroup);
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
-        }
+        bind(ldapGroup.getDN(), ldapGroup);
 
         if (parent != null) {
-            ldapGroup.setParentGroup(parent);
-
-            LDAPGroup parentGroup = (LDAPGroup) getGroup(parent.getName());
+            // Only the new member value is written to the parent entry, the rest of it is neither read nor rewritten
+            LDAPGroup parentGroup = createGroup(new BasicAttributes(CN, parent.getName(), true));
             ldapGroup.setParentGroup(parentGroup);
+            parentGroup.deferChanges();
             parentGroup.addChildGroup(ldapGroup);
-            try {
-                ctx.rebind(CN + "=" + parentGroup.getName() + COMMA + groupDNSuffix, parentGroup);
-            } catch (NamingException e) {
-                throw new RuntimeException(e);
-            }
+            parentGroup.flushChanges();
+            groupHierarchy.setParent(name, parentGroup.getName());
         }
         return ldapGroup;
     }
 
     @Override
     public void removeGroup(Group group) {
-        try {
-            ctx.destroySubcontext(CN + "=" + group.getName() + COMMA + groupDNSuffix);
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
-        }
+        destroySubcontext(CN + "=" + group.getName() + COMMA + groupDNSuffix);
+        groupHierarchy.remove(group.getName());
     }
 
     @Override
     public Group getGroup(String name) {
         LDAPGroup ldapGroup = null;
-        try {
-            Attributes matchAttrs = new BasicAttributes(true); // ignore attribute name case
-            matchAttrs.put(new BasicAttribute(CN, name));
-
-            NamingEnumeration<SearchResult> answer = ctx.search(groupDNSuffix, matchAttrs);
-            while (answer.hasMore()) {
-                SearchResult sr = answer.next();
-                Attributes attributes = sr.getAttributes();
-                ldapGroup = LDAPGroup.create(attributes, groupDNSuffix);
-                // Let us work out any parent groups for this group exist
-                Group parentGroup = parentGroup(ldapGroup);
-                if (parentGroup != null) {
-                    ldapGroup.setParentGroup(parentGroup);
-                }
-                ldapGroup.setLDAPChangeNotificationHandler(this);
-            }
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
+        // The parent groups are resolved after the connection used by the search is returned to the pool
+        Attributes attributes = findByCN(groupDNSuffix, name, GROUP_ATTRIBUTES);
+        if (attributes != null) {
+            ldapGroup = createGroup(attributes);
         }
         return ldapGroup;
     }
 
     @Override
     public Role createRole(String name) {
-        LDAPRole role = new LDAPRole();
-        role.setLDAPChangeNotificationHandler(this);
-
-        role.setName(name);
-        role.setRoleDNSuffix(roleDNSuffix);
-
-        try {
-            ctx.bind(CN + "=" + name + COMMA + roleDNSuffix, role);
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
-        }
+        LDAPRole role = newRole(name);
+        bind(role.getDN(), role);
         return role;
     }
 
     @Override
     public void removeRole(Role role) {
-        try {
-            ctx.destroySubcontext(CN + "=" + role.getName() + COMMA + roleDNSuffix);
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
-        }
+        destroySubcontext(CN + "=" + role.getName() + COMMA + roleDNSuffix);
     }
 
     @Override
     public Role getRole(String role) {
         LDAPRole ldapRole = null;
-        try {
-            Attributes matchAttrs = new BasicAttributes(true); // ignore attribute name case
-            matchAttrs.put(new BasicAttribute(CN, role));
-
-            NamingEnumeration<SearchResult> answer = ctx.search(roleDNSuffix, matchAttrs);
-            while (answer.hasMore()) {
-                SearchResult sr = answer.next();
-                Attributes attributes = sr.getAttributes();
-                ldapRole = LDAPRole.create(attributes, roleDNSuffix);
-                ldapRole.setLDAPChangeNotificationHandler(this);
-            }
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
+        Attributes attributes = findByCN(roleDNSuffix, role, ROLE_ATTRIBUTES);
+        if (attributes != null) {
+            ldapRole = LDAPRole.create(attributes, roleDNSuffix);
+            ldapRole.setLDAPChangeNotificationHandler(this);
+            ldapRole.setLDAPAttributeLoader(this, ROLE_ATTRIBUTES);
         }
         return ldapRole;
     }
@@ -304,28 +321,156 @@ public class LDAPIdentityStore implements IdentityStore, LDAPChangeNotificationH
         return null;
     }
 
+    /**
+     * Write the batch in chunks, each one on a single pooled connection. JNDI has no asynchronous operations, so the entries
+     * are still added one at a time, but the member values added to the same group or role by the items of a chunk are
+     * coalesced into a single modification of that entry.
+     */
+    @Override
+    public BatchResult executeBatch(IdentityBatch batch, final BatchListener listener) {
+        final List<BatchItem> items = batch.getItems();
+        final BatchResult result = new BatchResult(items.size());
+        final Map<String, String> userDNs = new HashMap<String, String>();
+
+        for (BatchItem item : items) {
+            if (item.getType() == BatchItem.Type.GROUP) {
+                ensureGroupDNExists();
+                break;
+            }
+        }
+
+        for (int start = 0; start < items.size(); start += batchSize) {
+            final int chunkStart = start;
+            final List<BatchItem> chunk = items.subList(start, Math.min(start + batchSize, items.size()));
+
+            executeOperation(new LDAPCallback() {
+                @Override
+                public Object execute(LdapContext context) throws NamingException {
+                    writeChunk(context, chunk, chunkStart, userDNs, result, listener);
+                    return null;
+                }
+            });
+
+            result.addProcessed(chunk.size());
+            if (listener != null) {
+                listener.onProgress(result.getProcessed(), result.getTotal());
+            }
+        }
+        return result;
+    }
+
     @Override
     public List<User> executeQuery(UserQuery query, Range range) {
-        // TODO Auto-generated method stub
-        return null;
+        return toList(iterateQuery(query, range));
     }
 
     @Override
     public List<Group> executeQuery(GroupQuery query, Range range) {
-        // TODO Auto-generated method stub
-        return null;
+        return toList(iterateQuery(query, range));
     }
 
     @Override
     public List<Role> executeQuery(RoleQuery query, Range range) {
-        // TODO Auto-generated method stub
-        return null;
+        return toList(iterateQuery(query, range));
     }
 
     @Override
     public List<Membership> executeQuery(MembershipQuery query, Range range) {
-        // TODO Auto-generated method stub
-        return null;
+        return toList(iterateQuery(query, range));
+    }
+
+    @Override
+    public QueryResultIterator<User> iterateQuery(UserQuery query, Range range) {
+        if (query.getRelatedGroup() != null || query.getRole() != null || query.getEnabled() != null) {
+            throw new RuntimeException("Group, role and enabled conditions are not supported by LDAP user queries");
+        }
+
+        LDAPSearchFilter filter = new LDAPSearchFilter(INET_ORG_PERSON);
+        filter.match(CN, query.getName()).match(GIVENNAME, query.getFirstName()).match(SN, query.getLastName());
+        filter.match(EMAIL, query.getEmail()).matchAll(query.getAttributeFilters());
+
+        matchKeyset(filter, range, query.isSortAscending());
+        SortKey sortKey = new SortKey(CN, query.isSortAscending(), CASE_IGNORE_ORDERING_MATCH);
+
+        return new LDAPQueryResultIterator<User>(pool, userDNSuffix, filter, createSearchControls(range, USER_ATTRIBUTES), range,
+                getPageSize(range), sortKey) {
+            @Override
+            protected User create(SearchResult result) {
+                LDAPUser user = LDAPUser.create(result.getAttributes(), userDNSuffix);
+                user.setLDAPChangeNotificationHandler(LDAPIdentityStore.this);
+                user.setLDAPAttributeLoader(LDAPIdentityStore.this, USER_ATTRIBUTES);
+                return user;
+            }
+        };
+    }
+
+    @Override
+    public QueryResultIterator<Group> iterateQuery(GroupQuery query, Range range) {
+        if (query.getId() != null || query.getRole() != null || query.getRelatedUser() != null) {
+            throw new RuntimeException("Id, role and user conditions are not supported by LDAP group queries");
+        }
+
+        LDAPSearchFilter filter = new LDAPSearchFilter(GROUP_OF_NAMES);
+        filter.match(CN, query.getName()).matchAll(query.getAttributeFilters());
+
+        // The tree is copied before the search borrows its connection, reading it again while iterating would borrow another
+        final LDAPGroupHierarchy hierarchy = getGroupHierarchy().snapshot();
+
+        // Tree conditions are resolved against the cached hierarchy and restrict the search to the matching names
+        if (query.getParentGroup() != null) {
+            List<String> children = hierarchy.getChildren(query.getParentGroup().getName());
+            if (children.isEmpty()) {
+                return emptyIterator();
+            }
+            filter.matchAny(CN, children.toArray(new String[children.size()]));
+        }
+        if (query.getAncestorGroup() != null) {
+            Set<String> descendants = hierarchy.getDescendants(query.getAncestorGroup().getName());
+            if (descendants.isEmpty()) {
+                return emptyIterator();
+            }
+            filter.matchAny(CN, descendants.toArray(new String[descendants.size()]));
+        }
+
+        matchKeyset(filter, range, query.isSortAscending());
+        SortKey sortKey = new SortKey(CN, query.isSortAscending(), CASE_IGNORE_ORDERING_MATCH);
+
+        return new LDAPQueryResultIterator<Group>(pool, groupDNSuffix, filter, createSearchControls(range, GROUP_ATTRIBUTES), range,
+                getPageSize(range), sortKey) {
+            @Override
+            protected Group create(SearchResult result) {
+                return createGroup(result.getAttributes(), hierarchy);
+            }
+        };
+    }
+
+    @Override
+    public QueryResultIterator<Role> iterateQuery(RoleQuery query, Range range) {
+        if (query.getOwner() != null || query.getGroup() != null) {
+            throw new RuntimeException("Owner and group conditions are not supported by LDAP role queries");
+        }
+
+        LDAPSearchFilter filter = new LDAPSearchFilter(GROUP_OF_NAMES);
+        filter.match(CN, query.getName()).matchAll(query.getAttributeFilters());
+
+        matchKeyset(filter, range, query.isSortAscending());
+        SortKey sortKey = new SortKey(CN, query.isSortAscending(), CASE_IGNORE_ORDERING_MATCH);
+
+        return new LDAPQueryResultIterator<Role>(pool, roleDNSuffix, filter, createSearchControls(range, ROLE_ATTRIBUTES), range,
+                getPageSize(range), sortKey) {
+            @Override
+            protected Role create(SearchResult result) {
+                LDAPRole role = LDAPRole.create(result.getAttributes(), roleDNSuffix);
+                role.setLDAPChangeNotificationHandler(LDAPIdentityStore.this);
+                role.setLDAPAttributeLoader(LDAPIdentityStore.this, ROLE_ATTRIBUTES);
+                return role;
+            }
+        };
+    }
+
+    @Override
+    public QueryResultIterator<Membership> iterateQuery(MembershipQuery query, Range range) {
+        throw new RuntimeException("Membership queries are not supported by LDAPIdentityStore");
     }
 
     @Override
@@ -455,6 +600,60 @@ public class LDAPIdentityStore implements IdentityStore, LDAPChangeNotificationH
         return ldapRole.getAttributes();
     }
 
+    /**
+     * Store the encoded password as the userPassword of the entry. The value starts with the scheme of the hash in braces,
+     * which keeps the directory from hashing it again.
+     */
+    @Override
+    public void setPasswordHash(User user, String passwordHash) {
+        final String dn = UID + EQUAL + user.getId() + COMMA + userDNSuffix;
+        final Attribute attribute = new BasicAttribute(USER_PASSWORD);
+        if (passwordHash != null) {
+            attribute.add(passwordHash.getBytes(UTF8));
+        }
+        executeOperation(new LDAPCallback() {
+            @Override
+            public Object execute(LdapContext context) throws NamingException {
+                context.modifyAttributes(dn, new ModificationItem[] { new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                        attribute) });
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String getPasswordHash(User user) {
+        Attributes attributes = loadAttributes(UID + EQUAL + user.getId() + COMMA + userDNSuffix,
+                new String[] { USER_PASSWORD });
+        Attribute attribute = attributes.get(USER_PASSWORD);
+        if (attribute == null || attribute.size() == 0) {
+            return null;
+        }
+        try {
+            // Returned as binary unless configured otherwise
+            Object value = attribute.get();
+            return value instanceof byte[] ? new String((byte[]) value, UTF8) : value.toString();
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Not supported: the directory has no standard attribute for it
+     */
+    @Override
+    public void setEnabled(IdentityType identityType, boolean enabled) {
+        throw new RuntimeException("Enabling and disabling is not supported by the LDAP store");
+    }
+
+    /**
+     * Not supported: the directory has no standard attribute for it
+     */
+    @Override
+    public void setExpirationDate(IdentityType identityType, Date expirationDate) {
+        throw new RuntimeException("Expiration is not supported by the LDAP store");
+    }
+
     protected String getFirstName(String name) {
         String[] tokens = name.split("\\ ");
         int length = tokens.length;
@@ -493,65 +692,444 @@ public class LDAPIdentityStore implements IdentityStore, LDAPChangeNotificationH
         }
     }
 
+    protected LDAPUser newUser(String name) {
+        LDAPUser user = new LDAPUser();
+        user.setLDAPChangeNotificationHandler(this);
+
+        user.setFullName(name);
+        String firstName = getFirstName(name);
+        String lastName = getLastName(name);
+
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+
+        // TODO: How do we get the userid?
+        user.setId(generateUserID(firstName, lastName));
+        user.setUserDNSuffix(userDNSuffix);
+        return user;
+    }
+
+    protected LDAPGroup newGroup(String name) {
+        LDAPGroup ldapGroup = new LDAPGroup();
+        ldapGroup.setLDAPChangeNotificationHandler(this);
+
+        ldapGroup.setName(name);
+        ldapGroup.setGroupDNSuffix(groupDNSuffix);
+        return ldapGroup;
+    }
+
+    protected LDAPRole newRole(String name) {
+        LDAPRole role = new LDAPRole();
+        role.setLDAPChangeNotificationHandler(this);
+
+        role.setName(name);
+        role.setRoleDNSuffix(roleDNSuffix);
+        return role;
+    }
+
+    /**
+     * Add the entries of a chunk of a batch with the given context. The member values are collected by entry and added with
+     * one modification per entry once every entry of the chunk exists. A failed modification fails every item that
+     * contributed to it.
+     */
+    protected void writeChunk(LdapContext context, List<BatchItem> chunk, int start, Map<String, String> userDNs,
+            BatchResult result, BatchListener listener) {
+        Map<String, Attribute> members = new LinkedHashMap<String, Attribute>();
+        Map<String, List<Integer>> contributors = new HashMap<String, List<Integer>>();
+        Set<Integer> failed = new HashSet<Integer>();
+
+        for (int i = 0; i < chunk.size(); i++) {
+            BatchItem item = chunk.get(i);
+            int index = start + i;
+            try {
+                switch (item.getType()) {
+                    case USER:
+                        LDAPUser user = newUser(item.getName());
+                        context.bind(user.getDN(), user);
+                        userDNs.put(item.getName(), user.getDN());
+                        break;
+                    case GROUP:
+                        LDAPGroup group = newGroup(item.getName());
+                        context.bind(group.getDN(), group);
+                        if (item.getGroup() != null) {
+                            addMember(members, contributors, groupDN(item.getGroup()), group.getDN(), index);
+                        }
+                        break;
+                    case ROLE:
+                        LDAPRole role = newRole(item.getName());
+                        context.bind(role.getDN(), role);
+                        break;
+                    default:
+                        String roleDN = CN + EQUAL + item.getRole() + COMMA + roleDNSuffix;
+                        if (item.getUser() != null) {
+                            addMember(members, contributors, roleDN, findUserDN(context, item.getUser(), userDNs), index);
+                        }
+                        if (item.getGroup() != null) {
+                            addMember(members, contributors, groupDN(item.getGroup()), roleDN, index);
+                        }
+                }
+            } catch (Exception e) {
+                failed.add(index);
+                fail(result, listener, new BatchFailure(index, item, e));
+            }
+        }
+
+        for (Map.Entry<String, Attribute> entry : members.entrySet()) {
+            try {
+                context.modifyAttributes(entry.getKey(), new ModificationItem[] { new ModificationItem(
+                        DirContext.ADD_ATTRIBUTE, entry.getValue()) });
+            } catch (NamingException e) {
+                for (Integer index : contributors.get(entry.getKey())) {
+                    if (failed.add(index)) {
+                        fail(result, listener, new BatchFailure(index, chunk.get(index - start), e));
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < chunk.size(); i++) {
+            BatchItem item = chunk.get(i);
+            if (item.getType() == BatchItem.Type.GROUP && item.getGroup() != null && !failed.contains(start + i)) {
+                groupHierarchy.setParent(item.getName(), item.getGroup());
+            }
+        }
+    }
+
     protected void ensureGroupDNExists() {
-        try {
-            Object obj = ctx.lookup(groupDNSuffix);
-            if (obj == null) {
-                createGroupDN();
+        // The entry is looked up before being created, so running the callback twice is safe
+        executeOperation(new LDAPCallback() {
+            @Override
+            public Object execute(LdapContext context) throws NamingException {
+                try {
+                    Object obj = context.lookup(groupDNSuffix);
+                    if (obj == null) {
+                        createGroupDN(context);
+                    }
+                } catch (NameNotFoundException e) {
+                    createGroupDN(context);
+                }
+                return null;
             }
-            return; // exists
-        } catch (NamingException e) {
-            if (e instanceof NameNotFoundException) {
-                createGroupDN();
-                return;
+        }, true);
+    }
+
+    protected void createGroupDN(LdapContext context) throws NamingException {
+        Attributes attributes = new BasicAttributes(true);
+
+        Attribute oc = new BasicAttribute(OBJECT_CLASS);
+        oc.add("top");
+        oc.add("organizationalUnit");
+        attributes.put(oc);
+        context.createSubcontext(groupDNSuffix, attributes);
+    }
+
+    /**
+     * Create a group read from the directory along with its parent chain. The ancestors are taken from the cached group tree,
+     * so no search is made whatever the depth of the group.
+     *
+     * @param attributes
+     * @return
+     */
+    protected LDAPGroup createGroup(Attributes attributes) {
+        return createGroup(attributes, getGroupHierarchy());
+    }
+
+    /**
+     * Create a group read from the directory along with its parent chain, taken from the given group tree
+     *
+     * @param attributes
+     * @param hierarchy
+     * @return
+     */
+    protected LDAPGroup createGroup(Attributes attributes, LDAPGroupHierarchy hierarchy) {
+        LDAPGroup ldapGroup = toGroup(attributes);
+        LDAPGroup child = ldapGroup;
+        for (String ancestor : hierarchy.getAncestors(ldapGroup.getName())) {
+            LDAPGroup parent = toGroup(new BasicAttributes(CN, ancestor, true));
+            child.setParentGroup(parent);
+            child = parent;
+        }
+        return ldapGroup;
+    }
+
+    private LDAPGroup toGroup(Attributes attributes) {
+        LDAPGroup ldapGroup = LDAPGroup.create(attributes, groupDNSuffix);
+        ldapGroup.setLDAPAttributeLoader(this, GROUP_ATTRIBUTES);
+        ldapGroup.setLDAPChangeNotificationHandler(this);
+        return ldapGroup;
+    }
+
+    /**
+     * Create the controls to search the direct children of a base. The results are read lazily by the
+     * {@link LDAPQueryResultIterator}.
+     *
+     * @param range
+     * @param returningAttributes the attributes to read from each entry
+     * @return
+     */
+    protected SearchControls createSearchControls(Range range, String[] returningAttributes) {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(returningAttributes);
+        return controls;
+    }
+
+    /**
+     * Restrict the results of a keyset range to the entries after its last key. The results are sorted by common name with
+     * caseIgnoreOrderingMatch, which the filter compares the key with as well, so the pages follow the order of the sort.
+     *
+     * @param filter
+     * @param range
+     * @param ascending
+     */
+    protected void matchKeyset(LDAPSearchFilter filter, Range range, boolean ascending) {
+        if (range != null && range.isKeyset()) {
+            filter.matchAfter(CN, CASE_IGNORE_ORDERING_MATCH, range.getLastKey(), ascending);
+        }
+    }
+
+    /**
+     * Return the page size of a query, no larger than needed to reach the end of the range
+     *
+     * @param range
+     * @return
+     */
+    protected int getPageSize(Range range) {
+        if (pageSize > 0 && range != null && range.getLimit() > 0) {
+            return Math.min(pageSize, range.getOffset() + range.getLimit());
+        }
+        return pageSize;
+    }
+
+    /**
+     * Return the cached group tree, reading it from the directory on first use
+     *
+     * @return
+     */
+    protected LDAPGroupHierarchy getGroupHierarchy() {
+        if (!groupHierarchy.isLoaded()) {
+            executeOperation(new LDAPCallback() {
+                @Override
+                public Object execute(LdapContext context) throws NamingException {
+                    groupHierarchy.load(context);
+                    return null;
+                }
+            }, true);
+        }
+        return groupHierarchy;
+    }
+
+    private void addMember(Map<String, Attribute> members, Map<String, List<Integer>> contributors, String dn,
+            String member, int index) {
+        Attribute attribute = members.get(dn);
+        if (attribute == null) {
+            attribute = new BasicAttribute(MEMBER);
+            members.put(dn, attribute);
+            contributors.put(dn, new ArrayList<Integer>());
+        }
+        attribute.add(member);
+        contributors.get(dn).add(index);
+    }
+
+    private String findUserDN(LdapContext context, String name, Map<String, String> userDNs) throws NamingException {
+        String dn = userDNs.get(name);
+        if (dn == null) {
+            Attributes matchAttrs = new BasicAttributes(true);
+            matchAttrs.put(new BasicAttribute(CN, name));
+            NamingEnumeration<SearchResult> answer = context.search(userDNSuffix, matchAttrs, new String[] { UID });
+            try {
+                if (!answer.hasMore()) {
+                    throw new RuntimeException("User not found: " + name);
+                }
+                dn = UID + EQUAL + answer.next().getAttributes().get(UID).get() + COMMA + userDNSuffix;
+            } finally {
+                answer.close();
             }
-            throw new RuntimeException(e);
+            userDNs.put(name, dn);
         }
+        return dn;
     }
 
-    protected void createGroupDN() {
-        try {
-            Attributes attributes = new BasicAttributes(true);
+    private String groupDN(String name) {
+        return CN + EQUAL + name + COMMA + groupDNSuffix;
+    }
 
-            Attribute oc = new BasicAttribute(OBJECT_CLASS);
-            oc.add("top");
-            oc.add("organizationalUnit");
-            attributes.put(oc);
-            ctx.createSubcontext(groupDNSuffix, attributes);
-        } catch (NamingException ne) {
-            throw new RuntimeException(ne);
+    private void fail(BatchResult result, BatchListener listener, BatchFailure failure) {
+        result.addFailure(failure);
+        if (listener != null) {
+            listener.onFailure(failure);
         }
     }
 
-    // Get the parent group by searching
-    protected Group parentGroup(LDAPGroup group) {
-        Attributes matchAttrs = new BasicAttributes(true);
-        matchAttrs.put(new BasicAttribute(MEMBER, CN + EQUAL + group.getName() + COMMA + groupDNSuffix));
-        // Search for objects with these matching attributes
+    protected <T> QueryResultIterator<T> emptyIterator() {
+        return new QueryResultIterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return false;
+            }
+
+            @Override
+            public T next() {
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    protected <T> List<T> toList(QueryResultIterator<T> iterator) {
+        List<T> result = new ArrayList<T>();
         try {
-            NamingEnumeration<SearchResult> answer = ctx.search(groupDNSuffix, matchAttrs, new String[] { CN });
-            while (answer.hasMoreElements()) {
-                SearchResult sr = (SearchResult) answer.nextElement();
-                Attributes attributes = sr.getAttributes();
-                String cn = (String) attributes.get(CN).get();
-                return getGroup(cn);
+            while (iterator.hasNext()) {
+                result.add(iterator.next());
             }
-        } catch (NamingException e) {
-            throw new RuntimeException(e);
+        } finally {
+            iterator.close();
         }
-        return null;
+        return result;
     }
 
-    @Override
-    public void handle(LDAPObjectChangedNotification notification) {
-        DirContext object = notification.getLDAPObject();
-        if (object instanceof LDAPUser) {
-            LDAPUser user = (LDAPUser) object;
+    /**
+     * Return the attributes of the entry with the given common name directly under the given base, or null if there is
+     * none.
+     *
+     * @param base
+     * @param cn
+     * @param returningAttributes the attributes to read
+     * @return
+     */
+    protected Attributes findByCN(final String base, String cn, final String[] returningAttributes) {
+        final Attributes matchAttrs = new BasicAttributes(true); // ignore attribute name case
+        matchAttrs.put(new BasicAttribute(CN, cn));
+
+        return (Attributes) executeOperation(new LDAPCallback() {
+            @Override
+            public Object execute(LdapContext context) throws NamingException {
+                Attributes attributes = null;
+                NamingEnumeration<SearchResult> answer = context.search(base, matchAttrs, returningAttributes);
+                try {
+                    while (answer.hasMore()) {
+                        attributes = answer.next().getAttributes();
+                    }
+                } finally {
+                    answer.close();
+                }
+                return attributes;
+            }
+        }, true);
+    }
+
+    protected void bind(final String dn, final Object object) {
+        executeOperation(new LDAPCallback() {
+            @Override
+            public Object execute(LdapContext context) throws NamingException {
+                context.bind(dn, object);
+                return null;
+            }
+        });
+        // The entry is written as a whole, changes made while it was built are part of it
+        if (object instanceof DirContextAdaptor) {
+            ((DirContextAdaptor) object).clearModifications();
+        }
+    }
+
+    /**
+     * Write the changes recorded by an object to its entry. Only the changed attributes, or values of multi-valued
+     * attributes, are sent to the server.
+     *
+     * @param object
+     */
+    protected void modifyAttributes(final DirContextAdaptor object) {
+        final ModificationItem[] modifications = object.getModifications();
+        if (modifications.length == 0) {
+            return;
+        }
+        executeOperation(new LDAPCallback() {
+            @Override
+            public Object execute(LdapContext context) throws NamingException {
+                context.modifyAttributes(object.getDN(), modifications);
+                return null;
+            }
+        });
+        object.clearModifications();
+    }
+
+    protected void destroySubcontext(final String dn) {
+        executeOperation(new LDAPCallback() {
+            @Override
+            public Object execute(LdapContext context) throws NamingException {
+                context.destroySubcontext(dn);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Execute the callback with a context borrowed from the pool. Contexts that failed to communicate with the server are
+     * discarded instead of being returned to the pool.
+     *
+     * @param callback
+     * @return
+     */
+    protected Object executeOperation(LDAPCallback callback) {
+        return executeOperation(callback, false);
+    }
+
+    /**
+     * Execute the callback with a context borrowed from the pool. Contexts that failed to communicate with the server are
+     * discarded instead of being returned to the pool. Idempotent callbacks, such as reads and searches, are executed once
+     * more with a new context, as the failed context may have been closed by the server while idle. Other callbacks are not
+     * retried: the server may have applied the change before the connection failed.
+     *
+     * @param callback
+     * @param idempotent whether the callback can safely be executed twice
+     * @return
+     */
+    protected Object executeOperation(LDAPCallback callback, boolean idempotent) {
+        for (int attempt = 1;; attempt++) {
+            LdapContext context = pool.borrow();
+            boolean broken = false;
             try {
-                ctx.rebind(user.getDN(), object);
+                return callback.execute(context);
+            } catch (CommunicationException e) {
+                broken = true;
+                if (!idempotent || attempt > 1) {
+                    throw new RuntimeException(e);
+                }
             } catch (NamingException e) {
                 throw new RuntimeException(e);
+            } finally {
+                if (broken) {
+                    pool.invalidate(context);
+                } else {
+                    pool.release(context);
+                }
             }
         }
     }
+
+    @Override
+    public Attributes loadAttributes(final String dn, final String[] ids) {
+        return (Attributes) executeOperation(new LDAPCallback() {
+            @Override
+            public Object execute(LdapContext context) throws NamingException {
+                return context.getAttributes(dn, ids);
+            }
+        }, true);
+    }
+
+    @Override
+    public void handle(LDAPObjectChangedNotification notification) {
+        DirContext object = notification.getLDAPObject();
+        if (object instanceof DirContextAdaptor) {
+            modifyAttributes((DirContextAdaptor) object);
+        }
+    }
 }
\ No newline at end of file
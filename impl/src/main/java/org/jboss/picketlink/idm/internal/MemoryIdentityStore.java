@@ -0,0 +1,1103 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.jboss.picketlink.idm.batch.BatchFailure;
+import org.jboss.picketlink.idm.batch.BatchItem;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.internal.federation.MergingQueryResultIterator;
+import org.jboss.picketlink.idm.internal.memory.AbstractMemoryIdentityType;
+import org.jboss.picketlink.idm.internal.memory.MemoryChangeLog;
+import org.jboss.picketlink.idm.internal.memory.MemoryChangeListener;
+import org.jboss.picketlink.idm.internal.memory.MemoryGroup;
+import org.jboss.picketlink.idm.internal.memory.MemoryIndex;
+import org.jboss.picketlink.idm.internal.memory.MemoryMembership;
+import org.jboss.picketlink.idm.internal.memory.MemoryRole;
+import org.jboss.picketlink.idm.internal.memory.MemoryUser;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * An {@link IdentityStore} keeping every identity type in memory, for nodes without a database or a directory and for tests.
+ * <p/>
+ * Users, groups and roles are kept in concurrent sorted maps by name, which is also their key, so lookups and scans in key
+ * order take no lock. Users are indexed by email, every identity type by attribute value, and memberships by the role, user
+ * and group they relate. Changes to a membership lock one of a fixed set of stripes chosen by the membership, so writes of
+ * unrelated memberships do not contend; reads never lock.
+ * <p/>
+ * Queries have the same meaning as with the {@link JPAIdentityStore}: names may use the '*' wildcard, identity types are
+ * sorted by key and memberships by creation order. The most selective index of a query gives the candidates, which are then
+ * checked against the whole query as they are iterated.
+ * <p/>
+ * With a {@link MemoryChangeLog} set, every change is logged, at a point where no conflicting change of the same identity
+ * type or membership can come in between, so that the log replays the changes in an order giving the same store. Identity
+ * types are created and removed holding a stripe lock chosen by key for that purpose.
+ */
+public class MemoryIdentityStore implements IdentityStore, MemoryChangeListener {
+
+    private static final String WILDCARD = "*";
+    private static final int LOCK_STRIPES = 64;
+
+    private final ConcurrentNavigableMap<String, MemoryUser> users = new ConcurrentSkipListMap<String, MemoryUser>();
+    private final ConcurrentNavigableMap<String, MemoryGroup> groups = new ConcurrentSkipListMap<String, MemoryGroup>();
+    private final ConcurrentNavigableMap<String, MemoryRole> roles = new ConcurrentSkipListMap<String, MemoryRole>();
+
+    private final MemoryIndex<String, MemoryUser> usersByEmail = new MemoryIndex<String, MemoryUser>();
+    private final ConcurrentMap<String, MemoryIndex<String, AbstractMemoryIdentityType>> userAttributes =
+            new ConcurrentHashMap<String, MemoryIndex<String, AbstractMemoryIdentityType>>();
+    private final ConcurrentMap<String, MemoryIndex<String, AbstractMemoryIdentityType>> groupAttributes =
+            new ConcurrentHashMap<String, MemoryIndex<String, AbstractMemoryIdentityType>>();
+    private final ConcurrentMap<String, MemoryIndex<String, AbstractMemoryIdentityType>> roleAttributes =
+            new ConcurrentHashMap<String, MemoryIndex<String, AbstractMemoryIdentityType>>();
+    private final MemoryIndex<MemoryGroup, MemoryGroup> childGroups = new MemoryIndex<MemoryGroup, MemoryGroup>();
+
+    private final ConcurrentNavigableMap<String, MemoryMembership> memberships =
+            new ConcurrentSkipListMap<String, MemoryMembership>();
+    private final ConcurrentMap<MemoryMembership.Key, MemoryMembership> membershipsByKey =
+            new ConcurrentHashMap<MemoryMembership.Key, MemoryMembership>();
+    private final MemoryIndex<AbstractMemoryIdentityType, MemoryMembership> membershipsOf =
+            new MemoryIndex<AbstractMemoryIdentityType, MemoryMembership>();
+    private final AtomicLong membershipSequence = new AtomicLong();
+    private final Object[] membershipLocks = new Object[LOCK_STRIPES];
+    private final Object[] keyLocks = new Object[LOCK_STRIPES];
+
+    private int batchSize = 1000;
+    private volatile MemoryChangeLog changeLog;
+
+    public MemoryIdentityStore() {
+        for (int i = 0; i < membershipLocks.length; i++) {
+            membershipLocks[i] = new Object();
+            keyLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Set the number of batch items written between two progress notifications
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new RuntimeException("Batch size must be positive:" + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the log the changes are written to from now on, or null to stop logging them
+     *
+     * @param changeLog
+     */
+    public void setChangeLog(MemoryChangeLog changeLog) {
+        this.changeLog = changeLog;
+    }
+
+    // User
+
+    @Override
+    public User createUser(String name) {
+        MemoryUser user = new MemoryUser(name);
+        user.setMemoryChangeListener(this);
+        synchronized (lockFor(name)) {
+            if (users.containsKey(name)) {
+                throw new RuntimeException("User already exists:" + name);
+            }
+            // Logged before the user can be seen, so before any of its changes
+            logCreated(user);
+            users.put(name, user);
+        }
+        return user;
+    }
+
+    @Override
+    public void removeUser(User user) {
+        MemoryUser stored = find(user);
+        if (stored == null) {
+            return;
+        }
+        synchronized (lockFor(stored.getKey())) {
+            if (!users.remove(stored.getKey(), stored)) {
+                return;
+            }
+            synchronized (stored) {
+                usersByEmail.remove(stored.getEmail(), stored);
+                detach(stored);
+            }
+        }
+        removeMemberships(stored);
+    }
+
+    @Override
+    public User getUser(String name) {
+        return users.get(name);
+    }
+
+    // Group
+
+    @Override
+    public Group createGroup(String name, Group parent) {
+        MemoryGroup parentGroup = null;
+        if (parent != null) {
+            parentGroup = groups.get(parent.getKey());
+            if (parentGroup == null) {
+                throw new RuntimeException("Group not found:" + parent.getKey());
+            }
+        }
+        MemoryGroup group = new MemoryGroup(name, parentGroup);
+        group.setMemoryChangeListener(this);
+        synchronized (lockFor(name)) {
+            if (groups.containsKey(name)) {
+                throw new RuntimeException("Group already exists:" + name);
+            }
+            logCreated(group);
+            groups.put(name, group);
+        }
+        childGroups.add(parentGroup, group);
+        return group;
+    }
+
+    /**
+     * Remove the group and its memberships. Subgroups must be removed first.
+     */
+    @Override
+    public void removeGroup(Group group) {
+        MemoryGroup stored = find(group);
+        if (stored == null) {
+            return;
+        }
+        for (MemoryGroup child : childGroups.get(stored)) {
+            if (groups.get(child.getKey()) == child) {
+                throw new RuntimeException("Group has subgroups:" + stored.getKey());
+            }
+        }
+        synchronized (lockFor(stored.getKey())) {
+            if (!groups.remove(stored.getKey(), stored)) {
+                return;
+            }
+            synchronized (stored) {
+                detach(stored);
+            }
+        }
+        childGroups.remove(stored.getParentGroup(), stored);
+        removeMemberships(stored);
+    }
+
+    @Override
+    public Group getGroup(String name) {
+        return groups.get(name);
+    }
+
+    // Role
+
+    @Override
+    public Role createRole(String name) {
+        MemoryRole role = new MemoryRole(name);
+        role.setMemoryChangeListener(this);
+        synchronized (lockFor(name)) {
+            if (roles.containsKey(name)) {
+                throw new RuntimeException("Role already exists:" + name);
+            }
+            logCreated(role);
+            roles.put(name, role);
+        }
+        return role;
+    }
+
+    @Override
+    public void removeRole(Role role) {
+        MemoryRole stored = find(role);
+        if (stored == null) {
+            return;
+        }
+        synchronized (lockFor(stored.getKey())) {
+            if (!roles.remove(stored.getKey(), stored)) {
+                return;
+            }
+            synchronized (stored) {
+                detach(stored);
+            }
+        }
+        removeMemberships(stored);
+    }
+
+    @Override
+    public Role getRole(String role) {
+        return roles.get(role);
+    }
+
+    // Memberships
+
+    /**
+     * Create the membership, or return the existing one relating the same role, user and group
+     */
+    @Override
+    public Membership createMembership(Role role, User user, Group group) {
+        MemoryRole storedRole = require(find(role), role);
+        MemoryUser storedUser = user != null ? require(find(user), user) : null;
+        MemoryGroup storedGroup = group != null ? require(find(group), group) : null;
+
+        MemoryMembership.Key key = new MemoryMembership.Key(storedRole, storedUser, storedGroup);
+        MemoryMembership membership;
+        synchronized (lockFor(key)) {
+            membership = membershipsByKey.get(key);
+            if (membership != null) {
+                return membership;
+            }
+            membership = new MemoryMembership(membershipSequence.incrementAndGet(), storedRole, storedUser, storedGroup);
+            membershipsByKey.put(key, membership);
+            memberships.put(membership.getId(), membership);
+            membershipsOf.add(storedRole, membership);
+            membershipsOf.add(storedUser, membership);
+            membershipsOf.add(storedGroup, membership);
+            MemoryChangeLog log = changeLog;
+            if (log != null) {
+                log.membershipCreated(membership);
+            }
+        }
+
+        // An identity type removed meanwhile may have missed the new membership when removing its own
+        if (!isStored(storedRole) || (storedUser != null && !isStored(storedUser))
+                || (storedGroup != null && !isStored(storedGroup))) {
+            remove(membership, true);
+            throw new RuntimeException("Identity type removed while creating membership");
+        }
+        return membership;
+    }
+
+    @Override
+    public void removeMembership(Role role, User user, Group group) {
+        MemoryMembership membership = (MemoryMembership) getMembership(role, user, group);
+        if (membership != null) {
+            remove(membership, true);
+        }
+    }
+
+    @Override
+    public Membership getMembership(Role role, User user, Group group) {
+        MemoryRole storedRole = find(role);
+        MemoryUser storedUser = find(user);
+        MemoryGroup storedGroup = find(group);
+        if (storedRole == null || (user != null && storedUser == null) || (group != null && storedGroup == null)) {
+            return null;
+        }
+        return membershipsByKey.get(new MemoryMembership.Key(storedRole, storedUser, storedGroup));
+    }
+
+    // Batch
+
+    /**
+     * Write the items one by one. The listener is told about the progress every {@link #setBatchSize(int) batch size}
+     * items.
+     */
+    @Override
+    public BatchResult executeBatch(IdentityBatch batch, BatchListener listener) {
+        List<BatchItem> items = batch.getItems();
+        BatchResult result = new BatchResult(items.size());
+        int pending = 0;
+
+        for (int i = 0; i < items.size(); i++) {
+            BatchItem item = items.get(i);
+            try {
+                write(item);
+            } catch (RuntimeException e) {
+                BatchFailure failure = new BatchFailure(i, item, e);
+                result.addFailure(failure);
+                if (listener != null) {
+                    listener.onFailure(failure);
+                }
+            }
+
+            if (++pending == batchSize || i == items.size() - 1) {
+                result.addProcessed(pending);
+                pending = 0;
+                if (listener != null) {
+                    listener.onProgress(result.getProcessed(), result.getTotal());
+                }
+            }
+        }
+        return result;
+    }
+
+    private void write(BatchItem item) {
+        switch (item.getType()) {
+            case USER:
+                createUser(item.getName());
+                break;
+            case GROUP:
+                createGroup(item.getName(), item.getGroup() != null ? require(groups.get(item.getGroup()), item.getGroup(),
+                        "Group") : null);
+                break;
+            case ROLE:
+                createRole(item.getName());
+                break;
+            case MEMBERSHIP:
+                if (item.getUser() == null && item.getGroup() == null) {
+                    throw new RuntimeException("A membership needs an user or a group");
+                }
+                MemoryRole role = require(roles.get(item.getRole()), item.getRole(), "Role");
+                MemoryUser user = item.getUser() != null ? require(users.get(item.getUser()), item.getUser(), "User") : null;
+                MemoryGroup group = item.getGroup() != null ? require(groups.get(item.getGroup()), item.getGroup(), "Group")
+                        : null;
+                createMembership(role, user, group);
+                break;
+            default:
+                throw new RuntimeException("Unsupported batch item: " + item);
+        }
+    }
+
+    // Queries
+
+    @Override
+    public List<User> executeQuery(UserQuery query, Range range) {
+        return toList(iterateQuery(query, range));
+    }
+
+    @Override
+    public List<Group> executeQuery(GroupQuery query, Range range) {
+        return toList(iterateQuery(query, range));
+    }
+
+    @Override
+    public List<Role> executeQuery(RoleQuery query, Range range) {
+        return toList(iterateQuery(query, range));
+    }
+
+    @Override
+    public List<Membership> executeQuery(MembershipQuery query, Range range) {
+        return toList(iterateQuery(query, range));
+    }
+
+    @Override
+    public QueryResultIterator<User> iterateQuery(UserQuery query, final Range range) {
+        final boolean ascending = query.isSortAscending();
+        final Pattern name = compile(query.getName());
+        final Pattern firstName = compile(query.getFirstName());
+        final Pattern lastName = compile(query.getLastName());
+        final Pattern email = compile(query.getEmail());
+        final Boolean enabled = query.getEnabled();
+        final Map<String, String[]> attributeFilters = query.getAttributeFilters();
+        final MemoryRole role = find(query.getRole());
+        final MemoryGroup relatedGroup = find(query.getRelatedGroup());
+        if ((query.getRole() != null && role == null) || (query.getRelatedGroup() != null && relatedGroup == null)) {
+            return empty();
+        }
+        final Set<MemoryGroup> groupScope = relatedGroup == null ? null : query.isIncludeSubgroups()
+                ? descendants(relatedGroup) : Collections.singleton(relatedGroup);
+
+        Iterator<MemoryUser> candidates;
+        if (isExact(query.getName())) {
+            candidates = single(users.get(query.getName()));
+        } else if (isExact(query.getEmail())) {
+            candidates = sorted(usersByEmail.get(query.getEmail()), ascending);
+        } else if (indexedFilter(attributeFilters) != null) {
+            candidates = sorted(attributeCandidates(userAttributes, attributeFilters, MemoryUser.class), ascending);
+        } else if (role != null) {
+            candidates = sorted(membershipOwners(role, MemoryUser.class), ascending);
+        } else if (groupScope != null) {
+            Set<MemoryUser> members = new HashSet<MemoryUser>();
+            for (MemoryGroup scope : groupScope) {
+                members.addAll(membershipOwners(scope, MemoryUser.class));
+            }
+            candidates = sorted(members, ascending);
+        } else {
+            candidates = scan(users, range, ascending);
+        }
+
+        return limit(new FilteringIterator<User>(candidates) {
+            @Override
+            protected boolean accept(User candidate) {
+                MemoryUser user = (MemoryUser) candidate;
+                return isStored(user) && inRange(user.getKey(), range, ascending) && matches(name, user.getKey())
+                        && matches(firstName, user.getFirstName()) && matches(lastName, user.getLastName())
+                        && matches(email, user.getEmail()) && (enabled == null || enabled.booleanValue() == user.isEnabled())
+                        && ((role == null && groupScope == null) || hasMembership(user, role, null, groupScope))
+                        && matches(user, attributeFilters);
+            }
+        }, range);
+    }
+
+    @Override
+    public QueryResultIterator<Group> iterateQuery(GroupQuery query, final Range range) {
+        final boolean ascending = query.isSortAscending();
+        final Pattern name = compile(query.getName());
+        final Pattern id = compile(query.getId());
+        final Map<String, String[]> attributeFilters = query.getAttributeFilters();
+        final MemoryGroup parent = find(query.getParentGroup());
+        final MemoryGroup ancestor = find(query.getAncestorGroup());
+        final MemoryRole role = find(query.getRole());
+        final MemoryUser relatedUser = find(query.getRelatedUser());
+        if ((query.getParentGroup() != null && parent == null) || (query.getAncestorGroup() != null && ancestor == null)
+                || (query.getRole() != null && role == null) || (query.getRelatedUser() != null && relatedUser == null)) {
+            return empty();
+        }
+        final Set<MemoryGroup> subgroups = ancestor == null ? null : descendants(ancestor);
+
+        Iterator<MemoryGroup> candidates;
+        if (isExact(query.getName())) {
+            candidates = single(groups.get(query.getName()));
+        } else if (parent != null) {
+            candidates = sorted(childGroups.get(parent), ascending);
+        } else if (indexedFilter(attributeFilters) != null) {
+            candidates = sorted(attributeCandidates(groupAttributes, attributeFilters, MemoryGroup.class), ascending);
+        } else if (role != null || relatedUser != null) {
+            candidates = sorted(membershipOwners(role != null ? role : relatedUser, MemoryGroup.class), ascending);
+        } else {
+            candidates = scan(groups, range, ascending);
+        }
+
+        return limit(new FilteringIterator<Group>(candidates) {
+            @Override
+            protected boolean accept(Group candidate) {
+                MemoryGroup group = (MemoryGroup) candidate;
+                return isStored(group) && inRange(group.getKey(), range, ascending) && matches(name, group.getKey())
+                        && matches(id, group.getId()) && (parent == null || group.getParentGroup() == parent)
+                        && (subgroups == null || (group != ancestor && subgroups.contains(group)))
+                        && ((role == null && relatedUser == null) || hasMembership(group, role, relatedUser, null))
+                        && matches(group, attributeFilters);
+            }
+        }, range);
+    }
+
+    @Override
+    public QueryResultIterator<Role> iterateQuery(RoleQuery query, final Range range) {
+        final boolean ascending = query.isSortAscending();
+        final Pattern name = compile(query.getName());
+        final Map<String, String[]> attributeFilters = query.getAttributeFilters();
+        IdentityType owner = query.getOwner();
+        final MemoryUser ownerUser = owner instanceof User ? find((User) owner) : null;
+        MemoryGroup group = find(query.getGroup());
+        if ((owner instanceof User && ownerUser == null) || (query.getGroup() != null && group == null)) {
+            return empty();
+        }
+        if (owner instanceof Group) {
+            MemoryGroup ownerGroup = find((Group) owner);
+            // a role can not be related with two different groups in the same membership
+            if (ownerGroup == null || (group != null && group != ownerGroup)) {
+                return empty();
+            }
+            group = ownerGroup;
+        }
+        final Set<MemoryGroup> groupScope = group == null ? null : query.isInherited() ? ancestors(group) : Collections
+                .singleton(group);
+
+        Iterator<MemoryRole> candidates;
+        if (isExact(query.getName())) {
+            candidates = single(roles.get(query.getName()));
+        } else if (indexedFilter(attributeFilters) != null) {
+            candidates = sorted(attributeCandidates(roleAttributes, attributeFilters, MemoryRole.class), ascending);
+        } else if (ownerUser != null || groupScope != null) {
+            Set<MemoryRole> granted = new HashSet<MemoryRole>();
+            if (ownerUser != null) {
+                granted.addAll(membershipOwners(ownerUser, MemoryRole.class));
+            } else {
+                for (MemoryGroup scope : groupScope) {
+                    granted.addAll(membershipOwners(scope, MemoryRole.class));
+                }
+            }
+            candidates = sorted(granted, ascending);
+        } else {
+            candidates = scan(roles, range, ascending);
+        }
+
+        return limit(new FilteringIterator<Role>(candidates) {
+            @Override
+            protected boolean accept(Role candidate) {
+                MemoryRole role = (MemoryRole) candidate;
+                return isStored(role) && inRange(role.getKey(), range, ascending) && matches(name, role.getKey())
+                        && ((ownerUser == null && groupScope == null) || hasMembership(role, null, ownerUser, groupScope))
+                        && matches(role, attributeFilters);
+            }
+        }, range);
+    }
+
+    @Override
+    public QueryResultIterator<Membership> iterateQuery(MembershipQuery query, final Range range) {
+        final MemoryUser user = find(query.getUser());
+        final MemoryGroup group = find(query.getGroup());
+        final MemoryRole role = find(query.getRole());
+        if ((query.getUser() != null && user == null) || (query.getGroup() != null && group == null)
+                || (query.getRole() != null && role == null)) {
+            return empty();
+        }
+
+        Iterator<MemoryMembership> candidates;
+        AbstractMemoryIdentityType indexed = user != null ? user : group != null ? group : role;
+        if (indexed != null) {
+            List<MemoryMembership> list = new ArrayList<MemoryMembership>(membershipsOf.get(indexed));
+            Collections.sort(list, new Comparator<MemoryMembership>() {
+                @Override
+                public int compare(MemoryMembership first, MemoryMembership second) {
+                    return first.getId().compareTo(second.getId());
+                }
+            });
+            candidates = list.iterator();
+        } else {
+            candidates = scan(memberships, range, true);
+        }
+
+        return limit(new FilteringIterator<Membership>(candidates) {
+            @Override
+            protected boolean accept(Membership candidate) {
+                MemoryMembership membership = (MemoryMembership) candidate;
+                return memberships.containsKey(membership.getId()) && inRange(membership.getId(), range, true)
+                        && (user == null || membership.getUser() == user) && (group == null || membership.getGroup() == group)
+                        && (role == null || membership.getRole() == role);
+            }
+        }, range);
+    }
+
+    // Attributes
+
+    @Override
+    public void setAttribute(User user, String name, String[] values) {
+        require(find(user), user).setAttribute(name, values);
+    }
+
+    @Override
+    public void removeAttribute(User user, String name) {
+        require(find(user), user).removeAttribute(name);
+    }
+
+    @Override
+    public String[] getAttributeValues(User user, String name) {
+        return require(find(user), user).getAttributeValues(name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(User user) {
+        return require(find(user), user).getAttributes();
+    }
+
+    @Override
+    public void setAttribute(Group group, String name, String[] values) {
+        require(find(group), group).setAttribute(name, values);
+    }
+
+    @Override
+    public void removeAttribute(Group group, String name) {
+        require(find(group), group).removeAttribute(name);
+    }
+
+    @Override
+    public String[] getAttributeValues(Group group, String name) {
+        return require(find(group), group).getAttributeValues(name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Group group) {
+        return require(find(group), group).getAttributes();
+    }
+
+    @Override
+    public void setAttribute(Role role, String name, String[] values) {
+        require(find(role), role).setAttribute(name, values);
+    }
+
+    @Override
+    public void removeAttribute(Role role, String name) {
+        require(find(role), role).removeAttribute(name);
+    }
+
+    @Override
+    public String[] getAttributeValues(Role role, String name) {
+        return require(find(role), role).getAttributeValues(name);
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Role role) {
+        return require(find(role), role).getAttributes();
+    }
+
+    // Credentials
+
+    @Override
+    public void setPasswordHash(User user, String passwordHash) {
+        require(find(user), user).setPasswordHash(passwordHash);
+    }
+
+    @Override
+    public String getPasswordHash(User user) {
+        return require(find(user), user).getPasswordHash();
+    }
+
+    // Enablement and expiration
+
+    @Override
+    public void setEnabled(IdentityType identityType, boolean enabled) {
+        require(find(identityType), identityType).setEnabled(enabled);
+    }
+
+    @Override
+    public void setExpirationDate(IdentityType identityType, Date expirationDate) {
+        require(find(identityType), identityType).setExpirationDate(expirationDate);
+    }
+
+    // Index maintenance and logging, called with the lock of the changed identity type held
+
+    @Override
+    public void attributeChanged(AbstractMemoryIdentityType owner, String name, String[] oldValues, String[] newValues) {
+        MemoryIndex<String, AbstractMemoryIdentityType> index = attributeIndex(attributeIndexOf(owner), name);
+        // New values are indexed before the old ones are dropped, so a value kept by the change is always found
+        if (newValues != null) {
+            for (String value : newValues) {
+                index.add(value, owner);
+            }
+        }
+        if (oldValues != null) {
+            for (String value : oldValues) {
+                if (newValues == null || !contains(newValues, value)) {
+                    index.remove(value, owner);
+                }
+            }
+        }
+        MemoryChangeLog log = changeLog;
+        if (log != null) {
+            log.attributeChanged(owner, name, newValues);
+        }
+    }
+
+    @Override
+    public void emailChanged(MemoryUser user, String oldEmail, String newEmail) {
+        usersByEmail.add(newEmail, user);
+        if (oldEmail != null && !oldEmail.equals(newEmail)) {
+            usersByEmail.remove(oldEmail, user);
+        }
+        propertiesChanged(user);
+    }
+
+    @Override
+    public void propertiesChanged(AbstractMemoryIdentityType owner) {
+        MemoryChangeLog log = changeLog;
+        if (log != null) {
+            log.propertiesChanged(owner);
+        }
+    }
+
+    private void logCreated(AbstractMemoryIdentityType identityType) {
+        MemoryChangeLog log = changeLog;
+        if (log != null) {
+            log.identityTypeCreated(identityType);
+        }
+    }
+
+    /**
+     * Stop maintaining the indexes of a removed identity type. Its removal is logged here, after any change made before.
+     */
+    private void detach(AbstractMemoryIdentityType owner) {
+        owner.setMemoryChangeListener(null);
+        MemoryChangeLog log = changeLog;
+        if (log != null) {
+            log.identityTypeRemoved(owner);
+        }
+        ConcurrentMap<String, MemoryIndex<String, AbstractMemoryIdentityType>> indexes = attributeIndexOf(owner);
+        for (Entry<String, String[]> attribute : owner.getAttributes().entrySet()) {
+            MemoryIndex<String, AbstractMemoryIdentityType> index = indexes.get(attribute.getKey());
+            if (index != null) {
+                for (String value : attribute.getValue()) {
+                    index.remove(value, owner);
+                }
+            }
+        }
+    }
+
+    private ConcurrentMap<String, MemoryIndex<String, AbstractMemoryIdentityType>> attributeIndexOf(
+            AbstractMemoryIdentityType owner) {
+        if (owner instanceof MemoryUser) {
+            return userAttributes;
+        } else if (owner instanceof MemoryGroup) {
+            return groupAttributes;
+        }
+        return roleAttributes;
+    }
+
+    private MemoryIndex<String, AbstractMemoryIdentityType> attributeIndex(
+            ConcurrentMap<String, MemoryIndex<String, AbstractMemoryIdentityType>> indexes, String name) {
+        MemoryIndex<String, AbstractMemoryIdentityType> index = indexes.get(name);
+        if (index == null) {
+            MemoryIndex<String, AbstractMemoryIdentityType> newIndex = new MemoryIndex<String, AbstractMemoryIdentityType>();
+            index = indexes.putIfAbsent(name, newIndex);
+            if (index == null) {
+                index = newIndex;
+            }
+        }
+        return index;
+    }
+
+    // Memberships
+
+    private Object lockFor(MemoryMembership.Key key) {
+        return membershipLocks[(key.hashCode() & 0x7fffffff) % membershipLocks.length];
+    }
+
+    private Object lockFor(String key) {
+        return keyLocks[(key.hashCode() & 0x7fffffff) % keyLocks.length];
+    }
+
+    /**
+     * @param membership
+     * @param logged false when the removal follows from the removal of an identity type, which replays it
+     */
+    private void remove(MemoryMembership membership, boolean logged) {
+        MemoryMembership.Key key = new MemoryMembership.Key(membership.getRole(), membership.getUser(),
+                membership.getGroup());
+        synchronized (lockFor(key)) {
+            if (membershipsByKey.remove(key, membership)) {
+                memberships.remove(membership.getId());
+                membershipsOf.remove(membership.getRole(), membership);
+                membershipsOf.remove(membership.getUser(), membership);
+                membershipsOf.remove(membership.getGroup(), membership);
+                MemoryChangeLog log = changeLog;
+                if (logged && log != null) {
+                    log.membershipRemoved(membership);
+                }
+            }
+        }
+    }
+
+    private void removeMemberships(AbstractMemoryIdentityType owner) {
+        for (MemoryMembership membership : new ArrayList<MemoryMembership>(membershipsOf.get(owner))) {
+            remove(membership, false);
+        }
+    }
+
+    private boolean hasMembership(AbstractMemoryIdentityType owner, MemoryRole role, MemoryUser user,
+            Set<MemoryGroup> groupScope) {
+        for (MemoryMembership membership : membershipsOf.get(owner)) {
+            if ((role == null || membership.getRole() == role) && (user == null || membership.getUser() == user)
+                    && (groupScope == null || groupScope.contains(membership.getGroup()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the identity types of the given type related to the given one by a membership
+     */
+    private <T extends AbstractMemoryIdentityType> Set<T> membershipOwners(AbstractMemoryIdentityType related, Class<T> type) {
+        Set<T> owners = new HashSet<T>();
+        for (MemoryMembership membership : membershipsOf.get(related)) {
+            if (type == MemoryUser.class && membership.getUser() != null) {
+                owners.add(type.cast(membership.getUser()));
+            } else if (type == MemoryGroup.class && membership.getGroup() != null) {
+                owners.add(type.cast(membership.getGroup()));
+            } else if (type == MemoryRole.class) {
+                owners.add(type.cast(membership.getRole()));
+            }
+        }
+        return owners;
+    }
+
+    // Group tree
+
+    private Set<MemoryGroup> descendants(MemoryGroup group) {
+        Set<MemoryGroup> descendants = new HashSet<MemoryGroup>();
+        List<MemoryGroup> pending = new ArrayList<MemoryGroup>();
+        pending.add(group);
+        while (!pending.isEmpty()) {
+            MemoryGroup next = pending.remove(pending.size() - 1);
+            if (descendants.add(next)) {
+                pending.addAll(childGroups.get(next));
+            }
+        }
+        return descendants;
+    }
+
+    private Set<MemoryGroup> ancestors(MemoryGroup group) {
+        Set<MemoryGroup> ancestors = new HashSet<MemoryGroup>();
+        for (MemoryGroup next = group; next != null; next = next.getParentGroup()) {
+            ancestors.add(next);
+        }
+        return ancestors;
+    }
+
+    // Lookups of the stored identity types, by key so that identity types of other stores can be given
+
+    private AbstractMemoryIdentityType find(IdentityType identityType) {
+        if (identityType instanceof User) {
+            return find((User) identityType);
+        } else if (identityType instanceof Group) {
+            return find((Group) identityType);
+        } else if (identityType instanceof Role) {
+            return find((Role) identityType);
+        }
+        return null;
+    }
+
+    private MemoryUser find(User user) {
+        return user != null ? users.get(user.getKey()) : null;
+    }
+
+    private MemoryGroup find(Group group) {
+        return group != null ? groups.get(group.getKey()) : null;
+    }
+
+    private MemoryRole find(Role role) {
+        return role != null ? roles.get(role.getKey()) : null;
+    }
+
+    private boolean isStored(MemoryUser user) {
+        return users.get(user.getKey()) == user;
+    }
+
+    private boolean isStored(MemoryGroup group) {
+        return groups.get(group.getKey()) == group;
+    }
+
+    private boolean isStored(MemoryRole role) {
+        return roles.get(role.getKey()) == role;
+    }
+
+    private static <T> T require(T stored, IdentityType identityType) {
+        return require(stored, identityType != null ? identityType.getKey() : null, "Identity type");
+    }
+
+    private static <T> T require(T stored, String key, String type) {
+        if (stored == null) {
+            throw new RuntimeException(type + " not found:" + key);
+        }
+        return stored;
+    }
+
+    // Query evaluation
+
+    private static boolean isExact(String value) {
+        return value != null && !value.contains(WILDCARD);
+    }
+
+    /**
+     * @return a pattern matching the value, where '*' matches any text, or null for a null value
+     */
+    private static Pattern compile(String value) {
+        if (value == null) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int wildcard = value.indexOf(WILDCARD); wildcard >= 0; wildcard = value.indexOf(WILDCARD, start)) {
+            regex.append(Pattern.quote(value.substring(start, wildcard))).append(".*");
+            start = wildcard + 1;
+        }
+        regex.append(Pattern.quote(value.substring(start)));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static boolean matches(Pattern pattern, String value) {
+        return pattern == null || (value != null && pattern.matcher(value).matches());
+    }
+
+    /**
+     * An attribute matches a filter if it has at least one of the filter values, or exists if the filter has no values
+     */
+    private static boolean matches(AbstractMemoryIdentityType owner, Map<String, String[]> filters) {
+        if (filters == null) {
+            return true;
+        }
+        for (Entry<String, String[]> filter : filters.entrySet()) {
+            String[] values = owner.getAttributeValues(filter.getKey());
+            if (values == null) {
+                return false;
+            }
+            if (filter.getValue() != null && filter.getValue().length > 0 && !containsAny(values, filter.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Entry<String, String[]> indexedFilter(Map<String, String[]> filters) {
+        if (filters != null) {
+            for (Entry<String, String[]> filter : filters.entrySet()) {
+                if (filter.getValue() != null && filter.getValue().length > 0) {
+                    return filter;
+                }
+            }
+        }
+        return null;
+    }
+
+    private <T extends AbstractMemoryIdentityType> Set<T> attributeCandidates(
+            ConcurrentMap<String, MemoryIndex<String, AbstractMemoryIdentityType>> indexes, Map<String, String[]> filters,
+            Class<T> type) {
+        Entry<String, String[]> filter = indexedFilter(filters);
+        Set<T> candidates = new HashSet<T>();
+        MemoryIndex<String, AbstractMemoryIdentityType> index = indexes.get(filter.getKey());
+        if (index != null) {
+            for (String value : filter.getValue()) {
+                for (AbstractMemoryIdentityType owner : index.get(value)) {
+                    candidates.add(type.cast(owner));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean contains(String[] values, String value) {
+        for (String candidate : values) {
+            if (candidate.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsAny(String[] values, String[] wanted) {
+        for (String value : wanted) {
+            if (contains(values, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean inRange(String key, Range range, boolean ascending) {
+        if (range == null || !range.isKeyset() || range.getLastKey() == null) {
+            return true;
+        }
+        int comparison = key.compareTo(range.getLastKey());
+        return ascending ? comparison > 0 : comparison < 0;
+    }
+
+    private static <T> Iterator<T> single(T value) {
+        return value != null ? Collections.singletonList(value).iterator() : Collections.<T> emptyList().iterator();
+    }
+
+    private static <T extends IdentityType> Iterator<T> sorted(Collection<? extends T> candidates, final boolean ascending) {
+        List<T> list = new ArrayList<T>(candidates);
+        Collections.sort(list, new Comparator<T>() {
+            @Override
+            public int compare(T first, T second) {
+                int result = first.getKey().compareTo(second.getKey());
+                return ascending ? result : -result;
+            }
+        });
+        return list.iterator();
+    }
+
+    /**
+     * Iterate the map in key order, starting right after the last key of a keyset range
+     */
+    private static <T> Iterator<T> scan(ConcurrentNavigableMap<String, ? extends T> map, Range range, boolean ascending) {
+        NavigableMap<String, ? extends T> view = map;
+        if (range != null && range.isKeyset() && range.getLastKey() != null) {
+            view = ascending ? map.tailMap(range.getLastKey(), false) : map.headMap(range.getLastKey(), false);
+        }
+        if (!ascending) {
+            view = view.descendingMap();
+        }
+        return Collections.<T> unmodifiableCollection(view.values()).iterator();
+    }
+
+    private static <T> QueryResultIterator<T> limit(Iterator<T> results, Range range) {
+        int offset = range == null || range.isKeyset() ? 0 : range.getOffset();
+        int limit = range == null ? -1 : range.getLimit();
+        return new MergingQueryResultIterator<T>(Collections.singletonList(results), null, offset, limit);
+    }
+
+    private static <T> QueryResultIterator<T> empty() {
+        return limit(Collections.<T> emptyList().iterator(), null);
+    }
+
+    private static <T> List<T> toList(QueryResultIterator<T> results) {
+        List<T> list = new ArrayList<T>();
+        try {
+            while (results.hasNext()) {
+                list.add(results.next());
+            }
+        } finally {
+            results.close();
+        }
+        return list;
+    }
+
+    /**
+     * Iterator returning the candidates accepted by the query, checked as they are reached
+     */
+    private abstract static class FilteringIterator<T> implements Iterator<T> {
+        private final Iterator<? extends T> candidates;
+        private T next;
+
+        FilteringIterator(Iterator<? extends T> candidates) {
+            this.candidates = candidates;
+        }
+
+        protected abstract boolean accept(T candidate);
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && candidates.hasNext()) {
+                T candidate = candidates.next();
+                if (accept(candidate)) {
+                    next = candidate;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.internal.metrics.IdentityStoreMetrics;
+import org.jboss.picketlink.idm.internal.metrics.IdentityStoreOperation;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * An {@link IdentityStore} measuring the calls made to another store: the number of calls, of calls that threw an
+ * exception, and their latencies, for each {@link IdentityStoreOperation}. Measuring a call takes two reads of
+ * {@link System#nanoTime()} and a few atomic increments, without allocating, so that it can stay on in production.
+ * <p/>
+ * The metrics are published by registering {@link #getMetrics()} with a
+ * {@link org.jboss.picketlink.idm.internal.metrics.MetricsRegistry}, such as the
+ * {@link org.jboss.picketlink.idm.internal.metrics.JMXMetricsRegistry}.
+ */
+public class MetricsIdentityStore implements IdentityStore {
+    private final IdentityStore delegate;
+    private final IdentityStoreMetrics metrics;
+
+    public MetricsIdentityStore(IdentityStore delegate, String name) {
+        this(delegate, new IdentityStoreMetrics(name));
+    }
+
+    /**
+     * @param delegate
+     * @param metrics the metrics the calls are recorded in, which may be shared by several stores
+     */
+    public MetricsIdentityStore(IdentityStore delegate, IdentityStoreMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public IdentityStore getDelegate() {
+        return delegate;
+    }
+
+    public IdentityStoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    // User
+
+    @Override
+    public User createUser(String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            User result = delegate.createUser(name);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.CREATE_USER, start, failed);
+        }
+    }
+
+    @Override
+    public void removeUser(User user) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.removeUser(user);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.REMOVE_USER, start, failed);
+        }
+    }
+
+    @Override
+    public User getUser(String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            User result = delegate.getUser(name);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_USER, start, failed);
+        }
+    }
+
+    // Group
+
+    @Override
+    public Group createGroup(String name, Group parent) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Group result = delegate.createGroup(name, parent);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.CREATE_GROUP, start, failed);
+        }
+    }
+
+    @Override
+    public void removeGroup(Group group) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.removeGroup(group);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.REMOVE_GROUP, start, failed);
+        }
+    }
+
+    @Override
+    public Group getGroup(String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Group result = delegate.getGroup(name);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_GROUP, start, failed);
+        }
+    }
+
+    // Role
+
+    @Override
+    public Role createRole(String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Role result = delegate.createRole(name);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.CREATE_ROLE, start, failed);
+        }
+    }
+
+    @Override
+    public void removeRole(Role role) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.removeRole(role);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.REMOVE_ROLE, start, failed);
+        }
+    }
+
+    @Override
+    public Role getRole(String role) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Role result = delegate.getRole(role);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_ROLE, start, failed);
+        }
+    }
+
+    // Memberships
+
+    @Override
+    public Membership createMembership(Role role, User user, Group group) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Membership result = delegate.createMembership(role, user, group);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.CREATE_MEMBERSHIP, start, failed);
+        }
+    }
+
+    @Override
+    public void removeMembership(Role role, User user, Group group) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.removeMembership(role, user, group);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.REMOVE_MEMBERSHIP, start, failed);
+        }
+    }
+
+    @Override
+    public Membership getMembership(Role role, User user, Group group) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Membership result = delegate.getMembership(role, user, group);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_MEMBERSHIP, start, failed);
+        }
+    }
+
+    // Batch
+
+    @Override
+    public BatchResult executeBatch(IdentityBatch batch, BatchListener listener) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            BatchResult result = delegate.executeBatch(batch, listener);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.EXECUTE_BATCH, start, failed);
+        }
+    }
+
+    // Queries
+
+    @Override
+    public List<User> executeQuery(UserQuery query, Range range) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<User> result = delegate.executeQuery(query, range);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.USER_QUERY, start, failed);
+        }
+    }
+
+    @Override
+    public List<Group> executeQuery(GroupQuery query, Range range) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<Group> result = delegate.executeQuery(query, range);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GROUP_QUERY, start, failed);
+        }
+    }
+
+    @Override
+    public List<Role> executeQuery(RoleQuery query, Range range) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<Role> result = delegate.executeQuery(query, range);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.ROLE_QUERY, start, failed);
+        }
+    }
+
+    @Override
+    public List<Membership> executeQuery(MembershipQuery query, Range range) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<Membership> result = delegate.executeQuery(query, range);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.MEMBERSHIP_QUERY, start, failed);
+        }
+    }
+
+    @Override
+    public QueryResultIterator<User> iterateQuery(UserQuery query, Range range) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            QueryResultIterator<User> result = delegate.iterateQuery(query, range);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.USER_QUERY, start, failed);
+        }
+    }
+
+    @Override
+    public QueryResultIterator<Group> iterateQuery(GroupQuery query, Range range) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            QueryResultIterator<Group> result = delegate.iterateQuery(query, range);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GROUP_QUERY, start, failed);
+        }
+    }
+
+    @Override
+    public QueryResultIterator<Role> iterateQuery(RoleQuery query, Range range) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            QueryResultIterator<Role> result = delegate.iterateQuery(query, range);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.ROLE_QUERY, start, failed);
+        }
+    }
+
+    @Override
+    public QueryResultIterator<Membership> iterateQuery(MembershipQuery query, Range range) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            QueryResultIterator<Membership> result = delegate.iterateQuery(query, range);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.MEMBERSHIP_QUERY, start, failed);
+        }
+    }
+
+    // Attributes
+
+    // User
+
+    @Override
+    public void setAttribute(User user, String name, String[] values) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.setAttribute(user, name, values);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.SET_ATTRIBUTE, start, failed);
+        }
+    }
+
+    @Override
+    public void removeAttribute(User user, String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.removeAttribute(user, name);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.REMOVE_ATTRIBUTE, start, failed);
+        }
+    }
+
+    @Override
+    public String[] getAttributeValues(User user, String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            String[] result = delegate.getAttributeValues(user, name);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_ATTRIBUTE_VALUES, start, failed);
+        }
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(User user) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Map<String, String[]> result = delegate.getAttributes(user);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_ATTRIBUTES, start, failed);
+        }
+    }
+
+    // Group
+
+    @Override
+    public void setAttribute(Group group, String name, String[] values) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.setAttribute(group, name, values);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.SET_ATTRIBUTE, start, failed);
+        }
+    }
+
+    @Override
+    public void removeAttribute(Group group, String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.removeAttribute(group, name);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.REMOVE_ATTRIBUTE, start, failed);
+        }
+    }
+
+    @Override
+    public String[] getAttributeValues(Group group, String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            String[] result = delegate.getAttributeValues(group, name);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_ATTRIBUTE_VALUES, start, failed);
+        }
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Group group) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Map<String, String[]> result = delegate.getAttributes(group);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_ATTRIBUTES, start, failed);
+        }
+    }
+
+    // Role
+
+    @Override
+    public void setAttribute(Role role, String name, String[] values) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.setAttribute(role, name, values);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.SET_ATTRIBUTE, start, failed);
+        }
+    }
+
+    @Override
+    public void removeAttribute(Role role, String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.removeAttribute(role, name);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.REMOVE_ATTRIBUTE, start, failed);
+        }
+    }
+
+    @Override
+    public String[] getAttributeValues(Role role, String name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            String[] result = delegate.getAttributeValues(role, name);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_ATTRIBUTE_VALUES, start, failed);
+        }
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes(Role role) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Map<String, String[]> result = delegate.getAttributes(role);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_ATTRIBUTES, start, failed);
+        }
+    }
+
+    // Credentials
+
+    @Override
+    public void setPasswordHash(User user, String passwordHash) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.setPasswordHash(user, passwordHash);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.SET_PASSWORD_HASH, start, failed);
+        }
+    }
+
+    @Override
+    public String getPasswordHash(User user) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            String result = delegate.getPasswordHash(user);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(IdentityStoreOperation.GET_PASSWORD_HASH, start, failed);
+        }
+    }
+
+    // Enablement and expiration
+
+    @Override
+    public void setEnabled(IdentityType identityType, boolean enabled) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.setEnabled(identityType, enabled);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.SET_ENABLED, start, failed);
+        }
+    }
+
+    @Override
+    public void setExpirationDate(IdentityType identityType, Date expirationDate) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.setExpirationDate(identityType, expirationDate);
+            failed = false;
+        } finally {
+            metrics.record(IdentityStoreOperation.SET_EXPIRATION_DATE, start, failed);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jboss.picketlink.idm.internal.config.CacheConfiguration;
+
+/**
+ * A bounded cache of identity types. Entries live for the configured time to live and are evicted according to the
+ * {@link EvictionPolicy} once the maximum size is reached.
+ * <p/>
+ * Reads and writes do not lock. Eviction is approximate: the entries are visited in the order they were put, as a clock,
+ * and an entry read since the clock last passed it is given another turn instead of being evicted. With the LRU policy
+ * one read is enough to keep an entry for a turn, with the LFU policy each read counts for a turn, up to
+ * {@link #MAX_FREQUENCY}.
+ * <p/>
+ * Values loaded while an invalidation is running must not be cached, otherwise a reader could put back a value the store
+ * just changed. Readers take the {@link #getVersion(Object)} of the key before loading a value and pass it to
+ * {@link #put(Object, Object, Object, long)}, which ignores the value if the key was invalidated in between. Keys share
+ * their version with the other keys of the same stripe, so an invalidation may cost an unrelated reader its put, never
+ * the other way around.
+ * <p/>
+ * The cached values are handed out as they were put, the same instance to every reader. Callers must treat them as read
+ * only: a change made to a cached instance without going through the store is seen by the other readers, and is not
+ * invalidated.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class IdentityCache<K, V> {
+
+    /**
+     * Number of turns reads can buy an entry with the LFU policy
+     */
+    public static final int MAX_FREQUENCY = 15;
+
+    private static final int VERSION_STRIPES = 64;
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final EvictionPolicy evictionPolicy;
+
+    private final ConcurrentMap<K, CacheEntry<K, V>> entries = new ConcurrentHashMap<K, CacheEntry<K, V>>();
+
+    // Cache key of the entry each alias was put with, so that an entry can be invalidated by the key of its value
+    private final ConcurrentMap<K, K> aliases = new ConcurrentHashMap<K, K>();
+
+    // The clock, in the order the entries were put. Entries replaced or invalidated are dropped when the clock reaches them
+    private final ConcurrentLinkedQueue<CacheEntry<K, V>> clock = new ConcurrentLinkedQueue<CacheEntry<K, V>>();
+    private final AtomicInteger clockSize = new AtomicInteger();
+
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public IdentityCache(CacheConfiguration configuration) {
+        this.maxSize = configuration.getMaxSize();
+        this.timeToLive = configuration.getTimeToLive();
+        this.evictionPolicy = configuration.getEvictionPolicy();
+    }
+
+    /**
+     * Return the cached value, or null if there is none or it expired
+     *
+     * @param key
+     * @return
+     */
+    public V get(K key) {
+        CacheEntry<K, V> entry = key != null ? entries.get(key) : null;
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            if (remove(entry)) {
+                expirations.incrementAndGet();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.touch(evictionPolicy == EvictionPolicy.LFU ? MAX_FREQUENCY : 1);
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Version of the key to pass to {@link #put(Object, Object, Object, long)}, taken before loading the value from the
+     * store
+     *
+     * @param key
+     * @return
+     */
+    public long getVersion(K key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * Cache the value unless the key was invalidated since the given version was taken
+     *
+     * @param key
+     * @param value
+     * @param version
+     */
+    public void put(K key, V value, long version) {
+        put(key, value, null, version);
+    }
+
+    /**
+     * Cache the value unless the key was invalidated since the given version was taken. Invalidating the alias, usually the
+     * key of the value itself, invalidates the entry as well.
+     *
+     * @param key
+     * @param value
+     * @param alias
+     * @param version
+     */
+    public void put(K key, V value, K alias, long version) {
+        if (maxSize <= 0 || key == null || value == null || version != getVersion(key)) {
+            return;
+        }
+        if (!entries.containsKey(key)) {
+            makeRoom();
+        }
+        long expiresAt = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE;
+        CacheEntry<K, V> entry = new CacheEntry<K, V>(key, value, alias, expiresAt);
+        CacheEntry<K, V> previous = entries.put(key, entry);
+        if (previous != null) {
+            unalias(previous);
+        }
+        if (alias != null && !alias.equals(key)) {
+            aliases.put(alias, key);
+        }
+        clock.offer(entry);
+        clockSize.incrementAndGet();
+
+        // An invalidation may have run since the version was checked, it bumps the version before removing the entries
+        if (version != getVersion(key)) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Remove the value cached with the given key, or with the given alias
+     *
+     * @param key
+     */
+    public void invalidate(K key) {
+        if (key == null) {
+            return;
+        }
+        versions.incrementAndGet(stripe(key));
+        CacheEntry<K, V> entry = entries.get(key);
+        if (entry != null && remove(entry)) {
+            invalidations.incrementAndGet();
+        }
+        K target = aliases.remove(key);
+        if (target != null) {
+            versions.incrementAndGet(stripe(target));
+            entry = entries.get(target);
+            if (entry != null && key.equals(entry.alias) && remove(entry)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
+        for (CacheEntry<K, V> entry : entries.values()) {
+            if (remove(entry)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public CacheStatistics getStatistics() {
+        return new CacheStatistics(hits.get(), misses.get(), evictions.get(), expirations.get(), invalidations.get(),
+                entries.size());
+    }
+
+    /**
+     * Turn the clock until there is room for a new entry, dropping on the way the entries replaced or invalidated since they
+     * were put
+     */
+    private void makeRoom() {
+        while (entries.size() >= maxSize || clockSize.get() > 2 * maxSize) {
+            CacheEntry<K, V> entry = clock.poll();
+            if (entry == null) {
+                return;
+            }
+            clockSize.decrementAndGet();
+            if (entries.get(entry.key) != entry) {
+                continue;
+            }
+            if (entries.size() >= maxSize && !entry.age()) {
+                if (remove(entry)) {
+                    evictions.incrementAndGet();
+                }
+            } else {
+                clock.offer(entry);
+                clockSize.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean remove(CacheEntry<K, V> entry) {
+        if (entries.remove(entry.key, entry)) {
+            unalias(entry);
+            return true;
+        }
+        return false;
+    }
+
+    private void unalias(CacheEntry<K, V> entry) {
+        if (entry.alias != null) {
+            aliases.remove(entry.alias, entry.key);
+        }
+    }
+
+    private static int stripe(Object key) {
+        int hash = key != null ? key.hashCode() : 0;
+        return (hash ^ (hash >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    private static class CacheEntry<K, V> {
+        private final K key;
+        private final V value;
+        private final K alias;
+        private final long expiresAt;
+
+        // Turns left before the clock evicts the entry
+        private final AtomicInteger turns = new AtomicInteger();
+
+        CacheEntry(K key, V value, K alias, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.alias = alias;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        void touch(int maxTurns) {
+            int current = turns.get();
+            if (current < maxTurns) {
+                turns.compareAndSet(current, current + 1);
+            }
+        }
+
+        /**
+         * Use up a turn
+         *
+         * @return false if there was none left
+         */
+        boolean age() {
+            int current;
+            do {
+                current = turns.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!turns.compareAndSet(current, current - 1));
+            return true;
+        }
+    }
+}
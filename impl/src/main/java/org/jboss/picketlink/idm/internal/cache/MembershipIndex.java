@@ -0,0 +1,375 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jboss.picketlink.idm.internal.DefaultMembershipQuery;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+
+/**
+ * In memory index of the roles granted by the memberships of a store, answering role checks without going to the store.
+ * <p/>
+ * Roles, users and groups are interned to small integers. Each member (an user within a group, an user without a group or
+ * a group) has a {@link BitSet} of the ids of its roles, so a role check is a map lookup followed by a bit test.
+ * <p/>
+ * The index is loaded once from the store and then kept up to date with {@link #add(Membership)} and
+ * {@link #remove(Role, IdentityType, Group)}. Changes made to the store by other means are not seen until it is reloaded.
+ * A reload builds a new index aside, so role checks keep being answered by the current one until it is replaced, and the
+ * changes made meanwhile are replayed onto the new index.
+ */
+public class MembershipIndex {
+    // Group id used for the memberships without a group
+    private static final int NO_GROUP = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile Members members = new Members();
+
+    // Changes made while a reload reads the store, replayed onto the new index before it replaces the current one
+    private List<Change> pending;
+
+    /**
+     * Replace the content of the index with the memberships of the store. The memberships are read without holding the
+     * lock. The roles granted or revoked meanwhile are recorded and applied to the new index before it replaces the
+     * current one, so they are not lost whether or not the store returned them. Reloads are serialized.
+     *
+     * @param store
+     */
+    public synchronized void load(IdentityStore store) {
+        List<Change> changes = new ArrayList<Change>();
+        lock.writeLock().lock();
+        try {
+            pending = changes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Members loaded = new Members();
+        boolean complete = false;
+        try {
+            QueryResultIterator<Membership> iterator = store.iterateQuery(new DefaultMembershipQuery(store), null);
+            try {
+                while (iterator.hasNext()) {
+                    loaded.add(iterator.next());
+                }
+            } finally {
+                iterator.close();
+            }
+            complete = true;
+        } finally {
+            lock.writeLock().lock();
+            try {
+                pending = null;
+                if (complete) {
+                    for (Change change : changes) {
+                        change.apply(loaded);
+                    }
+                    this.members = loaded;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Index a membership. Memberships without a role are ignored.
+     *
+     * @param membership
+     */
+    public void add(final Membership membership) {
+        apply(new Change() {
+            @Override
+            public void apply(Members members) {
+                members.add(membership);
+            }
+        });
+    }
+
+    /**
+     * Remove the role granted to the user or group, within the given group if not null
+     *
+     * @param role
+     * @param identityType
+     * @param group
+     */
+    public void remove(final Role role, final IdentityType identityType, final Group group) {
+        apply(new Change() {
+            @Override
+            public void apply(Members members) {
+                members.remove(role, identityType, group);
+            }
+        });
+    }
+
+    /**
+     * Remove every membership of the identity type, which may be an user, a group or a role
+     *
+     * @param identityType
+     */
+    public void remove(final IdentityType identityType) {
+        apply(new Change() {
+            @Override
+            public void apply(Members members) {
+                members.remove(identityType);
+            }
+        });
+    }
+
+    /**
+     * Check if the role is granted to the user or group, within the given group if not null
+     *
+     * @param role
+     * @param identityType
+     * @param group
+     * @return
+     */
+    public boolean hasRole(Role role, IdentityType identityType, Group group) {
+        lock.readLock().lock();
+        try {
+            Members members = this.members;
+            Integer roleId = members.roleIds.get(keyOf(role));
+            if (roleId == null) {
+                return false;
+            }
+            BitSet memberRoles = members.find(identityType, group);
+            return memberRoles != null && memberRoles.get(roleId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the roles granted to the user or group, within the given group if not null
+     *
+     * @param identityType
+     * @param group
+     * @return
+     */
+    public List<Role> getRoles(IdentityType identityType, Group group) {
+        lock.readLock().lock();
+        try {
+            Members members = this.members;
+            List<Role> result = new ArrayList<Role>();
+            BitSet memberRoles = members.find(identityType, group);
+            if (memberRoles != null) {
+                for (int i = memberRoles.nextSetBit(0); i >= 0; i = memberRoles.nextSetBit(i + 1)) {
+                    result.add(members.roles.get(i));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void apply(Change change) {
+        lock.writeLock().lock();
+        try {
+            change.apply(members);
+            if (pending != null) {
+                pending.add(change);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static Long key(int userId, int groupId) {
+        return ((long) userId << 32) | (groupId & 0xffffffffL);
+    }
+
+    // LDAP identity types have no key, they are identified by id (users) or name (groups and roles)
+    private static String keyOf(IdentityType identityType) {
+        if (identityType.getKey() != null) {
+            return identityType.getKey();
+        }
+        if (identityType instanceof User) {
+            return ((User) identityType).getId();
+        }
+        if (identityType instanceof Group) {
+            return ((Group) identityType).getName();
+        }
+        return ((Role) identityType).getName();
+    }
+
+    /**
+     * A change of the index, applied to the current members and, during a reload, to the loaded ones
+     */
+    private interface Change {
+        void apply(Members members);
+    }
+
+    /**
+     * The interned identity types and the roles of the members, replaced as a whole by a reload
+     */
+    private static class Members {
+        // Ids are never reused, so a removed identity type can not be confused with a new one
+        private final Map<String, Integer> roleIds = new HashMap<String, Integer>();
+        private final List<Role> roles = new ArrayList<Role>();
+        private final Map<String, Integer> userIds = new HashMap<String, Integer>();
+        private int nextUserId;
+        private final Map<String, Integer> groupIds = new HashMap<String, Integer>();
+        private int nextGroupId;
+
+        // Roles of an user, by user and group id
+        private final Map<Long, BitSet> userRoles = new HashMap<Long, BitSet>();
+
+        // Roles granted to every member of a group, by group id
+        private final Map<Integer, BitSet> groupRoles = new HashMap<Integer, BitSet>();
+
+        void add(Membership membership) {
+            Role role = membership.getRole();
+            if (role == null || (membership.getUser() == null && membership.getGroup() == null)) {
+                return;
+            }
+            Integer roleId = roleIds.get(keyOf(role));
+            if (roleId == null) {
+                roleId = roles.size();
+                roleIds.put(keyOf(role), roleId);
+                roles.add(role);
+            }
+
+            BitSet memberRoles;
+            if (membership.getUser() != null) {
+                int userId = internUser(membership.getUser());
+                int groupId = membership.getGroup() != null ? internGroup(membership.getGroup()) : NO_GROUP;
+                Long key = key(userId, groupId);
+                memberRoles = userRoles.get(key);
+                if (memberRoles == null) {
+                    memberRoles = new BitSet();
+                    userRoles.put(key, memberRoles);
+                }
+            } else {
+                Integer groupId = internGroup(membership.getGroup());
+                memberRoles = groupRoles.get(groupId);
+                if (memberRoles == null) {
+                    memberRoles = new BitSet();
+                    groupRoles.put(groupId, memberRoles);
+                }
+            }
+            memberRoles.set(roleId);
+        }
+
+        void remove(Role role, IdentityType identityType, Group group) {
+            Integer roleId = roleIds.get(keyOf(role));
+            BitSet memberRoles = roleId != null ? find(identityType, group) : null;
+            if (memberRoles != null) {
+                memberRoles.clear(roleId);
+            }
+        }
+
+        void remove(IdentityType identityType) {
+            if (identityType instanceof Role) {
+                Integer roleId = roleIds.remove(keyOf(identityType));
+                if (roleId != null) {
+                    roles.set(roleId, null);
+                    for (BitSet memberRoles : userRoles.values()) {
+                        memberRoles.clear(roleId);
+                    }
+                    for (BitSet memberRoles : groupRoles.values()) {
+                        memberRoles.clear(roleId);
+                    }
+                }
+            } else if (identityType instanceof Group) {
+                Integer groupId = groupIds.remove(keyOf(identityType));
+                if (groupId != null) {
+                    groupRoles.remove(groupId);
+                    removeUserRoles(groupId, false);
+                }
+            } else if (identityType instanceof User) {
+                Integer userId = userIds.remove(keyOf(identityType));
+                if (userId != null) {
+                    removeUserRoles(userId, true);
+                }
+            }
+        }
+
+        BitSet find(IdentityType identityType, Group group) {
+            if (identityType instanceof User) {
+                Integer userId = userIds.get(keyOf(identityType));
+                if (userId == null) {
+                    return null;
+                }
+                int groupId = NO_GROUP;
+                if (group != null) {
+                    Integer id = groupIds.get(keyOf(group));
+                    if (id == null) {
+                        return null;
+                    }
+                    groupId = id;
+                }
+                return userRoles.get(key(userId, groupId));
+            } else if (identityType instanceof Group) {
+                if (group != null && !keyOf(group).equals(keyOf(identityType))) {
+                    return null;
+                }
+                Integer groupId = groupIds.get(keyOf(identityType));
+                return groupId != null ? groupRoles.get(groupId) : null;
+            }
+            return null;
+        }
+
+        // Linear in the number of users within groups, removals are expected to be rare
+        void removeUserRoles(int id, boolean byUser) {
+            Iterator<Long> keys = userRoles.keySet().iterator();
+            while (keys.hasNext()) {
+                long key = keys.next();
+                if ((byUser ? (int) (key >> 32) : (int) key) == id) {
+                    keys.remove();
+                }
+            }
+        }
+
+        private int internUser(User user) {
+            Integer id = userIds.get(keyOf(user));
+            if (id == null) {
+                id = nextUserId++;
+                userIds.put(keyOf(user), id);
+            }
+            return id;
+        }
+
+        private int internGroup(Group group) {
+            Integer id = groupIds.get(keyOf(group));
+            if (id == null) {
+                id = nextGroupId++;
+                groupIds.put(keyOf(group), id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.config;
+
+import org.jboss.picketlink.idm.internal.CachingIdentityStore;
+import org.jboss.picketlink.idm.internal.cache.EvictionPolicy;
+
+/**
+ * Configuration of the caches kept by a {@link CachingIdentityStore}. Each identity type (users, groups and roles) has its
+ * own cache with these settings.
+ */
+public class CacheConfiguration {
+    private int maxSize = 10000;
+    private long timeToLive = 5 * 60 * 1000;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+    /**
+     * Maximum number of entries of each cache. Defaults to 10000, 0 disables caching.
+     */
+    public CacheConfiguration setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Time in milliseconds an entry is kept after being loaded. Defaults to 5 minutes, 0 keeps entries until they are evicted
+     * or invalidated.
+     */
+    public CacheConfiguration setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * Policy used to evict entries once the maximum size is reached. Defaults to {@link EvictionPolicy#LRU}.
+     */
+    public CacheConfiguration setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+}
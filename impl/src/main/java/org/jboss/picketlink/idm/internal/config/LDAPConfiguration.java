@@ -39,6 +39,12 @@ public class LDAPConfiguration extends IdentityStoreConfiguration {
     private String protocol;
     private String bindDN;
     private String bindCredential;
+    private int poolMinSize = 1;
+    private int poolMaxSize = 2 * Runtime.getRuntime().availableProcessors();
+    private long poolMaxIdleTime = 5 * 60 * 1000;
+    private long poolMaxWait = 30 * 1000;
+    private boolean poolValidateOnBorrow = true;
+    private long poolValidationInterval = 10 * 1000;
 
     public LDAPConfiguration setLdapURL(String ldapURL) {
         this.ldapURL = ldapURL;
@@ -85,6 +91,55 @@ public class LDAPConfiguration extends IdentityStoreConfiguration {
         return this;
     }
 
+    /**
+     * Minimum number of connections kept open by the pool. Defaults to 1.
+     */
+    public LDAPConfiguration setPoolMinSize(int poolMinSize) {
+        this.poolMinSize = poolMinSize;
+        return this;
+    }
+
+    /**
+     * Maximum number of connections in use at the same time. Defaults to twice the number of processors.
+     */
+    public LDAPConfiguration setPoolMaxSize(int poolMaxSize) {
+        this.poolMaxSize = poolMaxSize;
+        return this;
+    }
+
+    /**
+     * Time in milliseconds after which an idle connection above the minimum size is closed. Defaults to 5 minutes.
+     */
+    public LDAPConfiguration setPoolMaxIdleTime(long poolMaxIdleTime) {
+        this.poolMaxIdleTime = poolMaxIdleTime;
+        return this;
+    }
+
+    /**
+     * Time in milliseconds an operation waits for a connection when all of them are in use. Defaults to 30 seconds.
+     */
+    public LDAPConfiguration setPoolMaxWait(long poolMaxWait) {
+        this.poolMaxWait = poolMaxWait;
+        return this;
+    }
+
+    /**
+     * Whether idle connections are checked with a root DSE read before being handed out. Defaults to true.
+     */
+    public LDAPConfiguration setPoolValidateOnBorrow(boolean poolValidateOnBorrow) {
+        this.poolValidateOnBorrow = poolValidateOnBorrow;
+        return this;
+    }
+
+    /**
+     * Time in milliseconds a connection stays idle before it is validated on borrow, so that connections reused right away
+     * do not cost an extra round trip. Defaults to 10 seconds, 0 validates on every borrow.
+     */
+    public LDAPConfiguration setPoolValidationInterval(long poolValidationInterval) {
+        this.poolValidationInterval = poolValidationInterval;
+        return this;
+    }
+
     public String getLdapURL() {
         return ldapURL;
     }
@@ -120,4 +175,28 @@ public class LDAPConfiguration extends IdentityStoreConfiguration {
     public String getBindCredential() {
         return bindCredential;
     }
+
+    public int getPoolMinSize() {
+        return poolMinSize;
+    }
+
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    public long getPoolMaxIdleTime() {
+        return poolMaxIdleTime;
+    }
+
+    public long getPoolMaxWait() {
+        return poolMaxWait;
+    }
+
+    public boolean isPoolValidateOnBorrow() {
+        return poolValidateOnBorrow;
+    }
+
+    public long getPoolValidationInterval() {
+        return poolValidationInterval;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,214 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.credential;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.picketlink.idm.internal.util.Base64;
+
+/**
+ * Encoding of the hashes shared by the {@link PasswordHasher} implementations:
+ * <code>{SCHEME}parameter$...$salt$hash</code>, the salt and the hash in Base64.
+ */
+public abstract class AbstractPasswordHasher implements PasswordHasher {
+
+    protected static final int DEFAULT_SALT_LENGTH = 16;
+    protected static final int DEFAULT_HASH_LENGTH = 32;
+
+    // Shorter hashes are refused, since a prefix of a hash is the hash of the same password with a shorter length
+    private static final int MIN_HASH_LENGTH = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HMAC_SHA256 = "HmacSHA256";
+    private static final char SEPARATOR = '$';
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Hash the password bytes with the salt and the parameters of this hasher
+     */
+    protected abstract byte[] hash(byte[] password, byte[] salt, long[] parameters, int length);
+
+    /**
+     * @return the parameters written in the hashes, and compared by {@link #needsRehash(String)}
+     */
+    protected abstract long[] getParameters();
+
+    /**
+     * Check the parameters read from a hash, which may not be the current ones
+     *
+     * @return false if the parameters are out of the range accepted by this hasher
+     */
+    protected abstract boolean isValid(long[] parameters);
+
+    @Override
+    public String hash(char[] password) {
+        byte[] salt = new byte[DEFAULT_SALT_LENGTH];
+        random.nextBytes(salt);
+        long[] parameters = getParameters();
+        byte[] bytes = toBytes(password);
+        try {
+            byte[] hash = hash(bytes, salt, parameters, DEFAULT_HASH_LENGTH);
+            return encode(parameters, salt, hash);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    @Override
+    public boolean verify(char[] password, String passwordHash) {
+        ParsedHash parsed = parse(passwordHash);
+        if (parsed == null) {
+            return false;
+        }
+        byte[] bytes = toBytes(password);
+        try {
+            return MessageDigest.isEqual(parsed.hash, hash(bytes, parsed.salt, parsed.parameters, parsed.hash.length));
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    @Override
+    public boolean needsRehash(String passwordHash) {
+        ParsedHash parsed = parse(passwordHash);
+        return parsed == null || !Arrays.equals(parsed.parameters, getParameters())
+                || parsed.salt.length != DEFAULT_SALT_LENGTH || parsed.hash.length != DEFAULT_HASH_LENGTH;
+    }
+
+    private boolean accepts(String passwordHash) {
+        return passwordHash != null && passwordHash.startsWith(prefix());
+    }
+
+    /**
+     * PBKDF2 with HMAC-SHA256 as defined by RFC 2898
+     */
+    protected static byte[] pbkdf2(byte[] password, byte[] salt, int iterations, int length) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_SHA256);
+            // HMAC pads the key with zeros, so an empty key is the same as a single zero byte, which the key spec accepts
+            mac.init(new SecretKeySpec(password.length > 0 ? password : new byte[1], HMAC_SHA256));
+            int macLength = mac.getMacLength();
+            byte[] result = new byte[length];
+            byte[] u = new byte[macLength];
+            byte[] t = new byte[macLength];
+            byte[] index = new byte[4];
+            for (int block = 1, offset = 0; offset < length; block++, offset += macLength) {
+                index[0] = (byte) (block >>> 24);
+                index[1] = (byte) (block >>> 16);
+                index[2] = (byte) (block >>> 8);
+                index[3] = (byte) block;
+                mac.update(salt);
+                mac.update(index);
+                mac.doFinal(u, 0);
+                System.arraycopy(u, 0, t, 0, macLength);
+                for (int i = 1; i < iterations; i++) {
+                    mac.update(u);
+                    mac.doFinal(u, 0);
+                    for (int j = 0; j < macLength; j++) {
+                        t[j] ^= u[j];
+                    }
+                }
+                System.arraycopy(t, 0, result, offset, Math.min(macLength, length - offset));
+            }
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String prefix() {
+        return "{" + getScheme() + "}";
+    }
+
+    private String encode(long[] parameters, byte[] salt, byte[] hash) {
+        StringBuilder builder = new StringBuilder(prefix());
+        for (long parameter : parameters) {
+            builder.append(parameter).append(SEPARATOR);
+        }
+        builder.append(Base64.encodeBytes(salt, Base64.DONT_BREAK_LINES)).append(SEPARATOR);
+        builder.append(Base64.encodeBytes(hash, Base64.DONT_BREAK_LINES));
+        return builder.toString();
+    }
+
+    private ParsedHash parse(String passwordHash) {
+        if (!accepts(passwordHash)) {
+            return null;
+        }
+        String[] fields = passwordHash.substring(prefix().length()).split("\\$", -1);
+        int count = getParameters().length;
+        if (fields.length != count + 2) {
+            return null;
+        }
+        ParsedHash parsed = new ParsedHash();
+        parsed.parameters = new long[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                parsed.parameters[i] = Long.parseLong(fields[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        parsed.salt = decode(fields[count]);
+        parsed.hash = decode(fields[count + 1]);
+        if (!isValid(parsed.parameters) || parsed.salt == null || parsed.hash == null
+                || parsed.hash.length < MIN_HASH_LENGTH) {
+            return null;
+        }
+        return parsed;
+    }
+
+    // Decoded without the gzip detection of Base64.decode(String), which salts could trigger
+    private static byte[] decode(String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        try {
+            return Base64.decode(bytes, 0, bytes.length);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
+    private static byte[] toBytes(char[] password) {
+        ByteBuffer buffer = UTF8.encode(CharBuffer.wrap(password));
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        if (buffer.hasArray()) {
+            Arrays.fill(buffer.array(), (byte) 0);
+        }
+        return bytes;
+    }
+
+    private static class ParsedHash {
+        private long[] parameters;
+        private byte[] salt;
+        private byte[] hash;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.credential;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.picketlink.idm.event.IdentityEvent;
+import org.jboss.picketlink.idm.event.IdentityEventListener;
+import org.jboss.picketlink.idm.event.OverflowEvent;
+import org.jboss.picketlink.idm.event.UserEvent;
+import org.jboss.picketlink.idm.internal.cache.CacheStatistics;
+import org.jboss.picketlink.idm.internal.cache.IdentityCache;
+import org.jboss.picketlink.idm.internal.config.CacheConfiguration;
+
+/**
+ * Short lived cache of the passwords recently found to be right, so that users logging in again and again within the time
+ * to live are not checked against the store and the expensive hash each time.
+ * <p/>
+ * Neither the passwords nor their stored hashes are kept: each user has an HMAC of the password, keyed with a random key
+ * made by the cache and never written anywhere. Checking a wrong password against it takes the same time as a right one.
+ * <p/>
+ * Entries are invalidated by the identity manager when the password, the enablement or the expiration of the user change,
+ * and by the {@link UserEvent}s of changes made by other means when the cache is registered as a listener.
+ */
+public class AuthenticationCache implements IdentityEventListener {
+
+    public static final long DEFAULT_TIME_TO_LIVE = 60 * 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    private final IdentityCache<String, byte[]> entries;
+    private final SecretKeySpec key;
+
+    /**
+     * Cache of 10000 users at most, kept for {@link #DEFAULT_TIME_TO_LIVE}
+     */
+    public AuthenticationCache() {
+        this(new CacheConfiguration().setTimeToLive(DEFAULT_TIME_TO_LIVE));
+    }
+
+    public AuthenticationCache(CacheConfiguration configuration) {
+        this.entries = new IdentityCache<String, byte[]>(configuration);
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, HMAC_SHA256);
+    }
+
+    /**
+     * Version to pass to {@link #put(String, String, long)}, taken before checking the password
+     *
+     * @param name the name the user is loaded by
+     */
+    public long getVersion(String name) {
+        return entries.getVersion(name);
+    }
+
+    /**
+     * @param name the name the user is loaded by
+     * @param password
+     * @return true if the password was found to be right within the time to live
+     */
+    public boolean contains(String name, String password) {
+        byte[] digest = entries.get(name);
+        return digest != null && password != null && MessageDigest.isEqual(digest, digest(name, password));
+    }
+
+    /**
+     * Remember a right password, unless the user was invalidated since the given version was taken
+     *
+     * @param name
+     * @param password
+     * @param version
+     */
+    public void put(String name, String password, long version) {
+        entries.put(name, digest(name, password), version);
+    }
+
+    public void invalidate(String name) {
+        entries.invalidate(name);
+    }
+
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    public CacheStatistics getStatistics() {
+        return entries.getStatistics();
+    }
+
+    @Override
+    public void onEvents(List<IdentityEvent> events) {
+        for (IdentityEvent event : events) {
+            if (event instanceof UserEvent) {
+                invalidate(((UserEvent) event).getName());
+            } else if (event instanceof OverflowEvent) {
+                invalidateAll();
+            }
+        }
+    }
+
+    private byte[] digest(String name, String password) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_SHA256);
+            mac.init(key);
+            mac.update(name.getBytes(UTF8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(UTF8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.credential;
+
+/**
+ * {@link PasswordHasher} using PBKDF2 with HMAC-SHA256. The cost is the number of iterations, which only makes guessing
+ * slower in time: see {@link ScryptPasswordHasher} for a hash that is also expensive in memory.
+ * <p/>
+ * Hashes are encoded as <code>{PBKDF2-SHA256}iterations$salt$hash</code>.
+ */
+public class PBKDF2PasswordHasher extends AbstractPasswordHasher {
+
+    public static final String SCHEME = "PBKDF2-SHA256";
+    public static final int DEFAULT_ITERATIONS = 600000;
+
+    private static final int MAX_ITERATIONS = 100000000;
+
+    private final int iterations;
+
+    public PBKDF2PasswordHasher() {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    public PBKDF2PasswordHasher(int iterations) {
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new RuntimeException("Invalid number of iterations:" + iterations);
+        }
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    protected byte[] hash(byte[] password, byte[] salt, long[] parameters, int length) {
+        return pbkdf2(password, salt, (int) parameters[0], length);
+    }
+
+    @Override
+    protected long[] getParameters() {
+        return new long[] { iterations };
+    }
+
+    @Override
+    protected boolean isValid(long[] parameters) {
+        return parameters[0] >= 1 && parameters[0] <= MAX_ITERATIONS;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.credential;
+
+/**
+ * Hashes passwords with a random salt and checks passwords against the hashes. A hash is encoded as a string holding the
+ * scheme in braces, the cost parameters, the salt and the hash itself, so that it can be checked after the parameters were
+ * changed and stored as the userPassword of a directory entry.
+ */
+public interface PasswordHasher {
+
+    /**
+     * @return the scheme starting the hashes, such as PBKDF2-SHA256
+     */
+    String getScheme();
+
+    /**
+     * @param password
+     * @return the encoded hash of the password with a new salt
+     */
+    String hash(char[] password);
+
+    /**
+     * Check the password against a hash of this scheme. The time taken does not depend on how much of the hash matches.
+     *
+     * @param password
+     * @param passwordHash
+     * @return false if the password does not match or the hash is not a valid hash of this scheme
+     */
+    boolean verify(char[] password, String passwordHash);
+
+    /**
+     * @param passwordHash
+     * @return true if the hash was made with other parameters than the current ones of this hasher
+     */
+    boolean needsRehash(String passwordHash);
+}
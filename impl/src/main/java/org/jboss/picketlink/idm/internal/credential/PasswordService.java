@@ -0,0 +1,209 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.credential;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes and checks passwords on a dedicated pool of threads with a bounded queue, so that a burst of logins keeps a fixed
+ * number of threads busy hashing instead of starving the other work. Once the queue is full, new requests are rejected with a
+ * RuntimeException rather than waiting.
+ * <p/>
+ * New hashes are made by the current {@link PasswordHasher}. Hashes of the other registered hashers, or of the current one
+ * with other parameters, are still checked, and {@link #needsRehash(String)} tells the caller to replace them once the
+ * password is known to be right.
+ */
+public class PasswordService {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private final PasswordHasher hasher;
+    private final List<PasswordHasher> hashers = new CopyOnWriteArrayList<PasswordHasher>();
+    private final ThreadPoolExecutor executor;
+    private volatile boolean rehashOnLogin = true;
+    private volatile String missingPasswordHash;
+
+    /**
+     * Service using a thread per processor
+     *
+     * @param hasher the hasher of the new hashes
+     */
+    public PasswordService(PasswordHasher hasher) {
+        this(hasher, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param hasher the hasher of the new hashes
+     * @param threads the number of passwords hashed at the same time
+     * @param queueCapacity the number of requests waiting for a thread before new ones are rejected
+     */
+    public PasswordService(PasswordHasher hasher, int threads, int queueCapacity) {
+        if (hasher == null) {
+            throw new RuntimeException("Password hasher is null");
+        }
+        this.hasher = hasher;
+        this.hashers.add(hasher);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "picketlink-idm-password-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    public PasswordHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Accept the hashes of another scheme, for instance the one used before switching to the current hasher
+     *
+     * @param otherHasher
+     */
+    public void addHasher(PasswordHasher otherHasher) {
+        hashers.add(otherHasher);
+    }
+
+    public boolean isRehashOnLogin() {
+        return rehashOnLogin;
+    }
+
+    /**
+     * @param rehashOnLogin whether a right password checked against an outdated hash should be hashed again, true by default
+     */
+    public void setRehashOnLogin(boolean rehashOnLogin) {
+        this.rehashOnLogin = rehashOnLogin;
+    }
+
+    /**
+     * @return the number of requests waiting for a thread
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size();
+    }
+
+    public String hash(final String password) {
+        return await(submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return hasher.hash(password.toCharArray());
+            }
+        }));
+    }
+
+    /**
+     * Check a password. A missing hash is checked like any other one, and never matches, so that users without a password, or
+     * missing users, cannot be told apart by the time taken.
+     *
+     * @param password
+     * @param passwordHash the stored hash, or null
+     * @return
+     */
+    public boolean verify(String password, String passwordHash) {
+        return await(verifyAsync(password, passwordHash));
+    }
+
+    public Future<Boolean> verifyAsync(final String password, final String passwordHash) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (passwordHash == null || password == null) {
+                    hasher.verify(new char[0], getMissingPasswordHash());
+                    return false;
+                }
+                for (PasswordHasher candidate : hashers) {
+                    if (accepts(candidate, passwordHash)) {
+                        return candidate.verify(password.toCharArray(), passwordHash);
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * @param passwordHash
+     * @return true if the hash is not a hash of the current hasher with its current parameters
+     */
+    public boolean needsRehash(String passwordHash) {
+        return passwordHash == null || !accepts(hasher, passwordHash) || hasher.needsRehash(passwordHash);
+    }
+
+    /**
+     * Stop the threads once the pending requests are done
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private boolean accepts(PasswordHasher candidate, String passwordHash) {
+        return passwordHash.startsWith("{" + candidate.getScheme() + "}");
+    }
+
+    // Made on first use, a hash of the current hasher costs as much to check as the stored ones
+    private String getMissingPasswordHash() {
+        String missing = missingPasswordHash;
+        if (missing == null) {
+            missing = hasher.hash(new char[0]);
+            missingPasswordHash = missing;
+        }
+        return missing;
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new RuntimeException("Too many password requests pending", e);
+        }
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the password check", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.credential;
+
+/**
+ * Memory-hard {@link PasswordHasher} using scrypt as defined by RFC 7914. Each hash needs <code>128 * r * N</code> bytes of
+ * memory, 16 MiB with the default parameters, which makes guessing on dedicated hardware expensive. The memory is allocated
+ * by the thread hashing, so the number of concurrent hashes should be bounded, as the {@link PasswordService} does.
+ * <p/>
+ * Hashes are encoded as <code>{SCRYPT}N$r$p$salt$hash</code>.
+ */
+public class ScryptPasswordHasher extends AbstractPasswordHasher {
+
+    public static final String SCHEME = "SCRYPT";
+    public static final int DEFAULT_COST = 1 << 14;
+    public static final int DEFAULT_BLOCK_SIZE = 8;
+    public static final int DEFAULT_PARALLELIZATION = 1;
+
+    // 1 GiB of memory at most, whatever the hash being checked asks for
+    private static final long MAX_MEMORY = 1L << 30;
+
+    private final int cost;
+    private final int blockSize;
+    private final int parallelization;
+
+    public ScryptPasswordHasher() {
+        this(DEFAULT_COST, DEFAULT_BLOCK_SIZE, DEFAULT_PARALLELIZATION);
+    }
+
+    /**
+     * @param cost the CPU and memory cost N, a power of two
+     * @param blockSize the block size r
+     * @param parallelization the number of blocks p mixed one after the other
+     */
+    public ScryptPasswordHasher(int cost, int blockSize, int parallelization) {
+        if (!isValid(new long[] { cost, blockSize, parallelization })) {
+            throw new RuntimeException("Invalid scrypt parameters:" + cost + "," + blockSize + "," + parallelization);
+        }
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelization = parallelization;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    protected byte[] hash(byte[] password, byte[] salt, long[] parameters, int length) {
+        return scrypt(password, salt, (int) parameters[0], (int) parameters[1], (int) parameters[2], length);
+    }
+
+    @Override
+    protected long[] getParameters() {
+        return new long[] { cost, blockSize, parallelization };
+    }
+
+    @Override
+    protected boolean isValid(long[] parameters) {
+        long n = parameters[0];
+        long r = parameters[1];
+        long p = parameters[2];
+        return n > 1 && (n & (n - 1)) == 0 && r >= 1 && p >= 1 && r * p < (1 << 30) && 128 * r * n <= MAX_MEMORY
+                && 128 * r * p <= Integer.MAX_VALUE;
+    }
+
+    public static byte[] scrypt(byte[] password, byte[] salt, int n, int r, int p, int length) {
+        int blockLength = 128 * r;
+        byte[] b = pbkdf2(password, salt, 1, p * blockLength);
+        int[] x = new int[32 * r];
+        int[] y = new int[32 * r];
+        int[] v = new int[32 * r * n];
+        for (int i = 0; i < p; i++) {
+            roMix(b, i * blockLength, r, n, x, y, v);
+        }
+        return pbkdf2(password, b, 1, length);
+    }
+
+    private static void roMix(byte[] b, int offset, int r, int n, int[] x, int[] y, int[] v) {
+        int words = 32 * r;
+        for (int i = 0; i < words; i++) {
+            int k = offset + i * 4;
+            x[i] = (b[k] & 0xff) | (b[k + 1] & 0xff) << 8 | (b[k + 2] & 0xff) << 16 | (b[k + 3] & 0xff) << 24;
+        }
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(x, 0, v, i * words, words);
+            blockMix(x, y, r);
+        }
+        for (int i = 0; i < n; i++) {
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+            for (int k = 0; k < words; k++) {
+                x[k] ^= v[j * words + k];
+            }
+            blockMix(x, y, r);
+        }
+        for (int i = 0; i < words; i++) {
+            int k = offset + i * 4;
+            b[k] = (byte) x[i];
+            b[k + 1] = (byte) (x[i] >>> 8);
+            b[k + 2] = (byte) (x[i] >>> 16);
+            b[k + 3] = (byte) (x[i] >>> 24);
+        }
+    }
+
+    // The even output blocks go to the first half of b, the odd ones to the second half
+    private static void blockMix(int[] b, int[] y, int r) {
+        int[] block = new int[16];
+        System.arraycopy(b, (2 * r - 1) * 16, block, 0, 16);
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++) {
+                block[k] ^= b[i * 16 + k];
+            }
+            salsa208(block);
+            System.arraycopy(block, 0, y, (i / 2 + (i % 2) * r) * 16, 16);
+        }
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa208(int[] block) {
+        int x0 = block[0], x1 = block[1], x2 = block[2], x3 = block[3];
+        int x4 = block[4], x5 = block[5], x6 = block[6], x7 = block[7];
+        int x8 = block[8], x9 = block[9], x10 = block[10], x11 = block[11];
+        int x12 = block[12], x13 = block[13], x14 = block[14], x15 = block[15];
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        block[0] += x0;
+        block[1] += x1;
+        block[2] += x2;
+        block[3] += x3;
+        block[4] += x4;
+        block[5] += x5;
+        block[6] += x6;
+        block[7] += x7;
+        block[8] += x8;
+        block[9] += x9;
+        block[10] += x10;
+        block[11] += x11;
+        block[12] += x12;
+        block[13] += x13;
+        block[14] += x14;
+        block[15] += x15;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.picketlink.idm.event.IdentityEvent;
+import org.jboss.picketlink.idm.event.IdentityEventListener;
+import org.jboss.picketlink.idm.event.OverflowEvent;
+import org.jboss.picketlink.idm.internal.AsyncIdentityManager;
+
+/**
+ * Delivers {@link IdentityEvent}s to synchronous and asynchronous {@link IdentityEventListener}s.
+ * <p/>
+ * Synchronous listeners are called by the publishing thread, one after the other. A failing listener does not keep the
+ * others from being called; its exception is thrown to the publisher once all of them were.
+ * <p/>
+ * Each asynchronous listener has a bounded queue, drained by a task of the executor which hands the listener up to a batch
+ * of events at a time. Batches of one listener are delivered one at a time and in order. When a queue is full the
+ * {@link OverflowPolicy} of the listener applies: either the publisher waits for room, slowing down writers to the pace of
+ * the listener, or the events are discarded and the listener is later given an {@link OverflowEvent}. Exceptions thrown by
+ * asynchronous listeners are dropped.
+ */
+public class IdentityEventBus {
+
+    public enum OverflowPolicy {
+        /**
+         * Block the publisher until the queue has room
+         */
+        BLOCK,
+
+        /**
+         * Discard the events and send an {@link OverflowEvent} instead
+         */
+        DISCARD
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final List<IdentityEventListener> listeners = new CopyOnWriteArrayList<IdentityEventListener>();
+    private final List<AsyncDelivery> deliveries = new CopyOnWriteArrayList<AsyncDelivery>();
+
+    private Executor executor;
+
+    // The executor created by this bus, shut down by close()
+    private ExecutorService ownExecutor = null;
+
+    /**
+     * Create a bus delivering the asynchronous events on the {@link AsyncIdentityManager#createDefaultExecutor() default
+     * executor}, created with the first asynchronous listener
+     */
+    public IdentityEventBus() {
+    }
+
+    public IdentityEventBus(Executor executor) {
+        if (executor == null) {
+            throw new RuntimeException("Executor is null");
+        }
+        this.executor = executor;
+    }
+
+    public void addListener(IdentityEventListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Add an asynchronous listener with the default batch size and capacity, blocking publishers when it falls behind
+     *
+     * @param listener
+     */
+    public void addAsyncListener(IdentityEventListener listener) {
+        addAsyncListener(listener, DEFAULT_BATCH_SIZE, DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param listener
+     * @param batchSize the largest number of events given to the listener at once
+     * @param capacity the number of events queued for the listener before the overflow policy applies
+     * @param overflowPolicy
+     */
+    public synchronized void addAsyncListener(IdentityEventListener listener, int batchSize, int capacity,
+            OverflowPolicy overflowPolicy) {
+        if (batchSize < 1 || capacity < 1) {
+            throw new RuntimeException("Batch size and capacity must be positive");
+        }
+        if (executor == null) {
+            ownExecutor = AsyncIdentityManager.createDefaultExecutor();
+            executor = ownExecutor;
+        }
+        deliveries.add(new AsyncDelivery(listener, batchSize, capacity, overflowPolicy));
+    }
+
+    /**
+     * Remove a synchronous or asynchronous listener. Events already queued for an asynchronous listener are still delivered.
+     *
+     * @param listener
+     */
+    public void removeListener(IdentityEventListener listener) {
+        listeners.remove(listener);
+        for (AsyncDelivery delivery : deliveries) {
+            if (delivery.listener == listener) {
+                deliveries.remove(delivery);
+            }
+        }
+    }
+
+    /**
+     * @return true if the bus has listeners, so that publishers may skip creating events otherwise
+     */
+    public boolean hasListeners() {
+        return !listeners.isEmpty() || !deliveries.isEmpty();
+    }
+
+    public void publish(IdentityEvent event) {
+        publish(Collections.singletonList(event));
+    }
+
+    /**
+     * Deliver the events of one change, or of several changes made together such as a batch
+     *
+     * @param events
+     */
+    public void publish(List<? extends IdentityEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        for (AsyncDelivery delivery : deliveries) {
+            delivery.offer(events);
+        }
+
+        List<IdentityEvent> delivered = Collections.unmodifiableList(events);
+        RuntimeException failure = null;
+        for (IdentityEventListener listener : listeners) {
+            try {
+                listener.onEvents(delivered);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Remove every listener and shut down the executor, if it was created by this bus
+     */
+    public synchronized void close() {
+        listeners.clear();
+        deliveries.clear();
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+            ownExecutor = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * Queue of the events of an asynchronous listener, drained by at most one task at a time
+     */
+    private final class AsyncDelivery implements Runnable {
+        private final IdentityEventListener listener;
+        private final int batchSize;
+        private final OverflowPolicy overflowPolicy;
+        private final BlockingQueue<IdentityEvent> queue;
+        private final AtomicInteger discarded = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Executor deliveryExecutor;
+
+        AsyncDelivery(IdentityEventListener listener, int batchSize, int capacity, OverflowPolicy overflowPolicy) {
+            this.listener = listener;
+            this.batchSize = batchSize;
+            this.overflowPolicy = overflowPolicy;
+            this.queue = new ArrayBlockingQueue<IdentityEvent>(capacity);
+            this.deliveryExecutor = executor;
+        }
+
+        void offer(List<? extends IdentityEvent> events) {
+            for (IdentityEvent event : events) {
+                if (overflowPolicy == OverflowPolicy.BLOCK) {
+                    while (!queue.offer(event)) {
+                        // Make sure the queue is being drained before waiting for it
+                        schedule();
+                        try {
+                            queue.put(event);
+                            break;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RuntimeException("Interrupted while waiting for an event listener", e);
+                        }
+                    }
+                } else if (!queue.offer(event)) {
+                    discarded.incrementAndGet();
+                }
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                deliveryExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<IdentityEvent> batch = new ArrayList<IdentityEvent>(batchSize);
+                int lost = discarded.getAndSet(0);
+                if (lost > 0) {
+                    batch.add(new OverflowEvent(lost));
+                }
+                queue.drainTo(batch, batchSize - batch.size());
+                if (!batch.isEmpty()) {
+                    listener.onEvents(Collections.unmodifiableList(batch));
+                }
+            } catch (RuntimeException e) {
+                // Dropped, the next batch is delivered anyway
+            } finally {
+                scheduled.set(false);
+                if (!queue.isEmpty() || discarded.get() > 0) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.federation;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+
+/**
+ * Iterator merging the results of several stores. When a comparator is given, each source must already be sorted by it and
+ * the results are returned in that order, by keeping the next result of each source in a heap. Without a comparator the
+ * sources are returned one after the other.
+ * <p/>
+ * Sources that are {@link QueryResultIterator}s are closed along with this iterator.
+ */
+public class MergingQueryResultIterator<T> implements QueryResultIterator<T> {
+
+    private final List<? extends Iterator<T>> sources;
+    private final PriorityQueue<Head<T>> heads;
+    private int current = 0;
+    private int skip;
+    private int remaining;
+    private boolean closed = false;
+
+    /**
+     * @param sources iterators over the results of each store
+     * @param comparator order of the results of every source, or null to return the sources one after the other
+     * @param offset number of merged results to skip
+     * @param limit maximum number of results to return after the offset, or a negative number for no limit
+     */
+    public MergingQueryResultIterator(List<? extends Iterator<T>> sources, final Comparator<? super T> comparator, int offset,
+            int limit) {
+        this.sources = sources;
+        this.skip = offset;
+        this.remaining = limit;
+        if (comparator == null) {
+            this.heads = null;
+        } else {
+            this.heads = new PriorityQueue<Head<T>>(Math.max(1, sources.size()), new Comparator<Head<T>>() {
+                @Override
+                public int compare(Head<T> first, Head<T> second) {
+                    int result = comparator.compare(first.value, second.value);
+                    // Keep the order of the sources between equal results
+                    return result != 0 ? result : first.source - second.source;
+                }
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                advance(i);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed || remaining == 0) {
+            return false;
+        }
+        while (skip > 0 && hasNextMerged()) {
+            nextMerged();
+            skip--;
+        }
+        return hasNextMerged();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (remaining > 0) {
+            remaining--;
+        }
+        return nextMerged();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        RuntimeException failure = null;
+        for (Iterator<T> source : sources) {
+            if (source instanceof QueryResultIterator) {
+                try {
+                    ((QueryResultIterator<T>) source).close();
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private boolean hasNextMerged() {
+        if (heads != null) {
+            return !heads.isEmpty();
+        }
+        while (current < sources.size()) {
+            if (sources.get(current).hasNext()) {
+                return true;
+            }
+            current++;
+        }
+        return false;
+    }
+
+    private T nextMerged() {
+        if (heads == null) {
+            return sources.get(current).next();
+        }
+        Head<T> head = heads.poll();
+        advance(head.source);
+        return head.value;
+    }
+
+    private void advance(int source) {
+        Iterator<T> iterator = sources.get(source);
+        if (iterator.hasNext()) {
+            heads.add(new Head<T>(source, iterator.next()));
+        }
+    }
+
+    private static class Head<T> {
+        private final int source;
+        private final T value;
+
+        Head(int source, T value) {
+            this.source = source;
+            this.value = value;
+        }
+    }
+}
@@ -23,12 +23,15 @@
 package org.jboss.picketlink.idm.internal.jpa;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.persistence.Column;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.MappedSuperclass;
@@ -48,6 +51,7 @@ public abstract class AbstractDatabaseIdentityType<A extends AbstractDatabaseAtt
     @GeneratedValue
     private String id;
 
+    @Column(unique = true)
     private String key;
     private boolean enabled;
     private Date expirationDate;
@@ -59,8 +63,14 @@ public abstract class AbstractDatabaseIdentityType<A extends AbstractDatabaseAtt
     public AbstractDatabaseIdentityType() {
     }
 
+    /**
+     * New identity types are enabled, as with the other stores
+     *
+     * @param name
+     */
     public AbstractDatabaseIdentityType(String name) {
         setKey(name);
+        setEnabled(true);
     }
 
     /**
@@ -136,52 +146,68 @@ public abstract class AbstractDatabaseIdentityType<A extends AbstractDatabaseAtt
      */
     public abstract List<A> getOwnerAttributes();
 
-    @SuppressWarnings("unchecked")
     @Override
     @Transient
     public void setAttribute(String name, String value) {
-        getUserAttributesMap().put(name, new String[] { value });
-
-        A attribute = createAttribute(name, value);
-
-        attribute.setIdentityType(this);
-
-        getOwnerAttributes().add(attribute);
+        setAttribute(name, new String[] { value });
     }
 
     protected abstract A createAttribute(String name, String value);
 
     private Map<String, String[]> getUserAttributesMap() {
         if (this.userAttributesMap == null) {
-            this.userAttributesMap = new HashMap<String, String[]>();
-
-            for (AbstractDatabaseAttribute attribute : getOwnerAttributes()) {
-                String[] values = this.userAttributesMap.get(attribute.getName());
-
-                if (values == null) {
-                    values = new String[] { attribute.getValue() };
-                } else {
-                    int len = values.length;
-
-                    values = Arrays.copyOf(values, len + 1);
-
-                    values[len] = attribute.getValue();
-                }
-
-                this.userAttributesMap.put(attribute.getName(), values);
-            }
+            this.userAttributesMap = toAttributesMap(getOwnerAttributes());
         }
 
         return this.userAttributesMap;
     }
 
+    /**
+     * <p>
+     * Sets the attributes of this identity type from rows loaded in bulk for several owners, see {@link JPAAttributeLoader}, so
+     * that reading them does not load the lazy attribute collection.
+     * </p>
+     *
+     * @param attributes
+     */
+    void initAttributes(Collection<? extends AbstractDatabaseAttribute> attributes) {
+        this.userAttributesMap = toAttributesMap(attributes);
+    }
+
+    /**
+     * <p>
+     * Replaces all the values of the attribute. The rows already stored for the attribute are updated in place, surplus rows
+     * are deleted and missing ones inserted. Setting no values removes the attribute.
+     * </p>
+     */
     @SuppressWarnings("unchecked")
     @Override
     @Transient
     public void setAttribute(String name, String[] values) {
-        getUserAttributesMap().put(name, values);
-        for (String value : values) {
-            A attribute = createAttribute(name, value);
+        if (values == null || values.length == 0) {
+            removeAttribute(name);
+            return;
+        }
+
+        getUserAttributesMap().put(name, values.clone());
+
+        int index = 0;
+
+        for (Iterator<A> iterator = getOwnerAttributes().iterator(); iterator.hasNext();) {
+            A attribute = iterator.next();
+
+            if (attribute.getName().equals(name)) {
+                if (index < values.length) {
+                    attribute.setValue(values[index++]);
+                } else {
+                    attribute.setIdentityType(null);
+                    iterator.remove();
+                }
+            }
+        }
+
+        for (; index < values.length; index++) {
+            A attribute = createAttribute(name, values[index]);
 
             attribute.setIdentityType(this);
 
@@ -194,10 +220,12 @@ public abstract class AbstractDatabaseIdentityType<A extends AbstractDatabaseAtt
     @Transient
     public void removeAttribute(String name) {
         getUserAttributesMap().remove(name);
-        for (AbstractDatabaseAttribute attribute : new ArrayList<AbstractDatabaseAttribute>(getOwnerAttributes())) {
+        for (Iterator<A> iterator = getOwnerAttributes().iterator(); iterator.hasNext();) {
+            A attribute = iterator.next();
+
             if (attribute.getName().equals(name)) {
                 attribute.setIdentityType(null);
-                getOwnerAttributes().remove(attribute);
+                iterator.remove();
             }
         }
     }
@@ -207,7 +235,7 @@ public abstract class AbstractDatabaseIdentityType<A extends AbstractDatabaseAtt
     public String getAttribute(String name) {
         String[] values = getUserAttributesMap().get(name);
 
-        if (values != null) {
+        if (values != null && values.length > 0) {
             return values[0];
         }
 
@@ -223,7 +251,38 @@ public abstract class AbstractDatabaseIdentityType<A extends AbstractDatabaseAtt
     @Override
     @Transient
     public Map<String, String[]> getAttributes() {
-        return null;
+        return Collections.unmodifiableMap(getUserAttributesMap());
+    }
+
+    /**
+     * <p>
+     * Groups the values of the given attribute rows by name, in a single pass.
+     * </p>
+     *
+     * @param attributes
+     * @return
+     */
+    private static Map<String, String[]> toAttributesMap(Collection<? extends AbstractDatabaseAttribute> attributes) {
+        Map<String, List<String>> values = new HashMap<String, List<String>>();
+
+        for (AbstractDatabaseAttribute attribute : attributes) {
+            List<String> attributeValues = values.get(attribute.getName());
+
+            if (attributeValues == null) {
+                attributeValues = new ArrayList<String>(1);
+                values.put(attribute.getName(), attributeValues);
+            }
+
+            attributeValues.add(attribute.getValue());
+        }
+
+        Map<String, String[]> attributesMap = new HashMap<String, String[]>();
+
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            attributesMap.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+
+        return attributesMap;
     }
 
     // TODO: implement hashcode and equals methods
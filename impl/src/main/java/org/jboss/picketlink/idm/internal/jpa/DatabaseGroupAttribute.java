@@ -22,14 +22,26 @@
 
 package org.jboss.picketlink.idm.internal.jpa;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQuery;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
 
 /**
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
  *
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(appliesTo = "DatabaseGroupAttribute", indexes = @Index(name = "idx_group_attribute_owner_name",
+        columnNames = { "group_id", "name" }))
+@NamedQuery(name = NamedQueries.GROUP_ATTRIBUTE_LOAD_BY_OWNERS, query = "from DatabaseGroupAttribute where group in (:owners)")
 public class DatabaseGroupAttribute extends AbstractDatabaseAttribute<DatabaseGroup> {
 
     @ManyToOne
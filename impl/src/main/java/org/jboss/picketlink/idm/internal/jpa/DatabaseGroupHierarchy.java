@@ -0,0 +1,128 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.picketlink.idm.internal.jpa;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * <p>
+ * Row of the closure table of the group hierarchy. There is a row for every group and each of its ancestors, including the
+ * group itself at depth 0, so the whole subtree or the whole ancestor chain of a group is read with a single query whatever
+ * the depth of the tree.
+ * </p>
+ * <p>
+ * The rows are maintained by the {@link org.jboss.picketlink.idm.internal.JPAIdentityStore} when groups are created and
+ * removed.
+ * </p>
+ *
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = { "ancestor_id", "descendant_id" }))
+@javax.persistence.NamedQueries({
+        @NamedQuery(name = NamedQueries.GROUP_HIERARCHY_LOAD_ANCESTORS, query = "from DatabaseGroupHierarchy where descendant = :group"),
+        @NamedQuery(name = NamedQueries.GROUP_HIERARCHY_REMOVE, query = "delete from DatabaseGroupHierarchy where descendant = :group or ancestor = :group") })
+public class DatabaseGroupHierarchy {
+
+    @Id
+    @GeneratedValue
+    private String id;
+
+    @ManyToOne
+    private DatabaseGroup ancestor;
+
+    @ManyToOne
+    private DatabaseGroup descendant;
+
+    private int depth;
+
+    public DatabaseGroupHierarchy() {
+    }
+
+    public DatabaseGroupHierarchy(DatabaseGroup ancestor, DatabaseGroup descendant, int depth) {
+        setAncestor(ancestor);
+        setDescendant(descendant);
+        setDepth(depth);
+    }
+
+    /**
+     * @return the id
+     */
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * @param id the id to set
+     */
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the ancestor
+     */
+    public DatabaseGroup getAncestor() {
+        return this.ancestor;
+    }
+
+    /**
+     * @param ancestor the ancestor to set
+     */
+    public void setAncestor(DatabaseGroup ancestor) {
+        this.ancestor = ancestor;
+    }
+
+    /**
+     * @return the descendant
+     */
+    public DatabaseGroup getDescendant() {
+        return this.descendant;
+    }
+
+    /**
+     * @param descendant the descendant to set
+     */
+    public void setDescendant(DatabaseGroup descendant) {
+        this.descendant = descendant;
+    }
+
+    /**
+     * @return the number of levels between the ancestor and the descendant, 0 for the row of a group with itself
+     */
+    public int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * @param depth the depth to set
+     */
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+}
@@ -25,11 +25,15 @@ package org.jboss.picketlink.idm.internal.jpa;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.QueryHint;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.jboss.picketlink.idm.model.Role;
 
 /**
@@ -37,12 +41,16 @@ import org.jboss.picketlink.idm.model.Role;
  *
  */
 @Entity
-@NamedQuery(name = NamedQueries.ROLE_LOAD_BY_KEY, query = "from DatabaseRole where key = :key")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NamedQuery(name = NamedQueries.ROLE_LOAD_BY_KEY, query = "from DatabaseRole where key = :key",
+        hints = @QueryHint(name = NamedQueries.CACHEABLE_HINT, value = "true"))
 public class DatabaseRole extends AbstractDatabaseIdentityType<DatabaseRoleAttribute> implements Role {
 
     private String name;
 
-    @OneToMany(mappedBy = "role", cascade = CascadeType.ALL)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+    @OneToMany(mappedBy = "role", cascade = CascadeType.ALL, orphanRemoval = true)
     private List<DatabaseRoleAttribute> roleAttributes = new ArrayList<DatabaseRoleAttribute>();
 
     public DatabaseRole() {
@@ -22,14 +22,26 @@
 
 package org.jboss.picketlink.idm.internal.jpa;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQuery;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
 
 /**
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
  *
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(appliesTo = "DatabaseRoleAttribute", indexes = @Index(name = "idx_role_attribute_owner_name",
+        columnNames = { "role_id", "name" }))
+@NamedQuery(name = NamedQueries.ROLE_ATTRIBUTE_LOAD_BY_OWNERS, query = "from DatabaseRoleAttribute where role in (:owners)")
 public class DatabaseRoleAttribute extends AbstractDatabaseAttribute<DatabaseRole> {
 
     @ManyToOne
@@ -25,12 +25,16 @@ package org.jboss.picketlink.idm.internal.jpa;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.QueryHint;
 import javax.persistence.Transient;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.jboss.picketlink.idm.model.User;
 
 /**
@@ -38,7 +42,10 @@ import org.jboss.picketlink.idm.model.User;
  *
  */
 @Entity
-@NamedQuery(name = NamedQueries.USER_LOAD_BY_KEY, query = "from DatabaseUser where key = :key")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NamedQuery(name = NamedQueries.USER_LOAD_BY_KEY, query = "from DatabaseUser where key = :key",
+        hints = @QueryHint(name = NamedQueries.CACHEABLE_HINT, value = "true"))
 public class DatabaseUser extends AbstractDatabaseIdentityType<DatabaseUserAttribute> implements User {
 
     private String firstName;
@@ -48,7 +55,10 @@ public class DatabaseUser extends AbstractDatabaseIdentityType<DatabaseUserAttri
 
     private String fullName;
 
-    @OneToMany(mappedBy = "user", cascade = CascadeType.ALL)
+    private String passwordHash;
+
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+    @OneToMany(mappedBy = "user", cascade = CascadeType.ALL, orphanRemoval = true)
     private List<DatabaseUserAttribute> userAttributes = new ArrayList<DatabaseUserAttribute>();
 
     public DatabaseUser() {
@@ -112,6 +122,20 @@ public class DatabaseUser extends AbstractDatabaseIdentityType<DatabaseUserAttri
         this.email = email;
     }
 
+    /**
+     * @return the encoded password, as produced by a {@link org.jboss.picketlink.idm.internal.credential.PasswordHasher}
+     */
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**
+     * @param passwordHash the passwordHash to set
+     */
+    public void setPasswordHash(String passwordHash) {
+        this.passwordHash = passwordHash;
+    }
+
     /**
      * @return the userAttributes
      */
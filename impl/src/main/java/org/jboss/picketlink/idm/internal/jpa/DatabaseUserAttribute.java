@@ -24,14 +24,26 @@ package org.jboss.picketlink.idm.internal.jpa;
 
 import java.io.Serializable;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQuery;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
 
 /**
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
  *
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(appliesTo = "DatabaseUserAttribute", indexes = @Index(name = "idx_user_attribute_owner_name",
+        columnNames = { "user_id", "name" }))
+@NamedQuery(name = NamedQueries.USER_ATTRIBUTE_LOAD_BY_OWNERS, query = "from DatabaseUserAttribute where user in (:owners)")
 public class DatabaseUserAttribute extends AbstractDatabaseAttribute<DatabaseUser> implements Serializable {
 
     private static final long serialVersionUID = -4902138907337697725L;
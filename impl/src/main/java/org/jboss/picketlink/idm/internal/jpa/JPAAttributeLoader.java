@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.jboss.picketlink.idm.model.IdentityType;
+
+/**
+ * <p>
+ * Loads the attributes of many identity types at once. The attribute rows of up to {@link #MAX_OWNERS_PER_QUERY} owners of
+ * the same type are read with a single query, using the index on the owner and attribute name columns, and handed to their
+ * owners, whose attribute collections are then not loaded one by one when the attributes are read.
+ * </p>
+ *
+ */
+public class JPAAttributeLoader {
+
+    /**
+     * Limits the size of the <code>in</code> list sent to the database
+     */
+    public static final int MAX_OWNERS_PER_QUERY = 500;
+
+    private final EntityManager entityManager;
+
+    public JPAAttributeLoader(EntityManager entityManager) {
+        this.entityManager = entityManager;
+    }
+
+    /**
+     * <p>
+     * Loads the attributes of the given identity types. Identity types not stored by the JPA identity store are ignored.
+     * Identity types not managed by the persistence context are loaded again along with their attributes.
+     * </p>
+     *
+     * @param identityTypes
+     */
+    public void load(Collection<? extends IdentityType> identityTypes) {
+        List<AbstractDatabaseIdentityType<?>> users = new ArrayList<AbstractDatabaseIdentityType<?>>();
+        List<AbstractDatabaseIdentityType<?>> groups = new ArrayList<AbstractDatabaseIdentityType<?>>();
+        List<AbstractDatabaseIdentityType<?>> roles = new ArrayList<AbstractDatabaseIdentityType<?>>();
+
+        for (IdentityType identityType : identityTypes) {
+            if (identityType instanceof DatabaseUser) {
+                users.add((DatabaseUser) identityType);
+            } else if (identityType instanceof DatabaseGroup) {
+                groups.add((DatabaseGroup) identityType);
+            } else if (identityType instanceof DatabaseRole) {
+                roles.add((DatabaseRole) identityType);
+            }
+        }
+
+        load(users, NamedQueries.USER_ATTRIBUTE_LOAD_BY_OWNERS);
+        load(groups, NamedQueries.GROUP_ATTRIBUTE_LOAD_BY_OWNERS);
+        load(roles, NamedQueries.ROLE_ATTRIBUTE_LOAD_BY_OWNERS);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void load(List<AbstractDatabaseIdentityType<?>> owners, String namedQueryName) {
+        for (int start = 0; start < owners.size(); start += MAX_OWNERS_PER_QUERY) {
+            List<AbstractDatabaseIdentityType<?>> chunk = owners.subList(start,
+                    Math.min(start + MAX_OWNERS_PER_QUERY, owners.size()));
+
+            Query query = this.entityManager.createNamedQuery(namedQueryName);
+
+            query.setParameter("owners", chunk);
+
+            // Attribute rows by owner id
+            Map<String, List<AbstractDatabaseAttribute>> attributes = new HashMap<String, List<AbstractDatabaseAttribute>>();
+
+            for (AbstractDatabaseAttribute attribute : (List<AbstractDatabaseAttribute>) query.getResultList()) {
+                String ownerId = ((AbstractDatabaseIdentityType) attribute.getIdentityType()).getId();
+                List<AbstractDatabaseAttribute> ownerAttributes = attributes.get(ownerId);
+
+                if (ownerAttributes == null) {
+                    ownerAttributes = new ArrayList<AbstractDatabaseAttribute>();
+                    attributes.put(ownerId, ownerAttributes);
+                }
+
+                ownerAttributes.add(attribute);
+            }
+
+            for (AbstractDatabaseIdentityType<?> owner : chunk) {
+                List<AbstractDatabaseAttribute> ownerAttributes = attributes.get(owner.getId());
+
+                if (ownerAttributes == null) {
+                    ownerAttributes = Collections.emptyList();
+                }
+
+                owner.initAttributes(ownerAttributes);
+            }
+        }
+    }
+}
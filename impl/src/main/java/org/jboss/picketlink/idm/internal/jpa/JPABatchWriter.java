@@ -0,0 +1,306 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.picketlink.idm.internal.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.jboss.picketlink.idm.batch.BatchFailure;
+import org.jboss.picketlink.idm.batch.BatchItem;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+
+/**
+ * <p>
+ * Writes an {@link IdentityBatch} in chunks. For each chunk the identity types referenced by its items are loaded with one
+ * query per type, the new entities are persisted, and the persistence context is flushed and cleared, so its size does not
+ * depend on the size of the batch. The inserts of a chunk are sent as JDBC batches when the provider is configured to do so
+ * (<code>hibernate.jdbc.batch_size</code> for Hibernate).
+ * </p>
+ * <p>
+ * Items referencing missing identity types or creating existing ones are reported as failed before anything is persisted
+ * for them. A failed flush leaves the persistence context unusable and marks the transaction for rollback, so the items of
+ * the chunk and the ones not written yet are then reported as failed.
+ * </p>
+ * <p>
+ * Entities held by the caller are detached when a chunk is cleared.
+ * </p>
+ *
+ */
+public class JPABatchWriter {
+
+    private final EntityManager entityManager;
+
+    private final int batchSize;
+
+    // Identity types referenced by the current chunk, null values for the keys known not to exist
+    private final Map<String, DatabaseUser> users = new HashMap<String, DatabaseUser>();
+    private final Map<String, DatabaseGroup> groups = new HashMap<String, DatabaseGroup>();
+    private final Map<String, DatabaseRole> roles = new HashMap<String, DatabaseRole>();
+
+    // Closure table rows of the groups referenced by the current chunk, by group key
+    private final Map<String, List<DatabaseGroupHierarchy>> hierarchy = new HashMap<String, List<DatabaseGroupHierarchy>>();
+
+    public JPABatchWriter(EntityManager entityManager, int batchSize) {
+        this.entityManager = entityManager;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * <p>
+     * Writes the items of the batch.
+     * </p>
+     *
+     * @param batch
+     * @param listener may be null
+     * @return
+     */
+    public BatchResult write(IdentityBatch batch, BatchListener listener) {
+        List<BatchItem> items = batch.getItems();
+        BatchResult result = new BatchResult(items.size());
+
+        for (int start = 0; start < items.size(); start += this.batchSize) {
+            List<BatchItem> chunk = items.subList(start, Math.min(start + this.batchSize, items.size()));
+            Set<Integer> failed = new HashSet<Integer>();
+
+            load(chunk);
+
+            for (int i = 0; i < chunk.size(); i++) {
+                try {
+                    write(chunk.get(i));
+                } catch (RuntimeException e) {
+                    failed.add(start + i);
+                    fail(result, listener, new BatchFailure(start + i, chunk.get(i), e));
+                }
+            }
+
+            try {
+                this.entityManager.flush();
+            } catch (RuntimeException e) {
+                for (int index = start; index < items.size(); index++) {
+                    if (!failed.contains(index)) {
+                        fail(result, listener, new BatchFailure(index, items.get(index), e));
+                    }
+                }
+
+                result.addProcessed(items.size() - start);
+
+                if (listener != null) {
+                    listener.onProgress(result.getProcessed(), result.getTotal());
+                }
+
+                return result;
+            }
+
+            this.entityManager.clear();
+            clear();
+
+            result.addProcessed(chunk.size());
+
+            if (listener != null) {
+                listener.onProgress(result.getProcessed(), result.getTotal());
+            }
+        }
+
+        return result;
+    }
+
+    private void write(BatchItem item) {
+        switch (item.getType()) {
+            case USER:
+                ensureNew(this.users, item.getName(), "User");
+                DatabaseUser user = new DatabaseUser(item.getName());
+                this.entityManager.persist(user);
+                this.users.put(user.getKey(), user);
+                break;
+            case GROUP:
+                ensureNew(this.groups, item.getName(), "Group");
+                DatabaseGroup parent = item.getGroup() != null ? find(this.groups, item.getGroup(), "Group") : null;
+                DatabaseGroup group = new DatabaseGroup(item.getName());
+                group.setParentGroup(parent);
+                this.entityManager.persist(group);
+                this.groups.put(group.getKey(), group);
+                addToHierarchy(group, parent);
+                break;
+            case ROLE:
+                ensureNew(this.roles, item.getName(), "Role");
+                DatabaseRole role = new DatabaseRole(item.getName());
+                this.entityManager.persist(role);
+                this.roles.put(role.getKey(), role);
+                break;
+            case MEMBERSHIP:
+                if (item.getUser() == null && item.getGroup() == null) {
+                    throw new RuntimeException("A membership needs an user or a group");
+                }
+                DatabaseRole membershipRole = find(this.roles, item.getRole(), "Role");
+                DatabaseUser membershipUser = item.getUser() != null ? find(this.users, item.getUser(), "User") : null;
+                DatabaseGroup membershipGroup = item.getGroup() != null ? find(this.groups, item.getGroup(), "Group") : null;
+                this.entityManager.persist(new DatabaseMembership(membershipRole, membershipUser, membershipGroup));
+                break;
+            default:
+                throw new RuntimeException("Unsupported batch item: " + item);
+        }
+    }
+
+    private void addToHierarchy(DatabaseGroup group, DatabaseGroup parent) {
+        List<DatabaseGroupHierarchy> rows = new ArrayList<DatabaseGroupHierarchy>();
+
+        rows.add(new DatabaseGroupHierarchy(group, group, 0));
+
+        if (parent != null) {
+            for (DatabaseGroupHierarchy parentRow : this.hierarchy.get(parent.getKey())) {
+                rows.add(new DatabaseGroupHierarchy(parentRow.getAncestor(), group, parentRow.getDepth() + 1));
+            }
+        }
+
+        for (DatabaseGroupHierarchy row : rows) {
+            this.entityManager.persist(row);
+        }
+
+        this.hierarchy.put(group.getKey(), rows);
+    }
+
+    /**
+     * <p>
+     * Loads the identity types referenced by the items of the chunk, and the closure table rows of the referenced groups,
+     * with one query per type.
+     * </p>
+     */
+    private void load(List<BatchItem> chunk) {
+        Set<String> userKeys = new HashSet<String>();
+        Set<String> groupKeys = new HashSet<String>();
+        Set<String> roleKeys = new HashSet<String>();
+
+        for (BatchItem item : chunk) {
+            switch (item.getType()) {
+                case USER:
+                    userKeys.add(item.getName());
+                    break;
+                case GROUP:
+                    groupKeys.add(item.getName());
+                    break;
+                case ROLE:
+                    roleKeys.add(item.getName());
+                    break;
+                default:
+                    roleKeys.add(item.getRole());
+                    userKeys.add(item.getUser());
+            }
+
+            groupKeys.add(item.getGroup());
+        }
+
+        load(DatabaseUser.class, userKeys, this.users);
+        load(DatabaseGroup.class, groupKeys, this.groups);
+        load(DatabaseRole.class, roleKeys, this.roles);
+
+        Collection<DatabaseGroup> existingGroups = new ArrayList<DatabaseGroup>();
+
+        for (DatabaseGroup group : this.groups.values()) {
+            if (group != null) {
+                existingGroups.add(group);
+                this.hierarchy.put(group.getKey(), new ArrayList<DatabaseGroupHierarchy>());
+            }
+        }
+
+        if (!existingGroups.isEmpty()) {
+            CriteriaBuilder builder = this.entityManager.getCriteriaBuilder();
+            CriteriaQuery<DatabaseGroupHierarchy> criteria = builder.createQuery(DatabaseGroupHierarchy.class);
+            Root<DatabaseGroupHierarchy> root = criteria.from(DatabaseGroupHierarchy.class);
+
+            criteria.select(root).where(root.get("descendant").in(existingGroups));
+
+            for (DatabaseGroupHierarchy row : this.entityManager.createQuery(criteria).getResultList()) {
+                this.hierarchy.get(row.getDescendant().getKey()).add(row);
+            }
+        }
+    }
+
+    private <T extends AbstractDatabaseIdentityType<?>> void load(Class<T> type, Set<String> keys, Map<String, T> target) {
+        keys.remove(null);
+
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        for (String key : keys) {
+            target.put(key, null);
+        }
+
+        CriteriaBuilder builder = this.entityManager.getCriteriaBuilder();
+        CriteriaQuery<T> criteria = builder.createQuery(type);
+        Root<T> root = criteria.from(type);
+
+        criteria.select(root).where(root.<String> get("key").in(keys));
+
+        for (T identityType : this.entityManager.createQuery(criteria).getResultList()) {
+            target.put(identityType.getKey(), identityType);
+        }
+    }
+
+    private <T> void ensureNew(Map<String, T> loaded, String key, String description) {
+        if (key == null) {
+            throw new RuntimeException(description + " name is required");
+        }
+
+        if (loaded.get(key) != null) {
+            throw new RuntimeException(description + " already exists: " + key);
+        }
+    }
+
+    private <T> T find(Map<String, T> loaded, String key, String description) {
+        T identityType = key != null ? loaded.get(key) : null;
+
+        if (identityType == null) {
+            throw new RuntimeException(description + " not found: " + key);
+        }
+
+        return identityType;
+    }
+
+    private void fail(BatchResult result, BatchListener listener, BatchFailure failure) {
+        result.addFailure(failure);
+
+        if (listener != null) {
+            listener.onFailure(failure);
+        }
+    }
+
+    private void clear() {
+        this.users.clear();
+        this.groups.clear();
+        this.roles.clear();
+        this.hierarchy.clear();
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
+
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.MembershipQuery;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.query.UserQuery;
+
+/**
+ * <p>
+ * Translates the conditions of the query API into JPA {@link CriteriaQuery} instances, so each query is resolved with a
+ * single statement against the database.
+ * </p>
+ * <p>
+ * Conditions are resolved with logical AND. Values of the built in attributes may use the '*' wildcard. Relationships
+ * (groups and roles) and attribute filters are resolved with correlated EXISTS subqueries, so they never multiply the rows
+ * of the main entity.
+ * </p>
+ * <p>
+ * Identity types are sorted by key and memberships by id. Keyset {@link Range} instances are resolved against that sort key.
+ * </p>
+ * <p>
+ * Conditions on subgroups and on roles inherited from parent groups are resolved against the {@link DatabaseGroupHierarchy}
+ * closure table, so they cost a single subquery whatever the depth of the group tree.
+ * </p>
+ * <p>
+ * A query is translated in two steps. The <code>getParameters</code> methods read its values into
+ * {@link JPAQueryParameters}, then {@link #createQuery(JPAQueryParameters)} creates a {@link CriteriaQuery} where every value
+ * is a named parameter. The {@link CriteriaQuery} only depends on the shape of the query. It is created for each execution,
+ * as criteria objects are not meant to be shared between threads and entity managers, and renders to the same JPQL for
+ * every query of the same shape, which the persistence provider parses once.
+ * </p>
+ */
+public class JPACriteriaQueryBuilder {
+
+    // Names of the parameters, which are also the names of the conditions in the shape of a query
+    private static final String NAME = "name";
+    private static final String ID = "id";
+    private static final String FIRST_NAME = "firstName";
+    private static final String LAST_NAME = "lastName";
+    private static final String EMAIL = "email";
+    private static final String ENABLED = "enabled";
+    private static final String USER = "user";
+    private static final String GROUP = "group";
+    private static final String ROLE = "role";
+    private static final String PARENT_GROUP = "parentGroup";
+    private static final String ANCESTOR_GROUP = "ancestorGroup";
+    private static final String ATTRIBUTE = "attribute";
+    private static final String LAST_KEY = "lastKey";
+
+    // Flags of the shape of a query
+    private static final String SUBGROUPS = "subgroups";
+    private static final String INHERITED = "inherited";
+    private static final String NO_RESULTS = "noResults";
+    private static final String DESCENDING = "descending";
+
+    /**
+     * Groups matched by a group condition of a membership
+     */
+    private enum GroupScope {
+        // the group itself
+        EXACT,
+        // the group and every group below it
+        DESCENDANTS,
+        // the group and every group above it
+        ANCESTORS
+    }
+
+    private final CriteriaBuilder builder;
+
+    public JPACriteriaQueryBuilder(EntityManager entityManager) {
+        this.builder = entityManager.getCriteriaBuilder();
+    }
+
+    /**
+     * <p>
+     * Reads the values of a {@link UserQuery}, resolved against {@link DatabaseUser} instances.
+     * </p>
+     *
+     * @param query
+     * @param range
+     * @return
+     */
+    public static JPAQueryParameters getParameters(UserQuery query, Range range) {
+        JPAQueryParameters parameters = new JPAQueryParameters(DatabaseUser.class);
+
+        parameters.match(NAME, query.getName());
+        parameters.match(FIRST_NAME, query.getFirstName());
+        parameters.match(LAST_NAME, query.getLastName());
+        parameters.match(EMAIL, query.getEmail());
+        parameters.equal(ENABLED, query.getEnabled());
+        parameters.equal(ROLE, query.getRole());
+        parameters.equal(GROUP, query.getRelatedGroup());
+        parameters.flag(SUBGROUPS, query.getRelatedGroup() != null && query.isIncludeSubgroups());
+
+        addAttributeFilters(parameters, query.getAttributeFilters());
+        addKeyset(parameters, range, query.isSortAscending());
+
+        return parameters;
+    }
+
+    /**
+     * <p>
+     * Reads the values of a {@link GroupQuery}, resolved against {@link DatabaseGroup} instances.
+     * </p>
+     *
+     * @param query
+     * @param range
+     * @return
+     */
+    public static JPAQueryParameters getParameters(GroupQuery query, Range range) {
+        JPAQueryParameters parameters = new JPAQueryParameters(DatabaseGroup.class);
+
+        parameters.match(NAME, query.getName());
+        parameters.match(ID, query.getId());
+        parameters.equal(PARENT_GROUP, query.getParentGroup());
+        parameters.equal(ANCESTOR_GROUP, query.getAncestorGroup());
+        parameters.equal(ROLE, query.getRole());
+        parameters.equal(USER, query.getRelatedUser());
+
+        addAttributeFilters(parameters, query.getAttributeFilters());
+        addKeyset(parameters, range, query.isSortAscending());
+
+        return parameters;
+    }
+
+    /**
+     * <p>
+     * Reads the values of a {@link RoleQuery}, resolved against {@link DatabaseRole} instances. The owner condition matches
+     * roles granted to the owner, being it an {@link User} or a {@link Group}.
+     * </p>
+     *
+     * @param query
+     * @param range
+     * @return
+     */
+    public static JPAQueryParameters getParameters(RoleQuery query, Range range) {
+        JPAQueryParameters parameters = new JPAQueryParameters(DatabaseRole.class);
+
+        parameters.match(NAME, query.getName());
+
+        IdentityType owner = query.getOwner();
+        Group group = query.getGroup();
+
+        if (owner instanceof User) {
+            parameters.equal(USER, owner);
+        }
+
+        if (owner instanceof Group) {
+            // a role can not be related with two different groups in the same membership
+            parameters.flag(NO_RESULTS, group != null && !group.equals(owner));
+
+            group = (Group) owner;
+        }
+
+        parameters.equal(GROUP, group);
+        parameters.flag(INHERITED, group != null && query.isInherited());
+
+        addAttributeFilters(parameters, query.getAttributeFilters());
+        addKeyset(parameters, range, query.isSortAscending());
+
+        return parameters;
+    }
+
+    /**
+     * <p>
+     * Reads the values of a {@link MembershipQuery}, resolved against {@link DatabaseMembership} instances.
+     * </p>
+     *
+     * @param query
+     * @param range
+     * @return
+     */
+    public static JPAQueryParameters getParameters(MembershipQuery query, Range range) {
+        JPAQueryParameters parameters = new JPAQueryParameters(DatabaseMembership.class);
+
+        parameters.equal(USER, query.getUser());
+        parameters.equal(GROUP, query.getGroup());
+        parameters.equal(ROLE, query.getRole());
+
+        addKeyset(parameters, range, true);
+
+        return parameters;
+    }
+
+    /**
+     * <p>
+     * Creates a {@link CriteriaQuery} for the result type of the given {@link JPAQueryParameters}, whose values are left as
+     * named parameters to be bound with {@link JPAQueryParameters#bind(javax.persistence.Query)}.
+     * </p>
+     *
+     * @param parameters
+     * @return
+     */
+    public CriteriaQuery<?> createQuery(JPAQueryParameters parameters) {
+        Class<?> resultType = parameters.getResultType();
+
+        if (resultType == DatabaseUser.class) {
+            return createUserQuery(parameters);
+        } else if (resultType == DatabaseGroup.class) {
+            return createGroupQuery(parameters);
+        } else if (resultType == DatabaseRole.class) {
+            return createRoleQuery(parameters);
+        } else if (resultType == DatabaseMembership.class) {
+            return createMembershipQuery(parameters);
+        }
+
+        throw new RuntimeException("Unsupported result type:" + resultType);
+    }
+
+    /**
+     * <p>
+     * Creates the query loading the membership of a role, an user and a group by key. A missing user or group matches the
+     * memberships without one: the role, user and group that are set are left as the named parameters <code>role</code>,
+     * <code>user</code> and <code>group</code>, the others are compared with <code>is null</code>.
+     * </p>
+     *
+     * @param hasRole
+     * @param hasUser
+     * @param hasGroup
+     * @return
+     */
+    public CriteriaQuery<DatabaseMembership> createMembershipLookup(boolean hasRole, boolean hasUser, boolean hasGroup) {
+        CriteriaQuery<DatabaseMembership> criteria = this.builder.createQuery(DatabaseMembership.class);
+        Root<DatabaseMembership> root = criteria.from(DatabaseMembership.class);
+
+        Path<DatabaseRole> role = root.get("role");
+        Path<DatabaseUser> user = root.get("user");
+        Path<DatabaseGroup> group = root.get("group");
+
+        criteria.where(
+                hasRole ? this.builder.equal(role, this.builder.parameter(DatabaseRole.class, ROLE)) : role.isNull(),
+                hasUser ? this.builder.equal(user, this.builder.parameter(DatabaseUser.class, USER)) : user.isNull(),
+                hasGroup ? this.builder.equal(group, groupParameter(GROUP)) : group.isNull());
+
+        return criteria.select(root);
+    }
+
+    private CriteriaQuery<DatabaseUser> createUserQuery(JPAQueryParameters parameters) {
+        CriteriaQuery<DatabaseUser> criteria = this.builder.createQuery(DatabaseUser.class);
+        Root<DatabaseUser> root = criteria.from(DatabaseUser.class);
+
+        List<Predicate> predicates = new ArrayList<Predicate>();
+
+        addMatch(predicates, root.<String> get("key"), parameters, NAME);
+        addMatch(predicates, root.<String> get("firstName"), parameters, FIRST_NAME);
+        addMatch(predicates, root.<String> get("lastName"), parameters, LAST_NAME);
+        addMatch(predicates, root.<String> get("email"), parameters, EMAIL);
+
+        if (parameters.has(ENABLED)) {
+            predicates.add(this.builder.equal(root.get("enabled"), this.builder.parameter(Boolean.class, ENABLED)));
+        }
+
+        if (parameters.has(GROUP) || parameters.has(ROLE)) {
+            GroupScope scope = parameters.isSet(SUBGROUPS) ? GroupScope.DESCENDANTS : GroupScope.EXACT;
+            predicates.add(membershipExists(criteria, "user", root, parameters, scope));
+        }
+
+        addAttributeFilters(predicates, criteria, root, DatabaseUserAttribute.class, "user", parameters);
+
+        return select(criteria, root, root.<String> get("key"), predicates, parameters);
+    }
+
+    private CriteriaQuery<DatabaseGroup> createGroupQuery(JPAQueryParameters parameters) {
+        CriteriaQuery<DatabaseGroup> criteria = this.builder.createQuery(DatabaseGroup.class);
+        Root<DatabaseGroup> root = criteria.from(DatabaseGroup.class);
+
+        List<Predicate> predicates = new ArrayList<Predicate>();
+
+        addMatch(predicates, root.<String> get("key"), parameters, NAME);
+        addMatch(predicates, root.<String> get("id"), parameters, ID);
+
+        if (parameters.has(PARENT_GROUP)) {
+            predicates.add(this.builder.equal(root.get("parentGroup"), groupParameter(PARENT_GROUP)));
+        }
+
+        if (parameters.has(ANCESTOR_GROUP)) {
+            Subquery<DatabaseGroup> subgroups = criteria.subquery(DatabaseGroup.class);
+            Root<DatabaseGroupHierarchy> hierarchy = subgroups.from(DatabaseGroupHierarchy.class);
+
+            subgroups.select(hierarchy.<DatabaseGroup> get("descendant")).where(
+                    this.builder.equal(hierarchy.get("ancestor"), groupParameter(ANCESTOR_GROUP)),
+                    this.builder.greaterThan(hierarchy.<Integer> get("depth"), 0));
+
+            predicates.add(root.in(subgroups));
+        }
+
+        if (parameters.has(USER) || parameters.has(ROLE)) {
+            predicates.add(membershipExists(criteria, "group", root, parameters, GroupScope.EXACT));
+        }
+
+        addAttributeFilters(predicates, criteria, root, DatabaseGroupAttribute.class, "group", parameters);
+
+        return select(criteria, root, root.<String> get("key"), predicates, parameters);
+    }
+
+    private CriteriaQuery<DatabaseRole> createRoleQuery(JPAQueryParameters parameters) {
+        CriteriaQuery<DatabaseRole> criteria = this.builder.createQuery(DatabaseRole.class);
+        Root<DatabaseRole> root = criteria.from(DatabaseRole.class);
+
+        List<Predicate> predicates = new ArrayList<Predicate>();
+
+        addMatch(predicates, root.<String> get("key"), parameters, NAME);
+
+        if (parameters.isSet(NO_RESULTS)) {
+            predicates.add(this.builder.disjunction());
+        }
+
+        if (parameters.has(USER) || parameters.has(GROUP)) {
+            GroupScope scope = parameters.isSet(INHERITED) ? GroupScope.ANCESTORS : GroupScope.EXACT;
+            predicates.add(membershipExists(criteria, "role", root, parameters, scope));
+        }
+
+        addAttributeFilters(predicates, criteria, root, DatabaseRoleAttribute.class, "role", parameters);
+
+        return select(criteria, root, root.<String> get("key"), predicates, parameters);
+    }
+
+    private CriteriaQuery<DatabaseMembership> createMembershipQuery(JPAQueryParameters parameters) {
+        CriteriaQuery<DatabaseMembership> criteria = this.builder.createQuery(DatabaseMembership.class);
+        Root<DatabaseMembership> root = criteria.from(DatabaseMembership.class);
+
+        List<Predicate> predicates = new ArrayList<Predicate>();
+
+        if (parameters.has(USER)) {
+            predicates.add(this.builder.equal(root.get("user"), this.builder.parameter(DatabaseUser.class, USER)));
+        }
+
+        if (parameters.has(GROUP)) {
+            predicates.add(this.builder.equal(root.get("group"), groupParameter(GROUP)));
+        }
+
+        if (parameters.has(ROLE)) {
+            predicates.add(this.builder.equal(root.get("role"), this.builder.parameter(DatabaseRole.class, ROLE)));
+        }
+
+        return select(criteria, root, root.<String> get("id"), predicates, parameters);
+    }
+
+    /**
+     * <p>
+     * Reads the name and the values of each attribute filter, numbered in the iteration order of the filters.
+     * </p>
+     */
+    private static void addAttributeFilters(JPAQueryParameters parameters, Map<String, String[]> filters) {
+        if (filters == null) {
+            return;
+        }
+
+        int index = 0;
+
+        for (Entry<String, String[]> filter : filters.entrySet()) {
+            String name = ATTRIBUTE + index++;
+
+            parameters.equal(name, filter.getKey());
+
+            String[] values = filter.getValue();
+
+            if (values != null) {
+                for (int i = 0; i < values.length; i++) {
+                    parameters.equal(name + "_" + i, values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Reads the sort direction and the last key of a keyset {@link Range}.
+     * </p>
+     */
+    private static void addKeyset(JPAQueryParameters parameters, Range range, boolean ascending) {
+        parameters.flag(DESCENDING, !ascending);
+
+        if (range != null && range.isKeyset()) {
+            parameters.equal(LAST_KEY, range.getLastKey());
+        }
+    }
+
+    /**
+     * <p>
+     * Adds an equality condition, or a LIKE condition if the value contains the '*' wildcard, for a parameter which was set.
+     * Literal '%' and '_' of the value are escaped, see {@link JPAQueryParameters#ESCAPE}.
+     * </p>
+     */
+    private void addMatch(List<Predicate> predicates, Path<String> path, JPAQueryParameters parameters, String name) {
+        if (!parameters.has(name)) {
+            return;
+        }
+
+        Expression<String> value = this.builder.parameter(String.class, name);
+
+        if (parameters.isPattern(name)) {
+            predicates.add(this.builder.like(path, value, JPAQueryParameters.ESCAPE));
+        } else {
+            predicates.add(this.builder.equal(path, value));
+        }
+    }
+
+    /**
+     * <p>
+     * Selects the root with the given conditions, sorted by the given key. Keyset {@link Range} instances restrict the results
+     * to the ones whose sort key comes after the last key. Together with the ORDER BY on the same key this lets the database
+     * seek straight to the page instead of skipping an offset.
+     * </p>
+     */
+    private <T> CriteriaQuery<T> select(CriteriaQuery<T> criteria, Root<T> root, Path<String> sortKey,
+            List<Predicate> predicates, JPAQueryParameters parameters) {
+        boolean ascending = !parameters.isSet(DESCENDING);
+
+        if (parameters.has(LAST_KEY)) {
+            Expression<String> lastKey = this.builder.parameter(String.class, LAST_KEY);
+
+            if (ascending) {
+                predicates.add(this.builder.greaterThan(sortKey, lastKey));
+            } else {
+                predicates.add(this.builder.lessThan(sortKey, lastKey));
+            }
+        }
+
+        criteria.select(root).where(toArray(predicates));
+        criteria.orderBy(order(sortKey, ascending));
+
+        return criteria;
+    }
+
+    /**
+     * <p>
+     * Creates an EXISTS condition for a {@link DatabaseMembership} owned by the given root and matching the role, user and
+     * group parameters which were set. The group is matched according to the given {@link GroupScope}.
+     * </p>
+     */
+    private Predicate membershipExists(CriteriaQuery<?> criteria, String ownerProperty, Root<?> owner,
+            JPAQueryParameters parameters, GroupScope scope) {
+        Subquery<DatabaseMembership> subquery = criteria.subquery(DatabaseMembership.class);
+        Root<DatabaseMembership> membership = subquery.from(DatabaseMembership.class);
+
+        List<Predicate> predicates = new ArrayList<Predicate>();
+
+        predicates.add(this.builder.equal(membership.get(ownerProperty), owner));
+
+        if (parameters.has(ROLE)) {
+            predicates.add(this.builder.equal(membership.get("role"), this.builder.parameter(DatabaseRole.class, ROLE)));
+        }
+
+        if (parameters.has(USER)) {
+            predicates.add(this.builder.equal(membership.get("user"), this.builder.parameter(DatabaseUser.class, USER)));
+        }
+
+        if (parameters.has(GROUP)) {
+            predicates.add(groupMatch(criteria, membership.<DatabaseGroup> get("group"), scope));
+        }
+
+        subquery.select(membership).where(toArray(predicates));
+
+        return this.builder.exists(subquery);
+    }
+
+    /**
+     * <p>
+     * Creates a condition matching the group of a membership against the group parameter. Subgroups and parent groups are
+     * read from the {@link DatabaseGroupHierarchy} closure table, whose row of the group with itself also matches the group.
+     * </p>
+     */
+    private Predicate groupMatch(CriteriaQuery<?> criteria, Path<DatabaseGroup> path, GroupScope scope) {
+        if (scope == GroupScope.EXACT) {
+            return this.builder.equal(path, groupParameter(GROUP));
+        }
+
+        Subquery<DatabaseGroup> groups = criteria.subquery(DatabaseGroup.class);
+        Root<DatabaseGroupHierarchy> hierarchy = groups.from(DatabaseGroupHierarchy.class);
+
+        if (scope == GroupScope.DESCENDANTS) {
+            groups.select(hierarchy.<DatabaseGroup> get("descendant")).where(
+                    this.builder.equal(hierarchy.get("ancestor"), groupParameter(GROUP)));
+        } else {
+            groups.select(hierarchy.<DatabaseGroup> get("ancestor")).where(
+                    this.builder.equal(hierarchy.get("descendant"), groupParameter(GROUP)));
+        }
+
+        return path.in(groups);
+    }
+
+    /**
+     * <p>
+     * Adds an EXISTS condition for each attribute filter. An attribute matches if it has at least one of the filter values.
+     * </p>
+     */
+    @SuppressWarnings("rawtypes")
+    private void addAttributeFilters(List<Predicate> predicates, CriteriaQuery<?> criteria, Root<?> owner,
+            Class<? extends AbstractDatabaseAttribute> attributeType, String ownerProperty, JPAQueryParameters parameters) {
+        for (int index = 0; parameters.has(ATTRIBUTE + index); index++) {
+            String name = ATTRIBUTE + index;
+
+            Subquery<String> subquery = criteria.subquery(String.class);
+            Root<? extends AbstractDatabaseAttribute> attribute = subquery.from(attributeType);
+
+            List<Predicate> attributePredicates = new ArrayList<Predicate>();
+
+            attributePredicates.add(this.builder.equal(attribute.get(ownerProperty), owner));
+            attributePredicates.add(this.builder.equal(attribute.get("name"), this.builder.parameter(String.class, name)));
+
+            List<Expression<String>> values = new ArrayList<Expression<String>>();
+
+            for (int i = 0; parameters.has(name + "_" + i); i++) {
+                values.add(this.builder.parameter(String.class, name + "_" + i));
+            }
+
+            if (!values.isEmpty()) {
+                Expression<String> value = attribute.get("value");
+                attributePredicates.add(value.in(values.toArray(new Expression<?>[values.size()])));
+            }
+
+            subquery.select(attribute.<String> get("id")).where(toArray(attributePredicates));
+
+            predicates.add(this.builder.exists(subquery));
+        }
+    }
+
+    private Expression<DatabaseGroup> groupParameter(String name) {
+        return this.builder.parameter(DatabaseGroup.class, name);
+    }
+
+    private Order order(Expression<?> expression, boolean ascending) {
+        return ascending ? this.builder.asc(expression) : this.builder.desc(expression);
+    }
+
+    private Predicate[] toArray(List<Predicate> predicates) {
+        return predicates.toArray(new Predicate[predicates.size()]);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.jpa;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaQuery;
+
+/**
+ * <p>
+ * The values of the conditions of a query, bound as named parameters of the {@link CriteriaQuery} created from them by
+ * {@link JPACriteriaQueryBuilder}.
+ * </p>
+ * <p>
+ * The shape of a query tells which conditions are set, but not their values. Queries with the same shape render to the same
+ * JPQL whatever their values, so the persistence provider parses it once and reuses its own plan of it.
+ * </p>
+ */
+public class JPAQueryParameters {
+
+    /**
+     * Escape character of the LIKE patterns, whose literal '%' and '_' are escaped with it
+     */
+    public static final char ESCAPE = '\\';
+
+    private static final String WILDCARD = "*";
+
+    private final Class<?> resultType;
+    private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+    private final Set<String> patterns = new HashSet<String>();
+    private final Set<String> flags = new HashSet<String>();
+
+    public JPAQueryParameters(Class<?> resultType) {
+        this.resultType = resultType;
+    }
+
+    /**
+     * <p>
+     * Adds a string condition, matched with LIKE if the value contains the '*' wildcard. Null values are ignored.
+     * </p>
+     *
+     * @param name
+     * @param value
+     */
+    public void match(String name, String value) {
+        if (value == null) {
+            return;
+        }
+
+        if (value.contains(WILDCARD)) {
+            this.patterns.add(name);
+            this.values.put(name, toPattern(value));
+        } else {
+            equal(name, value);
+        }
+    }
+
+    /**
+     * <p>
+     * Adds an equality condition. Null values are ignored.
+     * </p>
+     *
+     * @param name
+     * @param value
+     */
+    public void equal(String name, Object value) {
+        if (value != null) {
+            this.values.put(name, value);
+        }
+    }
+
+    /**
+     * <p>
+     * Sets a flag changing the way the conditions are resolved. Flags are part of the shape and have no value.
+     * </p>
+     *
+     * @param name
+     * @param set
+     */
+    public void flag(String name, boolean set) {
+        if (set) {
+            this.flags.add(name);
+        }
+    }
+
+    /**
+     * <p>
+     * Turns a value with '*' wildcards into a LIKE pattern, escaping the characters LIKE would take as wildcards.
+     * </p>
+     */
+    private static String toPattern(String value) {
+        StringBuilder pattern = new StringBuilder();
+
+        for (char c : value.toCharArray()) {
+            if (c == '*') {
+                pattern.append('%');
+            } else {
+                if (c == '%' || c == '_' || c == ESCAPE) {
+                    pattern.append(ESCAPE);
+                }
+                pattern.append(c);
+            }
+        }
+
+        return pattern.toString();
+    }
+
+    public Class<?> getResultType() {
+        return this.resultType;
+    }
+
+    public boolean has(String name) {
+        return this.values.containsKey(name);
+    }
+
+    public boolean isPattern(String name) {
+        return this.patterns.contains(name);
+    }
+
+    public boolean isSet(String flag) {
+        return this.flags.contains(flag);
+    }
+
+    /**
+     * <p>
+     * Binds the values to the parameters of a query created from a {@link CriteriaQuery} of the same shape.
+     * </p>
+     *
+     * @param query
+     */
+    public void bind(Query query) {
+        for (Entry<String, Object> value : this.values.entrySet()) {
+            query.setParameter(value.getKey(), value.getValue());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.picketlink.idm.internal.jpa;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TransactionRequiredException;
+
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+
+/**
+ * <p>
+ * {@link QueryResultIterator} that reads the results of a query in chunks of <code>fetchSize</code> entities. Each chunk is
+ * loaded with a keyset {@link Range} starting after the sort key of the previous chunk, so every chunk costs the same no
+ * matter how deep the iteration is.
+ * </p>
+ * <p>
+ * Once the iterator moves past a chunk its entities are flushed and detached from the {@link EntityManager}, which keeps
+ * the persistence context (and the memory used) bounded by the fetch size. Entities returned by the iterator should be
+ * modified before moving to the next chunk.
+ * </p>
+ *
+ * @param <T>
+ */
+public abstract class JPAQueryResultIterator<T> implements QueryResultIterator<T> {
+
+    private final JPATemplate jpaTemplate;
+    private final int fetchSize;
+
+    private Range nextChunk;
+    private int remaining;
+    private List<T> chunk = Collections.emptyList();
+    private int position;
+    private boolean exhausted;
+
+    public JPAQueryResultIterator(JPATemplate jpaTemplate, Range range, int fetchSize) {
+        this.jpaTemplate = jpaTemplate;
+        this.fetchSize = fetchSize;
+        this.remaining = range != null ? range.getLimit() : -1;
+
+        if (range != null && range.isKeyset()) {
+            this.nextChunk = Range.after(range.getLastKey(), fetchSize);
+        } else if (range != null && range.getOffset() > 0) {
+            this.nextChunk = Range.of(range.getOffset(), fetchSize);
+        } else {
+            this.nextChunk = Range.after(null, fetchSize);
+        }
+    }
+
+    /**
+     * <p>
+     * Loads the entities of the given chunk.
+     * </p>
+     *
+     * @param chunk
+     * @return
+     */
+    protected abstract List<T> fetch(Range chunk);
+
+    /**
+     * <p>
+     * Returns the key the results are sorted by.
+     * </p>
+     *
+     * @param entity
+     * @return
+     */
+    protected abstract String getSortKey(T entity);
+
+    @Override
+    public boolean hasNext() {
+        if (this.position < this.chunk.size()) {
+            return true;
+        }
+
+        if (this.exhausted) {
+            return false;
+        }
+
+        fetchNextChunk();
+
+        return this.position < this.chunk.size();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        if (this.remaining > 0) {
+            this.remaining--;
+        }
+
+        return this.chunk.get(this.position++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        release(this.chunk);
+        this.chunk = Collections.emptyList();
+        this.position = 0;
+        this.exhausted = true;
+    }
+
+    private void fetchNextChunk() {
+        release(this.chunk);
+
+        int size = this.remaining < 0 ? this.fetchSize : Math.min(this.fetchSize, this.remaining);
+
+        if (size == 0) {
+            close();
+            return;
+        }
+
+        if (this.nextChunk.isKeyset()) {
+            this.nextChunk = Range.after(this.nextChunk.getLastKey(), size);
+        } else {
+            this.nextChunk = Range.of(this.nextChunk.getOffset(), size);
+        }
+
+        this.chunk = fetch(this.nextChunk);
+        this.position = 0;
+
+        if (this.chunk.size() < size) {
+            this.exhausted = true;
+        } else {
+            this.nextChunk = Range.after(getSortKey(this.chunk.get(this.chunk.size() - 1)), this.fetchSize);
+        }
+    }
+
+    private void release(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return;
+        }
+
+        this.jpaTemplate.execute(new JPACallback() {
+
+            @Override
+            public Object execute(EntityManager entityManager) {
+                try {
+                    entityManager.flush();
+                } catch (TransactionRequiredException tre) {
+                    // without a transaction there are no pending changes to be lost
+                }
+
+                for (T entity : entities) {
+                    entityManager.detach(entity);
+                }
+
+                return null;
+            }
+        });
+    }
+}
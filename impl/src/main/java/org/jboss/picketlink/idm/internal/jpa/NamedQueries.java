@@ -28,8 +28,18 @@ package org.jboss.picketlink.idm.internal.jpa;
  */
 public interface NamedQueries {
 
+    /**
+     * Hint caching the results of a query in the query cache of the persistence provider, when it has one. The by key
+     * queries are cached, so loading an identity type or a membership by its key again does not hit the database.
+     */
+    String CACHEABLE_HINT = "org.hibernate.cacheable";
+
     String USER_LOAD_BY_KEY = "USER.LOAD_BY_KEY";
     String ROLE_LOAD_BY_KEY = "ROLE.LOAD_BY_KEY";
     String GROUP_LOAD_BY_KEY = "GROUP.LOAD_BY_KEY";
-    String MEMBERSHIP_LOAD_BY_KEY = "MEMBERSHIP.LOAD_BY_KEY";
+    String GROUP_HIERARCHY_LOAD_ANCESTORS = "GROUP_HIERARCHY.LOAD_ANCESTORS";
+    String GROUP_HIERARCHY_REMOVE = "GROUP_HIERARCHY.REMOVE";
+    String USER_ATTRIBUTE_LOAD_BY_OWNERS = "USER_ATTRIBUTE.LOAD_BY_OWNERS";
+    String GROUP_ATTRIBUTE_LOAD_BY_OWNERS = "GROUP_ATTRIBUTE.LOAD_BY_OWNERS";
+    String ROLE_ATTRIBUTE_LOAD_BY_OWNERS = "ROLE_ATTRIBUTE.LOAD_BY_OWNERS";
 }
\ No newline at end of file
@@ -24,9 +24,13 @@ package org.jboss.picketlink.idm.internal.ldap;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import javax.naming.Binding;
 import javax.naming.Context;
@@ -38,6 +42,7 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
@@ -61,6 +66,19 @@ public class DirContextAdaptor implements DirContext, IdentityType {
 
     protected LDAPChangeNotificationHandler handler = null;
 
+    protected LDAPAttributeLoader attributeLoader = null;
+
+    // Lower cased ids of the attributes read from the directory or changed locally, when the entry was read partially
+    private Set<String> loadedAttributeIds = null;
+
+    // Changes not written to the directory yet, by lower cased attribute id. An attribute is either replaced as a whole, or
+    // has values added and removed.
+    private final Map<String, Attribute> replacedAttributes = new LinkedHashMap<String, Attribute>();
+    private final Map<String, Attribute> addedValues = new LinkedHashMap<String, Attribute>();
+    private final Map<String, Attribute> removedValues = new LinkedHashMap<String, Attribute>();
+
+    private boolean deferChanges = false;
+
     @Override
     public Object lookup(Name name) throws NamingException {
         return null;
@@ -70,6 +88,212 @@ public class DirContextAdaptor implements DirContext, IdentityType {
         this.handler = lh;
     }
 
+    /**
+     * Mark this object as read with only the given attributes. The other ones, typically large multi-valued attributes like
+     * <code>member</code>, are read through the loader the first time they are accessed.
+     *
+     * @param loader
+     * @param loadedAttributes
+     */
+    public void setLDAPAttributeLoader(LDAPAttributeLoader loader, String[] loadedAttributes) {
+        this.attributeLoader = loader;
+        this.loadedAttributeIds = new HashSet<String>();
+        for (String id : loadedAttributes) {
+            loadedAttributeIds.add(id.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * @return the distinguished name of the entry, or null if it is not known
+     */
+    public String getDN() {
+        return null;
+    }
+
+    /**
+     * Read the given attribute from the directory if it was left out when the entry was read
+     *
+     * @param id
+     */
+    protected void loadAttribute(String id) {
+        String lowerCaseId = id.toLowerCase(Locale.ENGLISH);
+        if (attributeLoader == null || loadedAttributeIds.contains(lowerCaseId)) {
+            return;
+        }
+        merge(attributeLoader.loadAttributes(getDN(), new String[] { id }));
+        loadedAttributeIds.add(lowerCaseId);
+    }
+
+    /**
+     * Read all the attributes left out when the entry was read. Has to be called before the whole entry is written back.
+     */
+    public void loadAllAttributes() {
+        if (attributeLoader == null) {
+            return;
+        }
+        merge(attributeLoader.loadAttributes(getDN(), null));
+        attributeLoader = null;
+        loadedAttributeIds = null;
+    }
+
+    /**
+     * Add the attributes read from the directory, keeping the ones already loaded or changed locally
+     */
+    private void merge(Attributes loaded) {
+        NamingEnumeration<? extends Attribute> all = loaded.getAll();
+        try {
+            while (all.hasMore()) {
+                Attribute attribute = all.next();
+                if (!loadedAttributeIds.contains(attribute.getID().toLowerCase(Locale.ENGLISH))) {
+                    attributes.put(attribute);
+                }
+            }
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Record a local change of an attribute, which then must not be overwritten by a lazy load
+     */
+    private void changed(String id) {
+        if (loadedAttributeIds != null) {
+            loadedAttributeIds.add(id.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Keep the changes made to this object until {@link #flushChanges()} is called, instead of writing each of them to the
+     * directory as it is made
+     */
+    public void deferChanges() {
+        this.deferChanges = true;
+    }
+
+    /**
+     * Write the changes recorded since {@link #deferChanges()} to the directory, as a single modification of the entry, and
+     * go back to writing each change as it is made
+     */
+    public void flushChanges() {
+        this.deferChanges = false;
+        notifyChanged();
+    }
+
+    /**
+     * @return true if there are changes not written to the directory yet
+     */
+    public boolean hasModifications() {
+        return !replacedAttributes.isEmpty() || !addedValues.isEmpty() || !removedValues.isEmpty();
+    }
+
+    /**
+     * Return the changes not written to the directory yet. Changes to the same attribute are coalesced: an attribute set
+     * several times is replaced once with its last values, and the values added to or removed from an attribute are sent
+     * as a single add and a single remove.
+     *
+     * @return
+     */
+    public ModificationItem[] getModifications() {
+        List<ModificationItem> modifications = new ArrayList<ModificationItem>();
+        for (Attribute attribute : replacedAttributes.values()) {
+            modifications.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, attribute));
+        }
+        for (Attribute attribute : removedValues.values()) {
+            modifications.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, attribute));
+        }
+        for (Attribute attribute : addedValues.values()) {
+            modifications.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, attribute));
+        }
+        return modifications.toArray(new ModificationItem[modifications.size()]);
+    }
+
+    /**
+     * Forget the recorded changes, once they are written to the directory
+     */
+    public void clearModifications() {
+        replacedAttributes.clear();
+        addedValues.clear();
+        removedValues.clear();
+    }
+
+    /**
+     * Add a value to a multi-valued attribute, recording the change as an addition of that value only
+     *
+     * @param id
+     * @param value
+     */
+    protected void addAttributeValue(String id, String value) {
+        Attribute attribute = attributes.get(id);
+        if (attribute == null) {
+            attribute = new BasicAttribute(id);
+            attributes.put(attribute);
+        }
+        attribute.add(value);
+
+        String key = id.toLowerCase(Locale.ENGLISH);
+        if (replacedAttributes.containsKey(key)) {
+            replacedAttributes.get(key).add(value);
+        } else if (removedValues.containsKey(key) && removedValues.get(key).remove(value)) {
+            removeIfEmpty(removedValues, key);
+        } else {
+            valuesOf(addedValues, id).add(value);
+        }
+    }
+
+    /**
+     * Remove a value from a multi-valued attribute, recording the change as a removal of that value only
+     *
+     * @param id
+     * @param value
+     */
+    protected void removeAttributeValue(String id, String value) {
+        Attribute attribute = attributes.get(id);
+        if (attribute != null) {
+            attribute.remove(value);
+        }
+
+        String key = id.toLowerCase(Locale.ENGLISH);
+        if (replacedAttributes.containsKey(key)) {
+            replacedAttributes.get(key).remove(value);
+        } else if (addedValues.containsKey(key) && addedValues.get(key).remove(value)) {
+            removeIfEmpty(addedValues, key);
+        } else {
+            valuesOf(removedValues, id).add(value);
+        }
+    }
+
+    /**
+     * Record that an attribute is replaced as a whole, an attribute without values removing it
+     */
+    private void replaced(Attribute attribute) {
+        String key = attribute.getID().toLowerCase(Locale.ENGLISH);
+        addedValues.remove(key);
+        removedValues.remove(key);
+        replacedAttributes.put(key, (Attribute) attribute.clone());
+    }
+
+    private void notifyChanged() {
+        if (!deferChanges && handler != null && hasModifications()) {
+            handler.handle(new LDAPObjectChangedNotification(this));
+        }
+    }
+
+    private static Attribute valuesOf(Map<String, Attribute> changes, String id) {
+        String key = id.toLowerCase(Locale.ENGLISH);
+        Attribute values = changes.get(key);
+        if (values == null) {
+            values = new BasicAttribute(id);
+            changes.put(key, values);
+        }
+        return values;
+    }
+
+    private static void removeIfEmpty(Map<String, Attribute> changes, String key) {
+        if (changes.get(key).size() == 0) {
+            changes.remove(key);
+        }
+    }
+
     @Override
     public Object lookup(String name) throws NamingException {
         return null;
@@ -342,7 +566,7 @@ public class DirContextAdaptor implements DirContext, IdentityType {
 
     @Override
     public boolean isEnabled() {
-        return false;
+        return true;
     }
 
     @Override
@@ -357,30 +581,33 @@ public class DirContextAdaptor implements DirContext, IdentityType {
 
     @Override
     public void setAttribute(String name, String value) {
-        attributes.put(name, value);
-        if (handler != null) {
-            handler.handle(new LDAPObjectChangedNotification(this));
-        }
+        setAttribute(name, new String[] { value });
     }
 
     @Override
     public void setAttribute(String name, String[] values) {
-        attributes.put(name, values);
-        if (handler != null) {
-            handler.handle(new LDAPObjectChangedNotification(this));
+        changed(name);
+        Attribute attribute = new BasicAttribute(name);
+        for (String value : values) {
+            attribute.add(value);
         }
+        attributes.put(attribute);
+        replaced(attribute);
+        notifyChanged();
     }
 
     @Override
     public void removeAttribute(String name) {
+        changed(name);
         attributes.remove(name);
-        if (handler != null) {
-            handler.handle(new LDAPObjectChangedNotification(this));
-        }
+        // Replacing with no values removes the attribute, and unlike a removal does not fail if it is not there
+        replaced(new BasicAttribute(name));
+        notifyChanged();
     }
 
     @Override
     public String getAttribute(String name) {
+        loadAttribute(name);
         try {
             Attribute theAttribute = attributes.get(name);
             return (String) theAttribute.get();
@@ -391,9 +618,17 @@ public class DirContextAdaptor implements DirContext, IdentityType {
 
     @Override
     public String[] getAttributeValues(String name) {
+        loadAttribute(name);
         try {
             Attribute theAttribute = attributes.get(name);
-            return (String[]) theAttribute.get();
+            if (theAttribute == null) {
+                return null;
+            }
+            String[] values = new String[theAttribute.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (String) theAttribute.get(i);
+            }
+            return values;
         } catch (NamingException e) {
             throw new RuntimeException(e);
         }
@@ -402,6 +637,7 @@ public class DirContextAdaptor implements DirContext, IdentityType {
     @SuppressWarnings("unchecked")
     @Override
     public Map<String, String[]> getAttributes() {
+        loadAllAttributes();
         try {
             Map<String, String[]> map = new HashMap<String, String[]>();
             NamingEnumeration<? extends Attribute> theAttributes = attributes.getAll();
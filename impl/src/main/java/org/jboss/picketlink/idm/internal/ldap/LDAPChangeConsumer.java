@@ -0,0 +1,490 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.ldap;
+
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.CN;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.HIGHEST_COMMITTED_USN;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.MODIFY_TIMESTAMP;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.USN_CHANGED;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.jboss.picketlink.idm.event.GroupEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent.Action;
+import org.jboss.picketlink.idm.event.OverflowEvent;
+import org.jboss.picketlink.idm.event.RoleEvent;
+import org.jboss.picketlink.idm.event.UserEvent;
+import org.jboss.picketlink.idm.internal.event.IdentityEventBus;
+
+/**
+ * Follows the changes made to the users, groups and roles of the directory, whoever makes them, so that what is cached from
+ * the directory stays coherent. Each change invalidates the cached {@link LDAPGroupHierarchy} if it touches a group, and is
+ * published to an {@link IdentityEventBus} as a {@link UserEvent}, {@link GroupEvent} or {@link RoleEvent} named after the
+ * entry, for listeners such as caching stores to drop the entries they hold. Users are published under their uid, the name
+ * of the events published for them by the stores, and under their common name, the name they are looked up by.
+ * <p/>
+ * Changes are read from one of two sources, on a connection of its own held by a background thread:
+ * <ul>
+ * <li>A persistent search under the suffixes, with the {@link LDAPPersistentSearchControl}. Changes arrive as they are made,
+ * with their kind. When the connection is lost the changes made meanwhile are unknown, so once reconnected the consumer
+ * invalidates everything: the group tree, and listeners are sent an {@link OverflowEvent}.</li>
+ * <li>Polling, for servers without persistent search such as Active Directory: the entries whose
+ * {@link #setPollingAttribute(String) polling attribute}, <code>modifyTimestamp</code> or <code>uSNChanged</code>, went past the
+ * last value seen are searched at a fixed interval and published as updated. Polling does not see removed entries, so
+ * everything is invalidated at a longer {@link #setResyncInterval(long) resync interval}, which bounds how long a removal
+ * goes unnoticed.</li>
+ * </ul>
+ * In {@link Mode#AUTO} the persistent search is used unless the server rejects the control.
+ */
+public class LDAPChangeConsumer {
+
+    public enum Mode {
+        AUTO, PERSISTENT_SEARCH, POLLING
+    }
+
+    private static final String ALL_ENTRIES = "(objectClass=*)";
+    // The common name of users, which is not part of their DN
+    private static final String[] NAME_ATTRIBUTES = new String[] { CN };
+
+    private final LDAPConnectionPool pool;
+    private final LDAPGroupHierarchy groupHierarchy;
+    private final IdentityEventBus eventBus;
+    private final LdapName userSuffix;
+    private final LdapName roleSuffix;
+    private final LdapName groupSuffix;
+    private final LdapName searchBase;
+
+    private Mode mode = Mode.AUTO;
+    private String pollingAttribute = MODIFY_TIMESTAMP;
+    private long pollInterval = 30000;
+    private long resyncInterval = 15 * 60 * 1000;
+    private long reconnectDelay = 5000;
+    private long clockSkew = 60000;
+
+    private volatile boolean running;
+    private volatile Mode activeMode;
+    private Thread thread;
+    private volatile LdapContext context;
+    private volatile NamingEnumeration<SearchResult> changes;
+
+    // Polling state, only used by the consumer thread
+    private String lastValue;
+    private final Set<String> seenAtLastValue = new HashSet<String>();
+    private long lastResync;
+
+    /**
+     * @param pool the pool of the store, used to open the connection of the consumer
+     * @param groupHierarchy the group tree of the store, invalidated when groups change
+     * @param userDNSuffix
+     * @param roleDNSuffix
+     * @param groupDNSuffix
+     * @param eventBus the bus the changes are published to, or null to only invalidate the group tree
+     */
+    public LDAPChangeConsumer(LDAPConnectionPool pool, LDAPGroupHierarchy groupHierarchy, String userDNSuffix,
+            String roleDNSuffix, String groupDNSuffix, IdentityEventBus eventBus) {
+        this.pool = pool;
+        this.groupHierarchy = groupHierarchy;
+        this.eventBus = eventBus;
+        this.userSuffix = parse(userDNSuffix);
+        this.roleSuffix = parse(roleDNSuffix);
+        this.groupSuffix = parse(groupDNSuffix);
+        this.searchBase = commonSuffix(userSuffix, roleSuffix, groupSuffix);
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return the source of the changes currently read, null until the consumer is connected
+     */
+    public Mode getActiveMode() {
+        return activeMode;
+    }
+
+    /**
+     * Set the attribute compared by polling: <code>modifyTimestamp</code> by default, <code>uSNChanged</code> for Active
+     * Directory, whose timestamps are not replicated
+     *
+     * @param pollingAttribute
+     */
+    public void setPollingAttribute(String pollingAttribute) {
+        this.pollingAttribute = pollingAttribute;
+    }
+
+    /**
+     * @param pollInterval milliseconds between two polls, 30 seconds by default
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param resyncInterval milliseconds between two invalidations of everything while polling, 15 minutes by default
+     */
+    public void setResyncInterval(long resyncInterval) {
+        this.resyncInterval = resyncInterval;
+    }
+
+    /**
+     * @param reconnectDelay milliseconds to wait before reconnecting after a failure, 5 seconds by default
+     */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * @param clockSkew how far behind the clock of the server may be, in milliseconds, when polling timestamps starts from
+     *        the local time. One minute by default.
+     */
+    public void setClockSkew(long clockSkew) {
+        this.clockSkew = clockSkew;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "picketlink-idm-ldap-changes");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop following the changes and close the connection of the consumer
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        NamingEnumeration<SearchResult> pending = changes;
+        if (pending != null) {
+            try {
+                pending.close();
+            } catch (NamingException e) {
+                // closing anyway
+            }
+        }
+        closeQuietly(context);
+        thread.interrupt();
+        try {
+            thread.join(reconnectDelay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        activeMode = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void consume() {
+        boolean persistentSearchRejected = false;
+        boolean connected = false;
+        while (running) {
+            LdapContext current = null;
+            try {
+                current = pool.create();
+                context = current;
+                if (mode == Mode.POLLING || (mode == Mode.AUTO && persistentSearchRejected)) {
+                    activeMode = Mode.POLLING;
+                    poll(current);
+                } else {
+                    activeMode = Mode.PERSISTENT_SEARCH;
+                    if (connected) {
+                        // The changes made while disconnected are lost
+                        resync();
+                    }
+                    connected = true;
+                    followPersistentSearch(current);
+                }
+            } catch (OperationNotSupportedException e) {
+                if (mode == Mode.AUTO) {
+                    persistentSearchRejected = true;
+                    continue;
+                }
+                pause(reconnectDelay);
+            } catch (NamingException e) {
+                pause(reconnectDelay);
+            } catch (RuntimeException e) {
+                pause(reconnectDelay);
+            } finally {
+                changes = null;
+                context = null;
+                closeQuietly(current);
+            }
+        }
+    }
+
+    // Persistent search
+
+    private void followPersistentSearch(LdapContext current) throws NamingException {
+        current.setRequestControls(new Control[] { new LDAPPersistentSearchControl() });
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(NAME_ATTRIBUTES);
+
+        NamingEnumeration<SearchResult> results = current.search(searchBase, ALL_ENTRIES, controls);
+        changes = results;
+        while (running && results.hasMore()) {
+            SearchResult result = results.next();
+            Control[] responseControls = result instanceof HasControls ? ((HasControls) result).getControls() : null;
+            LDAPEntryChangeNotification change = LDAPEntryChangeNotification.find(responseControls);
+
+            List<IdentityEvent> events = new ArrayList<IdentityEvent>(2);
+            String dn = result.getNameInNamespace();
+            String cn = commonName(result);
+            if (change == null) {
+                addEvent(events, dn, cn, Action.UPDATED);
+            } else if (change.getChangeType() == LDAPEntryChangeNotification.MODDN) {
+                if (change.getPreviousDN() != null) {
+                    addEvent(events, change.getPreviousDN(), cn, Action.REMOVED);
+                }
+                addEvent(events, dn, cn, Action.CREATED);
+            } else {
+                addEvent(events, dn, cn, toAction(change.getChangeType()));
+            }
+            publish(events);
+        }
+    }
+
+    private static Action toAction(int changeType) {
+        switch (changeType) {
+            case LDAPEntryChangeNotification.ADD:
+                return Action.CREATED;
+            case LDAPEntryChangeNotification.DELETE:
+                return Action.REMOVED;
+            default:
+                return Action.UPDATED;
+        }
+    }
+
+    // Polling
+
+    private void poll(LdapContext current) throws NamingException {
+        if (lastValue == null) {
+            lastValue = initialValue(current);
+            lastResync = System.currentTimeMillis();
+        }
+        while (running) {
+            if (System.currentTimeMillis() - lastResync >= resyncInterval) {
+                resync();
+                lastResync = System.currentTimeMillis();
+            }
+
+            SearchControls controls = new SearchControls();
+            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            controls.setReturningAttributes(new String[] { pollingAttribute, CN });
+            NamingEnumeration<SearchResult> results = current.search(searchBase, "(" + pollingAttribute + ">={0})",
+                    new Object[] { lastValue }, controls);
+
+            List<IdentityEvent> events = new ArrayList<IdentityEvent>();
+            String newLastValue = lastValue;
+            Set<String> seenAtNewLastValue = new HashSet<String>(seenAtLastValue);
+            try {
+                while (results.hasMore()) {
+                    SearchResult result = results.next();
+                    String dn = result.getNameInNamespace();
+                    Attribute attribute = result.getAttributes().get(pollingAttribute);
+                    String value = attribute != null ? (String) attribute.get() : null;
+                    if (value == null || (compare(value, lastValue) == 0 && seenAtLastValue.contains(dn))) {
+                        continue;
+                    }
+                    addEvent(events, dn, commonName(result), Action.UPDATED);
+
+                    int comparison = compare(value, newLastValue);
+                    if (comparison > 0) {
+                        newLastValue = value;
+                        seenAtNewLastValue.clear();
+                    }
+                    if (comparison >= 0) {
+                        seenAtNewLastValue.add(dn);
+                    }
+                }
+            } finally {
+                results.close();
+            }
+            lastValue = newLastValue;
+            seenAtLastValue.clear();
+            seenAtLastValue.addAll(seenAtNewLastValue);
+
+            publish(events);
+            pause(pollInterval);
+        }
+    }
+
+    /**
+     * The value polling starts from: the highest committed USN of the server for <code>uSNChanged</code>, the local time
+     * less the clock skew for timestamps
+     */
+    private String initialValue(LdapContext current) throws NamingException {
+        if (USN_CHANGED.equalsIgnoreCase(pollingAttribute)) {
+            Attributes rootDSE = current.getAttributes("", new String[] { HIGHEST_COMMITTED_USN });
+            Attribute usn = rootDSE.get(HIGHEST_COMMITTED_USN);
+            if (usn == null) {
+                throw new RuntimeException("The server does not publish " + HIGHEST_COMMITTED_USN);
+            }
+            return (String) usn.get();
+        }
+        SimpleDateFormat generalizedTime = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        generalizedTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return generalizedTime.format(new Date(System.currentTimeMillis() - clockSkew));
+    }
+
+    /**
+     * Compare USNs as numbers, timestamps as text
+     */
+    private static int compare(String first, String second) {
+        try {
+            long difference = Long.parseLong(first) - Long.parseLong(second);
+            return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+        } catch (NumberFormatException e) {
+            return first.compareTo(second);
+        }
+    }
+
+    // Publishing
+
+    private void addEvent(List<IdentityEvent> events, String dn, String cn, Action action) {
+        LdapName name;
+        try {
+            name = new LdapName(dn);
+        } catch (InvalidNameException e) {
+            return;
+        }
+        if (isChild(name, userSuffix)) {
+            String uid = rdnValue(name);
+            events.add(new UserEvent(action, uid, null));
+            if (cn != null && !cn.equals(uid)) {
+                events.add(new UserEvent(action, cn, null));
+            }
+        } else if (isChild(name, groupSuffix)) {
+            events.add(new GroupEvent(action, rdnValue(name), null));
+        } else if (isChild(name, roleSuffix)) {
+            events.add(new RoleEvent(action, rdnValue(name), null));
+        }
+    }
+
+    private void publish(List<IdentityEvent> events) {
+        for (IdentityEvent event : events) {
+            if (event instanceof GroupEvent) {
+                // The parent of a group is held by the member attribute of another group, so any change may move it
+                groupHierarchy.invalidate();
+                break;
+            }
+        }
+        if (eventBus != null && !events.isEmpty()) {
+            eventBus.publish(events);
+        }
+    }
+
+    private void resync() {
+        groupHierarchy.invalidate();
+        if (eventBus != null) {
+            eventBus.publish(new OverflowEvent(-1));
+        }
+    }
+
+    private static String commonName(SearchResult result) throws NamingException {
+        Attribute attribute = result.getAttributes().get(CN);
+        return attribute != null ? (String) attribute.get() : null;
+    }
+
+    private static boolean isChild(LdapName name, LdapName suffix) {
+        return name.size() == suffix.size() + 1 && name.startsWith(suffix);
+    }
+
+    private static String rdnValue(LdapName name) {
+        return name.getRdn(name.size() - 1).getValue().toString();
+    }
+
+    private static LdapName parse(String dn) {
+        try {
+            return new LdapName(dn);
+        } catch (InvalidNameException e) {
+            throw new RuntimeException("Invalid DN:" + dn, e);
+        }
+    }
+
+    private static LdapName commonSuffix(LdapName... names) {
+        List<Rdn> common = names[0].getRdns();
+        for (LdapName name : names) {
+            int size = 0;
+            while (size < common.size() && size < name.size() && common.get(size).equals(name.getRdn(size))) {
+                size++;
+            }
+            common = common.subList(0, size);
+        }
+        return new LdapName(common);
+    }
+
+    private void pause(long millis) {
+        if (!running) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private static void closeQuietly(LdapContext current) {
+        if (current != null) {
+            try {
+                current.close();
+            } catch (NamingException e) {
+                // nothing else to do
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.ldap;
+
+import java.util.Hashtable;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.jboss.picketlink.idm.internal.config.LDAPConfiguration;
+
+/**
+ * A bounded pool of {@link LdapContext} instances. JNDI contexts are not thread safe, so every operation borrows its own
+ * context and returns it when done.
+ * <p/>
+ * Idle contexts are reused most recently used first. Contexts idle for longer than the configured time are closed when
+ * contexts are borrowed and returned, while at least the configured minimum is kept open. Contexts idle for longer than
+ * the validation interval are checked before being handed out. A communication failure closes the idle contexts too, as
+ * the server most likely dropped all of them.
+ */
+public class LDAPConnectionPool {
+    // Reads the root DSE without asking for any attribute
+    private static final String[] NO_ATTRIBUTES = new String[] { "1.1" };
+
+    private final Hashtable<?, ?> environment;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxIdleTime;
+    private final long maxWait;
+    private final boolean validateOnBorrow;
+    private final long validationInterval;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<IdleContext> idle = new LinkedBlockingDeque<IdleContext>();
+    private volatile boolean closed;
+
+    public LDAPConnectionPool(Hashtable<?, ?> environment, LDAPConfiguration configuration) {
+        this.environment = environment;
+        this.minSize = configuration.getPoolMinSize();
+        this.maxSize = configuration.getPoolMaxSize();
+        this.maxIdleTime = configuration.getPoolMaxIdleTime();
+        this.maxWait = configuration.getPoolMaxWait();
+        this.validateOnBorrow = configuration.isPoolValidateOnBorrow();
+        this.validationInterval = configuration.getPoolValidationInterval();
+
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new RuntimeException("Invalid LDAP pool size: min=" + minSize + ", max=" + maxSize);
+        }
+
+        this.permits = new Semaphore(maxSize, true);
+
+        // Fail fast on a wrong configuration
+        for (int i = 0; i < minSize; i++) {
+            idle.offerFirst(new IdleContext(create()));
+        }
+    }
+
+    /**
+     * Borrow a context, waiting up to the configured maximum wait time if all of them are in use
+     *
+     * @return
+     */
+    public LdapContext borrow() {
+        if (closed) {
+            throw new RuntimeException("LDAP connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Timed out waiting for an LDAP connection after " + maxWait + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        try {
+            evictIdle();
+            IdleContext candidate;
+            while ((candidate = idle.pollFirst()) != null) {
+                if (!needsValidation(candidate) || isValid(candidate.context)) {
+                    return candidate.context;
+                }
+                closeQuietly(candidate.context);
+            }
+            return create();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return a context borrowed from this pool
+     *
+     * @param context
+     */
+    public void release(LdapContext context) {
+        if (closed) {
+            closeQuietly(context);
+        } else {
+            idle.offerFirst(new IdleContext(context));
+        }
+        permits.release();
+        evictIdle();
+    }
+
+    /**
+     * Discard a context borrowed from this pool after a communication failure, along with the idle contexts
+     *
+     * @param context
+     */
+    public void invalidate(LdapContext context) {
+        closeQuietly(context);
+        IdleContext candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            closeQuietly(candidate.context);
+        }
+        permits.release();
+    }
+
+    /**
+     * Close the contexts idle for longer than the maximum idle time, keeping at least the minimum size
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        while (idle.size() > minSize) {
+            IdleContext oldest = idle.peekLast();
+            if (oldest == null || now - oldest.since < maxIdleTime) {
+                return;
+            }
+            if (idle.removeLastOccurrence(oldest)) {
+                closeQuietly(oldest.context);
+            }
+        }
+    }
+
+    /**
+     * Close the idle contexts. Contexts in use are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        IdleContext candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            closeQuietly(candidate.context);
+        }
+    }
+
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    protected LdapContext create() {
+        try {
+            return new InitialLdapContext(environment, null);
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean needsValidation(IdleContext candidate) {
+        return validateOnBorrow && System.currentTimeMillis() - candidate.since >= validationInterval;
+    }
+
+    protected boolean isValid(LdapContext context) {
+        try {
+            context.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            return false;
+        }
+    }
+
+    private void closeQuietly(LdapContext context) {
+        try {
+            context.close();
+        } catch (NamingException ignore) {
+        }
+    }
+
+    private static class IdleContext {
+        private final LdapContext context;
+        private final long since = System.currentTimeMillis();
+
+        IdleContext(LdapContext context) {
+            this.context = context;
+        }
+    }
+}
@@ -35,4 +35,16 @@ public interface LDAPConstants {
     String MEMBER = "member";
     String OBJECT_CLASS = "objectclass";
     String UID = "uid";
+    String INET_ORG_PERSON = "inetOrgPerson";
+    String GROUP_OF_NAMES = "groupOfNames";
+    String USER_PASSWORD = "userPassword";
+    String MODIFY_TIMESTAMP = "modifyTimestamp";
+    String USN_CHANGED = "uSNChanged";
+    String HIGHEST_COMMITTED_USN = "highestCommittedUSN";
+
+    /**
+     * caseIgnoreOrderingMatch (RFC 4517), the ordering of common names used to sort results and to resume keyset ranges.
+     * <code>cn</code> has no ordering rule of its own in the standard schema.
+     */
+    String CASE_IGNORE_ORDERING_MATCH = "2.5.13.3";
 }
\ No newline at end of file
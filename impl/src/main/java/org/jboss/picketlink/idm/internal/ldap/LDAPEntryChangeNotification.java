@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.ldap;
+
+import java.nio.charset.Charset;
+
+import javax.naming.ldap.Control;
+
+/**
+ * The Entry Change Notification response control returned with the entries of a persistent search:
+ * <p/>
+ * EntryChangeNotification ::= SEQUENCE { changeType ENUMERATED, previousDN LDAPDN OPTIONAL, changeNumber INTEGER OPTIONAL }
+ */
+public class LDAPEntryChangeNotification {
+
+    public static final String OID = "2.16.840.1.113730.3.4.7";
+
+    public static final int ADD = 1;
+    public static final int DELETE = 2;
+    public static final int MODIFY = 4;
+    public static final int MODDN = 8;
+
+    private static final int SEQUENCE = 0x30;
+    private static final int INTEGER = 0x02;
+    private static final int OCTET_STRING = 0x04;
+    private static final int ENUMERATED = 0x0a;
+
+    private final int changeType;
+    private final String previousDN;
+    private final long changeNumber;
+
+    public LDAPEntryChangeNotification(int changeType, String previousDN, long changeNumber) {
+        this.changeType = changeType;
+        this.previousDN = previousDN;
+        this.changeNumber = changeNumber;
+    }
+
+    /**
+     * @param controls the response controls of an entry, may be null
+     * @return the notification found among the controls, or null
+     */
+    public static LDAPEntryChangeNotification find(Control[] controls) {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (OID.equals(control.getID())) {
+                    return decode(control.getEncodedValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    public static LDAPEntryChangeNotification decode(byte[] value) {
+        BerReader reader = new BerReader(value);
+        int end = reader.readHeader(SEQUENCE);
+        end += reader.position;
+        int changeType = (int) reader.readInteger(ENUMERATED);
+        String previousDN = null;
+        long changeNumber = -1;
+        if (reader.position < end && reader.peek() == OCTET_STRING) {
+            previousDN = reader.readString();
+        }
+        if (reader.position < end && reader.peek() == INTEGER) {
+            changeNumber = reader.readInteger(INTEGER);
+        }
+        return new LDAPEntryChangeNotification(changeType, previousDN, changeNumber);
+    }
+
+    /**
+     * @return one of {@link #ADD}, {@link #DELETE}, {@link #MODIFY} or {@link #MODDN}
+     */
+    public int getChangeType() {
+        return changeType;
+    }
+
+    /**
+     * @return the DN of the entry before it was renamed or moved, null for other changes
+     */
+    public String getPreviousDN() {
+        return previousDN;
+    }
+
+    /**
+     * @return the number of the change in the server change log, -1 if the server did not send it
+     */
+    public long getChangeNumber() {
+        return changeNumber;
+    }
+
+    /**
+     * Reader of the few BER elements used by the control
+     */
+    private static class BerReader {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private final byte[] bytes;
+        private int position;
+
+        BerReader(byte[] bytes) {
+            if (bytes == null) {
+                throw new RuntimeException("Entry change notification without value");
+            }
+            this.bytes = bytes;
+        }
+
+        int peek() {
+            return bytes[position] & 0xff;
+        }
+
+        /**
+         * @return the length of the element, once its tag and length are read
+         */
+        int readHeader(int tag) {
+            if (position >= bytes.length || peek() != tag) {
+                throw new RuntimeException("Invalid entry change notification at " + position);
+            }
+            position++;
+            int length = bytes[position++] & 0xff;
+            if (length > 0x7f) {
+                int count = length & 0x7f;
+                length = 0;
+                for (int i = 0; i < count; i++) {
+                    length = (length << 8) | (bytes[position++] & 0xff);
+                }
+            }
+            if (length < 0 || position + length > bytes.length) {
+                throw new RuntimeException("Invalid entry change notification length at " + position);
+            }
+            return length;
+        }
+
+        long readInteger(int tag) {
+            int length = readHeader(tag);
+            long value = length > 0 && bytes[position] < 0 ? -1 : 0;
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | (bytes[position++] & 0xff);
+            }
+            return value;
+        }
+
+        String readString() {
+            int length = readHeader(OCTET_STRING);
+            String value = new String(bytes, position, length, UTF8);
+            position += length;
+            return value;
+        }
+    }
+}
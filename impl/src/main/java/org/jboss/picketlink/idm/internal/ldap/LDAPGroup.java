@@ -58,6 +58,7 @@ public class LDAPGroup extends DirContextAdaptor implements Group {
     }
 
     public void addRole(LDAPRole role) {
+        loadAttribute(MEMBER);
         Attribute memberAttribute = attributes.get(MEMBER);
         if (memberAttribute != null) {
             if (memberAttribute.contains(SPACE_STRING)) {
@@ -72,6 +73,7 @@ public class LDAPGroup extends DirContextAdaptor implements Group {
     }
 
     public void removeRole(LDAPRole role) {
+        loadAttribute(MEMBER);
         Attribute memberAttribute = attributes.get(MEMBER);
         if (memberAttribute != null) {
             memberAttribute.remove(role.getDN());
@@ -113,15 +115,13 @@ public class LDAPGroup extends DirContextAdaptor implements Group {
     }
 
     public void addChildGroup(LDAPGroup childGroup) {
-        // Deal with attributes
+        loadAttribute(MEMBER);
+        // Deal with attributes, recording the values changed so that only they are written
         Attribute memberAttribute = attributes.get(MEMBER);
-        if (memberAttribute != null) {
-            if (memberAttribute.contains(SPACE_STRING)) {
-                memberAttribute.remove(SPACE_STRING);
-            }
-
-            memberAttribute.add(CN + "=" + childGroup.getName() + COMMA + groupDNSuffix);
+        if (memberAttribute != null && memberAttribute.contains(SPACE_STRING)) {
+            removeAttributeValue(MEMBER, SPACE_STRING);
         }
+        addAttributeValue(MEMBER, CN + "=" + childGroup.getName() + COMMA + groupDNSuffix);
     }
 
     public String getGroupDNSuffix() {
@@ -140,6 +140,8 @@ public class LDAPGroup extends DirContextAdaptor implements Group {
             // Get the common name
             Attribute cn = attributes.get(CN);
             ldapGroup.setName((String) cn.get());
+            // Drop the placeholder member, the members are read from the directory when needed
+            ldapGroup.attributes.remove(MEMBER);
         } catch (NamingException e) {
             throw new RuntimeException(e);
         }
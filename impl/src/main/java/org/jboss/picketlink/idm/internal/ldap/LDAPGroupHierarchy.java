@@ -0,0 +1,276 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.ldap;
+
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.CN;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.GROUP_OF_NAMES;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.MEMBER;
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.OBJECT_CLASS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Cached map of the group tree stored under the group DN suffix. A group is the child of the group listing its DN as a
+ * <code>member</code>.
+ * <p/>
+ * The whole tree is read with a single search returning only the <code>cn</code> and <code>member</code> attributes, after
+ * which ancestor and subtree questions are answered in memory whatever the depth of the tree. Groups created and removed
+ * through the store update the map, changes made to the directory by other means require an {@link #invalidate()}.
+ */
+public class LDAPGroupHierarchy {
+    private final LdapName groupDNSuffix;
+
+    // Keys are lower cased group names, LDAP names are case insensitive
+    private Map<String, String> parents;
+    private Map<String, List<String>> children;
+
+    public LDAPGroupHierarchy(String groupDNSuffix) {
+        try {
+            this.groupDNSuffix = new LdapName(groupDNSuffix);
+        } catch (InvalidNameException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private LDAPGroupHierarchy(LdapName groupDNSuffix) {
+        this.groupDNSuffix = groupDNSuffix;
+    }
+
+    /**
+     * @return true if the tree has been read since it was created or last invalidated
+     */
+    public synchronized boolean isLoaded() {
+        return parents != null;
+    }
+
+    /**
+     * Read the whole tree with a single search
+     *
+     * @param context
+     * @throws NamingException
+     */
+    public void load(LdapContext context) throws NamingException {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(new String[] { CN, MEMBER });
+
+        Map<String, String> loadedParents = new HashMap<String, String>();
+        Map<String, List<String>> loadedChildren = new HashMap<String, List<String>>();
+
+        NamingEnumeration<SearchResult> answer = context.search(groupDNSuffix, "(" + OBJECT_CLASS + "={0})",
+                new Object[] { GROUP_OF_NAMES }, controls);
+        try {
+            while (answer.hasMore()) {
+                SearchResult result = answer.next();
+                String parent = (String) result.getAttributes().get(CN).get();
+                Attribute members = result.getAttributes().get(MEMBER);
+                if (members == null) {
+                    continue;
+                }
+                NamingEnumeration<?> values = members.getAll();
+                while (values.hasMore()) {
+                    String child = toGroupName(String.valueOf(values.next()));
+                    if (child != null) {
+                        link(loadedParents, loadedChildren, child, parent);
+                    }
+                }
+            }
+        } finally {
+            answer.close();
+        }
+
+        synchronized (this) {
+            this.parents = loadedParents;
+            this.children = loadedChildren;
+        }
+    }
+
+    /**
+     * Copy the tree as it is now. The copy is not affected by the later changes and invalidations of this tree, so it can be
+     * used while a search holds a connection, without reading the tree again on another one.
+     *
+     * @return
+     */
+    public synchronized LDAPGroupHierarchy snapshot() {
+        ensureLoaded();
+        LDAPGroupHierarchy copy = new LDAPGroupHierarchy(groupDNSuffix);
+        copy.parents = new HashMap<String, String>(parents);
+        copy.children = new HashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> entry : children.entrySet()) {
+            copy.children.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Forget the cached tree, it is read again on the next use
+     */
+    public synchronized void invalidate() {
+        parents = null;
+        children = null;
+    }
+
+    /**
+     * @param name
+     * @return the name of the parent of the group, or null if it has none
+     */
+    public synchronized String getParent(String name) {
+        ensureLoaded();
+        return parents.get(key(name));
+    }
+
+    /**
+     * @param name
+     * @return the names of the ancestors of the group, starting with its parent
+     */
+    public synchronized List<String> getAncestors(String name) {
+        ensureLoaded();
+        List<String> ancestors = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        String parent = parents.get(key(name));
+        // a cycle in the directory must not loop forever
+        while (parent != null && seen.add(key(parent))) {
+            ancestors.add(parent);
+            parent = parents.get(key(parent));
+        }
+        return ancestors;
+    }
+
+    /**
+     * @param name
+     * @return the names of the direct children of the group
+     */
+    public synchronized List<String> getChildren(String name) {
+        ensureLoaded();
+        List<String> result = children.get(key(name));
+        return result != null ? new ArrayList<String>(result) : new ArrayList<String>();
+    }
+
+    /**
+     * @param name
+     * @return the names of the groups below the group at any depth
+     */
+    public synchronized Set<String> getDescendants(String name) {
+        ensureLoaded();
+        Set<String> descendants = new LinkedHashSet<String>();
+        List<String> pending = new ArrayList<String>();
+        pending.add(name);
+        while (!pending.isEmpty()) {
+            List<String> groupChildren = children.get(key(pending.remove(pending.size() - 1)));
+            if (groupChildren != null) {
+                for (String child : groupChildren) {
+                    if (descendants.add(child)) {
+                        pending.add(child);
+                    }
+                }
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * Record a new child group. Ignored if the tree has not been read yet, the next load will see the change.
+     *
+     * @param child
+     * @param parent
+     */
+    public synchronized void setParent(String child, String parent) {
+        if (parents != null) {
+            link(parents, children, child, parent);
+        }
+    }
+
+    /**
+     * Forget a removed group and its links with its parent and children
+     *
+     * @param name
+     */
+    public synchronized void remove(String name) {
+        if (parents == null) {
+            return;
+        }
+        String parent = parents.remove(key(name));
+        if (parent != null) {
+            List<String> siblings = children.get(key(parent));
+            if (siblings != null) {
+                siblings.remove(name);
+            }
+        }
+        List<String> orphans = children.remove(key(name));
+        if (orphans != null) {
+            for (String orphan : orphans) {
+                parents.remove(key(orphan));
+            }
+        }
+    }
+
+    private void ensureLoaded() {
+        if (parents == null) {
+            throw new IllegalStateException("The group hierarchy has not been loaded");
+        }
+    }
+
+    // Return the cn of a DN directly under the group DN suffix, or null for any other DN (roles, users, placeholders)
+    private String toGroupName(String dn) {
+        try {
+            LdapName name = new LdapName(dn);
+            if (name.size() != groupDNSuffix.size() + 1 || !name.startsWith(groupDNSuffix)) {
+                return null;
+            }
+            String type = name.getRdn(name.size() - 1).getType();
+            return CN.equalsIgnoreCase(type) ? String.valueOf(name.getRdn(name.size() - 1).getValue()) : null;
+        } catch (InvalidNameException e) {
+            return null;
+        }
+    }
+
+    private static void link(Map<String, String> parents, Map<String, List<String>> children, String child, String parent) {
+        parents.put(key(child), parent);
+        List<String> groupChildren = children.get(key(parent));
+        if (groupChildren == null) {
+            groupChildren = new ArrayList<String>();
+            children.put(key(parent), groupChildren);
+        }
+        if (!groupChildren.contains(child)) {
+            groupChildren.add(child);
+        }
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase();
+    }
+}
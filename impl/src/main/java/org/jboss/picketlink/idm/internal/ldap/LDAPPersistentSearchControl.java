@@ -0,0 +1,67 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.ldap;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * The Persistent Search control (draft-ietf-ldapext-psearch), which turns a search into a stream of the entries changed
+ * afterwards. Each entry comes with an {@link LDAPEntryChangeNotification} control telling how it changed.
+ */
+public class LDAPPersistentSearchControl extends BasicControl {
+
+    public static final String OID = "2.16.840.1.113730.3.4.3";
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Control asking for every kind of change, without the entries existing when the search starts
+     */
+    public LDAPPersistentSearchControl() {
+        this(LDAPEntryChangeNotification.ADD | LDAPEntryChangeNotification.DELETE | LDAPEntryChangeNotification.MODIFY
+                | LDAPEntryChangeNotification.MODDN, true, true);
+    }
+
+    /**
+     * @param changeTypes the kinds of change returned, a combination of the {@link LDAPEntryChangeNotification} types
+     * @param changesOnly false to get the entries matching the search when it starts as well
+     * @param returnEntryChanges whether to return an {@link LDAPEntryChangeNotification} with each entry
+     */
+    public LDAPPersistentSearchControl(int changeTypes, boolean changesOnly, boolean returnEntryChanges) {
+        super(OID, true, encode(changeTypes, changesOnly, returnEntryChanges));
+    }
+
+    /**
+     * BER encoding of PersistentSearch ::= SEQUENCE { changeTypes INTEGER, changesOnly BOOLEAN, returnECs BOOLEAN }
+     */
+    private static byte[] encode(int changeTypes, boolean changesOnly, boolean returnEntryChanges) {
+        if (changeTypes < 1 || changeTypes > 15) {
+            throw new RuntimeException("Invalid change types:" + changeTypes);
+        }
+        return new byte[] { 0x30, 0x09, 0x02, 0x01, (byte) changeTypes, 0x01, 0x01, encode(changesOnly), 0x01, 0x01,
+                encode(returnEntryChanges) };
+    }
+
+    private static byte encode(boolean value) {
+        return value ? (byte) 0xff : 0x00;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.ldap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
+
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+
+/**
+ * A {@link QueryResultIterator} consuming a {@link NamingEnumeration} of search results lazily, one entry at a time. The
+ * offset of the {@link Range} is skipped on the client side.
+ *
+ * Results are requested in pages of at most <code>pageSize</code> entries with the Simple Paged Results control (RFC 2696),
+ * the next page being searched for when the current one is consumed, so the directory size limit is not hit and the client
+ * never holds more than a page. A {@link SortKey} is sent with the Server Side Sort control (RFC 2891). Both controls are not
+ * critical, servers which do not support them return all the results unsorted.
+ *
+ * The context running the search is borrowed from the {@link LDAPConnectionPool} and held until the iterator is closed,
+ * either explicitly or by reaching the end of the results.
+ *
+ * @param <T>
+ */
+public abstract class LDAPQueryResultIterator<T> implements QueryResultIterator<T> {
+    private final LDAPConnectionPool pool;
+    private final LdapContext context;
+    private final String base;
+    private final LDAPSearchFilter filter;
+    private final SearchControls controls;
+    private final int pageSize;
+    private final SortKey sortKey;
+    private NamingEnumeration<SearchResult> results;
+    // Cookie returned by the server with the last page, null before the first page is read
+    private byte[] cookie;
+    private int remaining;
+    private boolean closed;
+
+    /**
+     * @param pool
+     * @param base
+     * @param filter
+     * @param controls
+     * @param range may be null
+     * @param pageSize maximum number of entries per page, 0 to disable paging
+     * @param sortKey may be null
+     */
+    public LDAPQueryResultIterator(LDAPConnectionPool pool, String base, LDAPSearchFilter filter, SearchControls controls,
+            Range range, int pageSize, SortKey sortKey) {
+        this.pool = pool;
+        this.base = base;
+        this.filter = filter;
+        this.controls = controls;
+        this.pageSize = pageSize;
+        this.sortKey = sortKey;
+        this.context = pool.borrow();
+        this.remaining = range != null ? range.getLimit() : -1;
+
+        try {
+            search();
+        } catch (NamingException e) {
+            closed = true;
+            releaseContext(e instanceof CommunicationException);
+            throw new RuntimeException(e);
+        }
+
+        try {
+            if (range != null && !range.isKeyset()) {
+                for (int i = 0; i < range.getOffset() && hasMore(); i++) {
+                    nextResult();
+                }
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create the identity type represented by the search result
+     *
+     * @param result
+     * @return
+     */
+    protected abstract T create(SearchResult result);
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (remaining == 0 || !hasMore()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (remaining > 0) {
+            remaining--;
+        }
+        return create(nextResult());
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean broken = false;
+        try {
+            results.close();
+        } catch (NamingException e) {
+            broken = e instanceof CommunicationException;
+            throw new RuntimeException(e);
+        } finally {
+            releaseContext(broken);
+        }
+    }
+
+    private void releaseContext(boolean broken) {
+        if (!broken) {
+            try {
+                context.setRequestControls(null);
+            } catch (NamingException e) {
+                broken = true;
+            }
+        }
+        if (broken) {
+            pool.invalidate(context);
+        } else {
+            pool.release(context);
+        }
+    }
+
+    /**
+     * Search for the next page, or the first one if no cookie was returned yet
+     *
+     * @throws NamingException
+     */
+    private void search() throws NamingException {
+        List<Control> requestControls = new ArrayList<Control>(2);
+
+        try {
+            if (pageSize > 0) {
+                requestControls.add(new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL));
+            }
+            if (sortKey != null) {
+                requestControls.add(new SortControl(new SortKey[] { sortKey }, Control.NONCRITICAL));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        context.setRequestControls(requestControls.toArray(new Control[requestControls.size()]));
+        results = context.search(base, filter.getExpression(), filter.getArgs(), controls);
+    }
+
+    /**
+     * Move to the next page if the server returned a cookie with the page just consumed
+     *
+     * @return false if there are no more pages
+     * @throws NamingException
+     */
+    private boolean nextPage() throws NamingException {
+        cookie = null;
+
+        Control[] responseControls = context.getResponseControls();
+
+        if (responseControls != null) {
+            for (Control control : responseControls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    cookie = ((PagedResultsResponseControl) control).getCookie();
+                }
+            }
+        }
+
+        if (cookie == null || cookie.length == 0) {
+            return false;
+        }
+
+        results.close();
+        search();
+        return true;
+    }
+
+    private boolean hasMore() {
+        try {
+            while (!results.hasMore()) {
+                if (pageSize <= 0 || !nextPage()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private SearchResult nextResult() {
+        try {
+            return results.next();
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -74,6 +74,7 @@ public class LDAPRole extends DirContextAdaptor implements Role {
     }
 
     public void addUser(LDAPUser user) {
+        loadAttribute(MEMBER);
         Attribute memberAttribute = attributes.get(MEMBER);
         if (memberAttribute != null) {
             if (memberAttribute.contains(SPACE_STRING)) {
@@ -90,6 +91,7 @@ public class LDAPRole extends DirContextAdaptor implements Role {
     }
 
     public void removeUser(LDAPUser user) {
+        loadAttribute(MEMBER);
         Attribute memberAttribute = attributes.get(MEMBER);
         if (memberAttribute != null) {
             memberAttribute.remove(user.getDN());
@@ -104,6 +106,8 @@ public class LDAPRole extends DirContextAdaptor implements Role {
             // Get the common name
             Attribute cn = attributes.get(CN);
             role.setName((String) cn.get());
+            // Drop the placeholder member, the members are read from the directory when needed
+            role.attributes.remove(MEMBER);
         } catch (NamingException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.ldap;
+
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.OBJECT_CLASS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.naming.directory.DirContext;
+
+/**
+ * Builds an LDAP search filter where all conditions are resolved with logical AND. Values are passed as filter arguments
+ * (see {@link DirContext#search(String, String, Object[], javax.naming.directory.SearchControls)}) so they are escaped by
+ * the provider. Values containing the '*' wildcard are split around it, each part being an argument of its own.
+ * <p/>
+ * The expression is thus a template which only depends on the conditions and on where the wildcards are, never on the
+ * values, so queries of the same shape send the same expression with different arguments.
+ */
+public class LDAPSearchFilter {
+    private static final String WILDCARD = "*";
+
+    private final StringBuilder expression = new StringBuilder();
+    private final List<Object> args = new ArrayList<Object>();
+
+    public LDAPSearchFilter(String objectClass) {
+        match(OBJECT_CLASS, objectClass);
+    }
+
+    /**
+     * Add an equality condition, or a substring condition if the value contains '*'. Null values are ignored.
+     *
+     * @param attribute
+     * @param value
+     * @return
+     */
+    public LDAPSearchFilter match(String attribute, String value) {
+        if (value != null) {
+            expression.append(condition(attribute, "=", value));
+        }
+        return this;
+    }
+
+    /**
+     * Add a condition matching if the attribute has any of the given values. Null or empty values match the presence of the
+     * attribute.
+     *
+     * @param attribute
+     * @param values
+     * @return
+     */
+    public LDAPSearchFilter matchAny(String attribute, String[] values) {
+        if (values == null || values.length == 0) {
+            expression.append("(").append(attribute).append("=*)");
+            return this;
+        }
+        expression.append("(|");
+        for (String value : values) {
+            expression.append(condition(attribute, "=", value));
+        }
+        expression.append(")");
+        return this;
+    }
+
+    /**
+     * Add a {@link #matchAny(String, String[])} condition for each entry of the map
+     *
+     * @param filters
+     * @return
+     */
+    public LDAPSearchFilter matchAll(Map<String, String[]> filters) {
+        if (filters != null) {
+            for (Entry<String, String[]> filter : filters.entrySet()) {
+                matchAny(filter.getKey(), filter.getValue());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Add the condition of a keyset range: the value of the attribute the results are sorted by comes after the given key,
+     * in the order of the given ordering matching rule. Null keys are ignored.
+     * <p/>
+     * The ordering is tested with an extensible match, as the attribute may have no ordering rule of its own, in which case
+     * servers evaluate <code>&gt;=</code> and <code>&lt;=</code> as Undefined. An extensible match with an ordering rule is
+     * true when the value of the attribute comes strictly before the assertion value.
+     *
+     * @param attribute
+     * @param orderingRule the OID of the ordering matching rule the results are sorted with
+     * @param key the last sort key seen
+     * @param ascending
+     * @return
+     */
+    public LDAPSearchFilter matchAfter(String attribute, String orderingRule, String key, boolean ascending) {
+        if (key != null) {
+            // the key is matched as is, a '*' in it is not a wildcard
+            String before = "(" + attribute + ":" + orderingRule + ":=" + argument(key) + ")";
+            if (ascending) {
+                expression.append("(!").append(before).append(")");
+                expression.append("(!(").append(attribute).append("=").append(argument(key)).append("))");
+            } else {
+                expression.append(before);
+            }
+        }
+        return this;
+    }
+
+    public String getExpression() {
+        return "(&" + expression + ")";
+    }
+
+    public Object[] getArgs() {
+        return args.toArray();
+    }
+
+    private String condition(String attribute, String operator, String value) {
+        StringBuilder condition = new StringBuilder("(").append(attribute).append(operator);
+        if (!value.contains(WILDCARD)) {
+            return condition.append(argument(value)).append(")").toString();
+        }
+        String[] parts = value.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                condition.append(WILDCARD);
+            }
+            if (parts[i].length() > 0) {
+                condition.append(argument(parts[i]));
+            }
+        }
+        return condition.append(")").toString();
+    }
+
+    private String argument(String value) {
+        args.add(value);
+        return "{" + (args.size() - 1) + "}";
+    }
+}
@@ -208,6 +208,11 @@ public class LDAPUser extends DirContextAdaptor implements User {
 
             Attribute sn = attributes.get(SN);
             user.setLastName((String) sn.get());
+
+            Attribute mail = attributes.get(EMAIL);
+            if (mail != null) {
+                user.setEmail((String) mail.get());
+            }
         } catch (NamingException e) {
             throw new RuntimeException(e);
         }
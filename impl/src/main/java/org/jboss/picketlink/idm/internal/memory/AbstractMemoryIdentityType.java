@@ -0,0 +1,172 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.picketlink.idm.model.IdentityType;
+
+/**
+ * Base class of the identity types kept by the in memory store. Attributes are read without locking, changes are made one at
+ * a time per identity type so that the store sees them in the order they are applied.
+ */
+public abstract class AbstractMemoryIdentityType implements IdentityType {
+
+    private final String key;
+    private volatile Date creationDate = new Date();
+    private volatile boolean enabled = true;
+    private volatile Date expirationDate;
+    private final ConcurrentMap<String, String[]> attributes = new ConcurrentHashMap<String, String[]>();
+    private volatile MemoryChangeListener listener;
+
+    public AbstractMemoryIdentityType(String key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        propertiesChanged();
+    }
+
+    @Override
+    public Date getExpirationDate() {
+        return expirationDate;
+    }
+
+    public synchronized void setExpirationDate(Date expirationDate) {
+        this.expirationDate = expirationDate;
+        propertiesChanged();
+    }
+
+    @Override
+    public Date getCreationDate() {
+        return creationDate;
+    }
+
+    /**
+     * Restore the creation date of an identity type read back from a snapshot
+     *
+     * @param creationDate
+     */
+    public void setCreationDate(Date creationDate) {
+        this.creationDate = creationDate;
+    }
+
+    public MemoryChangeListener getMemoryChangeListener() {
+        return listener;
+    }
+
+    /**
+     * Set the listener told about the changes, or null once the identity type is removed from the store
+     *
+     * @param listener
+     */
+    public void setMemoryChangeListener(MemoryChangeListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setAttribute(String name, String value) {
+        setAttribute(name, value != null ? new String[] { value } : null);
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, String[] values) {
+        if (values == null || values.length == 0) {
+            removeAttribute(name);
+            return;
+        }
+        String[] newValues = values.clone();
+        String[] oldValues = attributes.put(name, newValues);
+        MemoryChangeListener listener = this.listener;
+        if (listener != null) {
+            listener.attributeChanged(this, name, oldValues, newValues);
+        }
+    }
+
+    @Override
+    public synchronized void removeAttribute(String name) {
+        String[] oldValues = attributes.remove(name);
+        MemoryChangeListener listener = this.listener;
+        if (oldValues != null && listener != null) {
+            listener.attributeChanged(this, name, oldValues, null);
+        }
+    }
+
+    @Override
+    public String getAttribute(String name) {
+        String[] values = attributes.get(name);
+        return values != null && values.length > 0 ? values[0] : null;
+    }
+
+    @Override
+    public String[] getAttributeValues(String name) {
+        String[] values = attributes.get(name);
+        return values != null ? values.clone() : null;
+    }
+
+    @Override
+    public Map<String, String[]> getAttributes() {
+        Map<String, String[]> copy = new HashMap<String, String[]>();
+        for (Map.Entry<String, String[]> entry : attributes.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @return the attributes without copying their values, which must not be modified
+     */
+    Map<String, String[]> getAttributesMap() {
+        return attributes;
+    }
+
+    /**
+     * Tell the listener about a change of property, with the lock of this identity type held
+     */
+    protected void propertiesChanged() {
+        MemoryChangeListener listener = this.listener;
+        if (listener != null) {
+            listener.propertiesChanged(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + key + "]";
+    }
+}
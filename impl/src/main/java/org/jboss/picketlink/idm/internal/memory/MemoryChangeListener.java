@@ -0,0 +1,51 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+/**
+ * Listener told about the changes made to the identity types of the in memory store, so it keeps its indexes up to date
+ */
+public interface MemoryChangeListener {
+
+    /**
+     * @param owner
+     * @param name name of the attribute
+     * @param oldValues values before the change, null if the attribute was not set
+     * @param newValues values after the change, null if the attribute was removed
+     */
+    void attributeChanged(AbstractMemoryIdentityType owner, String name, String[] oldValues, String[] newValues);
+
+    /**
+     * @param user
+     * @param oldEmail
+     * @param newEmail
+     */
+    void emailChanged(MemoryUser user, String oldEmail, String newEmail);
+
+    /**
+     * Called when a property other than the email changes: the names of an user, or whether an identity type is enabled
+     * and when it expires
+     *
+     * @param owner
+     */
+    void propertiesChanged(AbstractMemoryIdentityType owner);
+}
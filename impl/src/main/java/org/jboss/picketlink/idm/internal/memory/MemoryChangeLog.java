@@ -0,0 +1,253 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+
+/**
+ * Write ahead log of the changes made to a {@link MemoryIdentityStore} since its last {@link MemorySnapshot}. Each change is
+ * appended as one record of a {@link MemoryRecordWriter}, framed by its length and followed by its CRC32, so that a record
+ * torn by a crash is detected and ends the replay.
+ * <p/>
+ * Appends are serialized by the log. Records are written to the file channel right away; they reach the disk when the log
+ * is flushed, or on every append when {@link #setSync(boolean) sync} is on.
+ */
+public class MemoryChangeLog {
+
+    private static final int MAGIC = 0x504c4d4c;
+    private static final short VERSION = 2;
+    private static final int HEADER_SIZE = 6;
+
+    private final File file;
+    private FileChannel channel;
+    private volatile boolean sync;
+
+    /**
+     * Open the log for appending, creating the file if needed
+     *
+     * @param file
+     */
+    public MemoryChangeLog(File file) {
+        this.file = file;
+        this.channel = open(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Force every record to the disk before the change it logs returns, false by default
+     *
+     * @param sync
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    public void identityTypeCreated(AbstractMemoryIdentityType identityType) {
+        MemoryRecordBuffer record = new MemoryRecordBuffer();
+        record.writer.writeIdentityType(identityType);
+        append(record.toByteArray());
+    }
+
+    public void identityTypeRemoved(AbstractMemoryIdentityType identityType) {
+        MemoryRecordBuffer record = new MemoryRecordBuffer();
+        record.writer.writeRemoved(identityType);
+        append(record.toByteArray());
+    }
+
+    public void membershipCreated(MemoryMembership membership) {
+        MemoryRecordBuffer record = new MemoryRecordBuffer();
+        record.writer.writeMembership(membership);
+        append(record.toByteArray());
+    }
+
+    public void membershipRemoved(MemoryMembership membership) {
+        MemoryRecordBuffer record = new MemoryRecordBuffer();
+        record.writer.writeMembershipRemoved(membership);
+        append(record.toByteArray());
+    }
+
+    public void attributeChanged(AbstractMemoryIdentityType owner, String name, String[] values) {
+        MemoryRecordBuffer record = new MemoryRecordBuffer();
+        record.writer.writeAttribute(owner, name, values);
+        append(record.toByteArray());
+    }
+
+    public void propertiesChanged(AbstractMemoryIdentityType owner) {
+        MemoryRecordBuffer record = new MemoryRecordBuffer();
+        record.writer.writeProperties(owner);
+        append(record.toByteArray());
+    }
+
+    /**
+     * Move the records logged so far to the given file and go on with an empty log. Used when a snapshot is taken, the
+     * records moved being needed until the snapshot is complete.
+     *
+     * @param target
+     */
+    public synchronized void roll(File target) {
+        ensureOpen();
+        try {
+            channel.force(false);
+            channel.close();
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not roll change log " + file, e);
+        } finally {
+            channel = null;
+        }
+        channel = open(file);
+    }
+
+    /**
+     * Force the records appended so far to the disk
+     */
+    public synchronized void flush() {
+        ensureOpen();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not flush change log " + file, e);
+        }
+    }
+
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not close change log " + file, e);
+        } finally {
+            channel = null;
+        }
+    }
+
+    /**
+     * Apply the records of a log to the store, up to the end of the log or to its first torn or corrupted record. Records
+     * that can not be applied are skipped.
+     *
+     * @param file
+     * @param store
+     * @return the number of records skipped
+     */
+    public static int replay(File file, MemoryIdentityStore store) {
+        ByteBuffer buffer = MemoryRecordReader.map(file);
+        if (buffer.limit() < HEADER_SIZE) {
+            // Created but never written to
+            return 0;
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new RuntimeException("Not a change log:" + file);
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new RuntimeException("Unsupported change log version:" + version);
+        }
+
+        int skipped = 0;
+        CRC32 checksum = new CRC32();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length <= 0 || buffer.remaining() < length + 4) {
+                break;
+            }
+            ByteBuffer record = buffer.slice();
+            record.limit(length);
+            checksum.reset();
+            checksum.update(record.duplicate());
+            buffer.position(buffer.position() + length);
+            if ((int) checksum.getValue() != buffer.getInt()) {
+                break;
+            }
+            try {
+                new MemoryRecordReader(record).applyNext(store);
+            } catch (RuntimeException e) {
+                skipped++;
+            }
+        }
+        return skipped;
+    }
+
+    private synchronized void append(byte[] record) {
+        ensureOpen();
+        CRC32 checksum = new CRC32();
+        checksum.update(record, 0, record.length);
+        ByteBuffer frame = ByteBuffer.allocate(record.length + 8);
+        frame.putInt(record.length).put(record).putInt((int) checksum.getValue());
+        frame.flip();
+        try {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write change log " + file, e);
+        }
+    }
+
+    private void ensureOpen() {
+        if (channel == null) {
+            throw new RuntimeException("Change log is closed:" + file);
+        }
+    }
+
+    private static FileChannel open(File file) {
+        try {
+            FileChannel channel = new FileOutputStream(file, true).getChannel();
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putShort(VERSION);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+            return channel;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open change log " + file, e);
+        }
+    }
+
+    /**
+     * Buffer a single record is written to before it is appended, so that no identity type is locked while the log is
+     */
+    private static class MemoryRecordBuffer extends ByteArrayOutputStream {
+        private final MemoryRecordWriter writer = new MemoryRecordWriter(this);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent index of objects by a value. Reads take no lock, the sets returned are live views that may reflect concurrent
+ * changes.
+ *
+ * @param <K> type of the indexed values
+ * @param <T> type of the indexed objects
+ */
+public class MemoryIndex<K, T> {
+
+    private final ConcurrentMap<K, Set<T>> entries = new ConcurrentHashMap<K, Set<T>>();
+
+    public void add(K value, T owner) {
+        if (value == null) {
+            return;
+        }
+        Set<T> owners = entries.get(value);
+        if (owners == null) {
+            Set<T> newOwners = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+            owners = entries.putIfAbsent(value, newOwners);
+            if (owners == null) {
+                owners = newOwners;
+            }
+        }
+        owners.add(owner);
+    }
+
+    public void remove(K value, T owner) {
+        if (value == null) {
+            return;
+        }
+        Set<T> owners = entries.get(value);
+        if (owners != null) {
+            owners.remove(owner);
+            // Empty sets are left in place, removing them could lose an owner added concurrently
+        }
+    }
+
+    /**
+     * @param value
+     * @return the objects indexed by the value, never null
+     */
+    public Set<T> get(K value) {
+        Set<T> owners = value != null ? entries.get(value) : null;
+        return owners != null ? Collections.unmodifiableSet(owners) : Collections.<T> emptySet();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
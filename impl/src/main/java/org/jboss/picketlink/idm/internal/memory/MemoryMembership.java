@@ -0,0 +1,93 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import org.jboss.picketlink.idm.model.Membership;
+
+/**
+ * {@link Membership} kept by the in memory store. Memberships are sorted by id, which follows the order they were created in.
+ */
+public class MemoryMembership implements Membership {
+
+    private final String id;
+    private final MemoryRole role;
+    private final MemoryUser user;
+    private final MemoryGroup group;
+
+    public MemoryMembership(long sequence, MemoryRole role, MemoryUser user, MemoryGroup group) {
+        // Zero padded, so the ids sort as the sequence does
+        this.id = String.format("%019d", sequence);
+        this.role = role;
+        this.user = user;
+        this.group = group;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public MemoryUser getUser() {
+        return user;
+    }
+
+    @Override
+    public MemoryGroup getGroup() {
+        return group;
+    }
+
+    @Override
+    public MemoryRole getRole() {
+        return role;
+    }
+
+    /**
+     * Key of a membership in the membership table: the role, user and group it relates, compared by identity
+     */
+    public static final class Key {
+        private final MemoryRole role;
+        private final MemoryUser user;
+        private final MemoryGroup group;
+
+        public Key(MemoryRole role, MemoryUser user, MemoryGroup group) {
+            this.role = role;
+            this.user = user;
+            this.group = group;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return role == other.role && user == other.user && group == other.group;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(role);
+            result = 31 * result + System.identityHashCode(user);
+            return 31 * result + System.identityHashCode(group);
+        }
+    }
+}
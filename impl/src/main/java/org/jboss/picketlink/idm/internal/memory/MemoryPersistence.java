@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import java.io.File;
+
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+
+/**
+ * Keeps a {@link MemoryIdentityStore} on disk as a {@link MemorySnapshot} and the {@link MemoryChangeLog} of the changes made
+ * since, both in one directory.
+ * <p/>
+ * {@link #open()} loads the snapshot into the store, replays the logs and then logs every change made to the store.
+ * {@link #checkpoint()} writes a new snapshot without stopping the store: the log is first moved aside and a new one started,
+ * the snapshot is written, then the old log is deleted. A crash in between leaves the old log next to the new one; both are
+ * replayed, the old one first, which gives the same store since records are replayed in the order the changes were made.
+ */
+public class MemoryPersistence {
+
+    static final String SNAPSHOT = "identities.snapshot";
+    static final String LOG = "identities.log";
+    static final String PREVIOUS_LOG = "identities.log.previous";
+
+    private final MemoryIdentityStore store;
+    private final File snapshotFile;
+    private final File logFile;
+    private final File previousLogFile;
+    private boolean sync;
+    private MemoryChangeLog changeLog;
+    private int skippedRecords;
+
+    public MemoryPersistence(MemoryIdentityStore store, File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Could not create directory " + directory);
+        }
+        this.store = store;
+        this.snapshotFile = new File(directory, SNAPSHOT);
+        this.logFile = new File(directory, LOG);
+        this.previousLogFile = new File(directory, PREVIOUS_LOG);
+    }
+
+    /**
+     * Force every change to the disk before it returns, see {@link MemoryChangeLog#setSync(boolean)}. Set before opening.
+     *
+     * @param sync
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Load the store, which must be empty, from the directory and start logging its changes. What was recovered is written
+     * as a new snapshot straight away, so that the store starts with an empty log.
+     */
+    public synchronized void open() {
+        if (changeLog != null) {
+            throw new RuntimeException("Already open");
+        }
+        skippedRecords = 0;
+        if (snapshotFile.exists()) {
+            skippedRecords += MemorySnapshot.load(snapshotFile, store);
+        }
+        boolean recovered = false;
+        for (File log : new File[] { previousLogFile, logFile }) {
+            if (log.exists()) {
+                skippedRecords += MemoryChangeLog.replay(log, store);
+                recovered = true;
+            }
+        }
+        if (recovered) {
+            MemorySnapshot.write(store, snapshotFile);
+            delete(previousLogFile);
+            delete(logFile);
+        }
+
+        changeLog = new MemoryChangeLog(logFile);
+        changeLog.setSync(sync);
+        store.setChangeLog(changeLog);
+    }
+
+    /**
+     * Write a snapshot of the store and drop the changes it includes from the log
+     */
+    public synchronized void checkpoint() {
+        ensureOpen();
+        changeLog.roll(previousLogFile);
+        MemorySnapshot.write(store, snapshotFile);
+        delete(previousLogFile);
+    }
+
+    /**
+     * Stop logging the changes of the store and close the log. The store itself is left as it is.
+     */
+    public synchronized void close() {
+        if (changeLog != null) {
+            store.setChangeLog(null);
+            changeLog.close();
+            changeLog = null;
+        }
+    }
+
+    /**
+     * @return the number of records of the snapshot and the logs that could not be applied by the last {@link #open()}
+     */
+    public int getSkippedRecords() {
+        return skippedRecords;
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            throw new RuntimeException("Could not delete " + file);
+        }
+    }
+
+    private void ensureOpen() {
+        if (changeLog == null) {
+            throw new RuntimeException("Not open");
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+
+/**
+ * Reads the records written by a {@link MemoryRecordWriter} from a buffer, usually a file mapped in memory, and applies them
+ * to a {@link MemoryIdentityStore}.
+ * <p/>
+ * Strings are decoded straight from the buffer, without copying the record bytes first. Attribute names and values repeat a
+ * lot across identity types, so equal ones read from the same buffer share a single string.
+ * <p/>
+ * Applying a record is idempotent: creating an identity type that exists updates it, removing one that does not exist does
+ * nothing. A change log may then be replayed over a snapshot taken while it was written.
+ */
+public class MemoryRecordReader {
+
+    private final ByteBuffer buffer;
+    private final CharsetDecoder decoder = MemoryRecordWriter.UTF8.newDecoder();
+    private final Map<String, String> sharedStrings = new HashMap<String, String>();
+
+    public MemoryRecordReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Read the next record and apply it to the store. The record is read completely before it is applied, so the reader is
+     * positioned on the next record even when applying fails.
+     *
+     * @param store
+     * @return false at the end of the records
+     */
+    public boolean applyNext(MemoryIdentityStore store) {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+        byte tag = buffer.get();
+        switch (tag) {
+            case MemoryRecordWriter.END:
+                return false;
+            case MemoryRecordWriter.USER:
+            case MemoryRecordWriter.GROUP:
+            case MemoryRecordWriter.ROLE:
+                applyIdentityType(store, tag);
+                return true;
+            case MemoryRecordWriter.MEMBERSHIP:
+                applyMembership(store, true);
+                return true;
+            case MemoryRecordWriter.REMOVE_MEMBERSHIP:
+                applyMembership(store, false);
+                return true;
+            case MemoryRecordWriter.REMOVE_USER:
+                String user = readString(false);
+                store.removeUser(store.getUser(user));
+                return true;
+            case MemoryRecordWriter.REMOVE_GROUP:
+                String group = readString(false);
+                store.removeGroup(store.getGroup(group));
+                return true;
+            case MemoryRecordWriter.REMOVE_ROLE:
+                String role = readString(false);
+                store.removeRole(store.getRole(role));
+                return true;
+            case MemoryRecordWriter.ATTRIBUTE:
+                byte type = buffer.get();
+                String key = readString(false);
+                String name = readString(true);
+                String[] values = readValues();
+                AbstractMemoryIdentityType owner = require(find(store, type, key), key);
+                if (values != null) {
+                    owner.setAttribute(name, values);
+                } else {
+                    owner.removeAttribute(name);
+                }
+                return true;
+            case MemoryRecordWriter.PROPERTIES:
+                byte propertiesType = buffer.get();
+                String propertiesKey = readString(false);
+                Properties properties = readProperties(propertiesType);
+                properties.apply(require(find(store, propertiesType, propertiesKey), propertiesKey));
+                return true;
+            default:
+                throw new RuntimeException("Unknown record:" + tag + " at " + (buffer.position() - 1));
+        }
+    }
+
+    private void applyIdentityType(MemoryIdentityStore store, byte type) {
+        String key = readString(false);
+        String parent = type == MemoryRecordWriter.GROUP ? readString(false) : null;
+        Date creationDate = readDate();
+        Properties properties = readProperties(type);
+        int count = buffer.getInt();
+        Map<String, String[]> attributes = new LinkedHashMap<String, String[]>();
+        for (int i = 0; i < count; i++) {
+            attributes.put(readString(true), readValues());
+        }
+
+        AbstractMemoryIdentityType identityType = find(store, type, key);
+        if (identityType == null) {
+            if (type == MemoryRecordWriter.USER) {
+                store.createUser(key);
+            } else if (type == MemoryRecordWriter.GROUP) {
+                store.createGroup(key, parent != null ? require(store.getGroup(parent), parent) : null);
+            } else {
+                store.createRole(key);
+            }
+            identityType = find(store, type, key);
+        }
+
+        identityType.setCreationDate(creationDate);
+        properties.apply(identityType);
+        for (String name : identityType.getAttributes().keySet()) {
+            if (!attributes.containsKey(name)) {
+                identityType.removeAttribute(name);
+            }
+        }
+        for (Map.Entry<String, String[]> attribute : attributes.entrySet()) {
+            identityType.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+    }
+
+    private void applyMembership(MemoryIdentityStore store, boolean create) {
+        String role = readString(false);
+        String user = readString(false);
+        String group = readString(false);
+        MemoryRole storedRole = (MemoryRole) store.getRole(role);
+        MemoryUser storedUser = user != null ? (MemoryUser) store.getUser(user) : null;
+        MemoryGroup storedGroup = group != null ? (MemoryGroup) store.getGroup(group) : null;
+        if (create) {
+            store.createMembership(require(storedRole, role), user != null ? require(storedUser, user) : null,
+                    group != null ? require(storedGroup, group) : null);
+        } else if (storedRole != null && (user == null || storedUser != null) && (group == null || storedGroup != null)) {
+            store.removeMembership(storedRole, storedUser, storedGroup);
+        }
+    }
+
+    /**
+     * Map the whole file in memory, read only. The mapping stays valid once the file is closed.
+     */
+    static ByteBuffer map(File file) {
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + file, e);
+        }
+    }
+
+    private static AbstractMemoryIdentityType find(MemoryIdentityStore store, byte type, String key) {
+        switch (type) {
+            case MemoryRecordWriter.USER:
+                return (AbstractMemoryIdentityType) store.getUser(key);
+            case MemoryRecordWriter.GROUP:
+                return (AbstractMemoryIdentityType) store.getGroup(key);
+            case MemoryRecordWriter.ROLE:
+                return (AbstractMemoryIdentityType) store.getRole(key);
+            default:
+                throw new RuntimeException("Unknown identity type:" + type);
+        }
+    }
+
+    private static <T> T require(T stored, String key) {
+        if (stored == null) {
+            throw new RuntimeException("Identity type not found:" + key);
+        }
+        return stored;
+    }
+
+    private Properties readProperties(byte type) {
+        Properties properties = new Properties();
+        properties.enabled = buffer.get() != 0;
+        properties.expirationDate = readDate();
+        if (type == MemoryRecordWriter.USER) {
+            properties.firstName = readString(false);
+            properties.lastName = readString(false);
+            properties.email = readString(false);
+            properties.passwordHash = readString(false);
+        }
+        return properties;
+    }
+
+    private String[] readValues() {
+        int count = buffer.getInt();
+        if (count < 0) {
+            return null;
+        }
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = readString(true);
+        }
+        return values;
+    }
+
+    private Date readDate() {
+        long time = buffer.getLong();
+        return time != MemoryRecordWriter.NO_DATE ? new Date(time) : null;
+    }
+
+    private String readString(boolean shared) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        int start = buffer.position();
+        String value = decode(start, length);
+        buffer.position(start + length);
+        if (shared) {
+            String existing = sharedStrings.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            sharedStrings.put(value, value);
+        }
+        return value;
+    }
+
+    private String decode(int start, int length) {
+        // ASCII text, which most keys and names are, needs no decoder
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(start + i);
+            if (b < 0) {
+                ByteBuffer bytes = buffer.duplicate();
+                bytes.limit(start + length);
+                bytes.position(start);
+                try {
+                    return decoder.decode(bytes).toString();
+                } catch (CharacterCodingException e) {
+                    throw new RuntimeException("Invalid string at " + start, e);
+                }
+            }
+            chars[i] = (char) b;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Properties of an identity type read from a record, applied once the whole record is read
+     */
+    private static class Properties {
+        private boolean enabled;
+        private Date expirationDate;
+        private String firstName;
+        private String lastName;
+        private String email;
+        private String passwordHash;
+
+        void apply(AbstractMemoryIdentityType identityType) {
+            identityType.setEnabled(enabled);
+            identityType.setExpirationDate(expirationDate);
+            if (identityType instanceof MemoryUser) {
+                MemoryUser user = (MemoryUser) identityType;
+                user.setFirstName(firstName);
+                user.setLastName(lastName);
+                user.setEmail(email);
+                user.setPasswordHash(passwordHash);
+            }
+        }
+    }
+}
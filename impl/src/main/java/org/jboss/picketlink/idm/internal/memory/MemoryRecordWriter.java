@@ -0,0 +1,216 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Writes the identity types and their changes as the binary records read back by {@link MemoryRecordReader}. Snapshots and
+ * change logs share the records: a snapshot is a sequence of identity type and membership records, a change log adds the
+ * records of removals, attribute changes and property changes.
+ * <p/>
+ * A record starts with its tag. Strings are written as their length in UTF-8 bytes followed by the bytes, -1 standing for
+ * null, and dates as milliseconds, {@link Long#MIN_VALUE} standing for null.
+ */
+public class MemoryRecordWriter {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final byte END = 0;
+    static final byte USER = 1;
+    static final byte GROUP = 2;
+    static final byte ROLE = 3;
+    static final byte MEMBERSHIP = 4;
+    static final byte REMOVE_USER = 5;
+    static final byte REMOVE_GROUP = 6;
+    static final byte REMOVE_ROLE = 7;
+    static final byte REMOVE_MEMBERSHIP = 8;
+    static final byte ATTRIBUTE = 9;
+    static final byte PROPERTIES = 10;
+
+    static final long NO_DATE = Long.MIN_VALUE;
+
+    private final DataOutputStream out;
+
+    public MemoryRecordWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    /**
+     * Write the whole identity type: its key, parent group, properties and attributes
+     *
+     * @param identityType
+     */
+    public void writeIdentityType(AbstractMemoryIdentityType identityType) {
+        try {
+            // Locked so that the properties and the attributes written come from the same point in time
+            synchronized (identityType) {
+                out.writeByte(typeOf(identityType));
+                writeString(identityType.getKey());
+                if (identityType instanceof MemoryGroup) {
+                    MemoryGroup parent = ((MemoryGroup) identityType).getParentGroup();
+                    writeString(parent != null ? parent.getKey() : null);
+                }
+                writeDate(identityType.getCreationDate());
+                writePropertyValues(identityType);
+
+                Map<String, String[]> attributes = identityType.getAttributesMap();
+                out.writeInt(attributes.size());
+                for (Map.Entry<String, String[]> attribute : attributes.entrySet()) {
+                    writeString(attribute.getKey());
+                    writeValues(attribute.getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writeMembership(MemoryMembership membership) {
+        writeMembership(MEMBERSHIP, membership);
+    }
+
+    public void writeRemoved(AbstractMemoryIdentityType identityType) {
+        try {
+            if (identityType instanceof MemoryUser) {
+                out.writeByte(REMOVE_USER);
+            } else if (identityType instanceof MemoryGroup) {
+                out.writeByte(REMOVE_GROUP);
+            } else {
+                out.writeByte(REMOVE_ROLE);
+            }
+            writeString(identityType.getKey());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writeMembershipRemoved(MemoryMembership membership) {
+        writeMembership(REMOVE_MEMBERSHIP, membership);
+    }
+
+    /**
+     * @param owner
+     * @param name
+     * @param values the new values, or null when the attribute was removed
+     */
+    public void writeAttribute(AbstractMemoryIdentityType owner, String name, String[] values) {
+        try {
+            out.writeByte(ATTRIBUTE);
+            out.writeByte(typeOf(owner));
+            writeString(owner.getKey());
+            writeString(name);
+            writeValues(values);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writeProperties(AbstractMemoryIdentityType owner) {
+        try {
+            out.writeByte(PROPERTIES);
+            out.writeByte(typeOf(owner));
+            writeString(owner.getKey());
+            writePropertyValues(owner);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writeEnd() {
+        try {
+            out.writeByte(END);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static byte typeOf(AbstractMemoryIdentityType identityType) {
+        if (identityType instanceof MemoryUser) {
+            return USER;
+        } else if (identityType instanceof MemoryGroup) {
+            return GROUP;
+        }
+        return ROLE;
+    }
+
+    private void writeMembership(byte tag, MemoryMembership membership) {
+        try {
+            out.writeByte(tag);
+            writeString(membership.getRole().getKey());
+            writeString(membership.getUser() != null ? membership.getUser().getKey() : null);
+            writeString(membership.getGroup() != null ? membership.getGroup().getKey() : null);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writePropertyValues(AbstractMemoryIdentityType identityType) throws IOException {
+        out.writeBoolean(identityType.isEnabled());
+        writeDate(identityType.getExpirationDate());
+        if (identityType instanceof MemoryUser) {
+            MemoryUser user = (MemoryUser) identityType;
+            writeString(user.getFirstName());
+            writeString(user.getLastName());
+            writeString(user.getEmail());
+            writeString(user.getPasswordHash());
+        }
+    }
+
+    private void writeValues(String[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (String value : values) {
+            writeString(value);
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeDate(Date date) throws IOException {
+        out.writeLong(date != null ? date.getTime() : NO_DATE);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.jboss.picketlink.idm.internal.DefaultGroupQuery;
+import org.jboss.picketlink.idm.internal.DefaultMembershipQuery;
+import org.jboss.picketlink.idm.internal.DefaultRoleQuery;
+import org.jboss.picketlink.idm.internal.DefaultUserQuery;
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Membership;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+
+/**
+ * Binary snapshot of a {@link MemoryIdentityStore}: a header with the format version, the records of the users, groups,
+ * roles and memberships written by a {@link MemoryRecordWriter}, and a CRC32 of everything before it.
+ * <p/>
+ * Groups are written before their subgroups and memberships in creation order, so loading a snapshot only creates what it
+ * has already read. Snapshots are loaded through a memory mapping of the file, the records being decoded from the mapped
+ * pages without reading the file into a heap buffer first.
+ * <p/>
+ * The store is not locked while it is written: each identity type is consistent, the snapshot as a whole may contain some of
+ * the changes made meanwhile. Those changes are in the {@link MemoryChangeLog} started before the snapshot, which is replayed
+ * over it.
+ */
+public final class MemorySnapshot {
+
+    private static final int MAGIC = 0x504c4d53;
+    private static final short VERSION = 2;
+    private static final int HEADER_SIZE = 6;
+    private static final int CHECKSUM_SIZE = 4;
+
+    private MemorySnapshot() {
+    }
+
+    /**
+     * Write a snapshot of the store. The snapshot is written to a temporary file, which replaces the given one once complete.
+     *
+     * @param store
+     * @param file
+     */
+    public static void write(MemoryIdentityStore store, File file) {
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream output = new FileOutputStream(temporary);
+            try {
+                CRC32 checksum = new CRC32();
+                OutputStream buffered = new BufferedOutputStream(new CheckedOutputStream(output, checksum), 64 * 1024);
+                DataOutputStream header = new DataOutputStream(buffered);
+                header.writeInt(MAGIC);
+                header.writeShort(VERSION);
+
+                MemoryRecordWriter writer = new MemoryRecordWriter(buffered);
+                writeRecords(store, writer);
+                writer.flush();
+
+                new DataOutputStream(output).writeInt((int) checksum.getValue());
+                output.getChannel().force(true);
+            } finally {
+                output.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temporary.delete();
+            throw new RuntimeException("Could not write snapshot " + file, e);
+        }
+    }
+
+    /**
+     * Load a snapshot into the store. Records that can not be applied, such as a membership of an user removed while the
+     * snapshot was written, are skipped.
+     *
+     * @param file
+     * @param store
+     * @return the number of records skipped
+     */
+    public static int load(File file, MemoryIdentityStore store) {
+        ByteBuffer buffer = MemoryRecordReader.map(file);
+        if (buffer.limit() < HEADER_SIZE + CHECKSUM_SIZE) {
+            throw new RuntimeException("Snapshot is truncated:" + file);
+        }
+
+        int end = buffer.limit() - CHECKSUM_SIZE;
+        ByteBuffer content = buffer.duplicate();
+        content.limit(end);
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+        if ((int) checksum.getValue() != buffer.getInt(end)) {
+            throw new RuntimeException("Snapshot is corrupted:" + file);
+        }
+
+        buffer.limit(end);
+        if (buffer.getInt() != MAGIC) {
+            throw new RuntimeException("Not a snapshot:" + file);
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new RuntimeException("Unsupported snapshot version:" + version);
+        }
+
+        MemoryRecordReader reader = new MemoryRecordReader(buffer);
+        int skipped = 0;
+        while (true) {
+            try {
+                if (!reader.applyNext(store)) {
+                    return skipped;
+                }
+            } catch (RuntimeException e) {
+                skipped++;
+            }
+        }
+    }
+
+    private static void writeRecords(MemoryIdentityStore store, MemoryRecordWriter writer) {
+        QueryResultIterator<User> users = store.iterateQuery(new DefaultUserQuery(store), null);
+        try {
+            while (users.hasNext()) {
+                writer.writeIdentityType((MemoryUser) users.next());
+            }
+        } finally {
+            users.close();
+        }
+
+        for (MemoryGroup group : parentsFirst(store.executeQuery(new DefaultGroupQuery(store), null))) {
+            writer.writeIdentityType(group);
+        }
+
+        QueryResultIterator<Role> roles = store.iterateQuery(new DefaultRoleQuery(store), null);
+        try {
+            while (roles.hasNext()) {
+                writer.writeIdentityType((MemoryRole) roles.next());
+            }
+        } finally {
+            roles.close();
+        }
+
+        QueryResultIterator<Membership> memberships = store.iterateQuery(new DefaultMembershipQuery(store), null);
+        try {
+            while (memberships.hasNext()) {
+                writer.writeMembership((MemoryMembership) memberships.next());
+            }
+        } finally {
+            memberships.close();
+        }
+
+        writer.writeEnd();
+    }
+
+    /**
+     * Sort the groups by depth in the group tree, keeping the key order of the groups at the same depth
+     */
+    private static List<MemoryGroup> parentsFirst(List<Group> groups) {
+        final Map<MemoryGroup, Integer> depths = new IdentityHashMap<MemoryGroup, Integer>();
+        List<MemoryGroup> sorted = new ArrayList<MemoryGroup>(groups.size());
+        for (Group group : groups) {
+            MemoryGroup memoryGroup = (MemoryGroup) group;
+            int depth = 0;
+            for (MemoryGroup parent = memoryGroup.getParentGroup(); parent != null; parent = parent.getParentGroup()) {
+                depth++;
+            }
+            depths.put(memoryGroup, depth);
+            sorted.add(memoryGroup);
+        }
+        Collections.sort(sorted, new Comparator<MemoryGroup>() {
+            @Override
+            public int compare(MemoryGroup first, MemoryGroup second) {
+                return depths.get(first).compareTo(depths.get(second));
+            }
+        });
+        return sorted;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.memory;
+
+import org.jboss.picketlink.idm.model.User;
+
+/**
+ * {@link User} kept by the in memory store
+ */
+public class MemoryUser extends AbstractMemoryIdentityType implements User {
+
+    private volatile String firstName;
+    private volatile String lastName;
+    private volatile String email;
+    private volatile String passwordHash;
+
+    public MemoryUser(String key) {
+        super(key);
+    }
+
+    @Override
+    public String getId() {
+        return getKey();
+    }
+
+    @Override
+    public String getFirstName() {
+        return firstName;
+    }
+
+    @Override
+    public synchronized void setFirstName(String firstName) {
+        this.firstName = firstName;
+        propertiesChanged();
+    }
+
+    @Override
+    public String getLastName() {
+        return lastName;
+    }
+
+    @Override
+    public synchronized void setLastName(String lastName) {
+        this.lastName = lastName;
+        propertiesChanged();
+    }
+
+    @Override
+    public String getFullName() {
+        return getFirstName() + " " + getLastName();
+    }
+
+    @Override
+    public String getEmail() {
+        return email;
+    }
+
+    @Override
+    public synchronized void setEmail(String email) {
+        String oldEmail = this.email;
+        this.email = email;
+        MemoryChangeListener listener = getMemoryChangeListener();
+        if (listener != null) {
+            listener.emailChanged(this, oldEmail, email);
+        }
+    }
+
+    /**
+     * @return the encoded password, as produced by a {@link org.jboss.picketlink.idm.internal.credential.PasswordHasher}
+     */
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    public synchronized void setPasswordHash(String passwordHash) {
+        this.passwordHash = passwordHash;
+        propertiesChanged();
+    }
+}
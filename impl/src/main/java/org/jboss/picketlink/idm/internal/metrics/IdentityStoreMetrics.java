@@ -0,0 +1,86 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@link OperationMetrics} of each operation of a store, published under a name by a {@link MetricsRegistry}
+ */
+public class IdentityStoreMetrics {
+
+    private final String name;
+    private final OperationMetrics[] operations;
+
+    public IdentityStoreMetrics(String name) {
+        this.name = name;
+        IdentityStoreOperation[] values = IdentityStoreOperation.values();
+        this.operations = new OperationMetrics[values.length];
+        for (IdentityStoreOperation operation : values) {
+            operations[operation.ordinal()] = new OperationMetrics(operation);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record a call started at the given {@link System#nanoTime()}, without allocating
+     *
+     * @param operation
+     * @param startNanos
+     * @param failed whether the call threw an exception
+     */
+    public void record(IdentityStoreOperation operation, long startNanos, boolean failed) {
+        operations[operation.ordinal()].record(System.nanoTime() - startNanos, failed);
+    }
+
+    public OperationMetrics getOperationMetrics(IdentityStoreOperation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    public OperationStatistics getStatistics(IdentityStoreOperation operation) {
+        return operations[operation.ordinal()].getStatistics();
+    }
+
+    /**
+     * @return the statistics of the operations called at least once
+     */
+    public List<OperationStatistics> getStatistics() {
+        List<OperationStatistics> statistics = new ArrayList<OperationStatistics>();
+        for (OperationMetrics operation : operations) {
+            if (operation.getCount() > 0) {
+                statistics.add(operation.getStatistics());
+            }
+        }
+        return Collections.unmodifiableList(statistics);
+    }
+
+    public void reset() {
+        for (OperationMetrics operation : operations) {
+            operation.reset();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.metrics;
+
+/**
+ * The operations of an {@link org.jboss.picketlink.idm.spi.IdentityStore} measured by {@link IdentityStoreMetrics}. Queries
+ * are measured by type, iterating a query only measures the time taken to open the iterator.
+ */
+public enum IdentityStoreOperation {
+    CREATE_USER,
+    REMOVE_USER,
+    GET_USER,
+    CREATE_GROUP,
+    REMOVE_GROUP,
+    GET_GROUP,
+    CREATE_ROLE,
+    REMOVE_ROLE,
+    GET_ROLE,
+    CREATE_MEMBERSHIP,
+    REMOVE_MEMBERSHIP,
+    GET_MEMBERSHIP,
+    EXECUTE_BATCH,
+    USER_QUERY,
+    GROUP_QUERY,
+    ROLE_QUERY,
+    MEMBERSHIP_QUERY,
+    SET_ATTRIBUTE,
+    REMOVE_ATTRIBUTE,
+    GET_ATTRIBUTE_VALUES,
+    GET_ATTRIBUTES,
+    SET_PASSWORD_HASH,
+    GET_PASSWORD_HASH,
+    SET_ENABLED,
+    SET_EXPIRATION_DATE
+}
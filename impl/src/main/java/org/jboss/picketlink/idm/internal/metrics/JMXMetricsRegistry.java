@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A {@link MetricsRegistry} registering an {@link OperationMetricsMBean} for each operation of a store, named
+ * <code>org.jboss.picketlink.idm:type=IdentityStore,name=&lt;name&gt;,operation=&lt;operation&gt;</code>.
+ */
+public class JMXMetricsRegistry implements MetricsRegistry {
+
+    public static final String DOMAIN = "org.jboss.picketlink.idm";
+
+    private final MBeanServer server;
+
+    /**
+     * Registry using the platform MBean server
+     */
+    public JMXMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JMXMetricsRegistry(MBeanServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void register(IdentityStoreMetrics metrics) {
+        unregister(metrics.getName());
+        try {
+            for (IdentityStoreOperation operation : IdentityStoreOperation.values()) {
+                server.registerMBean(metrics.getOperationMetrics(operation), createObjectName(metrics.getName(), operation));
+            }
+        } catch (JMException e) {
+            unregister(metrics.getName());
+            throw new RuntimeException("Unable to register the metrics of " + metrics.getName(), e);
+        }
+    }
+
+    @Override
+    public void unregister(String name) {
+        for (IdentityStoreOperation operation : IdentityStoreOperation.values()) {
+            try {
+                server.unregisterMBean(createObjectName(name, operation));
+            } catch (InstanceNotFoundException e) {
+                // not registered
+            } catch (JMException e) {
+                throw new RuntimeException("Unable to unregister the metrics of " + name, e);
+            }
+        }
+    }
+
+    public static ObjectName createObjectName(String name, IdentityStoreOperation operation) {
+        try {
+            return new ObjectName(DOMAIN + ":type=IdentityStore,name=" + ObjectName.quote(name) + ",operation="
+                    + operation.name().toLowerCase(Locale.ENGLISH));
+        } catch (JMException e) {
+            throw new RuntimeException("Invalid store name:" + name, e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.metrics;
+
+/**
+ * Publishes the {@link IdentityStoreMetrics} of the stores to a monitoring system. Implementations read the metrics when
+ * the monitoring system asks for them, the stores keep recording without knowing about the registry.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Publish the metrics under their name, replacing any metrics registered under the same name
+     *
+     * @param metrics
+     */
+    void register(IdentityStoreMetrics metrics);
+
+    /**
+     * Stop publishing the metrics registered under the given name, if any
+     *
+     * @param name
+     */
+    void unregister(String name);
+}
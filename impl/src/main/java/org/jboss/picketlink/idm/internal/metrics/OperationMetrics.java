@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls, errors and latencies of one {@link IdentityStoreOperation}
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private static final double NANOS_PER_MICRO = 1000d;
+
+    private final IdentityStoreOperation operation;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+
+    public OperationMetrics(IdentityStoreOperation operation) {
+        this.operation = operation;
+    }
+
+    public IdentityStoreOperation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Record a call, without allocating
+     *
+     * @param nanos the time taken by the call
+     * @param failed whether the call threw an exception
+     */
+    public void record(long nanos, boolean failed) {
+        latencies.record(nanos);
+        if (failed) {
+            errors.incrementAndGet();
+        }
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public OperationStatistics getStatistics() {
+        return new OperationStatistics(operation, latencies.getCount(), errors.get(), latencies.getMean(),
+                latencies.getPercentile(50), latencies.getPercentile(99), latencies.getPercentile(99.9), latencies.getMax());
+    }
+
+    @Override
+    public long getCount() {
+        return latencies.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latencies.getMean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getMedianMicros() {
+        return latencies.getPercentile(50) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getPercentile99Micros() {
+        return latencies.getPercentile(99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getPercentile999Micros() {
+        return latencies.getPercentile(99.9) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latencies.getMax() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public void reset() {
+        latencies.reset();
+        errors.set(0);
+    }
+}
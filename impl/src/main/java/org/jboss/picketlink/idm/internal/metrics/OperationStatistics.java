@@ -0,0 +1,93 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.idm.internal.metrics;
+
+/**
+ * Snapshot of the measures of an {@link IdentityStoreOperation}, latencies in nanoseconds
+ */
+public class OperationStatistics {
+    private final IdentityStoreOperation operation;
+    private final long count;
+    private final long errors;
+    private final long mean;
+    private final long median;
+    private final long percentile99;
+    private final long percentile999;
+    private final long max;
+
+    public OperationStatistics(IdentityStoreOperation operation, long count, long errors, long mean, long median,
+            long percentile99, long percentile999, long max) {
+        this.operation = operation;
+        this.count = count;
+        this.errors = errors;
+        this.mean = mean;
+        this.median = median;
+        this.percentile99 = percentile99;
+        this.percentile999 = percentile999;
+        this.max = max;
+    }
+
+    public IdentityStoreOperation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Number of calls, failed ones included
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Number of calls that threw an exception
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getMean() {
+        return mean;
+    }
+
+    public long getMedian() {
+        return median;
+    }
+
+    public long getPercentile99() {
+        return percentile99;
+    }
+
+    public long getPercentile999() {
+        return percentile999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "OperationStatistics [operation=" + operation + ", count=" + count + ", errors=" + errors + ", mean=" + mean
+                + ", median=" + median + ", percentile99=" + percentile99 + ", percentile999=" + percentile999 + ", max="
+                + max + "]";
+    }
+}
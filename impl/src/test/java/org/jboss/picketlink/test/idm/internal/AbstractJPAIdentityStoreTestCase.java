@@ -77,6 +77,10 @@ public abstract class AbstractJPAIdentityStoreTestCase {
         emf.close();
     }
 
+    protected EntityManagerFactory getEntityManagerFactory() {
+        return emf;
+    }
+
     /**
      * <p>
      * Creates an {@link EntityManager} instance for each test and begins a transaction
@@ -112,11 +116,23 @@ public abstract class AbstractJPAIdentityStoreTestCase {
      * @return
      */
     protected IdentityStore createIdentityStore() {
+        return createIdentityStore(this.entityManager);
+    }
+
+    /**
+     * <p>
+     * Creates a new {@link JPAIdentityStore} using the given {@link EntityManager}
+     * </p>
+     *
+     * @param entityManager
+     * @return
+     */
+    protected JPAIdentityStore createIdentityStore(EntityManager entityManager) {
         JPAIdentityStore identityStore = new JPAIdentityStore();
 
         JPATemplate jpaTemplate = new JPATemplate();
 
-        jpaTemplate.setEntityManager(this.entityManager);
+        jpaTemplate.setEntityManager(entityManager);
 
         identityStore.setJpaTemplate(jpaTemplate);
 
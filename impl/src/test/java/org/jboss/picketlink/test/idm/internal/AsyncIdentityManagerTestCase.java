@@ -0,0 +1,116 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.picketlink.idm.internal.AsyncIdentityManager;
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the operations of the {@link AsyncIdentityManager}.
+ * </p>
+ */
+public class AsyncIdentityManagerTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests lookups, grants, attributes and queries completed on the executor.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOperations() throws Exception {
+        // The store shares the entity manager of the test, which must not be used by several threads at once
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncIdentityManager identityManager = new AsyncIdentityManager(newIdentityManager(), executor);
+
+        try {
+            User user = identityManager.createUser("async-user").get();
+            Group group = identityManager.createGroup("async-group", null).get();
+            Role role = identityManager.createRole("async-role").get();
+
+            identityManager.grantRole(role, user, group).get();
+
+            assertTrue(identityManager.hasRole(role, user, group).get());
+
+            identityManager.setAttribute(user, "phone", new String[] { "1", "2" }).get();
+
+            assertArrayEquals(new String[] { "1", "2" }, identityManager.getAttributeValues(user, "phone").get());
+
+            List<User> users = identityManager.getUsers(Arrays.asList("async-user", "async-missing")).get();
+
+            assertEquals(2, users.size());
+            assertEquals(user.getKey(), users.get(0).getKey());
+            assertNull(users.get(1));
+
+            DefaultIdentityManager manager = newIdentityManager();
+
+            assertEquals(1, identityManager.executeQuery(manager.createUserQuery().setName("async-user")).get().size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests that a failure of the store completes the future exceptionally instead of being thrown to the caller.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailure() throws Exception {
+        AsyncIdentityManager identityManager = new AsyncIdentityManager(new DefaultIdentityManager());
+
+        try {
+            identityManager.getUser("async-user").get();
+            fail("The store is not set");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RuntimeException);
+        } finally {
+            identityManager.close();
+        }
+    }
+
+    private DefaultIdentityManager newIdentityManager() {
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+        identityManager.setIdentityStore(createIdentityStore());
+        return identityManager;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.picketlink.idm.event.IdentityEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent.Action;
+import org.jboss.picketlink.idm.event.UserEvent;
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+import org.jboss.picketlink.idm.internal.credential.AuthenticationCache;
+import org.jboss.picketlink.idm.internal.credential.PBKDF2PasswordHasher;
+import org.jboss.picketlink.idm.internal.credential.PasswordService;
+import org.jboss.picketlink.idm.model.User;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the {@link AuthenticationCache} in front of the password checks of the {@link DefaultIdentityManager}.
+ * </p>
+ */
+public class AuthenticationCacheTestCase {
+
+    /**
+     * <p>
+     * Tests that a right password is only hashed once within the time to live, and that changing the password, the
+     * enablement or the expiration of the user invalidates it.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCachedVerifications() throws Exception {
+        final AtomicInteger verifications = new AtomicInteger();
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+        identityManager.setIdentityStore(new MemoryIdentityStore());
+        identityManager.setPasswordService(new PasswordService(new PBKDF2PasswordHasher(10) {
+            @Override
+            public boolean verify(char[] password, String passwordHash) {
+                verifications.incrementAndGet();
+                return super.verify(password, passwordHash);
+            }
+        }, 1, 10));
+        AuthenticationCache cache = new AuthenticationCache();
+        identityManager.setAuthenticationCache(cache);
+
+        User user = identityManager.createUser("cached-login");
+        identityManager.updatePassword(user, "secret");
+
+        assertTrue(identityManager.validatePassword(user, "secret"));
+        assertTrue(identityManager.validatePassword(user, "secret"));
+        assertEquals(1, verifications.get());
+
+        assertFalse(identityManager.validatePassword(user, "wrong"));
+        assertEquals(2, verifications.get());
+
+        identityManager.updatePassword(user, "changed");
+
+        assertFalse(identityManager.validatePassword(user, "secret"));
+        assertTrue(identityManager.validatePassword(user, "changed"));
+        assertEquals(4, verifications.get());
+
+        identityManager.setEnabled(user, false);
+
+        assertFalse(identityManager.validatePassword(user, "changed"));
+
+        identityManager.setEnabled(user, true);
+        identityManager.setExpirationDate(user, new Date(System.currentTimeMillis() + 60000));
+
+        assertTrue(identityManager.validatePassword(user, "changed"));
+        assertTrue(identityManager.validatePassword(user, "changed"));
+        assertEquals(6, verifications.get());
+
+        cache.onEvents(Arrays.<IdentityEvent> asList(new UserEvent(Action.UPDATED, "cached-login", null)));
+
+        assertTrue(identityManager.validatePassword(user, "changed"));
+        assertEquals(7, verifications.get());
+    }
+}
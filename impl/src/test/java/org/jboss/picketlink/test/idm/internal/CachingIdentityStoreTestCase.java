@@ -0,0 +1,234 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.picketlink.idm.event.IdentityEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent.Action;
+import org.jboss.picketlink.idm.event.OverflowEvent;
+import org.jboss.picketlink.idm.event.UserEvent;
+import org.jboss.picketlink.idm.internal.CachingIdentityStore;
+import org.jboss.picketlink.idm.internal.cache.CacheStatistics;
+import org.jboss.picketlink.idm.internal.cache.EvictionPolicy;
+import org.jboss.picketlink.idm.internal.cache.IdentityCache;
+import org.jboss.picketlink.idm.internal.config.CacheConfiguration;
+import org.jboss.picketlink.idm.internal.ldap.LDAPUser;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the {@link CachingIdentityStore} in front of a {@link org.jboss.picketlink.idm.internal.JPAIdentityStore}.
+ * </p>
+ */
+public class CachingIdentityStoreTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests that lookups are answered by the cache and that removing an user invalidates it.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReadThroughAndInvalidation() throws Exception {
+        CachingIdentityStore identityStore = new CachingIdentityStore(createIdentityStore(), new CacheConfiguration());
+
+        User user = identityStore.createUser("cached-user");
+
+        assertSame(user, identityStore.getUser("cached-user"));
+        assertSame(user, identityStore.getUser("cached-user"));
+
+        CacheStatistics statistics = identityStore.getUserStatistics();
+
+        assertEquals(1, statistics.getMisses());
+        assertEquals(1, statistics.getHits());
+
+        identityStore.removeUser(user);
+
+        assertNull(identityStore.getUser("cached-user"));
+        assertEquals(1, identityStore.getUserStatistics().getInvalidations());
+    }
+
+    /**
+     * <p>
+     * Tests that the events describing changes made by other means invalidate the cached entries.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidationByEvents() throws Exception {
+        CachingIdentityStore identityStore = new CachingIdentityStore(createIdentityStore(), new CacheConfiguration());
+
+        identityStore.createUser("notified-user");
+        identityStore.createRole("notified-role");
+
+        identityStore.getUser("notified-user");
+        identityStore.getRole("notified-role");
+
+        identityStore.onEvents(Arrays.<IdentityEvent> asList(new UserEvent(Action.UPDATED, "notified-user", null)));
+
+        identityStore.getUser("notified-user");
+        identityStore.getRole("notified-role");
+
+        assertEquals(2, identityStore.getUserStatistics().getMisses());
+        assertEquals(1, identityStore.getRoleStatistics().getHits());
+
+        identityStore.onEvents(Arrays.<IdentityEvent> asList(new OverflowEvent(-1)));
+
+        identityStore.getRole("notified-role");
+
+        assertEquals(2, identityStore.getRoleStatistics().getMisses());
+    }
+
+    /**
+     * <p>
+     * Tests that writes invalidate users looked up by a name that is neither their key nor their id, as LDAP users are
+     * looked up by common name.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidationOfUserLookedUpByName() throws Exception {
+        final Map<String, User> directory = new HashMap<String, User>();
+        IdentityStore delegate = (IdentityStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { IdentityStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getUser")) {
+                            return directory.get(args[0]);
+                        }
+                        if (method.getName().equals("removeUser")) {
+                            directory.remove(((User) args[0]).getFullName());
+                        }
+                        return null;
+                    }
+                });
+
+        LDAPUser user = new LDAPUser();
+        user.setId("asmith");
+        user.setFullName("Anna Smith");
+        directory.put(user.getFullName(), user);
+
+        CachingIdentityStore identityStore = new CachingIdentityStore(delegate, new CacheConfiguration());
+
+        User cached = identityStore.getUser("Anna Smith");
+
+        assertSame(user, cached);
+        assertNull(cached.getKey());
+
+        identityStore.removeUser(cached);
+
+        assertNull(identityStore.getUser("Anna Smith"));
+        assertEquals(1, identityStore.getUserStatistics().getInvalidations());
+    }
+
+    /**
+     * <p>
+     * Tests the LRU and LFU eviction policies and the time to live of the entries.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEviction() throws Exception {
+        IdentityCache<String, String> lru = createCache(EvictionPolicy.LRU, 0);
+
+        lru.put("a", "a", lru.getVersion("a"));
+        lru.put("b", "b", lru.getVersion("b"));
+        lru.get("a");
+        lru.put("c", "c", lru.getVersion("c"));
+
+        assertEquals("a", lru.get("a"));
+        assertNull(lru.get("b"));
+        assertEquals(1, lru.getStatistics().getEvictions());
+
+        IdentityCache<String, String> lfu = createCache(EvictionPolicy.LFU, 0);
+
+        lfu.put("a", "a", lfu.getVersion("a"));
+        lfu.put("b", "b", lfu.getVersion("b"));
+        lfu.get("a");
+        lfu.get("a");
+        lfu.get("b");
+        lfu.put("c", "c", lfu.getVersion("c"));
+
+        assertNull(lfu.get("b"));
+        assertEquals("a", lfu.get("a"));
+        assertEquals("c", lfu.get("c"));
+
+        IdentityCache<String, String> expiring = createCache(EvictionPolicy.LRU, 50);
+
+        expiring.put("a", "a", expiring.getVersion("a"));
+        Thread.sleep(100);
+
+        assertNull(expiring.get("a"));
+        assertEquals(1, expiring.getStatistics().getExpirations());
+
+        long version = expiring.getVersion("a");
+        expiring.invalidate("a");
+        expiring.put("a", "stale", version);
+
+        assertNull(expiring.get("a"));
+    }
+
+    /**
+     * <p>
+     * Tests that an entry is invalidated by its alias and that invalidating a key only fails the puts of the same key.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidationByAlias() throws Exception {
+        IdentityCache<String, String> cache = createCache(EvictionPolicy.LRU, 0);
+
+        cache.put("name", "value", "key", cache.getVersion("name"));
+        cache.invalidate("key");
+
+        assertNull(cache.get("name"));
+        assertEquals(1, cache.getStatistics().getInvalidations());
+
+        long version = cache.getVersion("name");
+        cache.invalidate("other");
+        cache.put("name", "value", "key", version);
+
+        assertEquals("value", cache.get("name"));
+    }
+
+    private IdentityCache<String, String> createCache(EvictionPolicy evictionPolicy, long timeToLive) {
+        return new IdentityCache<String, String>(new CacheConfiguration().setMaxSize(2).setTimeToLive(timeToLive)
+                .setEvictionPolicy(evictionPolicy));
+    }
+}
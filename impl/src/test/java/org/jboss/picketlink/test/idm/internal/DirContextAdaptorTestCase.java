@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.jboss.picketlink.idm.internal.ldap.DirContextAdaptor;
+import org.jboss.picketlink.idm.internal.ldap.LDAPChangeNotificationHandler;
+import org.jboss.picketlink.idm.internal.ldap.LDAPGroup;
+import org.jboss.picketlink.idm.internal.ldap.LDAPObjectChangedNotification;
+import org.jboss.picketlink.idm.internal.ldap.LDAPUser;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the changes recorded by a {@link DirContextAdaptor} to be written to the directory as modifications.
+ * </p>
+ */
+public class DirContextAdaptorTestCase {
+
+    /**
+     * <p>
+     * Tests that an attribute set several times is replaced once with its last value, and that a removed attribute is
+     * replaced with no values.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAttributeModifications() throws Exception {
+        LDAPUser user = new LDAPUser();
+
+        user.setAttribute("description", "first");
+        user.setAttribute("description", "second");
+        user.removeAttribute("telephoneNumber");
+
+        ModificationItem[] modifications = user.getModifications();
+
+        assertEquals(2, modifications.length);
+        assertEquals(DirContext.REPLACE_ATTRIBUTE, modifications[0].getModificationOp());
+        assertEquals("description", modifications[0].getAttribute().getID());
+        assertEquals(1, modifications[0].getAttribute().size());
+        assertEquals("second", modifications[0].getAttribute().get());
+        assertEquals(DirContext.REPLACE_ATTRIBUTE, modifications[1].getModificationOp());
+        assertEquals("telephoneNumber", modifications[1].getAttribute().getID());
+        assertEquals(0, modifications[1].getAttribute().size());
+
+        user.clearModifications();
+
+        assertFalse(user.hasModifications());
+        assertEquals("second", user.getAttribute("description"));
+    }
+
+    /**
+     * <p>
+     * Tests that the child groups added to a group are written as the added member values only, and that the directory is
+     * told once about the changes made while they are deferred.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMemberValueModifications() throws Exception {
+        LDAPGroup group = newGroup("parent");
+        final int[] notifications = new int[1];
+
+        group.setLDAPChangeNotificationHandler(new LDAPChangeNotificationHandler() {
+            @Override
+            public void handle(LDAPObjectChangedNotification notification) {
+                notifications[0]++;
+            }
+        });
+
+        group.deferChanges();
+        group.addChildGroup(newGroup("first"));
+        group.addChildGroup(newGroup("second"));
+
+        assertEquals(0, notifications[0]);
+
+        ModificationItem[] modifications = group.getModifications();
+
+        assertEquals(2, modifications.length);
+        assertEquals(DirContext.REMOVE_ATTRIBUTE, modifications[0].getModificationOp());
+        assertEquals(1, modifications[0].getAttribute().size());
+        assertTrue(modifications[0].getAttribute().contains(" "));
+        assertEquals(DirContext.ADD_ATTRIBUTE, modifications[1].getModificationOp());
+        assertEquals(2, modifications[1].getAttribute().size());
+        assertTrue(modifications[1].getAttribute().contains("cn=first,ou=Groups,dc=jboss,dc=org"));
+        assertTrue(modifications[1].getAttribute().contains("cn=second,ou=Groups,dc=jboss,dc=org"));
+
+        group.flushChanges();
+
+        assertEquals(1, notifications[0]);
+    }
+
+    private LDAPGroup newGroup(String name) {
+        LDAPGroup group = new LDAPGroup();
+        group.setGroupDNSuffix("ou=Groups,dc=jboss,dc=org");
+        group.setName(name);
+        return group;
+    }
+}
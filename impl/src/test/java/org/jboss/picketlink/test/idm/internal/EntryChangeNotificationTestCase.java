@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import org.jboss.picketlink.idm.internal.ldap.LDAPEntryChangeNotification;
+import org.jboss.picketlink.idm.internal.ldap.LDAPPersistentSearchControl;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the encoding of the persistent search control and the decoding of the entry change notifications sent back by the
+ * directory.
+ * </p>
+ */
+public class EntryChangeNotificationTestCase {
+
+    /**
+     * <p>
+     * Tests the BER encoding of the persistent search control.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPersistentSearchControl() throws Exception {
+        LDAPPersistentSearchControl control = new LDAPPersistentSearchControl();
+
+        assertEquals("2.16.840.1.113730.3.4.3", control.getID());
+        assertTrue(control.isCritical());
+        assertArrayEquals(new byte[] { 0x30, 0x09, 0x02, 0x01, 0x0f, 0x01, 0x01, (byte) 0xff, 0x01, 0x01, (byte) 0xff },
+                control.getEncodedValue());
+
+        control = new LDAPPersistentSearchControl(LDAPEntryChangeNotification.DELETE, false, true);
+
+        assertArrayEquals(new byte[] { 0x30, 0x09, 0x02, 0x01, 0x02, 0x01, 0x01, 0x00, 0x01, 0x01, (byte) 0xff },
+                control.getEncodedValue());
+    }
+
+    /**
+     * <p>
+     * Tests the decoding of the notifications with and without their optional previous DN and change number.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEntryChangeNotification() throws Exception {
+        LDAPEntryChangeNotification modify = LDAPEntryChangeNotification.decode(new byte[] { 0x30, 0x03, 0x0a, 0x01, 0x04 });
+
+        assertEquals(LDAPEntryChangeNotification.MODIFY, modify.getChangeType());
+        assertNull(modify.getPreviousDN());
+        assertEquals(-1, modify.getChangeNumber());
+
+        byte[] previousDN = "uid=a,dc=b".getBytes("UTF-8");
+        byte[] value = new byte[5 + 2 + previousDN.length + 4];
+        value[0] = 0x30;
+        value[1] = (byte) (value.length - 2);
+        value[2] = 0x0a;
+        value[3] = 0x01;
+        value[4] = 0x08;
+        value[5] = 0x04;
+        value[6] = (byte) previousDN.length;
+        System.arraycopy(previousDN, 0, value, 7, previousDN.length);
+        value[value.length - 4] = 0x02;
+        value[value.length - 3] = 0x02;
+        value[value.length - 2] = 0x01;
+        value[value.length - 1] = 0x2c;
+
+        Control[] controls = new Control[] { new BasicControl("1.2.3"),
+                new BasicControl(LDAPEntryChangeNotification.OID, false, value) };
+        LDAPEntryChangeNotification moddn = LDAPEntryChangeNotification.find(controls);
+
+        assertEquals(LDAPEntryChangeNotification.MODDN, moddn.getChangeType());
+        assertEquals("uid=a,dc=b", moddn.getPreviousDN());
+        assertEquals(300, moddn.getChangeNumber());
+        assertNull(LDAPEntryChangeNotification.find(new Control[0]));
+    }
+}
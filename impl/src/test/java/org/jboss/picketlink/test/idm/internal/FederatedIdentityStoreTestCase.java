@@ -0,0 +1,180 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.internal.DefaultMembershipQuery;
+import org.jboss.picketlink.idm.internal.DefaultUserQuery;
+import org.jboss.picketlink.idm.internal.FederatedIdentityStore;
+import org.jboss.picketlink.idm.internal.JPAIdentityStore;
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+import org.jboss.picketlink.idm.internal.jpa.JPATemplate;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the routing and the merged queries of the {@link FederatedIdentityStore}, with users split between two databases.
+ * </p>
+ */
+public class FederatedIdentityStoreTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests that users are routed by name and that queries return the users of both stores sorted by name.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFederatedUsers() throws Exception {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:federated");
+        EntityManagerFactory otherFactory = Persistence.createEntityManagerFactory("jpa-identity-store-tests-pu", properties);
+        EntityManager otherEntityManager = otherFactory.createEntityManager();
+        otherEntityManager.getTransaction().begin();
+
+        FederatedIdentityStore identityStore = new FederatedIdentityStore(createIdentityStore());
+        JPAIdentityStore otherStore = new JPAIdentityStore();
+        JPATemplate jpaTemplate = new JPATemplate();
+        jpaTemplate.setEntityManager(otherEntityManager);
+        otherStore.setJpaTemplate(jpaTemplate);
+        identityStore.addUserStore("federated-[bd]", otherStore);
+
+        try {
+            for (String name : new String[] { "federated-e", "federated-d", "federated-c", "federated-b", "federated-a" }) {
+                User user = identityStore.createUser(name);
+                identityStore.setAttribute(user, "federation", new String[] { "test" });
+            }
+
+            assertNotNull(otherStore.getUser("federated-b"));
+            assertNull(otherStore.getUser("federated-a"));
+            assertNotNull(identityStore.getUser("federated-d"));
+            assertNotNull(identityStore.getUser("federated-e"));
+
+            UserQuery query = new DefaultUserQuery(identityStore).setAttributeFilter("federation", new String[] { "test" });
+
+            assertEquals("[federated-a, federated-b, federated-c, federated-d, federated-e]",
+                    keys(identityStore.executeQuery(query, null)).toString());
+            assertEquals("[federated-b, federated-c, federated-d]",
+                    keys(identityStore.executeQuery(query, Range.of(1, 3))).toString());
+
+            query.sort(false);
+
+            assertEquals("[federated-d, federated-c]",
+                    keys(identityStore.executeQuery(query, Range.after("federated-e", 2))).toString());
+
+            QueryResultIterator<User> iterator = identityStore.iterateQuery(query, Range.of(3, 10));
+            List<User> users = new ArrayList<User>();
+            try {
+                while (iterator.hasNext()) {
+                    users.add(iterator.next());
+                }
+            } finally {
+                iterator.close();
+            }
+
+            assertEquals("[federated-b, federated-a]", keys(users).toString());
+        } finally {
+            identityStore.close();
+            otherEntityManager.getTransaction().commit();
+            otherEntityManager.close();
+            otherFactory.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests that memberships are kept in the store of their role, and that memberships between identity types of different
+     * stores are rejected before anything is written.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMembershipsAcrossStores() throws Exception {
+        MemoryIdentityStore memoryStore = new MemoryIdentityStore();
+        FederatedIdentityStore identityStore = new FederatedIdentityStore(createIdentityStore());
+        identityStore.addUserStore("memory-.*", memoryStore).addRoleStore(memoryStore);
+
+        User databaseUser = identityStore.createUser("database-member");
+        User memoryUser = identityStore.createUser("memory-member");
+        Role role = identityStore.createRole("federated-role");
+
+        identityStore.createMembership(role, memoryUser, null);
+
+        assertNotNull(memoryStore.getMembership(role, memoryUser, null));
+        assertEquals(1, identityStore.executeQuery(new DefaultMembershipQuery(identityStore).setUser(memoryUser), null).size());
+
+        try {
+            identityStore.createMembership(role, databaseUser, null);
+            fail("The user and the role are in different stores");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        try {
+            identityStore.getMembership(role, databaseUser, null);
+            fail("The user and the role are in different stores");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        IdentityBatch batch = new IdentityBatch();
+        batch.createUser("database-batch-member").createMembership("federated-role", "database-batch-member", null);
+
+        try {
+            identityStore.executeBatch(batch, null);
+            fail("The user and the role are in different stores");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        assertNull(identityStore.getUser("database-batch-member"));
+    }
+
+    private List<String> keys(List<User> users) {
+        List<String> keys = new ArrayList<String>();
+        for (User user : users) {
+            keys.add(user.getKey());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.event.AttributeEvent;
+import org.jboss.picketlink.idm.event.GroupEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent;
+import org.jboss.picketlink.idm.event.IdentityEvent.Action;
+import org.jboss.picketlink.idm.event.IdentityEventListener;
+import org.jboss.picketlink.idm.event.MembershipEvent;
+import org.jboss.picketlink.idm.event.OverflowEvent;
+import org.jboss.picketlink.idm.event.RoleEvent;
+import org.jboss.picketlink.idm.event.UserEvent;
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+import org.jboss.picketlink.idm.internal.event.IdentityEventBus;
+import org.jboss.picketlink.idm.internal.event.IdentityEventBus.OverflowPolicy;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the events published by the {@link DefaultIdentityManager} through an {@link IdentityEventBus}.
+ * </p>
+ */
+public class IdentityEventBusTestCase {
+
+    /**
+     * <p>
+     * Tests that a synchronous listener is told about each change, and about the items of a batch at once.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSynchronousListener() throws Exception {
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+        identityManager.setIdentityStore(new MemoryIdentityStore());
+        RecordingListener listener = new RecordingListener();
+        identityManager.addEventListener(listener);
+
+        User user = identityManager.createUser("event-user");
+        Group group = identityManager.createGroup("event-group");
+        Role role = identityManager.createRole("event-role");
+        identityManager.grantRole(role, user, group);
+        identityManager.getIdentityStore().setAttribute(user, "phone", new String[] { "1" });
+        identityManager.getIdentityStore().removeAttribute(user, "phone");
+        identityManager.revokeRole(role, user, group);
+        identityManager.removeUser(user);
+
+        List<IdentityEvent> events = listener.getEvents();
+
+        assertEquals(8, events.size());
+        assertEquals(Action.CREATED, ((UserEvent) events.get(0)).getAction());
+        assertSame(user, ((UserEvent) events.get(0)).getIdentityType());
+        assertEquals("event-group", ((GroupEvent) events.get(1)).getName());
+        assertEquals("event-role", ((RoleEvent) events.get(2)).getName());
+
+        MembershipEvent granted = (MembershipEvent) events.get(3);
+
+        assertEquals(Action.CREATED, granted.getAction());
+        assertEquals("event-role", granted.getRole());
+        assertEquals("event-user", granted.getUser());
+        assertEquals("event-group", granted.getGroup());
+
+        AttributeEvent attributeSet = (AttributeEvent) events.get(4);
+
+        assertEquals(Action.UPDATED, attributeSet.getAction());
+        assertEquals("event-user", attributeSet.getOwnerName());
+        assertArrayEquals(new String[] { "1" }, attributeSet.getValues());
+        assertEquals(Action.REMOVED, ((AttributeEvent) events.get(5)).getAction());
+        assertEquals(Action.REMOVED, ((MembershipEvent) events.get(6)).getAction());
+        assertEquals(Action.REMOVED, ((UserEvent) events.get(7)).getAction());
+        assertEquals(8, listener.getCalls());
+
+        IdentityBatch batch = new IdentityBatch();
+        batch.createUser("batch-user").createUser("event-group-user").createMembership("event-role", "batch-user", null);
+        batch.createMembership("missing-role", "batch-user", null);
+        identityManager.executeBatch(batch, null);
+
+        assertEquals(9, listener.getCalls());
+        assertEquals(11, listener.getEvents().size());
+        assertEquals("batch-user", ((MembershipEvent) listener.getEvents().get(10)).getUser());
+
+        identityManager.removeEventListener(listener);
+        identityManager.createUser("unseen-user");
+
+        assertEquals(11, listener.getEvents().size());
+    }
+
+    /**
+     * <p>
+     * Tests that an asynchronous listener gets the events in order, in batches of the configured size at most.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAsynchronousListener() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            IdentityEventBus eventBus = new IdentityEventBus(executor);
+            RecordingListener listener = new RecordingListener();
+            eventBus.addAsyncListener(listener, 10, 1000, OverflowPolicy.BLOCK);
+
+            DefaultIdentityManager identityManager = new DefaultIdentityManager();
+            identityManager.setIdentityStore(new MemoryIdentityStore());
+            identityManager.setEventBus(eventBus);
+
+            for (int i = 0; i < 100; i++) {
+                identityManager.createRole("async-role-" + i);
+            }
+
+            listener.awaitEvents(100);
+            List<IdentityEvent> events = listener.getEvents();
+
+            for (int i = 0; i < 100; i++) {
+                assertEquals("async-role-" + i, ((RoleEvent) events.get(i)).getName());
+            }
+            assertTrue(listener.getLargestBatch() <= 10);
+            assertTrue(listener.getCalls() >= 10);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests both overflow policies with a listener that does not keep up: blocking waits for the listener, discarding
+     * replaces the events lost with an {@link OverflowEvent}.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOverflow() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            IdentityEventBus eventBus = new IdentityEventBus(executor);
+            final CountDownLatch release = new CountDownLatch(1);
+            RecordingListener discarding = new RecordingListener() {
+                @Override
+                public void onEvents(List<IdentityEvent> events) {
+                    await(release);
+                    super.onEvents(events);
+                }
+            };
+            eventBus.addAsyncListener(discarding, 100, 5, OverflowPolicy.DISCARD);
+
+            for (int i = 0; i < 20; i++) {
+                eventBus.publish(new UserEvent(Action.CREATED, "discarded-" + i, null));
+            }
+            release.countDown();
+            // The overflow event may be delivered before the events queued ahead of it were all handed over
+            discarding.awaitPublished(20);
+
+            int overflows = 0;
+            int discarded = 0;
+            int delivered = 0;
+            for (IdentityEvent event : discarding.getEvents()) {
+                if (event instanceof OverflowEvent) {
+                    overflows++;
+                    discarded += ((OverflowEvent) event).getDiscarded();
+                } else {
+                    delivered++;
+                }
+            }
+
+            // The drain task may hand some events over before the queue overflows, each overflow reports its own discards
+            assertTrue(overflows >= 1);
+            assertEquals(20, discarded + delivered);
+
+            eventBus.removeListener(discarding);
+
+            final CountDownLatch releaseBlocked = new CountDownLatch(1);
+            RecordingListener blocked = new RecordingListener() {
+                @Override
+                public void onEvents(List<IdentityEvent> events) {
+                    await(releaseBlocked);
+                    super.onEvents(events);
+                }
+            };
+            eventBus.addAsyncListener(blocked, 1, 2, OverflowPolicy.BLOCK);
+
+            final IdentityEventBus publishingBus = eventBus;
+            Thread publisher = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10; i++) {
+                        publishingBus.publish(new UserEvent(Action.CREATED, "blocked-" + i, null));
+                    }
+                }
+            };
+            publisher.start();
+            publisher.join(200);
+
+            assertTrue("The publisher waits for the listener", publisher.isAlive());
+
+            releaseBlocked.countDown();
+            publisher.join(5000);
+            blocked.awaitEvents(10);
+
+            assertEquals(10, blocked.getEvents().size());
+            assertEquals("blocked-9", ((UserEvent) blocked.getEvents().get(9)).getName());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class RecordingListener implements IdentityEventListener {
+        private final List<IdentityEvent> events = new ArrayList<IdentityEvent>();
+        private int calls;
+        private int largestBatch;
+
+        @Override
+        public void onEvents(List<IdentityEvent> batch) {
+            synchronized (this) {
+                events.addAll(batch);
+                calls++;
+                largestBatch = Math.max(largestBatch, batch.size());
+                notifyAll();
+            }
+        }
+
+        synchronized List<IdentityEvent> getEvents() {
+            return Collections.unmodifiableList(new ArrayList<IdentityEvent>(events));
+        }
+
+        synchronized int getCalls() {
+            return calls;
+        }
+
+        synchronized int getLargestBatch() {
+            return largestBatch;
+        }
+
+        synchronized void awaitEvents(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertTrue("Expected " + count + " events, got " + events.size(), events.size() >= count);
+        }
+
+        /**
+         * Wait until the events received and the events an {@link OverflowEvent} reported as discarded add up to the given
+         * number of published events
+         */
+        synchronized void awaitPublished(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (countPublished() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals("Published events accounted for", count, countPublished());
+        }
+
+        private int countPublished() {
+            int published = 0;
+            for (IdentityEvent event : events) {
+                published += event instanceof OverflowEvent ? ((OverflowEvent) event).getDiscarded() : 1;
+            }
+            return published;
+        }
+    }
+}
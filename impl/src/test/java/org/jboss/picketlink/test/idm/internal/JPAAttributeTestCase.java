@@ -0,0 +1,188 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import javax.persistence.Persistence;
+
+import org.jboss.picketlink.idm.internal.DefaultUserQuery;
+import org.jboss.picketlink.idm.internal.JPAIdentityStore;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the storage of attributes with the {@link JPAIdentityStore}.
+ * </p>
+ */
+public class JPAAttributeTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests that setting an attribute replaces its stored values.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReplaceAttribute() throws Exception {
+        JPAIdentityStore identityStore = (JPAIdentityStore) createIdentityStore();
+
+        User user = identityStore.createUser("attribute-replace");
+
+        user.setAttribute("phone", new String[] { "1", "2", "3" });
+        user = reload(identityStore, user);
+
+        assertArrayEquals(new String[] { "1", "2", "3" }, user.getAttributeValues("phone"));
+
+        identityStore.setAttribute(user, "phone", new String[] { "4", "5" });
+        assertEquals(2, user.getAttributeValues("phone").length);
+        user = reload(identityStore, user);
+
+        assertEquals(2, countAttributes("attribute-replace"));
+        assertEquals(2, user.getAttributeValues("phone").length);
+
+        user.setAttribute("phone", "6");
+        user.setAttribute("email", "user@jboss.org");
+        user = reload(identityStore, user);
+
+        assertEquals(2, countAttributes("attribute-replace"));
+        assertArrayEquals(new String[] { "6" }, user.getAttributeValues("phone"));
+        assertEquals(2, identityStore.getAttributes(user).size());
+
+        identityStore.removeAttribute(user, "phone");
+        user = reload(identityStore, user);
+
+        assertEquals(1, countAttributes("attribute-replace"));
+        assertNull(user.getAttributeValues("phone"));
+    }
+
+    /**
+     * <p>
+     * Tests that setting an attribute to no values removes it.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEmptyAttribute() throws Exception {
+        JPAIdentityStore identityStore = (JPAIdentityStore) createIdentityStore();
+
+        User user = identityStore.createUser("attribute-empty");
+
+        user.setAttribute("phone", new String[] { "1", "2" });
+        user.setAttribute("phone", new String[0]);
+
+        assertNull(user.getAttribute("phone"));
+        assertNull(user.getAttributeValues("phone"));
+
+        user = reload(identityStore, user);
+
+        assertEquals(0, countAttributes("attribute-empty"));
+        assertNull(user.getAttribute("phone"));
+
+        identityStore.setAttribute(user, "phone", new String[] { "3" });
+        identityStore.setAttribute(user, "phone", new String[0]);
+        user = reload(identityStore, user);
+
+        assertEquals(0, countAttributes("attribute-empty"));
+        assertNull(user.getAttribute("phone"));
+    }
+
+    /**
+     * <p>
+     * Tests loading the attributes of query results in bulk.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPrefetchAttributes() throws Exception {
+        JPAIdentityStore identityStore = (JPAIdentityStore) createIdentityStore();
+
+        for (int i = 0; i < 3; i++) {
+            User user = identityStore.createUser("attribute-prefetch-" + i);
+
+            user.setAttribute("department", "prefetch");
+            user.setAttribute("index", String.valueOf(i));
+        }
+
+        identityStore.createUser("attribute-prefetch-3").setAttribute("department", "other");
+
+        this.entityManager.flush();
+        this.entityManager.clear();
+
+        identityStore.setPrefetchAttributes(true);
+
+        UserQuery query = new DefaultUserQuery(identityStore);
+        query.setAttributeFilter("department", new String[] { "prefetch" });
+
+        List<User> users = query.executeQuery(query);
+
+        assertEquals(3, users.size());
+
+        for (User user : users) {
+            assertEquals("prefetch", user.getAttribute("department"));
+            assertEquals(user.getKey().substring("attribute-prefetch-".length()), user.getAttribute("index"));
+            assertFalse(Persistence.getPersistenceUtil().isLoaded(user, "userAttributes"));
+        }
+    }
+
+    /**
+     * <p>
+     * Tests that the attribute tables are indexed by owner and attribute name.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAttributeIndexes() throws Exception {
+        for (String owner : new String[] { "USER", "GROUP", "ROLE" }) {
+            List<?> columns = this.entityManager.createNativeQuery(
+                    "select COLUMN_NAME from INFORMATION_SCHEMA.INDEXES where INDEX_NAME = 'IDX_" + owner
+                            + "_ATTRIBUTE_OWNER_NAME' order by ORDINAL_POSITION").getResultList();
+
+            assertEquals(owner + "_ID", columns.get(0));
+            assertEquals("NAME", columns.get(1));
+        }
+    }
+
+    private User reload(JPAIdentityStore identityStore, User user) {
+        this.entityManager.flush();
+        this.entityManager.clear();
+
+        return identityStore.getUser(user.getKey());
+    }
+
+    private long countAttributes(String userKey) {
+        return (Long) this.entityManager
+                .createQuery("select count(a) from DatabaseUserAttribute a where a.user.key = :key")
+                .setParameter("key", userKey).getSingleResult();
+    }
+}
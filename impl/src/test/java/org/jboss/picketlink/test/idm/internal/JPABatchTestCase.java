@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.picketlink.idm.batch.BatchFailure;
+import org.jboss.picketlink.idm.batch.BatchListener;
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.internal.DefaultGroupQuery;
+import org.jboss.picketlink.idm.internal.JPAIdentityStore;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests writing an {@link IdentityBatch} with the {@link JPAIdentityStore}.
+ * </p>
+ */
+public class JPABatchTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests a batch written in chunks of three items, where items reference identity types created by earlier chunks and
+     * some items fail.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExecuteBatch() throws Exception {
+        JPAIdentityStore identityStore = (JPAIdentityStore) createIdentityStore();
+
+        identityStore.setBatchSize(3);
+        identityStore.createUser("batch-existing");
+
+        IdentityBatch batch = new IdentityBatch();
+
+        batch.createRole("batch-admin");
+        batch.createGroup("batch-company", null);
+        batch.createGroup("batch-sales", "batch-company");
+
+        for (int i = 0; i < 4; i++) {
+            batch.createUser("batch-user-" + i);
+        }
+
+        batch.createUser("batch-existing");
+        batch.createMembership("batch-admin", "batch-user-0", "batch-sales");
+        batch.createMembership("batch-unknown", "batch-user-1", null);
+        batch.createGroup("batch-europe", "batch-sales");
+
+        final List<Integer> progress = new ArrayList<Integer>();
+        final List<Integer> failures = new ArrayList<Integer>();
+
+        BatchResult result = identityStore.executeBatch(batch, new BatchListener() {
+
+            @Override
+            public void onProgress(int processed, int total) {
+                progress.add(processed);
+            }
+
+            @Override
+            public void onFailure(BatchFailure failure) {
+                failures.add(failure.getIndex());
+            }
+        });
+
+        assertEquals(11, result.getTotal());
+        assertEquals(11, result.getProcessed());
+        assertEquals(9, result.getSucceeded());
+        assertFalse(result.isSuccessful());
+        assertEquals(2, result.getFailures().size());
+        assertEquals(7, result.getFailures().get(0).getIndex());
+        assertEquals(9, result.getFailures().get(1).getIndex());
+        assertEquals(Arrays.asList(7, 9), failures);
+        assertEquals(Arrays.asList(3, 6, 9, 11), progress);
+
+        User user = identityStore.getUser("batch-user-0");
+        Role role = identityStore.getRole("batch-admin");
+        Group sales = identityStore.getGroup("batch-sales");
+
+        assertNotNull(user);
+        assertNotNull(identityStore.getMembership(role, user, sales));
+        assertEquals("batch-company", sales.getParentGroup().getName());
+
+        GroupQuery query = new DefaultGroupQuery(identityStore).setAncestorGroup("batch-company");
+
+        assertEquals(2, query.executeQuery(query).size());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.picketlink.idm.internal.DefaultGroupQuery;
+import org.jboss.picketlink.idm.internal.DefaultRoleQuery;
+import org.jboss.picketlink.idm.internal.DefaultUserQuery;
+import org.jboss.picketlink.idm.internal.JPAIdentityStore;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.GroupQuery;
+import org.jboss.picketlink.idm.query.RoleQuery;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the subtree and inherited role conditions resolved by the {@link JPAIdentityStore} against the group hierarchy
+ * closure table.
+ * </p>
+ */
+public class JPAGroupHierarchyTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests the queries over a three level tree: company > engineering > (backend > platform, frontend).
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGroupHierarchy() throws Exception {
+        IdentityStore identityStore = createIdentityStore();
+
+        Group company = identityStore.createGroup("tree-company", null);
+        Group engineering = identityStore.createGroup("tree-engineering", company);
+        Group backend = identityStore.createGroup("tree-backend", engineering);
+        Group platform = identityStore.createGroup("tree-platform", backend);
+        Group frontend = identityStore.createGroup("tree-frontend", engineering);
+
+        Role employee = identityStore.createRole("tree-employee");
+        Role developer = identityStore.createRole("tree-developer");
+
+        User john = identityStore.createUser("tree-john");
+        User mary = identityStore.createUser("tree-mary");
+
+        identityStore.createMembership(developer, john, platform);
+        identityStore.createMembership(developer, mary, frontend);
+        identityStore.createMembership(employee, null, company);
+
+        assertGroups(new DefaultGroupQuery(identityStore).setAncestorGroup(company), "tree-backend", "tree-engineering",
+                "tree-frontend", "tree-platform");
+        assertGroups(new DefaultGroupQuery(identityStore).setAncestorGroup(backend), "tree-platform");
+        assertGroups(new DefaultGroupQuery(identityStore).setAncestorGroup(platform));
+        assertGroups(new DefaultGroupQuery(identityStore).setParentGroup(engineering), "tree-backend", "tree-frontend");
+
+        UserQuery userQuery = new DefaultUserQuery(identityStore).setRelatedGroup(engineering).setIncludeSubgroups(true);
+
+        assertEquals(2, userQuery.executeQuery(userQuery).size());
+        assertTrue(userQuery.setIncludeSubgroups(false).executeQuery(userQuery).isEmpty());
+
+        assertRoles(new DefaultRoleQuery(identityStore).setOwner(backend).setInherited(true), "tree-employee");
+        assertRoles(new DefaultRoleQuery(identityStore).setOwner(backend));
+        assertRoles(new DefaultRoleQuery(identityStore).setOwner(john).setGroup(platform).setInherited(true),
+                "tree-developer");
+
+        identityStore.removeMembership(developer, john, platform);
+        identityStore.removeGroup(platform);
+
+        assertGroups(new DefaultGroupQuery(identityStore).setAncestorGroup(company), "tree-backend", "tree-engineering",
+                "tree-frontend");
+    }
+
+    private void assertGroups(GroupQuery query, String... expectedNames) {
+        List<Group> result = query.executeQuery(query);
+
+        assertEquals(expectedNames.length, result.size());
+
+        for (int i = 0; i < expectedNames.length; i++) {
+            assertEquals(expectedNames[i], result.get(i).getName());
+        }
+    }
+
+    private void assertRoles(RoleQuery query, String... expectedNames) {
+        Set<String> names = new HashSet<String>();
+
+        for (Role role : query.executeQuery(query)) {
+            names.add(role.getName());
+        }
+
+        assertEquals(expectedNames.length, names.size());
+
+        for (String expectedName : expectedNames) {
+            assertTrue(names.contains(expectedName));
+        }
+    }
+}
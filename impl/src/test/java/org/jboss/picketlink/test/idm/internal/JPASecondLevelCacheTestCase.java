@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.hibernate.stat.Statistics;
+import org.jboss.picketlink.idm.internal.JPAIdentityStore;
+import org.jboss.picketlink.idm.internal.jpa.DatabaseUserAttribute;
+import org.jboss.picketlink.idm.model.User;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the second-level and query caches used by the {@link JPAIdentityStore}.
+ * </p>
+ */
+public class JPASecondLevelCacheTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests that looking up a user by key from another {@link EntityManager} is resolved by the caches, and that changes made
+     * through the store are seen by the next lookups.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLookupByKey() throws Exception {
+        JPAIdentityStore identityStore = (JPAIdentityStore) createIdentityStore();
+
+        User user = identityStore.createUser("cached-user");
+        User otherUser = identityStore.createUser("other-cached-user");
+
+        user.setAttribute("location", "head-office");
+        otherUser.setAttribute("location", "remote");
+
+        commit();
+
+        // the first lookups fill the query cache
+        assertEquals("head-office", lookup("cached-user").getAttribute("location"));
+        assertEquals("remote", lookup("other-cached-user").getAttribute("location"));
+
+        Statistics statistics = getStatistics();
+
+        statistics.clear();
+
+        assertEquals("head-office", lookup("cached-user").getAttribute("location"));
+
+        assertEquals(0, statistics.getQueryExecutionCount());
+        assertEquals(1, statistics.getQueryCacheHitCount());
+        assertEquals(0, statistics.getSecondLevelCacheMissCount());
+        assertTrue(statistics.getSecondLevelCacheHitCount() >= 3);
+        assertEquals(0, statistics.getEntityLoadCount());
+
+        identityStore.setEnabled(user, false);
+        user.setAttribute("location", "branch-office");
+
+        commit();
+
+        User changedUser = lookup("cached-user");
+
+        assertFalse(changedUser.isEnabled());
+        assertEquals("branch-office", changedUser.getAttribute("location"));
+
+        identityStore.evict(user);
+
+        statistics.clear();
+
+        assertEquals("branch-office", lookup("cached-user").getAttribute("location"));
+        // the user and its attribute are read from the database again
+        assertEquals(1, statistics.getQueryExecutionCount());
+        assertEquals(2, statistics.getEntityLoadCount());
+
+        statistics.clear();
+
+        // the attributes of the other users stay cached
+        assertEquals("remote", lookup("other-cached-user").getAttribute("location"));
+        assertEquals(0, statistics.getEntityStatistics(DatabaseUserAttribute.class.getName()).getLoadCount());
+        assertEquals(0, statistics.getSecondLevelCacheMissCount());
+
+        identityStore.removeUser(identityStore.getUser("cached-user"));
+        identityStore.removeUser(identityStore.getUser("other-cached-user"));
+
+        commit();
+
+        assertNull(lookup("cached-user"));
+    }
+
+    /**
+     * <p>
+     * Tests that evicting a user whose attribute rows were removed from the database by other means does not load the
+     * removed rows listed in its cached state.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEvictAfterExternalDelete() throws Exception {
+        JPAIdentityStore identityStore = (JPAIdentityStore) createIdentityStore();
+
+        User user = identityStore.createUser("externally-changed-user");
+
+        user.setAttribute("location", "head-office");
+        user.setAttribute("phone", "1234");
+
+        commit();
+
+        assertEquals("1234", lookup("externally-changed-user").getAttribute("phone"));
+
+        this.entityManager.unwrap(Session.class).doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement("delete from DatabaseUserAttribute where name = ?");
+                try {
+                    statement.setString(1, "phone");
+                    assertEquals(1, statement.executeUpdate());
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+
+        commit();
+
+        identityStore.evict(user);
+
+        User reloaded = lookup("externally-changed-user");
+
+        assertNull(reloaded.getAttribute("phone"));
+        assertEquals("head-office", reloaded.getAttribute("location"));
+
+        identityStore.evictAll();
+
+        assertEquals("head-office", lookup("externally-changed-user").getAttribute("location"));
+    }
+
+    private User lookup(String name) {
+        EntityManager entityManager = getEntityManagerFactory().createEntityManager();
+
+        try {
+            User user = createIdentityStore(entityManager).getUser(name);
+
+            if (user != null) {
+                // reads the attributes while the entity manager is open
+                user.getAttributes();
+            }
+
+            return user;
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Commits the changes made so far, so other entity managers see them
+     */
+    private void commit() {
+        this.entityManager.flush();
+        this.entityManager.getTransaction().commit();
+        this.entityManager.getTransaction().begin();
+    }
+
+    private Statistics getStatistics() {
+        return this.entityManager.unwrap(Session.class).getSessionFactory().getStatistics();
+    }
+}
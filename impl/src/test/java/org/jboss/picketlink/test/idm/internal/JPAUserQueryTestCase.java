@@ -0,0 +1,288 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
+import org.jboss.picketlink.idm.internal.DefaultUserQuery;
+import org.jboss.picketlink.idm.internal.JPAIdentityStore;
+import org.jboss.picketlink.idm.internal.jpa.DatabaseUser;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.QueryResultIterator;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.UserQuery;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the execution of {@link UserQuery} instances using the {@link JPAIdentityStore}.
+ * </p>
+ */
+public class JPAUserQueryTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests the built in attributes, relationship and attribute filter conditions and the pagination of the results.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUserQuery() throws Exception {
+        IdentityStore identityStore = createIdentityStore();
+
+        Role role = identityStore.createRole("query-admin");
+        Group group = identityStore.createGroup("query-staff", null);
+
+        for (int i = 0; i < 5; i++) {
+            DatabaseUser user = (DatabaseUser) identityStore.createUser("query-user-" + i);
+
+            user.setFirstName("First" + i);
+            user.setLastName(i % 2 == 0 ? "Even" : "Odd");
+            user.setEmail("user" + i + "@company.com");
+            user.setEnabled(i != 4);
+            user.setAttribute("department", i < 2 ? "sales" : "engineering");
+
+            if (i < 3) {
+                identityStore.createMembership(role, user, group);
+            }
+        }
+
+        assertNames(query(identityStore).setName("query-user-*"), "query-user-0", "query-user-1", "query-user-2",
+                "query-user-3", "query-user-4");
+        assertNames(query(identityStore).setName("query-user-3"), "query-user-3");
+        assertNames(query(identityStore).setFirstName("First1"), "query-user-1");
+        assertNames(query(identityStore).setLastName("Odd"), "query-user-1", "query-user-3");
+        assertNames(query(identityStore).setEmail("user2@*"), "query-user-2");
+        assertNames(query(identityStore).setLastName("Even").setEnabled(true), "query-user-0", "query-user-2");
+        assertNames(query(identityStore).setRelatedGroup(group), "query-user-0", "query-user-1", "query-user-2");
+        assertNames(query(identityStore).setRole(role).setLastName("Even"), "query-user-0", "query-user-2");
+        assertNames(query(identityStore).setAttributeFilter("department", new String[] { "sales" }), "query-user-0",
+                "query-user-1");
+        assertNames(query(identityStore).setAttributeFilter("department", new String[] { "sales" }).setRole(role)
+                .setLastName("Odd"), "query-user-1");
+        assertNames(query(identityStore).setName("query-user-*").sort(false), "query-user-4", "query-user-3",
+                "query-user-2", "query-user-1", "query-user-0");
+
+        List<User> page = identityStore.executeQuery(query(identityStore).setName("query-user-*"), Range.of(1, 2));
+
+        assertEquals(2, page.size());
+        assertEquals("query-user-1", page.get(0).getKey());
+        assertEquals("query-user-2", page.get(1).getKey());
+
+        assertTrue(identityStore.executeQuery(query(identityStore).setName("unknown"), null).isEmpty());
+    }
+
+    /**
+     * <p>
+     * Tests that '%' and '_' in a value with the '*' wildcard are matched literally.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWildcardEscaping() throws Exception {
+        IdentityStore identityStore = createIdentityStore();
+
+        identityStore.createUser("escape_user");
+        identityStore.createUser("escapexuser");
+        identityStore.createUser("escape%user");
+
+        assertNames(query(identityStore).setName("escape_*"), "escape_user");
+        assertNames(query(identityStore).setName("escape%*"), "escape%user");
+        assertNames(query(identityStore).setName("escape*user"), "escape%user", "escape_user", "escapexuser");
+    }
+
+    /**
+     * <p>
+     * Tests paging through the results with keyset {@link Range} instances, in both sort directions.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testKeysetPagination() throws Exception {
+        IdentityStore identityStore = createIdentityStore();
+
+        for (int i = 0; i < 5; i++) {
+            identityStore.createUser("keyset-user-" + i);
+        }
+
+        assertPages(identityStore, true, "keyset-user-0", "keyset-user-1", "keyset-user-2", "keyset-user-3", "keyset-user-4");
+        assertPages(identityStore, false, "keyset-user-4", "keyset-user-3", "keyset-user-2", "keyset-user-1", "keyset-user-0");
+    }
+
+    /**
+     * <p>
+     * Tests reading the results with a {@link QueryResultIterator}, which loads them in chunks and detaches the chunks
+     * already consumed.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIterateQuery() throws Exception {
+        JPAIdentityStore identityStore = (JPAIdentityStore) createIdentityStore();
+
+        identityStore.setFetchSize(2);
+
+        for (int i = 0; i < 5; i++) {
+            identityStore.createUser("iterated-user-" + i);
+        }
+
+        UserQuery query = query(identityStore).setName("iterated-user-*");
+        QueryResultIterator<User> iterator = query.iterateQuery(query);
+        List<User> users = new ArrayList<User>();
+
+        try {
+            while (iterator.hasNext()) {
+                users.add(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+
+        assertEquals(5, users.size());
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("iterated-user-" + i, users.get(i).getKey());
+            assertFalse(this.entityManager.contains(users.get(i)));
+        }
+
+        iterator = identityStore.iterateQuery(query, Range.of(1, 3));
+        users.clear();
+
+        try {
+            while (iterator.hasNext()) {
+                users.add(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+
+        assertEquals(3, users.size());
+        assertEquals("iterated-user-1", users.get(0).getKey());
+        assertEquals("iterated-user-3", users.get(2).getKey());
+    }
+
+    /**
+     * <p>
+     * Tests that an immutable query can not be changed and that queries of the same shape render to the same JPQL, whatever
+     * their values, so the persistence provider parses it once.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testQueryShapes() throws Exception {
+        JPAIdentityStore identityStore = (JPAIdentityStore) createIdentityStore();
+
+        for (int i = 0; i < 3; i++) {
+            DatabaseUser user = (DatabaseUser) identityStore.createUser("plan-user-" + i);
+
+            user.setLastName(i == 0 ? "First" : "Other");
+            user.setAttribute("location", "floor-" + i);
+        }
+
+        UserQuery query = query(identityStore).setName("plan-user-*").setAttributeFilter("location",
+                new String[] { "floor-0", "floor-2" });
+        UserQuery immutable = query.getImmutable();
+
+        assertSame(immutable, immutable.getImmutable());
+
+        try {
+            immutable.setName("plan-user-1");
+            fail("Immutable query can not be changed");
+        } catch (RuntimeException expected) {
+            // expected
+        }
+
+        query.setName("plan-user-1");
+
+        assertEquals("plan-user-*", immutable.getName());
+        assertNames(immutable, "plan-user-0", "plan-user-2");
+
+        Statistics statistics = this.entityManager.unwrap(Session.class).getSessionFactory().getStatistics();
+
+        statistics.clear();
+        assertNames(immutable, "plan-user-0", "plan-user-2");
+        int queries = statistics.getQueries().length;
+
+        assertNames(immutable, "plan-user-0", "plan-user-2");
+        assertNames(query(identityStore).setName("plan-*").setAttributeFilter("location",
+                new String[] { "floor-1", "floor-2" }), "plan-user-1", "plan-user-2");
+
+        assertEquals(queries, statistics.getQueries().length);
+
+        // a different shape: a LIKE condition turned into an equality condition, and a new condition
+        assertNames(query(identityStore).setName("plan-user-0").setLastName("First"), "plan-user-0");
+
+        assertEquals(queries + 1, statistics.getQueries().length);
+    }
+
+    private void assertPages(IdentityStore identityStore, boolean ascending, String... expectedNames) {
+        UserQuery query = query(identityStore).setName("keyset-user-*").sort(ascending);
+        Range range = Range.after(null, 2);
+        List<String> names = new ArrayList<String>();
+        List<User> page = identityStore.executeQuery(query, range);
+
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 2);
+
+            for (User user : page) {
+                names.add(user.getKey());
+            }
+
+            page = identityStore.executeQuery(query, range.next(page.get(page.size() - 1).getKey()));
+        }
+
+        assertEquals(Arrays.asList(expectedNames), names);
+    }
+
+    private UserQuery query(IdentityStore identityStore) {
+        return new DefaultUserQuery(identityStore);
+    }
+
+    private void assertNames(UserQuery query, String... expectedNames) {
+        List<User> result = query.executeQuery(query);
+
+        assertEquals(expectedNames.length, result.size());
+
+        for (int i = 0; i < expectedNames.length; i++) {
+            assertEquals(expectedNames[i], result.get(i).getKey());
+        }
+    }
+
+}
@@ -23,8 +23,11 @@ package org.jboss.picketlink.test.idm.internal;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
 import org.jboss.picketlink.idm.internal.JPAIdentityStore;
 import org.jboss.picketlink.idm.model.IdentityType;
 import org.jboss.picketlink.idm.model.User;
@@ -46,6 +49,44 @@ public class JPAUserTestCase extends AbstractJPAIdentityTypeTestCase {
     private static final String USER_FULL_NAME = "Anil Saldhana";
     private static final String USER_USERNAME = "asaldhana";
 
+    /**
+     * <p>
+     * Tests that new users are enabled and that the password hash stored by an update is the one checked afterwards, also
+     * once read back from the database.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUpdateAndValidatePassword() throws Exception {
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+
+        identityManager.setIdentityStore(createIdentityStore());
+
+        User user = identityManager.createUser("password-user");
+
+        assertTrue(user.isEnabled());
+
+        identityManager.updatePassword(user, "first");
+
+        assertTrue(identityManager.validatePassword(user, "first"));
+        assertFalse(identityManager.validatePassword(user, "wrong"));
+
+        identityManager.updatePassword(user, "second");
+
+        assertFalse(identityManager.validatePassword(user, "first"));
+        assertTrue(identityManager.validatePassword(user, "second"));
+
+        this.entityManager.flush();
+        this.entityManager.clear();
+
+        user = identityManager.getUser("password-user");
+
+        assertTrue(user.isEnabled());
+        assertTrue(identityManager.validatePassword(user, "second"));
+        assertFalse(identityManager.validatePassword(user, "first"));
+    }
+
     /**
      * <p>
      * Tests the creation of an {@link User} with populating some basic attributes.
@@ -21,20 +21,37 @@
  */
 package org.jboss.picketlink.test.idm.internal;
 
+import static org.jboss.picketlink.idm.internal.ldap.LDAPConstants.MEMBER;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.jboss.picketlink.idm.internal.CachingIdentityStore;
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
+import org.jboss.picketlink.idm.internal.DefaultRoleQuery;
 import org.jboss.picketlink.idm.internal.LDAPIdentityStore;
+import org.jboss.picketlink.idm.internal.config.CacheConfiguration;
 import org.jboss.picketlink.idm.internal.config.LDAPConfiguration;
 import org.jboss.picketlink.idm.internal.config.LDAPConfigurationBuilder;
+import org.jboss.picketlink.idm.internal.event.IdentityEventBus;
+import org.jboss.picketlink.idm.internal.ldap.LDAPChangeConsumer;
+import org.jboss.picketlink.idm.internal.ldap.LDAPGroup;
 import org.jboss.picketlink.idm.model.Group;
 import org.jboss.picketlink.idm.model.Membership;
 import org.jboss.picketlink.idm.model.Role;
 import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.Range;
+import org.jboss.picketlink.idm.query.RoleQuery;
 import org.jboss.picketlink.idm.spi.IdentityStoreConfigurationBuilder;
 import org.junit.Before;
 import org.junit.Test;
@@ -133,4 +150,169 @@ public class LDAPIdentityStoreTestCase extends AbstractLDAPTest {
         assertNull(store.getGroup("Dev"));
         assertNull(store.getGroup("PicketBox Team"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPagedQuery() throws Exception {
+        LDAPIdentityStore store = new LDAPIdentityStore();
+        store.setConfiguration(getConfiguration());
+        store.setPageSize(2);
+
+        for (int i = 0; i < 5; i++) {
+            store.createRole("pagedRole" + i);
+        }
+
+        // The five roles are read in three pages, along with the roles of the LDIF
+        Set<String> names = new HashSet<String>();
+        RoleQuery query = new DefaultRoleQuery(store);
+        for (Role role : store.executeQuery(query, null)) {
+            names.add(role.getName());
+        }
+        for (int i = 0; i < 5; i++) {
+            assertTrue(names.contains("pagedRole" + i));
+        }
+
+        // The range spans two pages
+        assertEquals(3, store.executeQuery(query, Range.of(1, 3)).size());
+
+        for (int i = 0; i < 5; i++) {
+            store.removeRole(store.getRole("pagedRole" + i));
+        }
+    }
+
+    @Test
+    public void testKeysetQuery() throws Exception {
+        LDAPIdentityStore store = new LDAPIdentityStore();
+        store.setConfiguration(getConfiguration());
+        store.setPageSize(2);
+
+        for (int i = 0; i < 5; i++) {
+            store.createRole("keysetRole" + i);
+        }
+
+        RoleQuery query = new DefaultRoleQuery(store).setName("keysetRole*");
+        List<String> names = new ArrayList<String>();
+        Range range = Range.after(null, 2);
+        List<Role> page = store.executeQuery(query, range);
+
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 2);
+            for (Role role : page) {
+                names.add(role.getName());
+            }
+            page = store.executeQuery(query, range.next(page.get(page.size() - 1).getName()));
+        }
+
+        assertEquals(Arrays.asList("keysetRole0", "keysetRole1", "keysetRole2", "keysetRole3", "keysetRole4"), names);
+
+        // resumes after the boundary entry in descending order too
+        List<Role> descending = store.executeQuery(new DefaultRoleQuery(store).setName("keysetRole*").sort(false),
+                Range.after("keysetRole3", 10));
+        assertEquals(3, descending.size());
+        assertEquals("keysetRole2", descending.get(0).getName());
+        assertEquals("keysetRole0", descending.get(2).getName());
+
+        for (int i = 0; i < 5; i++) {
+            store.removeRole(store.getRole("keysetRole" + i));
+        }
+    }
+
+    @Test
+    public void testLazyMemberAttribute() throws Exception {
+        LDAPIdentityStore store = new LDAPIdentityStore();
+        store.setConfiguration(getConfiguration());
+
+        Group parent = store.createGroup("Lazy Parent", null);
+        Group child = store.createGroup("Lazy Child", parent);
+
+        // The lookup reads the name only, the members are read when accessed
+        LDAPGroup ldapGroup = (LDAPGroup) store.getGroup("Lazy Parent");
+        assertNull(ldapGroup.getAttributes("").get(MEMBER));
+        assertTrue("cn=Lazy Child,ou=Groups,dc=jboss,dc=org".equalsIgnoreCase(ldapGroup.getAttribute(MEMBER)));
+
+        store.removeGroup(child);
+        store.removeGroup(parent);
+    }
+
+    @Test
+    public void testGroupParentChain() throws Exception {
+        LDAPIdentityStore store = new LDAPIdentityStore();
+        store.setConfiguration(getConfiguration());
+
+        Group company = store.createGroup("Company", null);
+        Group engineering = store.createGroup("Engineering", company);
+        Group platform = store.createGroup("Platform", engineering);
+
+        Group group = store.getGroup("Platform");
+        assertEquals("Engineering", group.getParentGroup().getName());
+        assertEquals("Company", group.getParentGroup().getParentGroup().getName());
+        assertNull(group.getParentGroup().getParentGroup().getParentGroup());
+
+        // The cached tree is read again after being invalidated
+        store.invalidateGroupHierarchy();
+        assertEquals("Company", store.getGroup("Engineering").getParentGroup().getName());
+
+        store.removeGroup(platform);
+        store.removeGroup(engineering);
+        store.removeGroup(company);
+    }
+
+    @Test
+    public void testUpdateAndValidatePassword() throws Exception {
+        LDAPIdentityStore store = new LDAPIdentityStore();
+        store.setConfiguration(getConfiguration());
+
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+        identityManager.setIdentityStore(store);
+
+        User user = identityManager.createUser("passwordUser");
+
+        identityManager.updatePassword(user, "first");
+        assertTrue(identityManager.validatePassword(user, "first"));
+        assertFalse(identityManager.validatePassword(user, "wrong"));
+
+        identityManager.updatePassword(user, "second");
+        assertFalse(identityManager.validatePassword(user, "first"));
+
+        // The stored hash is read back from the directory
+        assertTrue(identityManager.validatePassword(store.getUser("passwordUser"), "second"));
+
+        identityManager.removeUser(user);
+    }
+
+    @Test
+    public void testChangeConsumerInvalidatesCachedUser() throws Exception {
+        LDAPIdentityStore store = new LDAPIdentityStore();
+        store.setConfiguration(getConfiguration());
+
+        CachingIdentityStore cachingStore = new CachingIdentityStore(store, new CacheConfiguration());
+        IdentityEventBus eventBus = new IdentityEventBus();
+        eventBus.addListener(cachingStore);
+
+        LDAPChangeConsumer consumer = store.createChangeConsumer(eventBus);
+        consumer.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (consumer.getActiveMode() == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            // Let the persistent search reach the server
+            Thread.sleep(500);
+
+            cachingStore.createUser("Changed User");
+
+            // Cached under its common name, while its DN is named after its uid
+            User user = cachingStore.getUser("Changed User");
+            assertNotNull(user);
+
+            // Removed behind the back of the caching store, only the consumer can tell it
+            store.removeUser(user);
+
+            while (cachingStore.getUser("Changed User") != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertNull(cachingStore.getUser("Changed User"));
+        } finally {
+            consumer.stop();
+        }
+    }
+}
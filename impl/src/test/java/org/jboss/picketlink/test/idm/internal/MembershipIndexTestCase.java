@@ -0,0 +1,218 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
+import org.jboss.picketlink.idm.internal.DefaultMembership;
+import org.jboss.picketlink.idm.internal.cache.MembershipIndex;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.spi.IdentityStore;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the role checks of the {@link DefaultIdentityManager} answered by a {@link MembershipIndex}.
+ * </p>
+ */
+public class MembershipIndexTestCase extends AbstractJPAIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests that the index is loaded from the store and kept up to date by the roles granted and revoked afterwards.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHasRole() throws Exception {
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+
+        identityManager.setIdentityStore(createIdentityStore());
+
+        User user = identityManager.createUser("indexed-user");
+        Group group = identityManager.createGroup("indexed-group");
+        Role admin = identityManager.createRole("indexed-admin");
+        Role auditor = identityManager.createRole("indexed-auditor");
+
+        identityManager.grantRole(admin, user, group);
+
+        assertTrue(identityManager.hasRole(admin, user, group));
+
+        identityManager.enableMembershipIndex();
+
+        assertTrue(identityManager.hasRole(admin, user, group));
+        assertFalse(identityManager.hasRole(auditor, user, group));
+        assertFalse(identityManager.hasRole(admin, user, null));
+
+        identityManager.grantRole(auditor, user, group);
+
+        Collection<Role> roles = identityManager.getRoles(user, group);
+
+        assertEquals(2, roles.size());
+        assertTrue(roles.contains(admin));
+        assertTrue(roles.contains(auditor));
+
+        identityManager.revokeRole(admin, user, group);
+
+        assertFalse(identityManager.hasRole(admin, user, group));
+        assertTrue(identityManager.hasRole(auditor, user, group));
+
+        identityManager.revokeRole(auditor, user, group);
+
+        assertTrue(identityManager.getRoles(user, group).isEmpty());
+    }
+
+    /**
+     * <p>
+     * Tests the roles granted to an user without a group and to a group, with and without the index. The memberships
+     * looked up in the store have no group, or no user, and must be matched as such.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWithoutUserOrGroup() throws Exception {
+        checkWithoutUserOrGroup("store", false);
+        checkWithoutUserOrGroup("index", true);
+    }
+
+    /**
+     * <p>
+     * Tests that the memberships written by a batch are added to the index.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBatch() throws Exception {
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+
+        identityManager.setIdentityStore(createIdentityStore());
+        identityManager.enableMembershipIndex();
+
+        IdentityBatch batch = new IdentityBatch();
+
+        batch.createUser("batch-user").createUser("other-batch-user").createGroup("batch-group", null).createRole("batch-role");
+        batch.createMembership("batch-role", "batch-user", "batch-group");
+        batch.createMembership("batch-role", "other-batch-user", "batch-group");
+        batch.createMembership("batch-role", null, "batch-group");
+
+        assertTrue(identityManager.executeBatch(batch, null).isSuccessful());
+
+        User user = identityManager.getUser("batch-user");
+        Group group = identityManager.getGroup("batch-group");
+        Role role = identityManager.getRole("batch-role");
+
+        assertTrue(identityManager.hasRole(role, user, group));
+        assertTrue(identityManager.hasRole(role, identityManager.getUser("other-batch-user"), group));
+        assertTrue(identityManager.hasRole(role, group, null));
+        assertFalse(identityManager.hasRole(role, user, null));
+    }
+
+    /**
+     * <p>
+     * Tests that the roles granted and revoked while the index is reloaded are kept, whether or not the store returned
+     * them.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testChangesDuringReload() throws Exception {
+        final IdentityStore store = createIdentityStore();
+        final MembershipIndex index = new MembershipIndex();
+
+        final User user = store.createUser("reloaded-user");
+        final Group group = store.createGroup("reloaded-group", null);
+        final Role revoked = store.createRole("reloaded-revoked");
+        final Role granted = store.createRole("reloaded-granted");
+
+        store.createMembership(revoked, user, group);
+
+        // Grant and revoke through the index once the store was asked for the memberships, as another thread would
+        IdentityStore reloading = (IdentityStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { IdentityStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = method.invoke(store, args);
+                        if (method.getName().equals("iterateQuery")) {
+                            index.remove(revoked, user, group);
+                            index.add(new DefaultMembership(user, granted, group));
+                        }
+                        return result;
+                    }
+                });
+
+        index.load(reloading);
+
+        assertFalse(index.hasRole(revoked, user, group));
+        assertTrue(index.hasRole(granted, user, group));
+    }
+
+    private void checkWithoutUserOrGroup(String prefix, boolean indexed) {
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+
+        identityManager.setIdentityStore(createIdentityStore());
+
+        User user = identityManager.createUser(prefix + "-user");
+        Group group = identityManager.createGroup(prefix + "-group");
+        Role role = identityManager.createRole(prefix + "-role");
+
+        if (indexed) {
+            identityManager.enableMembershipIndex();
+        }
+
+        identityManager.grantRole(role, user, null);
+        identityManager.grantRole(role, group, null);
+
+        assertTrue(identityManager.hasRole(role, user, null));
+        assertTrue(identityManager.hasRole(role, group, null));
+        assertFalse(identityManager.hasRole(role, user, group));
+
+        identityManager.revokeRole(role, user, null);
+
+        assertFalse(identityManager.hasRole(role, user, null));
+        assertTrue(identityManager.hasRole(role, group, null));
+
+        identityManager.revokeRole(role, group, null);
+
+        assertFalse(identityManager.hasRole(role, group, null));
+
+        // The memberships must be gone from the store as well, not only from the index
+        identityManager.enableMembershipIndex();
+
+        assertFalse(identityManager.hasRole(role, user, null));
+        assertFalse(identityManager.hasRole(role, group, null));
+    }
+}
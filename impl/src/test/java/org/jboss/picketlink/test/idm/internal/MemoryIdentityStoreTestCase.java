@@ -0,0 +1,248 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jboss.picketlink.idm.batch.BatchResult;
+import org.jboss.picketlink.idm.batch.IdentityBatch;
+import org.jboss.picketlink.idm.internal.DefaultGroupQuery;
+import org.jboss.picketlink.idm.internal.DefaultMembershipQuery;
+import org.jboss.picketlink.idm.internal.DefaultRoleQuery;
+import org.jboss.picketlink.idm.internal.DefaultUserQuery;
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.IdentityType;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.jboss.picketlink.idm.query.Range;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the {@link MemoryIdentityStore}.
+ * </p>
+ */
+public class MemoryIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests creating, loading and removing identity types, with the memberships of the removed ones.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIdentityTypes() throws Exception {
+        MemoryIdentityStore identityStore = new MemoryIdentityStore();
+
+        User user = identityStore.createUser("memory-user");
+        Group group = identityStore.createGroup("memory-group", null);
+        Group subgroup = identityStore.createGroup("memory-subgroup", group);
+        Role role = identityStore.createRole("memory-role");
+
+        assertSame(user, identityStore.getUser("memory-user"));
+        assertSame(group, identityStore.getGroup("memory-subgroup").getParentGroup());
+
+        try {
+            identityStore.createUser("memory-user");
+            fail("The user already exists");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        try {
+            identityStore.removeGroup(group);
+            fail("The group has a subgroup");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        assertSame(identityStore.createMembership(role, user, subgroup), identityStore.createMembership(role, user, subgroup));
+        assertNotNull(identityStore.getMembership(role, user, subgroup));
+
+        identityStore.removeUser(user);
+
+        assertNull(identityStore.getUser("memory-user"));
+        assertNull(identityStore.getMembership(role, user, subgroup));
+        assertEquals(0, identityStore.executeQuery(new DefaultMembershipQuery(identityStore), null).size());
+
+        identityStore.removeGroup(subgroup);
+        identityStore.removeGroup(group);
+
+        assertNull(identityStore.getGroup("memory-group"));
+    }
+
+    /**
+     * <p>
+     * Tests the queries answered from the email and attribute indexes, and that the indexes follow the changes.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIndexedQueries() throws Exception {
+        MemoryIdentityStore identityStore = new MemoryIdentityStore();
+
+        User first = identityStore.createUser("indexed-first");
+        User second = identityStore.createUser("indexed-second");
+        identityStore.createUser("other");
+
+        first.setEmail("first@jboss.org");
+        identityStore.setAttribute(first, "department", new String[] { "sales", "support" });
+        second.setAttribute("department", "support");
+
+        assertEquals("[indexed-first]", keys(identityStore.executeQuery(
+                new DefaultUserQuery(identityStore).setEmail("first@jboss.org"), null)));
+        assertEquals("[indexed-first, indexed-second]", keys(identityStore.executeQuery(new DefaultUserQuery(
+                identityStore).setAttributeFilter("department", new String[] { "support" }), null)));
+        assertEquals("[indexed-second, indexed-first]", keys(identityStore.executeQuery(new DefaultUserQuery(
+                identityStore).setName("indexed-*").sort(false), null)));
+
+        first.setEmail("changed@jboss.org");
+        identityStore.setAttribute(first, "department", new String[] { "sales" });
+
+        assertEquals("[]", keys(identityStore.executeQuery(new DefaultUserQuery(identityStore).setEmail("first@jboss.org"),
+                null)));
+        assertEquals("[indexed-second]", keys(identityStore.executeQuery(new DefaultUserQuery(identityStore)
+                .setAttributeFilter("department", new String[] { "support" }), null)));
+
+        identityStore.removeUser(second);
+
+        assertEquals("[]", keys(identityStore.executeQuery(new DefaultUserQuery(identityStore).setAttributeFilter(
+                "department", new String[] { "support" }), null)));
+    }
+
+    /**
+     * <p>
+     * Tests the queries on memberships, subgroups and inherited roles, and offset and keyset ranges.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRelationQueries() throws Exception {
+        MemoryIdentityStore identityStore = new MemoryIdentityStore();
+
+        IdentityBatch batch = new IdentityBatch();
+        batch.createGroup("company", null).createGroup("engineering", "company").createGroup("qa", "engineering");
+        batch.createRole("employee").createRole("developer").createRole("tester");
+        for (int i = 0; i < 5; i++) {
+            batch.createUser("user-" + i).createMembership("developer", "user-" + i, "engineering");
+        }
+        batch.createUser("tester-0").createMembership("tester", "tester-0", "qa");
+        batch.createMembership("employee", null, "company");
+        batch.createMembership("missing", "user-0", null);
+
+        BatchResult result = identityStore.executeBatch(batch, null);
+
+        assertEquals(batch.size(), result.getProcessed());
+        assertEquals(1, result.getFailures().size());
+
+        Group engineering = identityStore.getGroup("engineering");
+        Group qa = identityStore.getGroup("qa");
+        User tester = identityStore.getUser("tester-0");
+
+        assertEquals("[user-0, user-1, user-2, user-3, user-4]", keys(identityStore.executeQuery(new DefaultUserQuery(
+                identityStore).setRelatedGroup(engineering), null)));
+        assertEquals(6, identityStore.executeQuery(
+                new DefaultUserQuery(identityStore).setRelatedGroup(engineering).setIncludeSubgroups(true), null).size());
+        assertEquals("[engineering, qa]", keys(identityStore.executeQuery(new DefaultGroupQuery(identityStore)
+                .setAncestorGroup("company"), null)));
+        assertEquals("[tester]", keys(identityStore.executeQuery(new DefaultRoleQuery(identityStore).setOwner(tester), null)));
+        assertEquals("[tester, employee, developer]", keys(identityStore.executeQuery(new DefaultRoleQuery(identityStore)
+                .setGroup(qa).setInherited(true).sort(false), null)));
+        assertEquals(5, identityStore.executeQuery(new DefaultMembershipQuery(identityStore).setGroup(engineering), null)
+                .size());
+
+        DefaultUserQuery developers = new DefaultUserQuery(identityStore);
+        developers.setRole("developer");
+
+        assertEquals("[user-1, user-2]", keys(identityStore.executeQuery(developers, Range.of(1, 2))));
+        assertEquals("[user-3, user-4]", keys(identityStore.executeQuery(developers, Range.after("user-2", 10))));
+        assertEquals("[user-2, user-1]", keys(identityStore.executeQuery(new DefaultUserQuery(identityStore).sort(false),
+                Range.after("user-3", 2))));
+    }
+
+    /**
+     * <p>
+     * Tests that concurrent writers of users and memberships leave the store and its indexes consistent.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final MemoryIdentityStore identityStore = new MemoryIdentityStore();
+        final Role role = identityStore.createRole("concurrent-role");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < 8; thread++) {
+                final int offset = thread * 100;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = offset; i < offset + 100; i++) {
+                            User user = identityStore.createUser(String.format("concurrent-%04d", i));
+                            user.setAttribute("shard", String.valueOf(i % 2));
+                            identityStore.createMembership(role, user, null);
+                            if (i % 4 == 0) {
+                                identityStore.removeUser(user);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(600, identityStore.executeQuery(new DefaultUserQuery(identityStore), null).size());
+        assertEquals(600, identityStore.executeQuery(new DefaultMembershipQuery(identityStore).setRole(role), null).size());
+        assertEquals(400, identityStore.executeQuery(new DefaultUserQuery(identityStore).setAttributeFilter("shard",
+                new String[] { "1" }), null).size());
+        assertEquals(600, identityStore.executeQuery(new DefaultUserQuery(identityStore).setRole(role), null).size());
+    }
+
+    private String keys(List<? extends IdentityType> identityTypes) {
+        List<String> keys = new ArrayList<String>();
+        for (IdentityType identityType : identityTypes) {
+            keys.add(identityType.getKey());
+        }
+        return keys.toString();
+    }
+}
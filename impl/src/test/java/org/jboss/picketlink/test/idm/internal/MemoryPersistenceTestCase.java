@@ -0,0 +1,248 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.List;
+
+import org.jboss.picketlink.idm.internal.DefaultGroupQuery;
+import org.jboss.picketlink.idm.internal.DefaultUserQuery;
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+import org.jboss.picketlink.idm.internal.memory.MemoryChangeLog;
+import org.jboss.picketlink.idm.internal.memory.MemoryPersistence;
+import org.jboss.picketlink.idm.internal.memory.MemoryRole;
+import org.jboss.picketlink.idm.internal.memory.MemorySnapshot;
+import org.jboss.picketlink.idm.internal.memory.MemoryUser;
+import org.jboss.picketlink.idm.model.Group;
+import org.jboss.picketlink.idm.model.Role;
+import org.jboss.picketlink.idm.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests keeping a {@link MemoryIdentityStore} on disk with a {@link MemoryPersistence}.
+ * </p>
+ */
+public class MemoryPersistenceTestCase {
+
+    private File directory;
+
+    @Before
+    public void onSetup() throws Exception {
+        directory = File.createTempFile("memory-persistence", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void onFinish() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * <p>
+     * Tests that the identity types, their properties and attributes, and the memberships are loaded back from the snapshot
+     * and the changes logged after it.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshotAndChangeLog() throws Exception {
+        MemoryIdentityStore identityStore = new MemoryIdentityStore();
+        MemoryPersistence persistence = new MemoryPersistence(identityStore, directory);
+        persistence.open();
+
+        User user = identityStore.createUser("persisted-user");
+        user.setFirstName("Persisted");
+        user.setLastName("Us\u00e9r");
+        user.setEmail("persisted@jboss.org");
+        identityStore.setAttribute(user, "phone", new String[] { "1", "2" });
+        User removedUser = identityStore.createUser("removed-user");
+        Group group = identityStore.createGroup("persisted-group", null);
+        Group subgroup = identityStore.createGroup("persisted-subgroup", group);
+        identityStore.setAttribute(subgroup, "location", new String[] { "Z\u00fcrich" });
+        Role role = identityStore.createRole("persisted-role");
+        Role otherRole = identityStore.createRole("other-role");
+        identityStore.createMembership(role, user, subgroup);
+        identityStore.createMembership(otherRole, removedUser, null);
+        identityStore.createMembership(otherRole, null, group);
+        Date creationDate = user.getCreationDate();
+
+        persistence.checkpoint();
+
+        Date expirationDate = new Date(System.currentTimeMillis() + 60000);
+        identityStore.removeUser(removedUser);
+        identityStore.setAttribute(user, "phone", new String[] { "3" });
+        identityStore.removeAttribute(subgroup, "location");
+        user.setEmail("changed@jboss.org");
+        ((MemoryRole) otherRole).setExpirationDate(expirationDate);
+        identityStore.removeMembership(otherRole, null, group);
+        ((MemoryUser) identityStore.createUser("created-user")).setEnabled(false);
+        identityStore.createMembership(otherRole, identityStore.getUser("created-user"), null);
+
+        persistence.close();
+
+        MemoryIdentityStore loadedStore = new MemoryIdentityStore();
+        MemoryPersistence loadedPersistence = new MemoryPersistence(loadedStore, directory);
+        loadedPersistence.open();
+
+        assertEquals(0, loadedPersistence.getSkippedRecords());
+
+        User loadedUser = loadedStore.getUser("persisted-user");
+
+        assertEquals("Persisted", loadedUser.getFirstName());
+        assertEquals("Us\u00e9r", loadedUser.getLastName());
+        assertEquals("changed@jboss.org", loadedUser.getEmail());
+        assertEquals(creationDate, loadedUser.getCreationDate());
+        assertArrayEquals(new String[] { "3" }, loadedStore.getAttributeValues(loadedUser, "phone"));
+        assertNull(loadedStore.getUser("removed-user"));
+        assertFalse(loadedStore.getUser("created-user").isEnabled());
+
+        Group loadedSubgroup = loadedStore.getGroup("persisted-subgroup");
+
+        assertSame(loadedStore.getGroup("persisted-group"), loadedSubgroup.getParentGroup());
+        assertNull(loadedStore.getAttributeValues(loadedSubgroup, "location"));
+        assertEquals(expirationDate, loadedStore.getRole("other-role").getExpirationDate());
+
+        assertNotNull(loadedStore.getMembership(loadedStore.getRole("persisted-role"), loadedUser, loadedSubgroup));
+        assertNull(loadedStore.getMembership(loadedStore.getRole("other-role"), null, loadedStore.getGroup("persisted-group")));
+        assertNotNull(loadedStore.getMembership(loadedStore.getRole("other-role"), loadedStore.getUser("created-user"), null));
+
+        // the indexes are rebuilt
+        List<User> byEmail = loadedStore.executeQuery(new DefaultUserQuery(loadedStore).setEmail("changed@jboss.org"), null);
+
+        assertEquals(1, byEmail.size());
+        assertTrue(loadedStore.executeQuery(new DefaultUserQuery(loadedStore).setEmail("persisted@jboss.org"), null)
+                .isEmpty());
+
+        List<Group> subgroups = loadedStore.executeQuery(new DefaultGroupQuery(loadedStore).setParentGroup(loadedStore
+                .getGroup("persisted-group")), null);
+
+        assertEquals(1, subgroups.size());
+
+        loadedPersistence.close();
+    }
+
+    /**
+     * <p>
+     * Tests that the replay of a log stops at a record torn by a crash, keeping the records before it.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTornRecord() throws Exception {
+        MemoryIdentityStore identityStore = new MemoryIdentityStore();
+        MemoryPersistence persistence = new MemoryPersistence(identityStore, directory);
+        persistence.open();
+
+        identityStore.createUser("kept-user");
+        identityStore.createUser("torn-user");
+
+        persistence.close();
+
+        RandomAccessFile log = new RandomAccessFile(new File(directory, "identities.log"), "rw");
+        try {
+            log.setLength(log.length() - 3);
+        } finally {
+            log.close();
+        }
+
+        MemoryIdentityStore loadedStore = new MemoryIdentityStore();
+        MemoryPersistence loadedPersistence = new MemoryPersistence(loadedStore, directory);
+        loadedPersistence.open();
+
+        assertNotNull(loadedStore.getUser("kept-user"));
+        assertNull(loadedStore.getUser("torn-user"));
+
+        loadedStore.createUser("torn-user");
+        loadedPersistence.close();
+
+        // the torn record was dropped when the recovered store was written as a snapshot
+        MemoryIdentityStore reloadedStore = new MemoryIdentityStore();
+        MemoryPersistence reloadedPersistence = new MemoryPersistence(reloadedStore, directory);
+        reloadedPersistence.open();
+
+        assertNotNull(reloadedStore.getUser("torn-user"));
+
+        reloadedPersistence.close();
+    }
+
+    /**
+     * <p>
+     * Tests the recovery from a crash in the middle of a checkpoint: the log moved aside and the new log are both replayed
+     * over a snapshot which already has some of their changes.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInterruptedCheckpoint() throws Exception {
+        MemoryIdentityStore identityStore = new MemoryIdentityStore();
+        MemoryChangeLog changeLog = new MemoryChangeLog(new File(directory, "identities.log"));
+        identityStore.setChangeLog(changeLog);
+
+        User user = identityStore.createUser("checkpoint-user");
+        Role role = identityStore.createRole("checkpoint-role");
+        identityStore.setAttribute(user, "state", new String[] { "before" });
+
+        changeLog.roll(new File(directory, "identities.log.previous"));
+
+        identityStore.createMembership(role, user, null);
+        identityStore.setAttribute(user, "state", new String[] { "during" });
+        MemorySnapshot.write(identityStore, new File(directory, "identities.snapshot"));
+        identityStore.removeMembership(role, user, null);
+        identityStore.setAttribute(user, "state", new String[] { "after" });
+        changeLog.close();
+
+        MemoryIdentityStore loadedStore = new MemoryIdentityStore();
+        MemoryPersistence loadedPersistence = new MemoryPersistence(loadedStore, directory);
+        loadedPersistence.open();
+
+        User loadedUser = loadedStore.getUser("checkpoint-user");
+
+        assertArrayEquals(new String[] { "after" }, loadedStore.getAttributeValues(loadedUser, "state"));
+        assertNull(loadedStore.getMembership(loadedStore.getRole("checkpoint-role"), loadedUser, null));
+        assertFalse(new File(directory, "identities.log.previous").exists());
+
+        loadedPersistence.close();
+    }
+}
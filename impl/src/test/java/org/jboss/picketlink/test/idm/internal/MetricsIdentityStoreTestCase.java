@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+import org.jboss.picketlink.idm.internal.MetricsIdentityStore;
+import org.jboss.picketlink.idm.internal.metrics.IdentityStoreOperation;
+import org.jboss.picketlink.idm.internal.metrics.JMXMetricsRegistry;
+import org.jboss.picketlink.idm.internal.metrics.LatencyHistogram;
+import org.jboss.picketlink.idm.internal.metrics.OperationStatistics;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the {@link MetricsIdentityStore} and the publication of its metrics through JMX.
+ * </p>
+ */
+public class MetricsIdentityStoreTestCase {
+
+    /**
+     * <p>
+     * Tests that calls and failed calls are counted per operation and published as MBeans.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOperationMetrics() throws Exception {
+        MetricsIdentityStore identityStore = new MetricsIdentityStore(new MemoryIdentityStore(), "memory");
+
+        identityStore.createUser("measured-user");
+        identityStore.getUser("measured-user");
+        identityStore.getUser("missing-user");
+
+        try {
+            identityStore.createUser("measured-user");
+            fail("The user already exists");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        OperationStatistics createUser = identityStore.getMetrics().getStatistics(IdentityStoreOperation.CREATE_USER);
+
+        assertEquals(2, createUser.getCount());
+        assertEquals(1, createUser.getErrors());
+        assertTrue(createUser.getMax() >= createUser.getMedian());
+        assertEquals(2, identityStore.getMetrics().getStatistics(IdentityStoreOperation.GET_USER).getCount());
+        assertEquals(2, identityStore.getMetrics().getStatistics().size());
+
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        JMXMetricsRegistry registry = new JMXMetricsRegistry(server);
+        registry.register(identityStore.getMetrics());
+
+        ObjectName name = JMXMetricsRegistry.createObjectName("memory", IdentityStoreOperation.CREATE_USER);
+
+        assertEquals(2L, server.getAttribute(name, "Count"));
+        assertEquals(1L, server.getAttribute(name, "Errors"));
+
+        server.invoke(name, "reset", null, null);
+
+        assertEquals(0L, server.getAttribute(name, "Count"));
+
+        registry.unregister("memory");
+
+        assertEquals(0, server.queryNames(new ObjectName(JMXMetricsRegistry.DOMAIN + ":*"), null).size());
+    }
+
+    /**
+     * <p>
+     * Tests that the percentiles of the histogram are within its precision of the recorded values.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLatencyHistogram() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000000L, histogram.getMax());
+        assertEquals(50000500L, histogram.getMean());
+        assertWithin(50000000L, histogram.getPercentile(50));
+        assertWithin(99000000L, histogram.getPercentile(99));
+        assertWithin(99900000L, histogram.getPercentile(99.9));
+        assertEquals(100000000L, histogram.getPercentile(100));
+
+        histogram.reset();
+
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not within 4% of " + expected, Math.abs(actual - expected) <= expected * 0.04);
+    }
+}
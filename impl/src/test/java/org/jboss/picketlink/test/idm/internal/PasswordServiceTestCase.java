@@ -0,0 +1,198 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.picketlink.idm.internal.DefaultIdentityManager;
+import org.jboss.picketlink.idm.internal.MemoryIdentityStore;
+import org.jboss.picketlink.idm.internal.credential.PBKDF2PasswordHasher;
+import org.jboss.picketlink.idm.internal.credential.PasswordHasher;
+import org.jboss.picketlink.idm.internal.credential.PasswordService;
+import org.jboss.picketlink.idm.internal.credential.ScryptPasswordHasher;
+import org.jboss.picketlink.idm.internal.memory.MemoryUser;
+import org.jboss.picketlink.idm.model.User;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the password hashers and the checking of the passwords by the {@link DefaultIdentityManager}.
+ * </p>
+ */
+public class PasswordServiceTestCase {
+
+    /**
+     * <p>
+     * Tests the hashers against the test vectors of RFC 7914, and that their hashes are salted.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHashers() throws Exception {
+        assertArrayEquals(toBytes("77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442"
+                + "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906"),
+                ScryptPasswordHasher.scrypt(new byte[0], new byte[0], 16, 1, 1, 64));
+
+        PBKDF2PasswordHasher pbkdf2 = new PBKDF2PasswordHasher(1);
+
+        assertTrue(pbkdf2.verify("passwd".toCharArray(),
+                "{PBKDF2-SHA256}1$c2FsdA==$VawEblbjCJ/sFpHCJUS2BflBhSFt3gRl5oudV8INrLw="));
+
+        ScryptPasswordHasher scrypt = new ScryptPasswordHasher(1024, 8, 16);
+
+        assertTrue(scrypt.verify("password".toCharArray(), "{SCRYPT}1024$8$16$TmFDbA==$"
+                + "/bq+HJ00cgB4VucZDQHp/nxq18vII3gw53N2Y0s3MWIurzDZLiKjiG/xCSedmDDaxyevuUqD7m2DYMvfoswGQA=="));
+
+        for (PasswordHasher hasher : new PasswordHasher[] { pbkdf2, new ScryptPasswordHasher(16, 1, 1) }) {
+            String first = hasher.hash("secret".toCharArray());
+            String second = hasher.hash("secret".toCharArray());
+
+            assertFalse(first.equals(second));
+            assertTrue(hasher.verify("secret".toCharArray(), first));
+            assertFalse(hasher.verify("Secret".toCharArray(), first));
+            int hashStart = first.lastIndexOf('$') + 1;
+            String tampered = first.substring(0, hashStart) + (first.charAt(hashStart) == 'A' ? 'B' : 'A')
+                    + first.substring(hashStart + 1);
+
+            assertFalse(hasher.verify("secret".toCharArray(), tampered));
+            assertFalse(hasher.verify("secret".toCharArray(), first.substring(0, hashStart + 4)));
+            assertFalse(hasher.needsRehash(first));
+        }
+
+        assertTrue(new PBKDF2PasswordHasher(2).needsRehash(pbkdf2.hash("secret".toCharArray())));
+    }
+
+    /**
+     * <p>
+     * Tests checking and updating passwords, and that a password hashed with old parameters is hashed again on login.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testValidatePassword() throws Exception {
+        MemoryIdentityStore identityStore = new MemoryIdentityStore();
+        DefaultIdentityManager identityManager = new DefaultIdentityManager();
+        identityManager.setIdentityStore(identityStore);
+        identityManager.setPasswordService(new PasswordService(new PBKDF2PasswordHasher(10), 2, 10));
+
+        User user = identityManager.createUser("password-user");
+
+        assertFalse(identityManager.validatePassword(user, "secret"));
+        assertFalse(identityManager.validatePassword(null, "secret"));
+
+        identityManager.updatePassword(user, "secret");
+
+        String passwordHash = identityStore.getPasswordHash(user);
+
+        assertTrue(passwordHash.startsWith("{PBKDF2-SHA256}10$"));
+        assertTrue(identityManager.validatePassword(user, "secret"));
+        assertFalse(identityManager.validatePassword(user, "wrong"));
+        assertEquals(passwordHash, identityStore.getPasswordHash(user));
+
+        PasswordService stronger = new PasswordService(new ScryptPasswordHasher(16, 1, 1), 2, 10);
+        stronger.addHasher(new PBKDF2PasswordHasher(10));
+        identityManager.setPasswordService(stronger);
+
+        assertTrue(identityManager.validatePassword(user, "secret"));
+        assertTrue(identityStore.getPasswordHash(user).startsWith("{SCRYPT}16$1$1$"));
+        assertTrue(identityManager.validatePassword(user, "secret"));
+
+        ((MemoryUser) user).setExpirationDate(new Date(System.currentTimeMillis() - 1000));
+
+        assertFalse(identityManager.validatePassword(user, "secret"));
+
+        ((MemoryUser) user).setExpirationDate(null);
+        ((MemoryUser) user).setEnabled(false);
+
+        assertFalse(identityManager.validatePassword(user, "secret"));
+
+        identityManager.updatePassword(user, null);
+
+        assertNull(identityStore.getPasswordHash(user));
+    }
+
+    /**
+     * <p>
+     * Tests that requests are rejected once the queue of the password threads is full.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBoundedQueue() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        PasswordService service = new PasswordService(new PBKDF2PasswordHasher(1) {
+            @Override
+            public boolean verify(char[] password, String passwordHash) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.verify(password, passwordHash);
+            }
+        }, 1, 1);
+        String passwordHash = service.hash("secret");
+
+        Future<Boolean> running = service.verifyAsync("secret", passwordHash);
+        started.await(10, TimeUnit.SECONDS);
+        Future<Boolean> queued = service.verifyAsync("secret", passwordHash);
+
+        try {
+            service.verifyAsync("secret", passwordHash);
+            fail("The queue is full");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        release.countDown();
+
+        assertTrue(running.get());
+        assertTrue(queued.get());
+        assertNotNull(service.hash("other"));
+
+        service.close();
+    }
+
+    private static byte[] toBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
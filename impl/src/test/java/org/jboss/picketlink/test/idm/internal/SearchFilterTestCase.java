@@ -0,0 +1,65 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.picketlink.test.idm.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.jboss.picketlink.idm.internal.ldap.LDAPConstants;
+import org.jboss.picketlink.idm.internal.ldap.LDAPSearchFilter;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Tests the expressions built by {@link LDAPSearchFilter}.
+ * </p>
+ */
+public class SearchFilterTestCase {
+
+    /**
+     * <p>
+     * Tests that keyset ranges are compared with an extensible match on the ordering rule, and not with
+     * <code>&gt;=</code> or <code>&lt;=</code> which are Undefined for attributes without an ordering rule.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMatchAfter() throws Exception {
+        LDAPSearchFilter ascending = new LDAPSearchFilter("inetOrgPerson").matchAfter("cn",
+                LDAPConstants.CASE_IGNORE_ORDERING_MATCH, "bob*", true);
+
+        assertEquals("(&(objectclass={0})(!(cn:2.5.13.3:={1}))(!(cn={2})))", ascending.getExpression());
+        assertArrayEquals(new Object[] { "inetOrgPerson", "bob*", "bob*" }, ascending.getArgs());
+
+        LDAPSearchFilter descending = new LDAPSearchFilter("inetOrgPerson").matchAfter("cn",
+                LDAPConstants.CASE_IGNORE_ORDERING_MATCH, "bob", false);
+
+        assertEquals("(&(objectclass={0})(cn:2.5.13.3:={1}))", descending.getExpression());
+        assertArrayEquals(new Object[] { "inetOrgPerson", "bob" }, descending.getArgs());
+
+        LDAPSearchFilter first = new LDAPSearchFilter("inetOrgPerson").matchAfter("cn",
+                LDAPConstants.CASE_IGNORE_ORDERING_MATCH, null, true);
+
+        assertEquals("(&(objectclass={0}))", first.getExpression());
+    }
+}